@@ -0,0 +1,53 @@
+package com.octopus.email_service.config;
+
+import com.octopus.email_service.mail.SendEnvelope;
+import com.octopus.email_service.mail.SendEnvelopeCodec;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+
+/**
+ * Writes {@link SendEnvelope} payloads with {@link SendEnvelopeCodec} and everything else, including
+ * plain email IDs, with the delegate JSON converter. Reading picks the codec by content type, so
+ * queues can hold a mix of both while the payload mode is being switched.
+ */
+public class EnvelopeMessageConverter implements MessageConverter {
+
+    public static final String CONTENT_TYPE = "application/x-email-envelope";
+
+    private final MessageConverter delegate;
+    private final int maxBytes;
+
+    public EnvelopeMessageConverter(MessageConverter delegate, int maxBytes) {
+        this.delegate = delegate;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public Message toMessage(Object object, MessageProperties messageProperties) {
+        if (object instanceof SendEnvelope envelope) {
+            byte[] body = SendEnvelopeCodec.encode(envelope);
+            if (body.length > maxBytes) {
+                // Too large to carry through the broker; the worker loads this one by ID
+                return delegate.toMessage(envelope.emailId(), messageProperties);
+            }
+            messageProperties.setContentType(CONTENT_TYPE);
+            messageProperties.setContentLength(body.length);
+            return new Message(body, messageProperties);
+        }
+        return delegate.toMessage(object, messageProperties);
+    }
+
+    @Override
+    public Object fromMessage(Message message) {
+        if (CONTENT_TYPE.equals(message.getMessageProperties().getContentType())) {
+            try {
+                return SendEnvelopeCodec.decode(message.getBody());
+            } catch (RuntimeException e) {
+                throw new MessageConversionException("Failed to decode send envelope", e);
+            }
+        }
+        return delegate.fromMessage(message);
+    }
+}
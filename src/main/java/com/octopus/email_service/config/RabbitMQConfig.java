@@ -10,6 +10,9 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Configuration
 public class RabbitMQConfig {
     
@@ -25,9 +28,73 @@ public class RabbitMQConfig {
     @Value("${app.email.routing.key:email.send}")
     private String emailRoutingKey;
     
+    @Value("${app.email.retry.exchange:email.exchange.retry}")
+    private String retryExchangeName;
+    
+    @Value("${app.email.retry.queue-prefix:email.retry}")
+    private String retryQueuePrefix;
+    
+    @Value("${app.email.retry.tiers:30000,120000,600000,3600000}")
+    private List<Long> retryTiers;
+    
+    @Value("${app.email.rate-limit.park-queue-prefix:email.parked}")
+    private String parkQueuePrefix;
+    
+    @Value("${app.email.rate-limit.park-tiers:1000,5000,30000,300000,3600000}")
+    private List<Long> parkTiers;
+    
+    @Value("${app.email.batch.size:50}")
+    private int batchSize;
+    
+    @Value("${app.email.batch.receive-timeout:1000}")
+    private long batchReceiveTimeout;
+    
+    @Value("${app.email.pipeline.prefetch:20}")
+    private int pipelinePrefetch;
+    
+    @Value("${app.email.virtual-threads.max-in-flight:200}")
+    private int virtualThreadMaxInFlight;
+    
+    @Value("${app.email.virtual-threads.dispatch-consumers:2}")
+    private int virtualThreadDispatchConsumers;
+    
+    @Value("${app.email.fair-scheduling.buffer-size:5000}")
+    private int fairSchedulingBufferSize;
+    
+    @Value("${app.email.express.enabled:false}")
+    private boolean expressEnabled;
+    
+    @Value("${app.email.express.queue:email.queue.express}")
+    private String expressQueueName;
+    
+    @Value("${app.email.express.routing-key:email.send.express}")
+    private String expressRoutingKey;
+    
+    @Value("${app.email.express.consumers:2}")
+    private int expressConsumers;
+    
+    @Value("${app.email.express.max-consumers:4}")
+    private int expressMaxConsumers;
+    
+    @Value("${app.email.sharding.enabled:false}")
+    private boolean shardingEnabled;
+    
+    @Value("${app.email.sharding.shards:8}")
+    private int shards;
+    
+    @Value("${app.email.sharding.queue-prefix:email.queue.shard}")
+    private String shardQueuePrefix;
+    
+    @Value("${app.email.sharding.routing-key-prefix:email.send.shard}")
+    private String shardRoutingKeyPrefix;
+    
+    @Value("${app.email.envelope.max-bytes:262144}")
+    private int envelopeMaxBytes;
+    
     @Bean
     public MessageConverter jsonMessageConverter() {
-        return new Jackson2JsonMessageConverter();
+        // JSON for plain email IDs, the binary envelope codec for self-contained payloads
+        return new EnvelopeMessageConverter(new Jackson2JsonMessageConverter(), envelopeMaxBytes);
     }
     
     @Bean
@@ -48,6 +115,90 @@ public class RabbitMQConfig {
         return factory;
     }
     
+    /**
+     * Container factory for the default consumer when the send pipeline is enabled. Deliveries are
+     * acknowledged manually once their send completes, so prefetch bounds how many each consumer
+     * has in the pipeline at once.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory pipelineRabbitListenerContainerFactory(ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setMessageConverter(jsonMessageConverter());
+        factory.setConcurrentConsumers(3);
+        factory.setMaxConcurrentConsumers(10);
+        factory.setPrefetchCount(Math.max(1, pipelinePrefetch));
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        return factory;
+    }
+    
+    /**
+     * Container factory for the batch consumer. Deliveries are grouped into batches of up to
+     * {@code app.email.batch.size} and acknowledged manually once the whole batch is processed.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory batchRabbitListenerContainerFactory(ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setMessageConverter(jsonMessageConverter());
+        factory.setConcurrentConsumers(3);
+        factory.setMaxConcurrentConsumers(10);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setPrefetchCount(batchSize);
+        factory.setReceiveTimeout(batchReceiveTimeout);
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        return factory;
+    }
+    
+    /**
+     * Container factory for the virtual-thread dispatcher. A few listener threads only hand
+     * deliveries off, so prefetch is sized to keep {@code max-in-flight} sends busy.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory virtualThreadRabbitListenerContainerFactory(ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setMessageConverter(jsonMessageConverter());
+        factory.setConcurrentConsumers(virtualThreadDispatchConsumers);
+        factory.setMaxConcurrentConsumers(virtualThreadDispatchConsumers);
+        factory.setPrefetchCount(Math.max(1, virtualThreadMaxInFlight / virtualThreadDispatchConsumers));
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        return factory;
+    }
+    
+    /**
+     * Container factory for the fair scheduler. Deliveries are buffered unacked in per-tenant lanes,
+     * so prefetch sets how far past one tenant's backlog the scheduler can see.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory fairRabbitListenerContainerFactory(ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setMessageConverter(jsonMessageConverter());
+        factory.setConcurrentConsumers(1);
+        factory.setMaxConcurrentConsumers(1);
+        factory.setPrefetchCount(Math.min(65535, Math.max(1, fairSchedulingBufferSize)));
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        return factory;
+    }
+    
+    /**
+     * Container factory for the express lane. Its consumers only ever take high-priority emails,
+     * so that capacity stays reserved however deep the bulk backlog gets.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory expressRabbitListenerContainerFactory(ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setMessageConverter(jsonMessageConverter());
+        factory.setConcurrentConsumers(expressConsumers);
+        factory.setMaxConcurrentConsumers(Math.max(expressConsumers, expressMaxConsumers));
+        factory.setPrefetchCount(1);
+        return factory;
+    }
+    
     // Email Queue
     @Bean
     public Queue emailQueue() {
@@ -86,4 +237,123 @@ public class RabbitMQConfig {
     public Binding emailDlqBinding() {
         return BindingBuilder.bind(emailDlq()).to(emailDlx()).with(emailDlqName);
     }
+    
+    // Retry Exchange
+    @Bean
+    public DirectExchange emailRetryExchange() {
+        return new DirectExchange(retryExchangeName);
+    }
+    
+    /**
+     * One delay queue per retry tier. Messages carry a per-message expiration and, once expired,
+     * are dead-lettered back into the email exchange with the normal routing key.
+     */
+    @Bean
+    public Declarables emailRetryQueues() {
+        return new Declarables(delayQueues(retryQueuePrefix, retryTiers, false, emailRoutingKey));
+    }
+    
+    /**
+     * Parking queues for rate-limited emails. Unlike the retry queues the delay is a queue-level TTL,
+     * so a long-parked message at the head never holds back shorter ones behind it.
+     */
+    @Bean
+    public Declarables emailParkingQueues() {
+        return new Declarables(delayQueues(parkQueuePrefix, parkTiers, true, emailRoutingKey));
+    }
+    
+    /**
+     * Express lane for high-priority emails, declared when {@code app.email.express.enabled=true}:
+     * its own queue plus retry and parking queues that dead-letter back into it rather than
+     * into the main queue behind the bulk backlog.
+     */
+    @Bean
+    public Declarables emailExpressLane() {
+        List<Declarable> declarables = new ArrayList<>();
+        if (!expressEnabled) {
+            return new Declarables(declarables);
+        }
+        Queue queue = QueueBuilder.durable(expressQueueName)
+                .withArgument("x-dead-letter-exchange", emailExchangeName + ".dlx")
+                .withArgument("x-dead-letter-routing-key", emailDlqName)
+                .withArgument("x-message-ttl", 300000) // 5 minutes TTL, as for the main queue
+                .build();
+        declarables.add(queue);
+        declarables.add(BindingBuilder.bind(queue).to(emailExchange()).with(expressRoutingKey));
+        declarables.addAll(delayQueues(expressPrefix(retryQueuePrefix), retryTiers, false, expressRoutingKey));
+        declarables.addAll(delayQueues(expressPrefix(parkQueuePrefix), parkTiers, true, expressRoutingKey));
+        return new Declarables(declarables);
+    }
+    
+    /**
+     * Sharded email queues, declared when {@code app.email.sharding.enabled=true}. Each takes the
+     * emails whose recipient domain or tenant hashes to it and is consumed by one node at a time.
+     */
+    @Bean
+    public Declarables emailShardQueues() {
+        List<Declarable> declarables = new ArrayList<>();
+        if (!shardingEnabled) {
+            return new Declarables(declarables);
+        }
+        for (int shard = 0; shard < shards; shard++) {
+            Queue queue = QueueBuilder.durable(shardName(shardQueuePrefix, shard))
+                    .withArgument("x-dead-letter-exchange", emailExchangeName + ".dlx")
+                    .withArgument("x-dead-letter-routing-key", emailDlqName)
+                    .withArgument("x-message-ttl", 300000) // 5 minutes TTL, as for the main queue
+                    .build();
+            declarables.add(queue);
+            declarables.add(BindingBuilder.bind(queue).to(emailExchange())
+                    .with(shardName(shardRoutingKeyPrefix, shard)));
+        }
+        return new Declarables(declarables);
+    }
+    
+    private List<Declarable> delayQueues(String prefix, List<Long> tiers, boolean queueTtl, String routingKey) {
+        List<Declarable> declarables = new ArrayList<>();
+        for (Long delay : tiers) {
+            String queueName = retryQueueName(prefix, delay);
+            QueueBuilder builder = QueueBuilder.durable(queueName);
+            if (queueTtl) {
+                builder.ttl(delay.intValue());
+            }
+            Queue queue = builder
+                    .withArgument("x-dead-letter-exchange", emailExchangeName)
+                    .withArgument("x-dead-letter-routing-key", routingKey)
+                    .build();
+            declarables.add(queue);
+            declarables.add(BindingBuilder.bind(queue).to(emailRetryExchange()).with(queueName));
+        }
+        return declarables;
+    }
+    
+    /**
+     * Prefix of the express lane's delay queues, e.g. {@code email.retry.express}
+     */
+    public static String expressPrefix(String prefix) {
+        return prefix + ".express";
+    }
+    
+    /**
+     * Queue or routing key of one shard, e.g. {@code email.queue.shard.3}
+     */
+    public static String shardName(String prefix, int shard) {
+        return prefix + "." + shard;
+    }
+    
+    /**
+     * Name of the retry queue for a tier, e.g. {@code email.retry.30s} or {@code email.retry.1h}
+     */
+    public static String retryQueueName(String prefix, long delayMillis) {
+        String suffix;
+        if (delayMillis % 3_600_000 == 0) {
+            suffix = (delayMillis / 3_600_000) + "h";
+        } else if (delayMillis % 60_000 == 0) {
+            suffix = (delayMillis / 60_000) + "m";
+        } else if (delayMillis % 1_000 == 0) {
+            suffix = (delayMillis / 1_000) + "s";
+        } else {
+            suffix = delayMillis + "ms";
+        }
+        return prefix + "." + suffix;
+    }
 }
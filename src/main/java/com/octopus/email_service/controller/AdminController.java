@@ -1,6 +1,8 @@
 package com.octopus.email_service.controller;
 
 import com.octopus.email_service.dto.ApiResponse;
+import com.octopus.email_service.dto.ReplayJobResponse;
+import com.octopus.email_service.dto.ReplayRequest;
 import com.octopus.email_service.dto.UserRequest;
 import com.octopus.email_service.entity.ApiKey;
 import com.octopus.email_service.entity.Email;
@@ -8,6 +10,7 @@ import com.octopus.email_service.entity.User;
 import com.octopus.email_service.enums.EmailStatus;
 import com.octopus.email_service.security.UserPrincipal;
 import com.octopus.email_service.service.ApiKeyService;
+import com.octopus.email_service.service.EmailReplayService;
 import com.octopus.email_service.service.EmailService;
 import com.octopus.email_service.service.UserService;
 import jakarta.validation.Valid;
@@ -34,6 +37,7 @@ public class AdminController {
     private final UserService userService;
     private final ApiKeyService apiKeyService;
     private final EmailService emailService;
+    private final EmailReplayService emailReplayService;
     
     // User Management
     @PostMapping("/users")
@@ -138,7 +142,7 @@ public class AdminController {
     @PostMapping("/emails/{emailId}/retry")
     public ResponseEntity<ApiResponse<Void>> retryEmail(@PathVariable Long emailId) {
         try {
-            // This would need to be implemented in EmailService
+            emailService.requeueEmail(emailId);
             return ResponseEntity.ok(ApiResponse.success("Email retry queued successfully", null));
         } catch (Exception e) {
             log.error("Failed to retry email: {}", emailId, e);
@@ -147,6 +151,40 @@ public class AdminController {
         }
     }
     
+    // Bulk replay of failed and dead-lettered emails
+    @PostMapping("/emails/replays")
+    public ResponseEntity<ApiResponse<ReplayJobResponse>> startReplay(@Valid @RequestBody ReplayRequest request) {
+        try {
+            ReplayJobResponse job = emailReplayService.start(request);
+            return ResponseEntity.ok(ApiResponse.success("Replay started", job));
+        } catch (Exception e) {
+            log.error("Failed to start replay", e);
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("Failed to start replay: " + e.getMessage()));
+        }
+    }
+    
+    @GetMapping("/emails/replays")
+    public ResponseEntity<ApiResponse<List<ReplayJobResponse>>> getReplays() {
+        return ResponseEntity.ok(ApiResponse.success(emailReplayService.getJobs()));
+    }
+    
+    @GetMapping("/emails/replays/{jobId}")
+    public ResponseEntity<ApiResponse<ReplayJobResponse>> getReplay(@PathVariable String jobId) {
+        return emailReplayService.getJob(jobId)
+                .map(job -> ResponseEntity.ok(ApiResponse.success(job)))
+                .orElse(ResponseEntity.notFound().build());
+    }
+    
+    @DeleteMapping("/emails/replays/{jobId}")
+    public ResponseEntity<ApiResponse<Void>> cancelReplay(@PathVariable String jobId) {
+        if (!emailReplayService.cancel(jobId)) {
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("No running replay with ID: " + jobId));
+        }
+        return ResponseEntity.ok(ApiResponse.success("Replay cancelling after its current batch", null));
+    }
+    
     // Statistics
     @GetMapping("/stats")
     public ResponseEntity<ApiResponse<Map<String, Object>>> getStatistics() {
@@ -155,7 +193,8 @@ public class AdminController {
                 "totalEmails", emailService.getEmailCountSince(LocalDateTime.now().minusDays(30)),
                 "sentEmails", emailService.getEmailCountByStatus(EmailStatus.SENT),
                 "failedEmails", emailService.getEmailCountByStatus(EmailStatus.FAILED),
-                "pendingEmails", emailService.getEmailCountByStatus(EmailStatus.ENQUEUED)
+                "pendingEmails", emailService.getEmailCountByStatus(EmailStatus.ENQUEUED),
+                "scheduledEmails", emailService.getEmailCountByStatus(EmailStatus.SCHEDULED)
             );
             
             return ResponseEntity.ok(ApiResponse.success(stats));
@@ -0,0 +1,114 @@
+package com.octopus.email_service.controller;
+
+import com.octopus.email_service.dto.ApiResponse;
+import com.octopus.email_service.dto.CampaignRequest;
+import com.octopus.email_service.dto.CampaignResponse;
+import com.octopus.email_service.entity.EmailTenant;
+import com.octopus.email_service.service.ApiKeyService;
+import com.octopus.email_service.service.CampaignService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.validation.Valid;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.UUID;
+
+@RestController
+@RequestMapping("/v1/emails/campaigns")
+@RequiredArgsConstructor
+@Slf4j
+public class CampaignController {
+
+    private final CampaignService campaignService;
+    private final ApiKeyService apiKeyService;
+
+    @PostMapping
+    public ResponseEntity<ApiResponse<CampaignResponse>> createCampaign(
+            @Valid @RequestBody CampaignRequest request,
+            @RequestHeader(value = "X-Api-Key", required = false) String apiKey) {
+
+        try {
+            CampaignResponse response = campaignService.createCampaign(request, tenantFor(apiKey));
+            return ResponseEntity.ok(ApiResponse.success("Campaign accepted", response));
+        } catch (SecurityException e) {
+            log.error("API key validation failed", e);
+            return ResponseEntity.status(401)
+                    .body(ApiResponse.error("Authentication failed: " + e.getMessage()));
+        } catch (Exception e) {
+            log.error("Failed to create campaign", e);
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("Failed to create campaign: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Stream recipients into an open campaign, one JSON recipient per line
+     */
+    @PostMapping(value = "/{id}/recipients", consumes = "application/x-ndjson")
+    public ResponseEntity<ApiResponse<CampaignResponse>> addRecipients(
+            @PathVariable UUID id,
+            HttpServletRequest servletRequest,
+            @RequestHeader(value = "X-Api-Key", required = false) String apiKey) {
+
+        try {
+            CampaignResponse response = campaignService.addRecipients(id, tenantFor(apiKey), servletRequest.getInputStream());
+            return ResponseEntity.ok(ApiResponse.success("Recipients accepted", response));
+        } catch (SecurityException e) {
+            log.error("API key validation failed", e);
+            return ResponseEntity.status(401)
+                    .body(ApiResponse.error("Authentication failed: " + e.getMessage()));
+        } catch (Exception e) {
+            log.error("Failed to add recipients to campaign: {}", id, e);
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("Failed to add recipients: " + e.getMessage()));
+        }
+    }
+
+    @PostMapping("/{id}/close")
+    public ResponseEntity<ApiResponse<CampaignResponse>> closeCampaign(
+            @PathVariable UUID id,
+            @RequestHeader(value = "X-Api-Key", required = false) String apiKey) {
+
+        try {
+            CampaignResponse response = campaignService.closeCampaign(id, tenantFor(apiKey));
+            return ResponseEntity.ok(ApiResponse.success("Campaign closed", response));
+        } catch (SecurityException e) {
+            log.error("API key validation failed", e);
+            return ResponseEntity.status(401)
+                    .body(ApiResponse.error("Authentication failed: " + e.getMessage()));
+        } catch (Exception e) {
+            log.error("Failed to close campaign: {}", id, e);
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("Failed to close campaign: " + e.getMessage()));
+        }
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<ApiResponse<CampaignResponse>> getCampaign(
+            @PathVariable UUID id,
+            @RequestHeader(value = "X-Api-Key", required = false) String apiKey) {
+
+        try {
+            return campaignService.getCampaign(id, tenantFor(apiKey))
+                    .map(campaign -> ResponseEntity.ok(ApiResponse.success(campaign)))
+                    .orElse(ResponseEntity.notFound().build());
+        } catch (SecurityException e) {
+            log.error("API key validation failed", e);
+            return ResponseEntity.status(401)
+                    .body(ApiResponse.error("Authentication failed: " + e.getMessage()));
+        } catch (Exception e) {
+            log.error("Failed to get campaign: {}", id, e);
+            return ResponseEntity.badRequest()
+                    .body(ApiResponse.error("Failed to get campaign: " + e.getMessage()));
+        }
+    }
+
+    private EmailTenant tenantFor(String apiKey) {
+        if (apiKey == null || apiKey.trim().isEmpty()) {
+            return null;
+        }
+        return apiKeyService.validateApiKey(apiKey).getTenant();
+    }
+}
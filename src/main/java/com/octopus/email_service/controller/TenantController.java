@@ -41,6 +41,10 @@ public class TenantController {
                 request.getDefaultReplyToName()
             );
             
+            if (request.getSchedulingWeight() != null) {
+                tenant = tenantService.updateSchedulingWeight(tenant.getId(), request.getSchedulingWeight());
+            }
+            
             TenantResponse response = TenantResponse.fromEntity(tenant);
             return ResponseEntity.ok(ApiResponse.success("Tenant created successfully", response));
         } catch (Exception e) {
@@ -104,6 +108,10 @@ public class TenantController {
                 request.getDefaultReplyToName()
             );
             
+            if (request.getSchedulingWeight() != null) {
+                tenant = tenantService.updateSchedulingWeight(tenantId, request.getSchedulingWeight());
+            }
+            
             TenantResponse response = TenantResponse.fromEntity(tenant);
             return ResponseEntity.ok(ApiResponse.success("Tenant updated successfully", response));
         } catch (Exception e) {
@@ -0,0 +1,26 @@
+package com.octopus.email_service.dto;
+
+import jakarta.validation.constraints.Email;
+import jakarta.validation.constraints.NotBlank;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+/**
+ * One recipient of a campaign; its variables override the campaign's shared ones
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class CampaignRecipient {
+    
+    @NotBlank(message = "Recipient address is required")
+    @Email(message = "Recipient address must be a valid email")
+    private String to;
+    
+    private Map<String, Object> templateVars;
+}
@@ -0,0 +1,50 @@
+package com.octopus.email_service.dto;
+
+import com.octopus.email_service.enums.EmailPriority;
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.Email;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.Positive;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A mail-merge campaign: one template, shared variables and attachments, and many recipients.
+ * More recipients can be streamed in afterwards as NDJSON.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class CampaignRequest {
+    
+    private String name;
+    
+    @NotBlank(message = "From address is required")
+    @Email(message = "From address must be a valid email")
+    private String from;
+    
+    @NotBlank(message = "Template name is required")
+    private String templateName;
+    
+    private String subject; // stored on each email; the template's subject is rendered at send time
+    
+    private Map<String, Object> templateVars; // shared by all recipients
+    
+    private List<EmailAttachmentDto> attachments; // uploaded once for the whole campaign
+    
+    private EmailPriority priority; // defaults to LOW
+    
+    private LocalDateTime scheduledAt;
+    
+    @Positive(message = "Drip rate must be positive")
+    private Integer dripPerHour; // release at most this many recipients an hour
+    
+    private List<@Valid CampaignRecipient> recipients;
+}
@@ -0,0 +1,31 @@
+package com.octopus.email_service.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.UUID;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class CampaignResponse {
+    
+    private UUID id;
+    private String name;
+    private String status;
+    private String templateName;
+    private String priority;
+    private long recipientsReceived;
+    private long recipientsQueued;
+    private long recipientsRejected;
+    private Integer recipientsExpected; // recipients submitted with the campaign, null when streamed
+    private String error; // why a FAILED campaign stopped taking recipients
+    private Map<String, Long> emailsByStatus; // delivery progress of the queued recipients
+    private LocalDateTime createdAt;
+    private LocalDateTime updatedAt;
+}
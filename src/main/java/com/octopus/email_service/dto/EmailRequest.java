@@ -3,11 +3,14 @@ package com.octopus.email_service.dto;
 import jakarta.validation.constraints.Email;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Positive;
+import com.octopus.email_service.enums.EmailPriority;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Map;
 
@@ -37,5 +40,14 @@ public class EmailRequest {
     private String body;
     
     private List<EmailAttachmentDto> attachments;
+    
+    private EmailPriority priority; // HIGH for transactional mail such as OTPs; defaults to NORMAL
+    
+    private LocalDateTime scheduledAt; // send no earlier than this; omitted or past means now
+    
+    private String dripGroup; // emails sharing a drip group are released at most dripPerHour an hour
+    
+    @Positive(message = "Drip rate must be positive")
+    private Integer dripPerHour;
 
 }
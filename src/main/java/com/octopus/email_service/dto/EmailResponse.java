@@ -1,6 +1,7 @@
 package com.octopus.email_service.dto;
 
 import com.octopus.email_service.entity.Email;
+import com.octopus.email_service.enums.EmailPriority;
 import com.octopus.email_service.enums.EmailStatus;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -27,6 +28,7 @@ public class EmailResponse {
     private String templateName;
     private String body;
     private EmailStatus status;
+    private EmailPriority priority;
     private Integer attempts;
     private Integer maxAttempts;
     private String lastError;
@@ -49,6 +51,7 @@ public class EmailResponse {
 //                .templateName(email.getTemplate() != null ? email.getTemplate().getName() : null)
                 .body(email.getBody())
                 .status(email.getStatus())
+                .priority(email.getPriority())
                 .attempts(email.getAttempts())
                 .maxAttempts(email.getMaxAttempts())
                 .lastError(email.getLastError())
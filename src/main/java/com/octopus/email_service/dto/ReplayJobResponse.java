@@ -0,0 +1,28 @@
+package com.octopus.email_service.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ReplayJobResponse {
+    
+    private String id;
+    private String status;
+    private ReplayRequest request;
+    private long matched;
+    private long reset;
+    private long enqueued;
+    private long deadLettersDrained;
+    private long deadLettersSkipped;
+    private int ratePerSecond;
+    private LocalDateTime startedAt;
+    private LocalDateTime finishedAt;
+    private String error;
+}
@@ -0,0 +1,41 @@
+package com.octopus.email_service.dto;
+
+import jakarta.validation.constraints.Positive;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Selects failed and dead-lettered emails to replay; every filter is optional and they combine with AND
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ReplayRequest {
+    
+    private Long tenantId;
+    
+    private LocalDateTime createdFrom;
+    
+    private LocalDateTime createdTo;
+    
+    private String errorPattern; // case-insensitive substring of the last error
+    
+    private String domain; // recipient domain of any To address
+    
+    @Builder.Default
+    private boolean includeFailed = true;
+    
+    @Builder.Default
+    private boolean includeDeadLettered = true;
+    
+    @Positive(message = "Rate must be positive")
+    private Integer ratePerSecond; // defaults to app.email.replay.rate-per-second
+    
+    @Positive(message = "Limit must be positive")
+    private Integer limit; // maximum number of emails to replay
+}
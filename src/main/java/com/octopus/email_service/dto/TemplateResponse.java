@@ -22,6 +22,7 @@ public class TemplateResponse {
     private BodyType bodyType;
     private Long createdBy;
     private Boolean isActive;
+    private Integer version;
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
     
@@ -34,6 +35,7 @@ public class TemplateResponse {
                 .bodyType(template.getBodyType())
                 .createdBy(template.getCreatedBy() != null ? template.getCreatedBy().getId() : null)
                 .isActive(template.getIsActive())
+                .version(template.getVersion())
                 .createdAt(template.getCreatedAt())
                 .updatedAt(template.getUpdatedAt())
                 .build();
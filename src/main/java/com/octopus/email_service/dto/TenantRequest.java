@@ -1,6 +1,8 @@
 package com.octopus.email_service.dto;
 
 import jakarta.validation.constraints.Email;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.Pattern;
 import jakarta.validation.constraints.Size;
@@ -35,4 +37,8 @@ public class TenantRequest {
     
     @Size(max = 255, message = "Default reply-to name must not exceed 255 characters")
     private String defaultReplyToName;
+    
+    @Min(value = 1, message = "Scheduling weight must be at least 1")
+    @Max(value = 1000, message = "Scheduling weight must not exceed 1000")
+    private Integer schedulingWeight;
 }
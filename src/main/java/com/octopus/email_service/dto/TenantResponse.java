@@ -24,6 +24,7 @@ public class TenantResponse {
     private String defaultReplyToName;
     private Boolean domainVerified;
     private Boolean isActive;
+    private Integer schedulingWeight;
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
     private List<DomainResponse> allowedDomains;
@@ -46,6 +47,7 @@ public class TenantResponse {
                 .defaultReplyToName(tenant.getDefaultReplyToName())
                 .domainVerified(tenant.getDomainVerified())
                 .isActive(tenant.getIsActive())
+                .schedulingWeight(tenant.getSchedulingWeight())
                 .createdAt(tenant.getCreatedAt())
                 .updatedAt(tenant.getUpdatedAt())
                 .allowedDomains(domains)
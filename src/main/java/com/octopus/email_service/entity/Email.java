@@ -1,5 +1,6 @@
 package com.octopus.email_service.entity;
 
+import com.octopus.email_service.enums.EmailPriority;
 import com.octopus.email_service.enums.EmailStatus;
 import com.octopus.email_service.converter.StringListConverter;
 import jakarta.persistence.*;
@@ -7,6 +8,7 @@ import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.BatchSize;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.UpdateTimestamp;
 
@@ -36,16 +38,22 @@ public class Email {
     @Column(name = "reply_to_address")
     private String replyToAddress;
     
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "tenant_id")
+    private EmailTenant tenant;
+    
     @Column(name = "to_addresses")
     @Convert(converter = StringListConverter.class)
     private List<String> toAddresses;
     
     @ElementCollection
+    @BatchSize(size = 100)
     @CollectionTable(name = "email_cc_addresses", joinColumns = @JoinColumn(name = "email_id"))
     @Column(name = "cc_address")
     private List<String> ccAddresses;
     
     @ElementCollection
+    @BatchSize(size = 100)
     @CollectionTable(name = "email_bcc_addresses", joinColumns = @JoinColumn(name = "email_id"))
     @Column(name = "bcc_address")
     private List<String> bccAddresses;
@@ -57,6 +65,9 @@ public class Email {
     @JoinColumn(name = "template_name", referencedColumnName = "name")
     private Template template;
 
+    @Column(name = "mime_object_key", length = 512)
+    private String mimeObjectKey; // assembled message kept by MimeSpool for retries
+    
     @Column(name = "template_vars", columnDefinition = "TEXT")
     private String templateVars;
     
@@ -79,6 +90,11 @@ public class Email {
     @Builder.Default
     private EmailStatus status = EmailStatus.ENQUEUED;
     
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 20)
+    @Builder.Default
+    private EmailPriority priority = EmailPriority.NORMAL;
+    
     @Builder.Default
     private Integer attempts = 0;
     
@@ -92,6 +108,24 @@ public class Email {
     @Column(name = "scheduled_at")
     private LocalDateTime scheduledAt;
     
+    @Column(name = "drip_group")
+    private String dripGroup; // scheduled emails sharing a group are released at most dripPerHour an hour
+    
+    @Column(name = "drip_per_hour")
+    private Integer dripPerHour;
+    
+    @Column(name = "released_at")
+    private LocalDateTime releasedAt; // when the scheduled-send engine released it to the queue
+    
+    @Column(name = "campaign_id")
+    private Long campaignId; // campaign the email was created for, if any
+    
+    @Column(name = "lease_owner")
+    private String leaseOwner; // worker node holding the email while it is SENDING
+    
+    @Column(name = "lease_expires_at")
+    private LocalDateTime leaseExpiresAt;
+    
     @Column(name = "sent_at")
     private LocalDateTime sentAt;
     
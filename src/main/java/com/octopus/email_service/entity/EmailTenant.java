@@ -49,6 +49,10 @@ public class EmailTenant {
     @Builder.Default
     private Boolean isActive = true;
     
+    @Column(name = "scheduling_weight")
+    @Builder.Default
+    private Integer schedulingWeight = 1; // share of worker capacity relative to other tenants
+    
     @CreationTimestamp
     @Column(name = "created_at")
     private LocalDateTime createdAt;
@@ -33,6 +33,12 @@ public class Template {
     @Column(name = "body_template", nullable = false, columnDefinition = "TEXT")
     private String bodyTemplate;
     
+    @Column(name = "compiled_body", columnDefinition = "TEXT")
+    private String compiledBody; // HTML body as sent, compiled when saved
+    
+    @Column(name = "text_body", columnDefinition = "TEXT")
+    private String textBody; // text/plain alternative of an HTML body
+    
     @Enumerated(EnumType.STRING)
     @Column(name = "body_type", length = 20)
     @Builder.Default
@@ -46,6 +52,10 @@ public class Template {
     @Builder.Default
     private Boolean isActive = true;
     
+    @Column(nullable = false)
+    @Builder.Default
+    private Integer version = 1; // bumped by every content change; each version is snapshotted in template_versions
+    
     @CreationTimestamp
     @Column(name = "created_at")
     private LocalDateTime createdAt;
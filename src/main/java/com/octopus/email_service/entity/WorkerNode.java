@@ -0,0 +1,28 @@
+package com.octopus.email_service.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "email_worker_nodes")
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class WorkerNode {
+    
+    @Id
+    @Column(name = "node_id", length = 255)
+    private String nodeId;
+    
+    @Column(name = "started_at", nullable = false)
+    private LocalDateTime startedAt;
+    
+    @Column(name = "heartbeat_at", nullable = false)
+    private LocalDateTime heartbeatAt; // set from the database clock so nodes need not agree on time
+}
@@ -0,0 +1,5 @@
+package com.octopus.email_service.enums;
+
+public enum EmailPriority {
+    HIGH, NORMAL, LOW
+}
@@ -1,5 +1,5 @@
 package com.octopus.email_service.enums;
 
 public enum EmailStatus {
-    ENQUEUED, SENDING, SENT, FAILED, BOUNCED, DELIVERED
+    ENQUEUED, SENDING, SENT, FAILED, BOUNCED, DELIVERED, SCHEDULED
 }
@@ -0,0 +1,117 @@
+package com.octopus.email_service.mail;
+
+import jakarta.activation.DataHandler;
+import jakarta.activation.DataSource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Attachment content that is opened from storage only when the message is written, so the
+ * base64 encoder reads straight from the storage stream into the SMTP output and the attachment
+ * is never held on the heap. Each call to {@link #getInputStream()} opens a fresh stream.
+ * Closing the data source closes a prefetched stream that was never read.
+ */
+public class AttachmentDataSource implements DataSource, Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final BlockingQueue<byte[]> BUFFERS = new ArrayBlockingQueue<>(32);
+
+    private final String name;
+    private final String contentType;
+    private final StreamOpener opener;
+    private final AtomicReference<InputStream> prefetched;
+
+    @FunctionalInterface
+    public interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    public AttachmentDataSource(String name, String contentType, StreamOpener opener) {
+        this(name, contentType, opener, null);
+    }
+
+    /**
+     * Data source whose first read is served from a stream that was already opened, for example
+     * by a concurrent prefetch; later reads open a fresh stream
+     */
+    public AttachmentDataSource(String name, String contentType, StreamOpener opener, InputStream prefetched) {
+        this.name = name;
+        this.contentType = contentType != null ? contentType : "application/octet-stream";
+        this.opener = opener;
+        this.prefetched = new AtomicReference<>(prefetched);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        InputStream first = prefetched.getAndSet(null);
+        if (first != null) {
+            return first;
+        }
+        try {
+            return opener.open();
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            // Storage clients wrap failures in runtime exceptions; JavaMail expects an IOException here
+            throw new IOException("Failed to open attachment " + name, e);
+        }
+    }
+
+    /**
+     * Close the prefetched stream if the message was never written, for example because the send
+     * failed before transmission. Streams handed out by {@link #getInputStream()} are closed by their reader.
+     */
+    @Override
+    public void close() throws IOException {
+        InputStream unread = prefetched.getAndSet(null);
+        if (unread != null) {
+            unread.close();
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Attachment data source is read-only");
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Data handler that copies through a pooled buffer rather than allocating one per write
+     */
+    public DataHandler toDataHandler() {
+        return new DataHandler(this) {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                byte[] buffer = acquireBuffer();
+                try (InputStream in = getInputStream()) {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    BUFFERS.offer(buffer);
+                }
+            }
+        };
+    }
+
+    private static byte[] acquireBuffer() {
+        byte[] buffer = BUFFERS.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+}
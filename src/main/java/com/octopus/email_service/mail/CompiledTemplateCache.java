@@ -0,0 +1,267 @@
+package com.octopus.email_service.mail;
+
+import com.octopus.email_service.entity.Template;
+import com.octopus.email_service.enums.BodyType;
+import com.octopus.email_service.service.TemplateService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.thymeleaf.IEngineConfiguration;
+import org.thymeleaf.cache.AlwaysValidCacheEntryValidity;
+import org.thymeleaf.cache.ICacheEntryValidity;
+import org.thymeleaf.cache.StandardCacheManager;
+import org.thymeleaf.context.Context;
+import org.thymeleaf.spring6.SpringTemplateEngine;
+import org.thymeleaf.templatemode.TemplateMode;
+import org.thymeleaf.templateresolver.AbstractTemplateResolver;
+import org.thymeleaf.templateresource.ITemplateResource;
+import org.thymeleaf.templateresource.StringTemplateResource;
+
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded cache of parsed user templates, keyed by template ID and version. User templates are
+ * rendered by a dedicated Thymeleaf engine whose resolver names each part of a template version,
+ * such as {@code 42@3/body}, so Thymeleaf parses a version once and serves every later render from
+ * its template cache. Versions are immutable, so entries never go stale; the entries of a replaced
+ * version are dropped by {@link #evict} and the rest are evicted least recently used past
+ * {@code app.email.templates.cache-size}.
+ *
+ * <p>Every render runs under a {@link RenderBudget}: a template that loops, runs or writes past
+ * {@code app.email.templates.render.*} fails with {@link TemplateBudgetExceededException}. The
+ * budget is only checked as the template loops and writes, so renders also run on a bounded pool of
+ * render threads and the caller gives up on one still running after {@code timeout-ms}; a stuck
+ * render then holds one of those threads rather than a consumer. Render times are recorded per
+ * template, and as a percentile histogram only across templates, so the number of templates does
+ * not multiply the histogram's buckets.
+ */
+@Component
+@Slf4j
+public class CompiledTemplateCache implements InitializingBean, DisposableBean {
+
+    /**
+     * Part of a template version; the body's mode follows the template's body type and the
+     * text alternative of an HTML body is always text
+     */
+    public enum Part {
+        SUBJECT, BODY, TEXT
+    }
+
+    // The template being rendered on this thread, read by the resolver when its version is not cached yet
+    private static final ThreadLocal<Template> RENDERING = new ThreadLocal<>();
+
+    private final SpringTemplateEngine templateEngine = new SpringTemplateEngine();
+    private final StandardCacheManager cacheManager = new StandardCacheManager();
+    private final MeterRegistry meterRegistry;
+
+    @Value("${app.email.templates.cache-size:500}")
+    private int cacheSize;
+
+    @Value("${app.email.templates.render.time-budget-ms:2000}")
+    private long timeBudgetMs;
+
+    @Value("${app.email.templates.render.max-iterations:10000}")
+    private long maxIterations;
+
+    @Value("${app.email.templates.render.max-output-chars:2000000}")
+    private long maxOutputChars;
+
+    @Value("${app.email.templates.render.timeout-ms:5000}")
+    private long timeoutMs;
+
+    @Value("${app.email.templates.render.threads:#{T(java.lang.Runtime).getRuntime().availableProcessors()}}")
+    private int renderThreads;
+
+    @Value("${app.email.templates.render.queue-capacity:100}")
+    private int queueCapacity;
+
+    private ThreadPoolExecutor renderExecutor;
+
+    public CompiledTemplateCache(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        // Subject, body and text alternative are cached separately
+        cacheManager.setTemplateCacheMaxSize(Math.max(1, cacheSize) * Part.values().length);
+        templateEngine.setCacheManager(cacheManager);
+        templateEngine.setDialect(new SandboxedDialect());
+        templateEngine.setTemplateResolver(new VersionResolver());
+        renderExecutor = new ThreadPoolExecutor(Math.max(1, renderThreads), Math.max(1, renderThreads),
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                new CustomizableThreadFactory("email-template-render-"));
+        Gauge.builder("email.template.cache.size", cacheManager, manager -> manager.getTemplateCache().keySet().size())
+                .description("Parsed template parts held in the compiled template cache")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void destroy() {
+        if (renderExecutor != null) {
+            renderExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Render on a render thread, waiting at most {@code timeout-ms} (0 waits for as long as it takes)
+     *
+     * @throws TemplateBudgetExceededException if the render runs past its budget or timeout
+     * @throws java.util.concurrent.RejectedExecutionException if every render thread is busy and the queue is full
+     */
+    public String render(Template template, Part part, Map<String, Object> variables) {
+        AtomicBoolean started = new AtomicBoolean();
+        Future<String> rendering = renderExecutor.submit(() -> {
+            started.set(true);
+            return renderInPlace(template, part, variables);
+        });
+        try {
+            return timeoutMs > 0 ? rendering.get(timeoutMs, TimeUnit.MILLISECONDS) : rendering.get();
+        } catch (TimeoutException e) {
+            // Thymeleaf ignores the interrupt; the render thread is freed at the budget's next check
+            rendering.cancel(true);
+            if (!started.get()) {
+                throw new IllegalStateException("Template " + template.getName() + " waited " + timeoutMs
+                                                + " ms for a render thread");
+            }
+            log.warn("Abandoned render of template {} version {} after {} ms", template.getName(),
+                    TemplateService.versionOf(template), timeoutMs);
+            throw new TemplateBudgetExceededException(
+                    "Template " + template.getName() + " exceeded its render timeout of " + timeoutMs + " ms");
+        } catch (InterruptedException e) {
+            rendering.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while rendering template " + template.getName(), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private String renderInPlace(Template template, Part part, Map<String, Object> variables) {
+        Context context = new Context();
+        context.setVariables(variables);
+        RenderBudget budget = new RenderBudget(template.getName(), timeBudgetMs, maxIterations, maxOutputChars);
+        Writer output = budget.writer();
+        String outcome = "failed";
+        long start = System.nanoTime();
+        RENDERING.set(template);
+        budget.enter();
+        try {
+            templateEngine.process(key(template.getId(), TemplateService.versionOf(template), part), context, output);
+            outcome = "success";
+            return output.toString();
+        } catch (RuntimeException e) {
+            // Output failures reach us wrapped by Thymeleaf
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof TemplateBudgetExceededException exceeded) {
+                    outcome = "budget_exceeded";
+                    log.warn("Aborted render of template {} version {}: {}", template.getName(),
+                            TemplateService.versionOf(template), exceeded.getMessage());
+                    throw exceeded;
+                }
+            }
+            throw e;
+        } finally {
+            budget.exit();
+            RENDERING.remove();
+            long elapsed = System.nanoTime() - start;
+            renderTimer(template, part, outcome).record(elapsed, TimeUnit.NANOSECONDS);
+            renderLatency(part, outcome).record(elapsed, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Drop the parsed parts of a template version that has been replaced or deleted
+     */
+    public void evict(Long templateId, long version) {
+        for (Part part : Part.values()) {
+            templateEngine.clearTemplateCacheFor(key(templateId, version, part));
+        }
+        log.debug("Evicted compiled template {} version {}", templateId, version);
+    }
+
+    private Timer renderTimer(Template template, Part part, String outcome) {
+        return Timer.builder("email.template.render")
+                .description("Time to render a part of a user template")
+                .tag("template", template.getName())
+                .tag("part", part.name().toLowerCase())
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    private Timer renderLatency(Part part, String outcome) {
+        return Timer.builder("email.template.render.latency")
+                .description("Time to render a part of any user template")
+                .tag("part", part.name().toLowerCase())
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    private static String key(Long templateId, long version, Part part) {
+        return templateId + "@" + version + "/" + part.name().toLowerCase();
+    }
+
+    /**
+     * Resolves a key to the content of the template version being rendered on the calling thread.
+     * Only called when that version is not cached yet.
+     */
+    private static final class VersionResolver extends AbstractTemplateResolver {
+
+        @Override
+        protected ITemplateResource computeTemplateResource(IEngineConfiguration configuration, String ownerTemplate,
+                                                            String template, Map<String, Object> templateResolutionAttributes) {
+            Template rendering = rendering(template);
+            return new StringTemplateResource(switch (part(template)) {
+                case SUBJECT -> rendering.getSubjectTemplate();
+                // Bodies saved before templates were compiled are rendered as authored
+                case BODY -> rendering.getCompiledBody() != null ? rendering.getCompiledBody() : rendering.getBodyTemplate();
+                case TEXT -> rendering.getTextBody();
+            });
+        }
+
+        @Override
+        protected TemplateMode computeTemplateMode(IEngineConfiguration configuration, String ownerTemplate,
+                                                   String template, Map<String, Object> templateResolutionAttributes) {
+            return part(template) == Part.BODY && rendering(template).getBodyType() == BodyType.HTML ? TemplateMode.HTML : TemplateMode.TEXT;
+        }
+
+        @Override
+        protected ICacheEntryValidity computeValidity(IEngineConfiguration configuration, String ownerTemplate,
+                                                      String template, Map<String, Object> templateResolutionAttributes) {
+            return AlwaysValidCacheEntryValidity.INSTANCE;
+        }
+
+        private static Part part(String key) {
+            return Part.valueOf(key.substring(key.lastIndexOf('/') + 1).toUpperCase());
+        }
+
+        private static Template rendering(String key) {
+            Template rendering = RENDERING.get();
+            if (rendering == null || !key.startsWith(rendering.getId() + "@" + TemplateService.versionOf(rendering) + "/")) {
+                throw new IllegalStateException("No template version to resolve for " + key);
+            }
+            return rendering;
+        }
+    }
+}
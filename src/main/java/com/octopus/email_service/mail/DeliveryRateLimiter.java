@@ -0,0 +1,390 @@
+package com.octopus.email_service.mail;
+
+import com.octopus.email_service.entity.Email;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.mail.MessagingException;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.angus.mail.smtp.SMTPAddressFailedException;
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+import org.eclipse.angus.mail.smtp.SMTPSenderFailedException;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.MailSendException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces deliveries per recipient domain and against the provider's daily quota.
+ * Each domain has a GCRA token bucket whose rate adapts AIMD-style (halved on 4xx throttling
+ * replies, grown back gradually on success) and a cap on concurrent sends.
+ * Enabled with {@code app.email.rate-limit.enabled=true}.
+ * <p>
+ * Pacing works by reservation: an email that cannot go now is given the time its slot comes up,
+ * so parked emails return spread out instead of all at once. Nothing waits for a slot in place,
+ * which would hold the consumer thread and its database connection.
+ */
+@Component
+@Slf4j
+public class DeliveryRateLimiter implements InitializingBean {
+
+    private final MeterRegistry meterRegistry;
+    private final Map<String, DomainBucket> domains = new ConcurrentHashMap<>();
+    private RateBucket quota;
+
+    @Getter
+    @Value("${app.email.rate-limit.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.email.rate-limit.initial-rate:10}")
+    private double initialRate;
+
+    @Value("${app.email.rate-limit.min-rate:0.1}")
+    private double minRate;
+
+    @Value("${app.email.rate-limit.max-rate:50}")
+    private double maxRate;
+
+    @Value("${app.email.rate-limit.burst:10}")
+    private int burst;
+
+    @Value("${app.email.rate-limit.increase-step:1}")
+    private double increaseStep;
+
+    @Value("${app.email.rate-limit.decrease-factor:0.5}")
+    private double decreaseFactor;
+
+    @Value("${app.email.rate-limit.max-concurrency-per-domain:5}")
+    private int maxConcurrencyPerDomain;
+
+    @Value("${app.email.rate-limit.max-wait:1000}")
+    private long maxWaitMs;
+
+    @Value("${app.email.rate-limit.daily-quota:0}")
+    private long dailyQuota;
+
+    @Value("${app.email.rate-limit.quota-burst:100}")
+    private int quotaBurst;
+
+    @Value("${app.email.rate-limit.idle-expiry:600000}")
+    private long idleExpiryMs;
+
+    public DeliveryRateLimiter(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("email.ratelimit.domains", domains, Map::size)
+                .description("Recipient domains with an active rate bucket")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Outcome of a pacing check: either the email may be sent now, or not before {@code notBefore}
+     */
+    public record Reservation(boolean ready, long notBefore) {
+    }
+
+    /**
+     * Reserve a send slot for the given domains. Emails that already hold a reservation pass
+     * {@code notBefore > 0} and are not charged again. Returns the time the email should be parked
+     * until if its slot has not come up yet.
+     */
+    public Reservation reserve(Collection<String> recipientDomains, long notBefore) {
+        long now = System.currentTimeMillis();
+        if (!enabled) {
+            return new Reservation(true, now);
+        }
+
+        long slot = notBefore > 0 ? notBefore : nextSlot(recipientDomains);
+        if (slot > now) {
+            meterRegistry.counter("email.ratelimit.parked", "reason", "pacing").increment();
+            return new Reservation(false, slot);
+        }
+        return new Reservation(true, slot);
+    }
+
+    /**
+     * Charge the domains and the quota for one send and return the earliest time it may go
+     */
+    public long nextSlot(Collection<String> recipientDomains) {
+        long now = System.currentTimeMillis();
+        if (!enabled) {
+            return now;
+        }
+        long slot = now;
+        if (quota != null) {
+            slot = Math.max(slot, quota.reserve(now));
+        }
+        for (String domain : recipientDomains) {
+            slot = Math.max(slot, bucket(domain).rate.reserve(now));
+        }
+        return slot;
+    }
+
+    /**
+     * Take a concurrency slot for every domain, waiting up to {@code max-wait}.
+     *
+     * @return the lease to close after sending, or {@code null} if a domain is at its cap
+     */
+    public Lease lease(Collection<String> recipientDomains) throws InterruptedException {
+        if (!enabled) {
+            return Lease.NONE;
+        }
+
+        // Acquire in a stable order so two multi-domain emails cannot hold each other's slots
+        List<Semaphore> acquired = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        for (String domain : new TreeSet<>(recipientDomains)) {
+            Semaphore inFlight = bucket(domain).inFlight;
+            if (!inFlight.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                acquired.forEach(Semaphore::release);
+                meterRegistry.counter("email.ratelimit.parked", "reason", "concurrency").increment();
+                return null;
+            }
+            acquired.add(inFlight);
+        }
+        return new Lease(acquired);
+    }
+
+    /**
+     * Additive increase: roughly {@code increase-step} per second of successful traffic to the domain
+     */
+    public void onSuccess(Collection<String> recipientDomains) {
+        if (!enabled) {
+            return;
+        }
+        for (String domain : recipientDomains) {
+            DomainBucket bucket = domains.get(domain);
+            if (bucket != null) {
+                bucket.rate.increase(increaseStep, maxRate);
+            }
+        }
+    }
+
+    /**
+     * Multiplicative decrease after a throttling reply from the receiving side
+     */
+    public void onThrottled(Collection<String> recipientDomains) {
+        if (!enabled) {
+            return;
+        }
+        meterRegistry.counter("email.ratelimit.throttled").increment();
+        for (String domain : recipientDomains) {
+            DomainBucket bucket = bucket(domain);
+            double rate = bucket.rate.decrease(decreaseFactor, minRate, System.currentTimeMillis());
+            log.warn("Throttled by {}, send rate lowered to {}/s", domain, String.format("%.2f", rate));
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${app.email.rate-limit.cleanup-interval:60000}")
+    public void evictIdleDomains() {
+        long cutoff = System.currentTimeMillis() - idleExpiryMs;
+        domains.entrySet().removeIf(entry -> entry.getValue().isIdleSince(cutoff, maxConcurrencyPerDomain, initialRate));
+    }
+
+    public static Set<String> recipientDomains(Email email) {
+        Set<String> result = new TreeSet<>();
+        addDomains(result, email.getToAddresses());
+        addDomains(result, email.getCcAddresses());
+        addDomains(result, email.getBccAddresses());
+        return result;
+    }
+
+    /**
+     * Whether a send failure carries a 421 or another session-level 4xx reply, which receivers use to
+     * ask senders to slow down. Per-recipient 4xx replies, such as greylisting, say nothing about the rate.
+     */
+    public static boolean isThrottlingResponse(Throwable failure) {
+        int code = sessionReplyCode(failure);
+        return code >= 400 && code < 500;
+    }
+
+    /**
+     * Reply code of the first SMTP reply in a send failure, session or per-recipient; 0 if there is none
+     */
+    static int replyCode(Throwable failure) {
+        for (Throwable current : causes(failure)) {
+            if (current instanceof SMTPSendFailedException e) {
+                return e.getReturnCode();
+            }
+            if (current instanceof SMTPAddressFailedException e) {
+                return e.getReturnCode();
+            }
+            if (current instanceof SMTPSenderFailedException e) {
+                return e.getReturnCode();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Reply code that concerns the whole SMTP session rather than one recipient: a 421 anywhere in
+     * the failure, else the reply to the message itself; 0 if there is none. Per-recipient RCPT
+     * replies, such as a greylisting 450 or a full mailbox's 452, are not session replies.
+     */
+    static int sessionReplyCode(Throwable failure) {
+        List<Throwable> causes = causes(failure);
+        for (Throwable current : causes) {
+            if (current instanceof SMTPSendFailedException e && e.getReturnCode() == 421
+                    || current instanceof SMTPAddressFailedException a && a.getReturnCode() == 421
+                    || current instanceof SMTPSenderFailedException s && s.getReturnCode() == 421) {
+                return 421;
+            }
+        }
+        for (Throwable current : causes) {
+            if (current instanceof SMTPAddressFailedException) {
+                // The message was refused over its recipients, not by the session
+                return 0;
+            }
+        }
+        for (Throwable current : causes) {
+            if (current instanceof SMTPSendFailedException e) {
+                return e.getReturnCode();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The failure, its causes, next exceptions and failed messages, breadth first
+     */
+    private static List<Throwable> causes(Throwable failure) {
+        List<Throwable> causes = new ArrayList<>();
+        Deque<Throwable> pending = new ArrayDeque<>();
+        Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        enqueue(pending, failure);
+        while (!pending.isEmpty()) {
+            Throwable current = pending.poll();
+            if (!seen.add(current)) {
+                continue;
+            }
+            causes.add(current);
+            if (current instanceof MailSendException e) {
+                e.getFailedMessages().values().forEach(next -> enqueue(pending, next));
+            }
+            if (current instanceof MessagingException e) {
+                enqueue(pending, e.getNextException());
+            }
+            enqueue(pending, current.getCause());
+        }
+        return causes;
+    }
+
+    private static void enqueue(Deque<Throwable> pending, Throwable failure) {
+        // ArrayDeque rejects nulls, and most exceptions have no cause
+        if (failure != null) {
+            pending.add(failure);
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (enabled && dailyQuota > 0) {
+            quota = new RateBucket(dailyQuota / (double) TimeUnit.DAYS.toSeconds(1), quotaBurst);
+            log.info("Pacing deliveries to a daily quota of {}", dailyQuota);
+        }
+    }
+
+    private DomainBucket bucket(String domain) {
+        return domains.computeIfAbsent(domain,
+                d -> new DomainBucket(new RateBucket(initialRate, burst), new Semaphore(maxConcurrencyPerDomain)));
+    }
+
+    private static void addDomains(Set<String> result, Collection<String> addresses) {
+        if (addresses == null) {
+            return;
+        }
+        for (String address : addresses) {
+            int at = address.lastIndexOf('@');
+            if (at >= 0 && at < address.length() - 1) {
+                result.add(address.substring(at + 1).trim().toLowerCase(Locale.ROOT).replace(">", ""));
+            }
+        }
+    }
+
+    private record DomainBucket(RateBucket rate, Semaphore inFlight) {
+
+        boolean isIdleSince(long cutoff, int maxConcurrency, double initialRate) {
+            return inFlight.availablePermits() == maxConcurrency && rate.isIdleSince(cutoff, initialRate);
+        }
+    }
+
+    /**
+     * Generic cell rate algorithm bucket: {@code tat} is the theoretical arrival time of the next
+     * send, and up to {@code burst} sends may be scheduled ahead of it
+     */
+    static final class RateBucket {
+
+        private final int burst;
+        private double ratePerSecond;
+        private double tat;
+        private long lastUsed;
+
+        RateBucket(double ratePerSecond, int burst) {
+            this.ratePerSecond = ratePerSecond;
+            this.burst = Math.max(1, burst);
+        }
+
+        synchronized long reserve(long now) {
+            double interval = 1000.0 / ratePerSecond;
+            double slot = Math.max(now, tat - interval * (burst - 1));
+            tat = Math.max(tat, now) + interval;
+            lastUsed = now;
+            return (long) Math.ceil(slot);
+        }
+
+        synchronized void increase(double step, double ceiling) {
+            // step / rate per success adds about one step per second; slow domains grow by at most one step
+            ratePerSecond = Math.min(ceiling, ratePerSecond + Math.min(step, step / ratePerSecond));
+        }
+
+        synchronized double decrease(double factor, double floor, long now) {
+            ratePerSecond = Math.max(floor, ratePerSecond * factor);
+            // Hold off for one interval at the new rate before the next slot
+            tat = Math.max(tat, now + 1000.0 / ratePerSecond);
+            lastUsed = now;
+            return ratePerSecond;
+        }
+
+        synchronized boolean isIdleSince(long cutoff, double initialRate) {
+            return lastUsed < cutoff && tat < cutoff && ratePerSecond >= initialRate;
+        }
+    }
+
+    /**
+     * Concurrency slots held for one send; close once the SMTP conversation is over
+     */
+    public static final class Lease implements AutoCloseable {
+
+        static final Lease NONE = new Lease(List.of());
+
+        private final List<Semaphore> permits;
+        private boolean closed;
+
+        private Lease(List<Semaphore> permits) {
+            this.permits = permits;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                permits.forEach(Semaphore::release);
+            }
+        }
+    }
+}
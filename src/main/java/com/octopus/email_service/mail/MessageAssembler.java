@@ -0,0 +1,271 @@
+package com.octopus.email_service.mail;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.octopus.email_service.entity.Attachment;
+import com.octopus.email_service.entity.Email;
+import com.octopus.email_service.service.AttachmentService;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Part;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeUtility;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.MimeMessageHelper;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Assemble stage of the send pipeline: builds the MIME message from a rendered email.
+ * Attachments are added as streaming parts that are read from storage while the message is written.
+ * When an email has several attachments their downloads are opened concurrently up front, so the
+ * storage round trips overlap instead of running one after another. Prefetched downloads that the
+ * message never reads are closed when the {@link Assembled} message is closed.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class MessageAssembler implements DisposableBean {
+
+    private final JavaMailSender mailSender;
+    private final AttachmentService attachmentService;
+    private final ObjectMapper objectMapper;
+
+    @Value("${app.email.attachment-fetch.parallelism:4}")
+    private int fetchParallelism;
+
+    @Value("${app.email.attachment-fetch.timeout:30000}")
+    private long fetchTimeoutMs;
+
+    private final ExecutorService fetchExecutor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("email-attachment-", 0).factory());
+
+    /**
+     * Assembled message and its attachment data sources. Close it once the message has been
+     * transmitted or abandoned, so attachment downloads that were opened but not read are closed.
+     */
+    public record Assembled(MimeMessage message, List<AttachmentDataSource> attachments) implements Closeable {
+
+        @Override
+        public void close() {
+            attachments.forEach(MessageAssembler::closeQuietly);
+        }
+    }
+
+    public Assembled assemble(Email email, MessageRenderer.Rendered rendered) throws MessagingException {
+        return assemble(email, rendered, false);
+    }
+
+    /**
+     * Assemble one message for several emails with the same content. Recipients go only in the SMTP
+     * envelope, so the message carries no To header of its own and no per-email ID.
+     */
+    public Assembled assembleShared(Email email, MessageRenderer.Rendered rendered) throws MessagingException {
+        return assemble(email, rendered, true);
+    }
+
+    private Assembled assemble(Email email, MessageRenderer.Rendered rendered, boolean shared) throws MessagingException {
+        MimeMessage mimeMessage = mailSender.createMimeMessage();
+        MimeMessageHelper helper = new MimeMessageHelper(mimeMessage, true, "UTF-8");
+
+        // Set basic email properties
+        helper.setFrom(email.getFromAddress());
+        if (shared) {
+            mimeMessage.setHeader("To", "undisclosed-recipients:;");
+        } else {
+            helper.setTo(email.getToAddresses().toArray(new String[0]));
+        }
+
+        // Set reply-to address if provided
+        if (email.getReplyToAddress() != null && !email.getReplyToAddress().trim().isEmpty()) {
+            helper.setReplyTo(email.getReplyToAddress());
+            log.debug("Set reply-to address: {}", email.getReplyToAddress());
+        }
+
+        if (email.getCcAddresses() != null && !email.getCcAddresses().isEmpty()) {
+            helper.setCc(email.getCcAddresses().toArray(new String[0]));
+        }
+
+        if (email.getBccAddresses() != null && !email.getBccAddresses().isEmpty()) {
+            helper.setBcc(email.getBccAddresses().toArray(new String[0]));
+        }
+
+        helper.setSubject(rendered.subject());
+        if (rendered.text() != null) {
+            // multipart/alternative: text/plain first, then the HTML body
+            helper.setText(rendered.text(), rendered.body());
+        } else {
+            helper.setText(rendered.body(), rendered.html());
+        }
+
+        // Add tracking headers
+        if (!shared) {
+            helper.getMimeMessage().setHeader("X-Email-ID", email.getUuid().toString());
+        }
+        helper.getMimeMessage().setHeader("List-Unsubscribe", "<mailto:unsubscribe@example.com>");
+
+        // Process attachments
+        return new Assembled(mimeMessage, processAttachments(helper, email.getAttachments()));
+    }
+
+    private List<AttachmentDataSource> processAttachments(MimeMessageHelper helper, String attachmentsJson) {
+        if (attachmentsJson == null || attachmentsJson.trim().isEmpty()) {
+            return List.of();
+        }
+
+        try {
+            List<Attachment> attachments = objectMapper.readValue(
+                    attachmentsJson,
+                    new TypeReference<List<Attachment>>() {}
+            );
+
+            AtomicReferenceArray<InputStream> prefetched = prefetch(attachments);
+            List<AttachmentDataSource> dataSources = new ArrayList<>(attachments.size());
+
+            for (int i = 0; i < attachments.size(); i++) {
+                Attachment attachment = attachments.get(i);
+                // Determine display name
+                String displayName = attachment.getOriginalFilename();
+
+                // Content is streamed from storage when the message is written, not downloaded here
+                AttachmentDataSource dataSource = new AttachmentDataSource(displayName, attachment.getContentType(),
+                        () -> attachmentService.downloadAttachment(attachment.getId()), prefetched.getAndSet(i, null));
+                try {
+                    // Add attachment to email (inline or regular)
+                    if (attachment.getIsInline() != null && attachment.getIsInline() && attachment.getContentId() != null) {
+                        // Add as inline attachment with content ID
+                        MimeBodyPart part = streamingPart(dataSource, Part.INLINE);
+                        part.setContentID("<" + attachment.getContentId() + ">");
+                        helper.getMimeMultipart().addBodyPart(part);
+                        log.debug("Added inline attachment {} with CID {} to email", displayName, attachment.getContentId());
+                    } else {
+                        // Add as regular attachment
+                        MimeBodyPart part = streamingPart(dataSource, Part.ATTACHMENT);
+                        part.setFileName(helper.isEncodeFilenames() ? MimeUtility.encodeText(displayName) : displayName);
+                        helper.getRootMimeMultipart().addBodyPart(part);
+                        log.debug("Added attachment {} to email", displayName);
+                    }
+                    dataSources.add(dataSource);
+
+                } catch (Exception e) {
+                    log.error("Failed to process attachment {}: {}", attachment.getId(), e.getMessage(), e);
+                    closeQuietly(dataSource);
+                    // Continue processing other attachments even if one fails
+                }
+            }
+            return dataSources;
+
+        } catch (Exception e) {
+            log.error("Failed to parse attachments: {}", e.getMessage(), e);
+            throw new RuntimeException("Failed to process attachments", e);
+        }
+    }
+
+    /**
+     * Open the attachments' downloads concurrently, at most {@code parallelism} at a time and all
+     * within one deadline. The first failure cancels the rest. Single attachments are left to open
+     * lazily when the message is written.
+     */
+    private AtomicReferenceArray<InputStream> prefetch(List<Attachment> attachments) throws IOException {
+        AtomicReferenceArray<InputStream> streams = new AtomicReferenceArray<>(attachments.size());
+        if (attachments.size() < 2 || fetchParallelism < 2) {
+            return streams;
+        }
+
+        Semaphore permits = new Semaphore(fetchParallelism);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        ExecutorCompletionService<Integer> completion = new ExecutorCompletionService<>(fetchExecutor);
+        List<Future<Integer>> fetches = new ArrayList<>(attachments.size());
+        for (int i = 0; i < attachments.size(); i++) {
+            int index = i;
+            UUID attachmentId = attachments.get(i).getId();
+            fetches.add(completion.submit(() -> {
+                permits.acquire();
+                try {
+                    streams.set(index, attachmentService.downloadAttachment(attachmentId));
+                    // Publish before checking, so either this task or the cancel sweep closes the stream
+                    if (cancelled.get()) {
+                        closeQuietly(streams.getAndSet(index, null));
+                    }
+                    return index;
+                } finally {
+                    permits.release();
+                }
+            }));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(fetchTimeoutMs);
+        try {
+            for (int done = 0; done < fetches.size(); done++) {
+                Future<Integer> fetched = completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (fetched == null) {
+                    throw new IOException("Timed out after " + fetchTimeoutMs + " ms fetching attachments");
+                }
+                fetched.get();
+            }
+            return streams;
+        } catch (ExecutionException e) {
+            cancel(fetches, streams, cancelled);
+            throw new IOException("Failed to fetch attachment: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel(fetches, streams, cancelled);
+            throw new IOException("Interrupted while fetching attachments", e);
+        } catch (IOException e) {
+            cancel(fetches, streams, cancelled);
+            throw e;
+        }
+    }
+
+    private void cancel(List<Future<Integer>> fetches, AtomicReferenceArray<InputStream> streams, AtomicBoolean cancelled) {
+        cancelled.set(true);
+        fetches.forEach(fetch -> fetch.cancel(true));
+        for (int i = 0; i < streams.length(); i++) {
+            closeQuietly(streams.getAndSet(i, null));
+        }
+    }
+
+    private static void closeQuietly(Closeable stream) {
+        if (stream == null) {
+            return;
+        }
+        try {
+            stream.close();
+        } catch (IOException e) {
+            log.debug("Failed to close prefetched attachment stream", e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        fetchExecutor.shutdownNow();
+    }
+
+    private MimeBodyPart streamingPart(AttachmentDataSource dataSource, String disposition) throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDisposition(disposition);
+        part.setDataHandler(dataSource.toDataHandler());
+        // Fixing the encoding stops JavaMail from reading the whole stream up front to choose one
+        part.setHeader("Content-Transfer-Encoding", "base64");
+        return part;
+    }
+}
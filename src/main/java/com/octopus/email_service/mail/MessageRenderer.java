@@ -0,0 +1,147 @@
+package com.octopus.email_service.mail;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.octopus.email_service.entity.Email;
+import com.octopus.email_service.entity.Template;
+import com.octopus.email_service.enums.BodyType;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Render stage of the send pipeline: resolves the subject and body of an email,
+ * applying its template or the classic fallback template. CPU-bound.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class MessageRenderer implements InitializingBean {
+
+    private static final String CLASSIC_TEMPLATE = "email/classic-email";
+
+    // Left behind in text alternatives by conditions that render nothing
+    private static final Pattern EXTRA_BLANK_LINES = Pattern.compile("\n{3,}");
+
+    // Stands in for the classic template in the compiled template cache, whose user template IDs are positive
+    private static final long CLASSIC_TEMPLATE_ID = -1L;
+
+    private final CompiledTemplateCache compiledTemplateCache;
+    private final TemplateCompiler templateCompiler;
+    private final ObjectMapper objectMapper;
+
+    @Value("${app.email.templates.render.max-variables-chars:262144}")
+    private int maxVariablesChars;
+
+    private Template classicTemplate;
+
+    /**
+     * {@code text} is the text/plain alternative of an HTML body, when its template has one
+     */
+    public record Rendered(String subject, String body, boolean html, String text) {
+    }
+
+    /**
+     * Compile the classic fallback template once, like a saved user template
+     */
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        String source = new ClassPathResource("templates/" + CLASSIC_TEMPLATE + ".html")
+                .getContentAsString(StandardCharsets.UTF_8);
+        TemplateCompiler.Compiled compiled = templateCompiler.compile(source);
+        classicTemplate = Template.builder()
+                .id(CLASSIC_TEMPLATE_ID)
+                .name(CLASSIC_TEMPLATE)
+                .subjectTemplate("")
+                .bodyTemplate(source)
+                .compiledBody(compiled.html())
+                .textBody(compiled.text())
+                .bodyType(BodyType.HTML)
+                .build();
+    }
+
+    public Rendered render(Email email) {
+        // Process subject and body
+        String subject = email.getSubject();
+        String body = email.getBody();
+        boolean isHtml = false;
+        String text = null;
+
+        // If template is used, render it
+        if (email.getTemplate() != null) {
+            Template template = email.getTemplate();
+            Map<String, Object> templateVars = parseTemplateVars(email.getTemplateVars());
+
+            // Render subject and body from the parsed template version
+            if (template.getSubjectTemplate() != null) {
+                subject = compiledTemplateCache.render(template, CompiledTemplateCache.Part.SUBJECT, templateVars);
+            }
+            if (template.getBodyTemplate() != null) {
+                body = compiledTemplateCache.render(template, CompiledTemplateCache.Part.BODY, templateVars);
+            }
+
+            // Set HTML flag based on template body type
+            isHtml = template.getBodyType() == BodyType.HTML;
+            if (isHtml && template.getTextBody() != null) {
+                text = tidy(compiledTemplateCache.render(template, CompiledTemplateCache.Part.TEXT, templateVars));
+            }
+        }
+        // Check if we need to use fallback template for plain text body
+        else if (email.getNeedsFallbackTemplate() != null && email.getNeedsFallbackTemplate()) {
+            // Use classic template as fallback for plain text content
+            Map<String, Object> variables = new HashMap<>();
+            variables.put("subject", subject);
+            variables.put("body", body);
+
+            // Add any additional template variables if provided
+            variables.putAll(parseTemplateVars(email.getTemplateVars()));
+
+            // Render using the compiled classic email template
+            body = compiledTemplateCache.render(classicTemplate, CompiledTemplateCache.Part.BODY, variables);
+            if (classicTemplate.getTextBody() != null) {
+                text = tidy(compiledTemplateCache.render(classicTemplate, CompiledTemplateCache.Part.TEXT, variables));
+            }
+            isHtml = true; // Classic template produces HTML
+
+            log.debug("Applied classic fallback template for email ID: {}", email.getId());
+        }
+        // For HTML body content without template
+        else if (email.getIsHtmlBody() != null && email.getIsHtmlBody()) {
+            isHtml = true;
+        }
+
+        return new Rendered(subject, body, isHtml, text);
+    }
+
+    private static String tidy(String text) {
+        return EXTRA_BLANK_LINES.matcher(text).replaceAll("\n\n").strip();
+    }
+
+    private Map<String, Object> parseTemplateVars(String templateVarsJson) {
+        if (templateVarsJson == null || templateVarsJson.trim().isEmpty()) {
+            return Map.of();
+        }
+        // Also checked when emails are created; this catches emails queued before the limit was lowered
+        if (maxVariablesChars > 0 && templateVarsJson.length() > maxVariablesChars) {
+            throw new TemplateBudgetExceededException("Template variables of " + templateVarsJson.length()
+                                                      + " characters exceed the limit of " + maxVariablesChars);
+        }
+
+        try {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> result = objectMapper.readValue(templateVarsJson, Map.class);
+            return result;
+        } catch (Exception e) {
+            log.error("Failed to parse template variables", e);
+            return Map.of();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.octopus.email_service.mail;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.stereotype.Component;
+
+/**
+ * Transmit stage of the send pipeline: hands the assembled message to the SMTP relay,
+ * reusing a pooled connection when enabled and failing over between relays when several are
+ * configured. Network-bound.
+ */
+@Component
+public class MessageTransmitter {
+
+    public static final String SEND_TIMER = "email.smtp.send";
+    public static final String EXPRESS_LANE = "express";
+
+    private final JavaMailSender mailSender;
+    private final SmtpTransportPool smtpTransportPool;
+    private final SmtpRelayRouter smtpRelayRouter;
+    private final Timer sendTimer;
+
+    public MessageTransmitter(JavaMailSender mailSender, SmtpTransportPool smtpTransportPool,
+                              SmtpRelayRouter smtpRelayRouter, MeterRegistry meterRegistry) {
+        this.mailSender = mailSender;
+        this.smtpTransportPool = smtpTransportPool;
+        this.smtpRelayRouter = smtpRelayRouter;
+        this.sendTimer = Timer.builder(SEND_TIMER)
+                .description("Time spent transmitting a message to the SMTP relay")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+    }
+
+    public void transmit(MimeMessage mimeMessage) throws MessagingException {
+        transmit(mimeMessage, false);
+    }
+
+    /**
+     * Transmit the message, using the express lane's own pooled connections when {@code express} is set
+     */
+    public void transmit(MimeMessage mimeMessage, boolean express) throws MessagingException {
+        transmit(mimeMessage, null, express);
+    }
+
+    /**
+     * Transmit the message to the given envelope recipients, or to its own recipients when null.
+     * Explicit envelope recipients need pooled transports.
+     */
+    public void transmit(MimeMessage mimeMessage, Address[] recipients, boolean express) throws MessagingException {
+        Timer.Sample sample = Timer.start();
+        try {
+            if (smtpRelayRouter.isEnabled()) {
+                smtpRelayRouter.send(mimeMessage, recipients, express ? EXPRESS_LANE : null);
+            } else if (smtpTransportPool.isEnabled()) {
+                SmtpRelay relay = express ? smtpTransportPool.getLaneRelay(EXPRESS_LANE) : smtpTransportPool.getDefaultRelay();
+                smtpTransportPool.send(relay, mimeMessage, recipients);
+            } else if (recipients == null) {
+                mailSender.send(mimeMessage);
+            } else {
+                throw new IllegalStateException("Sending to explicit envelope recipients requires the SMTP transport pool");
+            }
+        } finally {
+            sample.stop(sendTimer);
+        }
+    }
+}
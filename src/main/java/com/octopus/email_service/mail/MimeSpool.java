@@ -0,0 +1,308 @@
+package com.octopus.email_service.mail;
+
+import io.minio.GetBucketLifecycleArgs;
+import io.minio.GetObjectArgs;
+import io.minio.MinioClient;
+import io.minio.PutObjectArgs;
+import io.minio.RemoveObjectArgs;
+import io.minio.SetBucketLifecycleArgs;
+import io.minio.messages.Expiration;
+import io.minio.messages.LifecycleConfiguration;
+import io.minio.messages.LifecycleRule;
+import io.minio.messages.RuleFilter;
+import io.minio.messages.Status;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.util.SharedFileInputStream;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the fully assembled MIME message of an email, gzip-compressed, in MinIO or a local spool
+ * directory, so retries can transmit it without re-rendering the template or
+ * re-downloading attachments. Messages are written and read back through temporary files in the
+ * spool directory, never whole on the heap. Enabled with {@code app.email.mime-spool.enabled=true}.
+ * <p>
+ * Stored messages are deleted once sent; anything left behind is removed after the retention, by
+ * {@link #cleanupLocalSpool()} locally and by a bucket lifecycle rule on {@code prefix} that is set
+ * at startup in MinIO.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class MimeSpool implements InitializingBean {
+
+    static final String EXPIRY_RULE_ID = "email-mime-spool-expiry";
+
+    private final MinioClient minioClient;
+    private final JavaMailSender mailSender;
+
+    @Getter
+    @Value("${app.email.mime-spool.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.email.mime-spool.store:minio}")
+    private String store;
+
+    @Value("${app.email.mime-spool.bucket-name:${minio.bucket-name}}")
+    private String bucketName;
+
+    @Value("${app.email.mime-spool.prefix:mime}")
+    private String prefix;
+
+    @Value("${app.email.mime-spool.directory:${java.io.tmpdir}/email-spool}")
+    private Path directory;
+
+    @Value("${app.email.mime-spool.retention:604800000}")
+    private long retentionMs;
+
+    @Override
+    public void afterPropertiesSet() {
+        if (enabled && !isLocal()) {
+            expireStoredMessages();
+        }
+    }
+
+    /**
+     * Serialize the message once to a temporary file and read it back from there, so its attachments
+     * are fetched a single time. The result is what gets transmitted, and stored if that fails.
+     */
+    public SpooledMessage write(MimeMessage message) throws MessagingException, IOException {
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, "write-", ".eml");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024)) {
+                message.writeTo(out);
+            }
+            return readBack(temp);
+        } catch (IOException | MessagingException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    /**
+     * Store a message written by {@link #write} and return the key to record on the email
+     */
+    public String store(UUID emailUuid, SpooledMessage message) throws IOException {
+        String key = prefix + "/" + LocalDate.now() + "/" + emailUuid + ".eml.gz";
+        Path target = directory.resolve(key);
+        Files.createDirectories(target.getParent());
+
+        // Compress from the written file, so the message is not serialized again
+        Path temp = Files.createTempFile(target.getParent(), emailUuid.toString(), ".tmp");
+        try {
+            try (InputStream in = Files.newInputStream(message.file);
+                 OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp), 64 * 1024)) {
+                in.transferTo(out);
+            }
+            long size = Files.size(temp);
+
+            if (isLocal()) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                upload(key, temp, size);
+            }
+            log.debug("Stored assembled message {} ({} bytes compressed)", key, size);
+            return key;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Delete a stored message once it is no longer needed
+     */
+    public void delete(String key) throws IOException {
+        if (isLocal()) {
+            Files.deleteIfExists(directory.resolve(key));
+            return;
+        }
+        try {
+            minioClient.removeObject(RemoveObjectArgs.builder().bucket(bucketName).object(key).build());
+        } catch (Exception e) {
+            throw new IOException("Failed to delete MIME message " + key, e);
+        }
+    }
+
+    /**
+     * A written or stored message read back, ready to hand to the transport. Its content stays in a
+     * temporary file until closed.
+     */
+    public static final class SpooledMessage implements Closeable {
+
+        private final MimeMessage message;
+        private final SharedFileInputStream content;
+        private final Path file;
+
+        private SpooledMessage(MimeMessage message, SharedFileInputStream content, Path file) {
+            this.message = message;
+            this.content = content;
+            this.file = file;
+        }
+
+        public MimeMessage message() {
+            return message;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                content.close();
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Read a stored message back. It is decompressed to a temporary file that the message reads
+     * its parts from, so attachments are not loaded onto the heap; close it once transmitted.
+     */
+    public SpooledMessage load(String key) throws MessagingException, IOException {
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, "load-", ".eml");
+        try {
+            try (InputStream in = new GZIPInputStream(open(key), 64 * 1024)) {
+                Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return readBack(temp);
+        } catch (IOException | MessagingException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    /**
+     * Remove local spool files past their retention; MinIO objects are expired by the lifecycle rule
+     * set in {@link #expireStoredMessages()}
+     */
+    @Scheduled(fixedDelayString = "${app.email.mime-spool.cleanup-interval:3600000}")
+    public void cleanupLocalSpool() {
+        if (!enabled || !isLocal() || !Files.isDirectory(directory)) {
+            return;
+        }
+        FileTime cutoff = FileTime.from(Instant.now().minusMillis(retentionMs));
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.filter(Files::isRegularFile)
+                 .filter(file -> isOlderThan(file, cutoff))
+                 .forEach(this::deleteQuietly);
+        } catch (IOException e) {
+            log.warn("Failed to clean up MIME spool {}", directory, e);
+        }
+    }
+
+    /**
+     * Expire objects under {@code prefix} after the retention with a bucket lifecycle rule. The
+     * bucket is shared with attachments, so its other rules are kept.
+     */
+    private void expireStoredMessages() {
+        int days = (int) Math.max(1, (retentionMs + TimeUnit.DAYS.toMillis(1) - 1) / TimeUnit.DAYS.toMillis(1));
+        try {
+            LifecycleConfiguration current = minioClient.getBucketLifecycle(
+                    GetBucketLifecycleArgs.builder().bucket(bucketName).build());
+            List<LifecycleRule> rules = new ArrayList<>();
+            if (current != null && current.rules() != null) {
+                current.rules().stream()
+                       .filter(rule -> !EXPIRY_RULE_ID.equals(rule.id()))
+                       .forEach(rules::add);
+            }
+            rules.add(new LifecycleRule(Status.ENABLED, null, new Expiration((ZonedDateTime) null, days, null),
+                    new RuleFilter(prefix + "/"), EXPIRY_RULE_ID, null, null, null));
+            minioClient.setBucketLifecycle(SetBucketLifecycleArgs.builder()
+                    .bucket(bucketName)
+                    .config(new LifecycleConfiguration(rules))
+                    .build());
+            log.info("Stored messages under {}/ in bucket {} expire after {} days", prefix, bucketName, days);
+        } catch (Exception e) {
+            log.warn("Failed to set the expiry rule for stored messages in bucket {}: {}", bucketName, e.getMessage());
+        }
+    }
+
+    private SpooledMessage readBack(Path file) throws MessagingException, IOException {
+        Session session = mailSender instanceof JavaMailSenderImpl impl
+                ? impl.getSession() : Session.getInstance(new Properties());
+        SharedFileInputStream content = new SharedFileInputStream(file.toFile(), 64 * 1024);
+        try {
+            return new SpooledMessage(new MimeMessage(session, content), content, file);
+        } catch (MessagingException | RuntimeException e) {
+            content.close();
+            throw e;
+        }
+    }
+
+    private void upload(String key, Path file, long size) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            minioClient.putObject(PutObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(key)
+                    .stream(in, size, -1)
+                    .contentType("application/gzip")
+                    .build());
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to store MIME message " + key, e);
+        }
+    }
+
+    private InputStream open(String key) throws IOException {
+        if (isLocal()) {
+            return Files.newInputStream(directory.resolve(key));
+        }
+        try {
+            return minioClient.getObject(GetObjectArgs.builder().bucket(bucketName).object(key).build());
+        } catch (Exception e) {
+            throw new IOException("Failed to read MIME message " + key, e);
+        }
+    }
+
+    private boolean isLocal() {
+        return "local".equalsIgnoreCase(store);
+    }
+
+    private boolean isOlderThan(Path file, FileTime cutoff) {
+        try {
+            return Files.getLastModifiedTime(file).compareTo(cutoff) < 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Failed to delete spooled message {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.octopus.email_service.mail;
+
+import com.octopus.email_service.entity.Email;
+import com.octopus.email_service.entity.Template;
+import com.octopus.email_service.enums.EmailPriority;
+import com.octopus.email_service.service.TemplateService;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plans the SMTP transactions for a batch of emails, enabled with
+ * {@code app.email.recipient-batching.enabled=true}. Single-recipient emails with identical content
+ * going to the same domain, such as a newsletter queued as one email per subscriber, are merged into
+ * one transaction with a RCPT TO per email, up to {@code max-recipients}, so the message body is
+ * rendered and sent once per group instead of once per recipient. Everything else gets a
+ * transaction of its own.
+ */
+@Component
+public class RecipientPlanner {
+
+    private final SmtpTransportPool smtpTransportPool;
+    private final DistributionSummary recipientsPerTransaction;
+
+    @Value("${app.email.recipient-batching.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.email.recipient-batching.max-recipients:50}")
+    private int maxRecipients;
+
+    public RecipientPlanner(SmtpTransportPool smtpTransportPool, MeterRegistry meterRegistry) {
+        this.smtpTransportPool = smtpTransportPool;
+        this.recipientsPerTransaction = DistributionSummary.builder("email.smtp.transaction.recipients")
+                .description("Emails delivered per planned SMTP transaction")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Emails sent in one SMTP transaction; shared when there is more than one
+     */
+    public record Delivery(List<Email> emails) {
+
+        public boolean isShared() {
+            return emails.size() > 1;
+        }
+    }
+
+    /**
+     * Merging needs explicit envelope recipients, which only pooled transports support
+     */
+    public boolean isEnabled() {
+        return enabled && smtpTransportPool.isEnabled();
+    }
+
+    /**
+     * Split the emails into deliveries, keeping their order within each group
+     */
+    public List<Delivery> plan(Collection<Email> emails) {
+        List<Delivery> deliveries = new ArrayList<>(emails.size());
+        Map<SharedContent, List<Email>> groups = new LinkedHashMap<>();
+        for (Email email : emails) {
+            SharedContent content = isEnabled() ? sharedContent(email) : null;
+            if (content == null) {
+                deliveries.add(new Delivery(List.of(email)));
+            } else {
+                groups.computeIfAbsent(content, key -> new ArrayList<>()).add(email);
+            }
+        }
+        int limit = Math.max(1, maxRecipients);
+        for (List<Email> group : groups.values()) {
+            for (int from = 0; from < group.size(); from += limit) {
+                deliveries.add(new Delivery(List.copyOf(group.subList(from, Math.min(group.size(), from + limit)))));
+            }
+        }
+        deliveries.forEach(delivery -> recipientsPerTransaction.record(delivery.emails().size()));
+        return deliveries;
+    }
+
+    /**
+     * Everything that goes into the message apart from its recipient, or null if the email has to be
+     * sent on its own because it has several recipients
+     */
+    static SharedContent sharedContent(Email email) {
+        if (email.getToAddresses() == null || email.getToAddresses().size() != 1
+            || (email.getCcAddresses() != null && !email.getCcAddresses().isEmpty())
+            || (email.getBccAddresses() != null && !email.getBccAddresses().isEmpty())) {
+            return null;
+        }
+        Set<String> domains = DeliveryRateLimiter.recipientDomains(email);
+        if (domains.size() != 1) {
+            return null;
+        }
+        Template template = email.getTemplate();
+        return new SharedContent(
+                domains.iterator().next(),
+                email.getTenant() != null ? email.getTenant().getId() : null,
+                email.getFromAddress(),
+                email.getReplyToAddress(),
+                email.getSubject(),
+                email.getBody(),
+                Boolean.TRUE.equals(email.getIsHtmlBody()),
+                Boolean.TRUE.equals(email.getNeedsFallbackTemplate()),
+                template != null ? template.getId() : null,
+                template != null ? TemplateService.versionOf(template) : 0L,
+                email.getTemplateVars(),
+                email.getAttachments(),
+                email.getPriority() != null ? email.getPriority() : EmailPriority.NORMAL);
+    }
+
+    record SharedContent(
+            String domain,
+            Long tenantId,
+            String fromAddress,
+            String replyToAddress,
+            String subject,
+            String body,
+            boolean htmlBody,
+            boolean needsFallbackTemplate,
+            Long templateId,
+            long templateVersion,
+            String templateVars,
+            String attachments,
+            EmailPriority priority) {
+    }
+}
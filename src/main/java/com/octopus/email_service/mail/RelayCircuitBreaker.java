@@ -0,0 +1,159 @@
+package com.octopus.email_service.mail;
+
+/**
+ * Circuit breaker for one SMTP relay over a sliding window of the last {@code windowSize} sends.
+ * It opens when the share of failed or slow sends crosses its threshold, rejects sends while open,
+ * then half-opens and lets {@code halfOpenProbes} sends through: all of them succeeding closes it,
+ * any failing or slow probe opens it again.
+ */
+final class RelayCircuitBreaker {
+
+    /**
+     * Breaker states; the ordinal is what the state gauge reports
+     */
+    enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private static final byte SUCCESS = 0;
+    private static final byte FAILURE = 1;
+    private static final byte SLOW = 2;
+
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long slowCallMillis;
+    private final double slowCallRateThreshold;
+    private final long openMillis;
+    private final int halfOpenProbes;
+
+    private final byte[] outcomes;
+    private int next;
+    private int recorded;
+    private int failures;
+    private int slowCalls;
+
+    private State state = State.CLOSED;
+    private long openUntil;
+    private int probesInFlight;
+    private int probeSuccesses;
+
+    RelayCircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold,
+                        long slowCallMillis, double slowCallRateThreshold, long openMillis, int halfOpenProbes) {
+        this.outcomes = new byte[Math.max(1, windowSize)];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, outcomes.length));
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallMillis = slowCallMillis;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openMillis = openMillis;
+        this.halfOpenProbes = Math.max(1, halfOpenProbes);
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Whether {@link #tryAcquire} would let a send through, without taking a probe slot
+     */
+    synchronized boolean isCallPermitted(long now) {
+        return switch (state) {
+            case CLOSED -> true;
+            case OPEN -> now >= openUntil;
+            case HALF_OPEN -> probesInFlight < halfOpenProbes;
+        };
+    }
+
+    /**
+     * When the breaker next lets a send through: the end of the open period, else {@code now}
+     */
+    synchronized long permittedFrom(long now) {
+        return state == State.OPEN ? Math.max(now, openUntil) : now;
+    }
+
+    /**
+     * Let a send through, half-opening the breaker once its open period is over.
+     * Every permitted send must be followed by {@link #onSuccess} or {@link #onFailure}.
+     */
+    synchronized boolean tryAcquire(long now) {
+        if (state == State.OPEN) {
+            if (now < openUntil) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probesInFlight = 0;
+            probeSuccesses = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight >= halfOpenProbes) {
+                return false;
+            }
+            probesInFlight++;
+        }
+        return true;
+    }
+
+    synchronized void onSuccess(long elapsedMillis, long now) {
+        record(elapsedMillis >= slowCallMillis ? SLOW : SUCCESS, now);
+    }
+
+    synchronized void onFailure(long now) {
+        record(FAILURE, now);
+    }
+
+    private void record(byte outcome, long now) {
+        switch (state) {
+            case OPEN -> {
+                // A send that started before the breaker opened
+            }
+            case HALF_OPEN -> {
+                probesInFlight = Math.max(0, probesInFlight - 1);
+                if (outcome != SUCCESS) {
+                    open(now);
+                } else if (++probeSuccesses >= halfOpenProbes) {
+                    close();
+                }
+            }
+            case CLOSED -> {
+                if (recorded == outcomes.length) {
+                    forget(outcomes[next]);
+                } else {
+                    recorded++;
+                }
+                outcomes[next] = outcome;
+                next = (next + 1) % outcomes.length;
+                if (outcome == FAILURE) {
+                    failures++;
+                } else if (outcome == SLOW) {
+                    slowCalls++;
+                }
+                if (recorded >= minimumCalls
+                    && (failures >= failureRateThreshold * recorded || slowCalls >= slowCallRateThreshold * recorded)) {
+                    open(now);
+                }
+            }
+        }
+    }
+
+    private void forget(byte outcome) {
+        if (outcome == FAILURE) {
+            failures--;
+        } else if (outcome == SLOW) {
+            slowCalls--;
+        }
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openUntil = now + openMillis;
+        probesInFlight = 0;
+        probeSuccesses = 0;
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        next = 0;
+        recorded = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+}
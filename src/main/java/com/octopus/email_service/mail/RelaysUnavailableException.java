@@ -0,0 +1,34 @@
+package com.octopus.email_service.mail;
+
+import jakarta.mail.MessagingException;
+import lombok.Getter;
+
+/**
+ * No relay could be tried because every relay's circuit breaker was open. Nothing reached a relay,
+ * so the email is deferred until {@link #getRetryAt()} rather than charged an attempt.
+ */
+@Getter
+public class RelaysUnavailableException extends MessagingException {
+
+    /**
+     * When the first breaker lets a send through again, in epoch milliseconds
+     */
+    private final long retryAt;
+
+    public RelaysUnavailableException(long retryAt) {
+        super("No SMTP relay available: all circuit breakers are open");
+        this.retryAt = retryAt;
+    }
+
+    /**
+     * The exception in {@code failure} or its causes, or null if the send reached a relay
+     */
+    public static RelaysUnavailableException find(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof RelaysUnavailableException unavailable) {
+                return unavailable;
+            }
+        }
+        return null;
+    }
+}
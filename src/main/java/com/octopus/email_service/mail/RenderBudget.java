@@ -0,0 +1,158 @@
+package com.octopus.email_service.mail;
+
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Time, iteration and output limits on one render of a user template. Thymeleaf cannot be
+ * interrupted, so the limits are checked cooperatively on the rendering thread: whenever output is
+ * written and whenever a {@code th:each} loop starts or advances. A runaway template therefore
+ * fails on its next write or iteration past the budget.
+ */
+final class RenderBudget {
+
+    private static final ThreadLocal<RenderBudget> CURRENT = new ThreadLocal<>();
+
+    private final String template;
+    private final long timeBudgetMs;
+    private final long deadline;
+    private final long maxIterations;
+    private final long maxOutputChars;
+    private long iterations;
+    private long outputChars;
+
+    RenderBudget(String template, long timeBudgetMs, long maxIterations, long maxOutputChars) {
+        this.template = template;
+        this.timeBudgetMs = timeBudgetMs;
+        this.deadline = System.nanoTime() + timeBudgetMs * 1_000_000L;
+        this.maxIterations = maxIterations;
+        this.maxOutputChars = maxOutputChars;
+    }
+
+    /**
+     * Budget of the render on the calling thread, or null outside a budgeted render
+     */
+    static RenderBudget current() {
+        return CURRENT.get();
+    }
+
+    void enter() {
+        CURRENT.set(this);
+    }
+
+    void exit() {
+        CURRENT.remove();
+    }
+
+    void checkTime() {
+        if (timeBudgetMs > 0 && System.nanoTime() - deadline > 0) {
+            throw new TemplateBudgetExceededException(
+                    "Template " + template + " exceeded its render time budget of " + timeBudgetMs + " ms");
+        }
+    }
+
+    /**
+     * Charge a loop over {@code iterated}; collections are charged up front, other iterables as they advance
+     */
+    Object iterate(Object iterated) {
+        checkTime();
+        if (iterated instanceof Collection<?> collection) {
+            charge(collection.size());
+        } else if (iterated instanceof Map<?, ?> map) {
+            charge(map.size());
+        } else if (iterated != null && iterated.getClass().isArray()) {
+            charge(Array.getLength(iterated));
+        } else if (iterated instanceof Iterable<?> iterable) {
+            return new BudgetedIterator<>(iterable.iterator());
+        } else if (iterated instanceof Iterator<?> iterator) {
+            return new BudgetedIterator<>(iterator);
+        } else {
+            charge(1);
+        }
+        return iterated;
+    }
+
+    /**
+     * Output buffer of the render, failing the render once it passes the output budget
+     */
+    Writer writer() {
+        return new BudgetedWriter();
+    }
+
+    private void charge(long count) {
+        iterations += count;
+        if (maxIterations > 0 && iterations > maxIterations) {
+            throw new TemplateBudgetExceededException(
+                    "Template " + template + " exceeded its limit of " + maxIterations + " loop iterations");
+        }
+    }
+
+    private final class BudgetedIterator<T> implements Iterator<T> {
+
+        private final Iterator<T> delegate;
+
+        private BudgetedIterator(Iterator<T> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return delegate.hasNext();
+        }
+
+        @Override
+        public T next() {
+            checkTime();
+            charge(1);
+            return delegate.next();
+        }
+    }
+
+    private final class BudgetedWriter extends Writer {
+
+        private final StringBuilder output = new StringBuilder();
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            reserve(length);
+            output.append(chars, offset, length);
+        }
+
+        @Override
+        public void write(String string, int offset, int length) {
+            reserve(length);
+            output.append(string, offset, offset + length);
+        }
+
+        @Override
+        public void write(int c) {
+            reserve(1);
+            output.append((char) c);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return output.toString();
+        }
+
+        private void reserve(int length) {
+            checkTime();
+            outputChars += length;
+            if (maxOutputChars > 0 && outputChars > maxOutputChars) {
+                throw new TemplateBudgetExceededException(
+                        "Template " + template + " exceeded its output limit of " + maxOutputChars + " characters");
+            }
+        }
+    }
+}
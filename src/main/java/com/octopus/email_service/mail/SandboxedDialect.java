@@ -0,0 +1,75 @@
+package com.octopus.email_service.mail;
+
+import org.thymeleaf.context.ITemplateContext;
+import org.thymeleaf.engine.AttributeName;
+import org.thymeleaf.exceptions.TemplateProcessingException;
+import org.thymeleaf.model.IProcessableElementTag;
+import org.thymeleaf.processor.IProcessor;
+import org.thymeleaf.processor.element.AbstractAttributeTagProcessor;
+import org.thymeleaf.processor.element.IElementTagStructureHandler;
+import org.thymeleaf.spring6.dialect.SpringStandardDialect;
+import org.thymeleaf.standard.expression.Each;
+import org.thymeleaf.standard.expression.EachUtils;
+import org.thymeleaf.standard.expression.IStandardExpression;
+import org.thymeleaf.standard.processor.StandardEachTagProcessor;
+import org.thymeleaf.templatemode.TemplateMode;
+import org.thymeleaf.util.StringUtils;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Standard dialect for user templates whose {@code th:each} charges every loop to the
+ * {@link RenderBudget} of the render, so loops over huge collections fail fast.
+ */
+class SandboxedDialect extends SpringStandardDialect {
+
+    @Override
+    public Set<IProcessor> getProcessors(String dialectPrefix) {
+        Set<IProcessor> processors = new LinkedHashSet<>();
+        for (IProcessor processor : super.getProcessors(dialectPrefix)) {
+            processors.add(processor instanceof StandardEachTagProcessor
+                    ? new BudgetedEachTagProcessor(processor.getTemplateMode(), dialectPrefix)
+                    : processor);
+        }
+        return processors;
+    }
+
+    /**
+     * {@code th:each} as in {@link StandardEachTagProcessor}, iterating through the render budget
+     */
+    private static final class BudgetedEachTagProcessor extends AbstractAttributeTagProcessor {
+
+        private BudgetedEachTagProcessor(TemplateMode templateMode, String dialectPrefix) {
+            super(templateMode, dialectPrefix, null, false, StandardEachTagProcessor.ATTR_NAME, true,
+                    StandardEachTagProcessor.PRECEDENCE, true);
+        }
+
+        @Override
+        protected void doProcess(ITemplateContext context, IProcessableElementTag tag, AttributeName attributeName,
+                                 String attributeValue, IElementTagStructureHandler structureHandler) {
+            Each each = EachUtils.parseEach(context, attributeValue);
+
+            IStandardExpression iterVarExpr = each.getIterVar();
+            Object iterVarValue = iterVarExpr.execute(context);
+            IStandardExpression statusVarExpr = each.getStatusVar();
+            Object statusVarValue = statusVarExpr != null ? statusVarExpr.execute(context) : null;
+            Object iteratedValue = each.getIterable().execute(context);
+
+            String iterVarName = iterVarValue != null ? iterVarValue.toString() : null;
+            if (StringUtils.isEmptyOrWhitespace(iterVarName)) {
+                throw new TemplateProcessingException(
+                        "Iteration variable name expression evaluated as null: \"" + iterVarExpr + "\"");
+            }
+            String statusVarName = statusVarValue != null ? statusVarValue.toString() : null;
+            if (statusVarExpr != null && StringUtils.isEmptyOrWhitespace(statusVarName)) {
+                throw new TemplateProcessingException(
+                        "Status variable name expression evaluated as null or empty: \"" + statusVarExpr + "\"");
+            }
+
+            RenderBudget budget = RenderBudget.current();
+            structureHandler.iterateElement(iterVarName, statusVarName,
+                    budget != null ? budget.iterate(iteratedValue) : iteratedValue);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.octopus.email_service.mail;
+
+import com.octopus.email_service.entity.Email;
+import com.octopus.email_service.entity.EmailTenant;
+import com.octopus.email_service.entity.Template;
+import com.octopus.email_service.enums.EmailPriority;
+import com.octopus.email_service.service.TemplateService;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Everything a worker needs to send an email, carried in the queue message so the worker does not
+ * have to read the email row first. Template variables and attachment references are kept as the
+ * JSON already stored on the email; the template itself travels as an ID and version.
+ */
+public record SendEnvelope(
+        long emailId,
+        UUID uuid,
+        Long tenantId,
+        String fromAddress,
+        String replyToAddress,
+        List<String> toAddresses,
+        List<String> ccAddresses,
+        List<String> bccAddresses,
+        String subject,
+        String body,
+        boolean htmlBody,
+        boolean needsFallbackTemplate,
+        Long templateId,
+        long templateVersion,
+        String templateVars,
+        String attachments,
+        String mimeObjectKey,
+        int attempts,
+        int maxAttempts,
+        EmailPriority priority,
+        Long createdAt) {
+
+    public static SendEnvelope of(Email email) {
+        return of(email, email.getAttempts() != null ? email.getAttempts() : 0);
+    }
+
+    /**
+     * Envelope for the email as it will be when its next attempt starts
+     */
+    public static SendEnvelope of(Email email, int attempts) {
+        Template template = email.getTemplate();
+        return new SendEnvelope(
+                email.getId(),
+                email.getUuid(),
+                email.getTenant() != null ? email.getTenant().getId() : null,
+                email.getFromAddress(),
+                email.getReplyToAddress(),
+                copy(email.getToAddresses()),
+                copy(email.getCcAddresses()),
+                copy(email.getBccAddresses()),
+                email.getSubject(),
+                email.getBody(),
+                Boolean.TRUE.equals(email.getIsHtmlBody()),
+                Boolean.TRUE.equals(email.getNeedsFallbackTemplate()),
+                template != null ? template.getId() : null,
+                template != null ? TemplateService.versionOf(template) : 0L,
+                email.getTemplateVars(),
+                email.getAttachments(),
+                email.getMimeObjectKey(),
+                attempts,
+                email.getMaxAttempts() != null ? email.getMaxAttempts() : 5,
+                email.getPriority() != null ? email.getPriority() : EmailPriority.NORMAL,
+                email.getCreatedAt() != null ? email.getCreatedAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() : null);
+    }
+
+    /**
+     * Detached email to hand to the send path; {@code template} is the resolved {@link #templateId()}
+     */
+    public Email toEmail(Template template) {
+        return Email.builder()
+                .id(emailId)
+                .uuid(uuid)
+                .tenant(tenantId != null ? EmailTenant.builder().id(tenantId).build() : null)
+                .fromAddress(fromAddress)
+                .replyToAddress(replyToAddress)
+                .toAddresses(new ArrayList<>(toAddresses))
+                .ccAddresses(new ArrayList<>(ccAddresses))
+                .bccAddresses(new ArrayList<>(bccAddresses))
+                .subject(subject)
+                .body(body)
+                .isHtmlBody(htmlBody)
+                .needsFallbackTemplate(needsFallbackTemplate)
+                .template(template)
+                .templateVars(templateVars)
+                .attachments(attachments)
+                .mimeObjectKey(mimeObjectKey)
+                .attempts(attempts)
+                .maxAttempts(maxAttempts)
+                .priority(priority)
+                .createdAt(createdAt != null
+                        ? LocalDateTime.ofInstant(Instant.ofEpochMilli(createdAt), ZoneId.systemDefault()) : null)
+                .build();
+    }
+
+    private static List<String> copy(List<String> addresses) {
+        return addresses != null ? List.copyOf(addresses) : List.of();
+    }
+}
@@ -0,0 +1,241 @@
+package com.octopus.email_service.mail;
+
+import com.octopus.email_service.enums.EmailPriority;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compact binary encoding of a {@link SendEnvelope}: a magic byte and format version, then the fields
+ * in declaration order as unsigned varints and length-prefixed UTF-8, with no field names or type
+ * information. Nullable values use 0 for null and value + 1 otherwise.
+ * <p>
+ * New fields are only ever appended, defaulted when absent, and decoders ignore trailing bytes, so
+ * workers and publishers of the same format version can be upgraded in either order.
+ */
+public final class SendEnvelopeCodec {
+
+    static final byte MAGIC = 'E';
+    static final byte VERSION = 1;
+
+    private static final int FLAG_HTML_BODY = 1;
+    private static final int FLAG_FALLBACK_TEMPLATE = 1 << 1;
+
+    private SendEnvelopeCodec() {
+    }
+
+    public static byte[] encode(SendEnvelope envelope) {
+        Writer out = new Writer(256 + length(envelope.body()) + length(envelope.templateVars())
+                                + length(envelope.attachments()));
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeVarLong(envelope.emailId());
+        out.writeLong(envelope.uuid().getMostSignificantBits());
+        out.writeLong(envelope.uuid().getLeastSignificantBits());
+        out.writeNullableLong(envelope.tenantId());
+        out.writeString(envelope.fromAddress());
+        out.writeString(envelope.replyToAddress());
+        out.writeStrings(envelope.toAddresses());
+        out.writeStrings(envelope.ccAddresses());
+        out.writeStrings(envelope.bccAddresses());
+        out.writeString(envelope.subject());
+        out.writeString(envelope.body());
+        out.writeByte((envelope.htmlBody() ? FLAG_HTML_BODY : 0)
+                      | (envelope.needsFallbackTemplate() ? FLAG_FALLBACK_TEMPLATE : 0));
+        out.writeNullableLong(envelope.templateId());
+        out.writeVarLong(envelope.templateVersion());
+        out.writeString(envelope.templateVars());
+        out.writeString(envelope.attachments());
+        out.writeString(envelope.mimeObjectKey());
+        out.writeVarLong(envelope.attempts());
+        out.writeVarLong(envelope.maxAttempts());
+        // Appended fields: decoders must default them when reading an envelope that ends earlier
+        out.writeVarLong(envelope.priority().ordinal());
+        out.writeNullableLong(envelope.createdAt());
+        return out.toByteArray();
+    }
+
+    public static SendEnvelope decode(byte[] bytes) {
+        Reader in = new Reader(bytes);
+        if (in.readByte() != MAGIC) {
+            throw new IllegalArgumentException("Not a send envelope");
+        }
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported send envelope version: " + version);
+        }
+        long emailId = in.readVarLong();
+        UUID uuid = new UUID(in.readLong(), in.readLong());
+        Long tenantId = in.readNullableLong();
+        String fromAddress = in.readString();
+        String replyToAddress = in.readString();
+        List<String> toAddresses = in.readStrings();
+        List<String> ccAddresses = in.readStrings();
+        List<String> bccAddresses = in.readStrings();
+        String subject = in.readString();
+        String body = in.readString();
+        int flags = in.readByte();
+        Long templateId = in.readNullableLong();
+        long templateVersion = in.readVarLong();
+        String templateVars = in.readString();
+        String attachments = in.readString();
+        String mimeObjectKey = in.readString();
+        int attempts = (int) in.readVarLong();
+        int maxAttempts = (int) in.readVarLong();
+        EmailPriority priority = in.hasRemaining() ? priorityOf(in.readVarLong()) : EmailPriority.NORMAL;
+        Long createdAt = in.hasRemaining() ? in.readNullableLong() : null;
+        return new SendEnvelope(emailId, uuid, tenantId, fromAddress, replyToAddress,
+                                toAddresses, ccAddresses, bccAddresses, subject, body,
+                                (flags & FLAG_HTML_BODY) != 0, (flags & FLAG_FALLBACK_TEMPLATE) != 0,
+                                templateId, templateVersion, templateVars, attachments, mimeObjectKey,
+                                attempts, maxAttempts, priority, createdAt);
+    }
+
+    private static EmailPriority priorityOf(long ordinal) {
+        EmailPriority[] priorities = EmailPriority.values();
+        return ordinal < priorities.length ? priorities[(int) ordinal] : EmailPriority.NORMAL;
+    }
+
+    private static int length(String value) {
+        return value != null ? value.length() : 0;
+    }
+
+    private static final class Writer {
+
+        private byte[] buffer;
+        private int position;
+
+        private Writer(int initialCapacity) {
+            buffer = new byte[initialCapacity];
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeNullableLong(Long value) {
+            writeVarLong(value == null ? 0 : value + 1);
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(utf8.length + 1L);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, buffer, position, utf8.length);
+            position += utf8.length;
+        }
+
+        void writeStrings(List<String> values) {
+            writeVarLong(values.size());
+            for (String value : values) {
+                writeString(value);
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+
+        private void ensure(int bytes) {
+            if (position + bytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+            }
+        }
+    }
+
+    private static final class Reader {
+
+        private final byte[] buffer;
+        private int position;
+
+        private Reader(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        boolean hasRemaining() {
+            return position < buffer.length;
+        }
+
+        int readByte() {
+            require(1);
+            return buffer[position++];
+        }
+
+        long readLong() {
+            require(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buffer[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in send envelope");
+        }
+
+        Long readNullableLong() {
+            long value = readVarLong();
+            return value == 0 ? null : value - 1;
+        }
+
+        String readString() {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            int size = Math.toIntExact(length - 1);
+            require(size);
+            String value = new String(buffer, position, size, StandardCharsets.UTF_8);
+            position += size;
+            return value;
+        }
+
+        List<String> readStrings() {
+            int count = Math.toIntExact(readVarLong());
+            List<String> values = new ArrayList<>(Math.min(count, 64));
+            for (int i = 0; i < count; i++) {
+                values.add(readString());
+            }
+            return values;
+        }
+
+        private void require(int bytes) {
+            if (bytes < 0 || position + bytes > buffer.length) {
+                throw new IllegalArgumentException("Truncated send envelope");
+            }
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package com.octopus.email_service.mail;
+
+import com.octopus.email_service.entity.Email;
+import com.octopus.email_service.service.EmailService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Hibernate;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a send as three stages, render, assemble and transmit, each on its own executor
+ * with a bounded hand-off queue, so CPU-bound rendering and network-bound transmission can be
+ * sized separately. A full queue blocks the stage feeding it, pushing backpressure upstream
+ * to the listener threads. Enabled with {@code app.email.pipeline.enabled=true}; otherwise
+ * the stages run inline on the calling thread. {@link #submit} hands the email to the pipeline
+ * and returns at once, so a listener can take its next delivery while this one is transmitted. Express emails run through a separate, smaller set
+ * of stage executors, so they never wait in a queue behind bulk sends.
+ * <p>
+ * When the {@link MimeSpool} is enabled the assembled message is written once and transmitted from
+ * that copy, so attachments are fetched a single time. If transmission fails the copy is stored and
+ * later attempts skip rendering and assembly and transmit it; once one of them sends it, it is deleted.
+ */
+@Component
+@Slf4j
+public class SendPipeline implements InitializingBean, DisposableBean {
+
+    private final MessageRenderer renderer;
+    private final MessageAssembler assembler;
+    private final MessageTransmitter transmitter;
+    private final MimeSpool mimeSpool;
+    private final EmailService emailService;
+    private final MeterRegistry meterRegistry;
+
+    @Getter
+    @Value("${app.email.pipeline.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.email.pipeline.render-threads:#{T(java.lang.Runtime).getRuntime().availableProcessors()}}")
+    private int renderThreads;
+
+    @Value("${app.email.pipeline.assemble-threads:8}")
+    private int assembleThreads;
+
+    @Value("${app.email.pipeline.transmit-threads:10}")
+    private int transmitThreads;
+
+    @Value("${app.email.pipeline.queue-capacity:100}")
+    private int queueCapacity;
+
+    @Value("${app.email.pipeline.express-threads:2}")
+    private int expressThreads;
+
+    private Stages bulkStages;
+    private Stages expressStages;
+    private Timer renderTimer;
+    private Timer assembleTimer;
+    private Timer transmitTimer;
+
+    public SendPipeline(MessageRenderer renderer, MessageAssembler assembler,
+                        MessageTransmitter transmitter, MimeSpool mimeSpool,
+                        EmailService emailService, MeterRegistry meterRegistry) {
+        this.renderer = renderer;
+        this.assembler = assembler;
+        this.transmitter = transmitter;
+        this.mimeSpool = mimeSpool;
+        this.emailService = emailService;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Executors for the render, assemble and transmit stages of one lane
+     */
+    private record Stages(ThreadPoolExecutor render, ThreadPoolExecutor assemble, ThreadPoolExecutor transmit) {
+
+        List<ThreadPoolExecutor> executors() {
+            return List.of(render, assemble, transmit);
+        }
+    }
+
+    /**
+     * Message ready to transmit, with the written copy to store if transmission fails, the key it
+     * was loaded from to delete once sent, and what to release once it has been transmitted or abandoned
+     */
+    private record Prepared(MimeMessage message, MimeSpool.SpooledMessage unstored, String spooledKey,
+                            Closeable resources) {
+
+        void release() {
+            if (resources == null) {
+                return;
+            }
+            try {
+                resources.close();
+            } catch (IOException e) {
+                log.warn("Failed to release resources of a prepared message", e);
+            }
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        renderTimer = stageTimer("render");
+        assembleTimer = stageTimer("assemble");
+        transmitTimer = stageTimer("transmit");
+
+        if (!enabled) {
+            return;
+        }
+        bulkStages = new Stages(stageExecutor("render", renderThreads), stageExecutor("assemble", assembleThreads),
+                stageExecutor("transmit", transmitThreads));
+        expressStages = new Stages(stageExecutor("express-render", expressThreads),
+                stageExecutor("express-assemble", expressThreads), stageExecutor("express-transmit", expressThreads));
+        log.info("Staged send pipeline enabled: render={}, assemble={}, transmit={} threads, express {} per stage, "
+                 + "queue capacity {}", renderThreads, assembleThreads, transmitThreads, expressThreads, queueCapacity);
+    }
+
+    /**
+     * Render, assemble and transmit the email, returning once it has been handed to the relay
+     */
+    public void send(Email email) throws MessagingException {
+        if (!enabled) {
+            sendInline(email);
+            return;
+        }
+        try {
+            submit(email).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while sending email ID: " + email.getId(), e);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * Hand the email to the pipeline and return a future that completes once it has been handed to the
+     * relay, or fails with the stage's exception. Blocks only while the first stage's queue is full.
+     * Without the pipeline the email is sent on the calling thread before this returns.
+     */
+    public CompletableFuture<Void> submit(Email email) {
+        if (!enabled) {
+            try {
+                sendInline(email);
+                return CompletableFuture.completedFuture(null);
+            } catch (MessagingException | RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        // Load lazy associations on the caller, which owns the persistence context
+        Hibernate.initialize(email.getTemplate());
+        Hibernate.initialize(email.getCcAddresses());
+        Hibernate.initialize(email.getBccAddresses());
+
+        boolean express = emailService.isExpress(email);
+        Stages stages = express ? expressStages : bulkStages;
+        CompletableFuture<Prepared> prepared = isSpooled(email)
+                ? CompletableFuture.supplyAsync(() -> unchecked(assembleTimer, () -> fromSpool(email)), stages.assemble())
+                : CompletableFuture
+                        .supplyAsync(() -> renderTimer.record(() -> renderer.render(email)), stages.render())
+                        .thenApplyAsync(rendered -> unchecked(() -> assemble(email, rendered)), stages.assemble());
+        return prepared
+                .thenAcceptAsync(ready -> unchecked(transmitTimer, () -> {
+                    transmitter.transmit(ready.message(), express);
+                    return null;
+                }), stages.transmit())
+                // Finish once transmission is over, even if it never started or nobody waits for it
+                .whenComplete((ignored, failure) -> {
+                    if (prepared.isDone() && !prepared.isCompletedExceptionally()) {
+                        finish(email, prepared.join(), failure);
+                    }
+                })
+                .exceptionallyCompose(failure -> CompletableFuture.failedFuture(unwrap(failure)));
+    }
+
+    private void sendInline(Email email) throws MessagingException {
+        boolean express = emailService.isExpress(email);
+        Prepared prepared = isSpooled(email)
+                ? timed(assembleTimer, () -> fromSpool(email))
+                : assemble(email, renderTimer.record(() -> renderer.render(email)));
+        Throwable failure = null;
+        try {
+            timed(transmitTimer, () -> {
+                transmitter.transmit(prepared.message(), express);
+                return null;
+            });
+        } catch (MessagingException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            finish(email, prepared, failure);
+        }
+    }
+
+    private boolean isSpooled(Email email) {
+        return mimeSpool.isEnabled() && email.getMimeObjectKey() != null;
+    }
+
+    /**
+     * Render and assemble the message for emails with identical content once and transmit it in one
+     * SMTP transaction to each email's recipient. Runs inline on the calling thread and is not spooled.
+     */
+    public void sendShared(List<Email> emails) throws MessagingException {
+        Email first = emails.get(0);
+        boolean express = emailService.isExpress(first);
+        MessageRenderer.Rendered rendered = renderTimer.record(() -> renderer.render(first));
+        try (MessageAssembler.Assembled assembled = timed(assembleTimer, () -> assembler.assembleShared(first, rendered))) {
+            List<Address> recipients = new ArrayList<>(emails.size());
+            for (Email email : emails) {
+                for (String address : email.getToAddresses()) {
+                    recipients.add(new InternetAddress(address));
+                }
+            }
+            timed(transmitTimer, () -> {
+                transmitter.transmit(assembled.message(), recipients.toArray(new Address[0]), express);
+                return null;
+            });
+        }
+    }
+
+    private Prepared assemble(Email email, MessageRenderer.Rendered rendered) throws MessagingException {
+        MessageAssembler.Assembled assembled = timed(assembleTimer, () -> assembler.assemble(email, rendered));
+        if (!mimeSpool.isEnabled()) {
+            return new Prepared(assembled.message(), null, null, assembled);
+        }
+        MimeSpool.SpooledMessage written;
+        try {
+            written = mimeSpool.write(assembled.message());
+        } catch (IOException | MessagingException e) {
+            log.warn("Failed to spool assembled message for email ID: {}, retries will re-render", email.getId(), e);
+            return new Prepared(assembled.message(), null, null, assembled);
+        } catch (RuntimeException e) {
+            assembled.close();
+            throw e;
+        }
+        // Every attachment has been read into the written copy, which is what gets transmitted
+        assembled.close();
+        return new Prepared(written.message(), written, null, written);
+    }
+
+    private Prepared fromSpool(Email email) throws MessagingException {
+        try {
+            MimeSpool.SpooledMessage spooled = mimeSpool.load(email.getMimeObjectKey());
+            return new Prepared(spooled.message(), null, email.getMimeObjectKey(), spooled);
+        } catch (IOException | MessagingException e) {
+            log.warn("Stored message {} for email ID: {} is unavailable, re-rendering",
+                     email.getMimeObjectKey(), email.getId(), e);
+            return assemble(email, renderer.render(email));
+        }
+    }
+
+    /**
+     * Store the written copy if transmission failed, or delete the stored one once it has been sent,
+     * then release the message
+     */
+    private void finish(Email email, Prepared prepared, Throwable failure) {
+        try {
+            if (failure != null && prepared.unstored() != null) {
+                String key = mimeSpool.store(email.getUuid(), prepared.unstored());
+                email.setMimeObjectKey(key);
+                emailService.attachStoredMessage(email.getId(), key);
+            } else if (failure == null && prepared.spooledKey() != null) {
+                mimeSpool.delete(prepared.spooledKey());
+                email.setMimeObjectKey(null);
+                emailService.attachStoredMessage(email.getId(), null);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to update the stored message for email ID: {}", email.getId(), e);
+        } finally {
+            prepared.release();
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        for (ThreadPoolExecutor executor : executors()) {
+            executor.shutdown();
+        }
+        for (ThreadPoolExecutor executor : executors()) {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Stage<T> {
+        T run() throws MessagingException;
+    }
+
+    private <T> T timed(Timer timer, Stage<T> stage) throws MessagingException {
+        Timer.Sample sample = Timer.start();
+        try {
+            return stage.run();
+        } finally {
+            sample.stop(timer);
+        }
+    }
+
+    private <T> T unchecked(Timer timer, Stage<T> stage) {
+        return unchecked(() -> timed(timer, stage));
+    }
+
+    private <T> T unchecked(Stage<T> stage) {
+        try {
+            return stage.run();
+        } catch (MessagingException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * The stage's own exception, without the CompletionException a later stage wrapped it in
+     */
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    private MessagingException rethrow(Throwable failure) {
+        Throwable cause = unwrap(failure);
+        if (cause instanceof MessagingException messagingException) {
+            return messagingException;
+        }
+        if (cause instanceof RuntimeException runtimeException) {
+            throw runtimeException;
+        }
+        if (cause instanceof Error error) {
+            throw error;
+        }
+        throw new IllegalStateException(cause);
+    }
+
+    private Timer stageTimer(String stage) {
+        return Timer.builder("email.pipeline.stage")
+                .description("Time spent in each stage of the send pipeline")
+                .tag("stage", stage)
+                .register(meterRegistry);
+    }
+
+    private ThreadPoolExecutor stageExecutor(String stage, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new CustomizableThreadFactory("email-" + stage + "-"),
+                blockWhenFull());
+        // Publishes queued/active/completed per stage as executor.* metrics tagged name=email.pipeline.<stage>
+        new ExecutorServiceMetrics(executor, "email.pipeline." + stage, Tags.of("stage", stage)).bindTo(meterRegistry);
+        return executor;
+    }
+
+    /**
+     * Blocks the submitting thread until the stage's queue has room, instead of rejecting the task
+     */
+    private static RejectedExecutionHandler blockWhenFull() {
+        return (task, executor) -> {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Send pipeline is shutting down");
+            }
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for pipeline capacity", e);
+            }
+        };
+    }
+
+    private List<ThreadPoolExecutor> executors() {
+        if (!enabled) {
+            return List.of();
+        }
+        List<ThreadPoolExecutor> executors = new ArrayList<>(bulkStages.executors());
+        executors.addAll(expressStages.executors());
+        return executors;
+    }
+}
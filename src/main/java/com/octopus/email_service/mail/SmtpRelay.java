@@ -0,0 +1,35 @@
+package com.octopus.email_service.mail;
+
+import jakarta.mail.Session;
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Connection details for an SMTP relay that transports can be pooled against
+ */
+@Value
+@Builder
+public class SmtpRelay {
+
+    String name;
+
+    String host;
+
+    int port;
+
+    String username;
+
+    String password;
+
+    @Builder.Default
+    String protocol = "smtp";
+
+    Session session;
+
+    /**
+     * Key identifying the authenticated endpoint, used to keep one pool per relay
+     */
+    public String getKey() {
+        return name + "|" + host + ":" + port + "|" + (username != null ? username : "");
+    }
+}
@@ -0,0 +1,326 @@
+package com.octopus.email_service.mail;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads sends over several named SMTP relays by smooth weighted round robin, enabled with
+ * {@code app.email.relays.enabled=true}. Each relay has a {@link RelayCircuitBreaker}; a send that
+ * fails on one relay is retried on the next healthy one, so a provider outage shifts traffic to the
+ * others instead of using up the emails' attempts. Relays are declared under
+ * {@code app.email.relays.servers.<name>} and share the {@code spring.mail.properties} settings.
+ */
+@Component
+@Slf4j
+public class SmtpRelayRouter implements InitializingBean {
+
+    private static final String SERVERS_PREFIX = "app.email.relays.servers.";
+
+    private final SmtpTransportPool smtpTransportPool;
+    private final JavaMailSender mailSender;
+    private final Environment environment;
+    private final MeterRegistry meterRegistry;
+    private final Counter failovers;
+    private final Counter unavailable;
+
+    @Value("${app.email.relays.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.email.relays.names:}")
+    private List<String> names;
+
+    @Value("${app.email.relays.max-failover:2}")
+    private int maxFailover;
+
+    @Value("${app.email.relays.breaker.window:20}")
+    private int windowSize;
+
+    @Value("${app.email.relays.breaker.minimum-calls:10}")
+    private int minimumCalls;
+
+    @Value("${app.email.relays.breaker.failure-rate:0.5}")
+    private double failureRateThreshold;
+
+    @Value("${app.email.relays.breaker.slow-call-duration:10000}")
+    private long slowCallMillis;
+
+    @Value("${app.email.relays.breaker.slow-call-rate:0.8}")
+    private double slowCallRateThreshold;
+
+    @Value("${app.email.relays.breaker.open-duration:30000}")
+    private long openMillis;
+
+    @Value("${app.email.relays.breaker.half-open-probes:3}")
+    private int halfOpenProbes;
+
+    @Getter
+    private List<Relay> relays = List.of();
+
+    public SmtpRelayRouter(SmtpTransportPool smtpTransportPool, JavaMailSender mailSender,
+                           Environment environment, MeterRegistry meterRegistry) {
+        this.smtpTransportPool = smtpTransportPool;
+        this.mailSender = mailSender;
+        this.environment = environment;
+        this.meterRegistry = meterRegistry;
+        this.failovers = Counter.builder("email.smtp.relay.failovers")
+                .description("Sends retried on another relay after a relay failed")
+                .register(meterRegistry);
+        this.unavailable = Counter.builder("email.smtp.relay.unavailable")
+                .description("Sends rejected because every relay's circuit breaker was open")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled && smtpTransportPool.isEnabled();
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled) {
+            return;
+        }
+        if (!smtpTransportPool.isEnabled()) {
+            log.warn("SMTP relay routing requires app.email.smtp-pool.enabled=true; sending through spring.mail only");
+            return;
+        }
+        List<Relay> configured = new ArrayList<>();
+        for (String name : names) {
+            if (StringUtils.hasText(name)) {
+                configured.add(register(relay(name.trim()), weight(name.trim())));
+            }
+        }
+        if (configured.isEmpty()) {
+            configured.add(register(smtpTransportPool.getDefaultRelay(), 1));
+        }
+        relays = List.copyOf(configured);
+        log.info("Routing SMTP sends over relays {}", relays.stream().map(Relay::getName).toList());
+    }
+
+    public void send(MimeMessage message, String lane) throws MessagingException {
+        send(message, null, lane);
+    }
+
+    /**
+     * Send through the relays in weighted order, failing over on relay errors. Recipient rejections
+     * are not failed over, since another relay would reject the same addresses.
+     *
+     * @param recipients envelope recipients, or null for the message's own recipients
+     * @param lane       pool lane to send on, or null for the standard connections
+     */
+    public void send(MimeMessage message, Address[] recipients, String lane) throws MessagingException {
+        Set<Relay> tried = new HashSet<>();
+        Exception lastFailure = null;
+        for (int attempt = 0; attempt <= maxFailover; attempt++) {
+            Relay relay = select(tried);
+            if (relay == null) {
+                break;
+            }
+            if (attempt > 0) {
+                failovers.increment();
+            }
+            SmtpRelay target = lane != null ? smtpTransportPool.getLaneRelay(lane, relay.smtpRelay) : relay.smtpRelay;
+            long start = System.nanoTime();
+            try {
+                smtpTransportPool.send(target, message, recipients);
+            } catch (MessagingException | RuntimeException e) {
+                if (!isRelayFailure(e)) {
+                    relay.recordSuccess(System.nanoTime() - start);
+                    throw e;
+                }
+                relay.recordFailure();
+                log.warn("Send through SMTP relay {} failed (attempt {}): {}", relay.getName(), attempt + 1, e.getMessage());
+                lastFailure = e;
+                continue;
+            }
+            relay.recordSuccess(System.nanoTime() - start);
+            return;
+        }
+
+        if (lastFailure instanceof MessagingException e) {
+            throw e;
+        }
+        if (lastFailure instanceof RuntimeException e) {
+            throw e;
+        }
+        unavailable.increment();
+        long now = System.currentTimeMillis();
+        throw new RelaysUnavailableException(relays.stream()
+                .mapToLong(relay -> relay.breaker.permittedFrom(now))
+                .min()
+                .orElse(now));
+    }
+
+    /**
+     * Relays currently taking full traffic; the default relay alone when routing is off
+     */
+    public List<SmtpRelay> getHealthyRelays() {
+        if (!isEnabled()) {
+            return List.of(smtpTransportPool.getDefaultRelay());
+        }
+        return relays.stream()
+                .filter(relay -> relay.breaker.getState() == RelayCircuitBreaker.State.CLOSED)
+                .map(relay -> relay.smtpRelay)
+                .toList();
+    }
+
+    /**
+     * Whether a send failure says something about the relay rather than the message or its recipients.
+     * Connection errors and 4xx session replies, a 421 or a temporary reply to the message, are relay
+     * failures and fail over. Per-recipient replies are not, even temporary ones such as greylisting
+     * or a full mailbox, and neither is a 5xx reply rejecting the message, which another relay would
+     * reject too.
+     */
+    static boolean isRelayFailure(Throwable failure) {
+        int code = DeliveryRateLimiter.sessionReplyCode(failure);
+        if (code != 0) {
+            return code >= 400 && code < 500;
+        }
+        if (DeliveryRateLimiter.replyCode(failure) != 0) {
+            return false;
+        }
+        if (failure instanceof SendFailedException sendFailed) {
+            return sendFailed.getInvalidAddresses() == null || sendFailed.getInvalidAddresses().length == 0;
+        }
+        return true;
+    }
+
+    /**
+     * Smooth weighted round robin over the relays not yet tried whose breakers let a send through
+     */
+    private synchronized Relay select(Set<Relay> tried) {
+        long now = System.currentTimeMillis();
+        while (true) {
+            Relay best = null;
+            int totalWeight = 0;
+            for (Relay relay : relays) {
+                if (tried.contains(relay) || !relay.breaker.isCallPermitted(now)) {
+                    continue;
+                }
+                relay.currentWeight += relay.weight;
+                totalWeight += relay.weight;
+                if (best == null || relay.currentWeight > best.currentWeight) {
+                    best = relay;
+                }
+            }
+            if (best == null) {
+                return null;
+            }
+            best.currentWeight -= totalWeight;
+            tried.add(best);
+            if (best.breaker.tryAcquire(now)) {
+                return best;
+            }
+        }
+    }
+
+    private SmtpRelay relay(String name) {
+        String prefix = SERVERS_PREFIX + name + ".";
+        String host = environment.getProperty(prefix + "host");
+        if (!StringUtils.hasText(host)) {
+            throw new IllegalStateException("SMTP relay '" + name + "' has no " + prefix + "host");
+        }
+        Properties properties = new Properties();
+        if (mailSender instanceof JavaMailSenderImpl impl) {
+            properties.putAll(impl.getJavaMailProperties());
+        }
+        return SmtpRelay.builder()
+                .name(name)
+                .host(host)
+                .port(environment.getProperty(prefix + "port", Integer.class, 587))
+                .username(environment.getProperty(prefix + "username"))
+                .password(environment.getProperty(prefix + "password"))
+                .protocol(environment.getProperty(prefix + "protocol", "smtp"))
+                .session(Session.getInstance(properties))
+                .build();
+    }
+
+    private int weight(String name) {
+        return Math.max(1, environment.getProperty(SERVERS_PREFIX + name + ".weight", Integer.class, 1));
+    }
+
+    private Relay register(SmtpRelay smtpRelay, int weight) {
+        RelayCircuitBreaker breaker = new RelayCircuitBreaker(windowSize, minimumCalls, failureRateThreshold,
+                slowCallMillis, slowCallRateThreshold, openMillis, halfOpenProbes);
+        Relay relay = new Relay(smtpRelay, weight, breaker,
+                Timer.builder("email.smtp.relay.send")
+                        .tag("relay", smtpRelay.getName())
+                        .description("Successful sends per relay and their duration")
+                        .register(meterRegistry),
+                Counter.builder("email.smtp.relay.errors")
+                        .tag("relay", smtpRelay.getName())
+                        .description("Failed sends per relay")
+                        .register(meterRegistry));
+        Gauge.builder("email.smtp.relay.breaker.state", breaker, b -> b.getState().ordinal())
+                .tag("relay", smtpRelay.getName())
+                .description("Relay circuit breaker state: 0 closed, 1 half-open, 2 open")
+                .register(meterRegistry);
+        return relay;
+    }
+
+    public static final class Relay {
+        private final SmtpRelay smtpRelay;
+        private final int weight;
+        private final RelayCircuitBreaker breaker;
+        private final Timer sent;
+        private final Counter errors;
+        private int currentWeight;
+
+        private Relay(SmtpRelay smtpRelay, int weight, RelayCircuitBreaker breaker, Timer sent, Counter errors) {
+            this.smtpRelay = smtpRelay;
+            this.weight = weight;
+            this.breaker = breaker;
+            this.sent = sent;
+            this.errors = errors;
+        }
+
+        public String getName() {
+            return smtpRelay.getName();
+        }
+
+        public String getState() {
+            return breaker.getState().name();
+        }
+
+        private void recordSuccess(long elapsedNanos) {
+            sent.record(elapsedNanos, TimeUnit.NANOSECONDS);
+            transition(() -> breaker.onSuccess(TimeUnit.NANOSECONDS.toMillis(elapsedNanos), System.currentTimeMillis()));
+        }
+
+        private void recordFailure() {
+            errors.increment();
+            transition(() -> breaker.onFailure(System.currentTimeMillis()));
+        }
+
+        private void transition(Runnable outcome) {
+            RelayCircuitBreaker.State before = breaker.getState();
+            outcome.run();
+            RelayCircuitBreaker.State after = breaker.getState();
+            if (before != after) {
+                log.warn("SMTP relay {} circuit breaker {} -> {}", getName(), before, after);
+            }
+        }
+    }
+}
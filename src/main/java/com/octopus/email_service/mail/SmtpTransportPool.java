@@ -0,0 +1,347 @@
+package com.octopus.email_service.mail;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.MimeMessage;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of connected and authenticated SMTP transports, one pool per relay.
+ * Reusing a transport skips the TCP connect, EHLO, STARTTLS and AUTH round trips
+ * that {@link JavaMailSender#send} pays for every message.
+ */
+@Component
+@Slf4j
+public class SmtpTransportPool implements DisposableBean {
+
+    private final JavaMailSender mailSender;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, RelayPool> pools = new ConcurrentHashMap<>();
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter handshakes;
+    private final Counter validationFailures;
+
+    @Getter
+    @Value("${app.email.smtp-pool.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.email.smtp-pool.max-connections-per-relay:10}")
+    private int maxConnectionsPerRelay;
+
+    @Value("${app.email.smtp-pool.max-messages-per-connection:100}")
+    private int maxMessagesPerConnection;
+
+    @Value("${app.email.smtp-pool.max-connection-age:300000}")
+    private long maxConnectionAgeMs;
+
+    @Value("${app.email.smtp-pool.validate-after-idle:10000}")
+    private long validateAfterIdleMs;
+
+    @Value("${app.email.smtp-pool.borrow-timeout:30000}")
+    private long borrowTimeoutMs;
+
+    private volatile SmtpRelay defaultRelay;
+    private final Map<String, SmtpRelay> laneRelays = new ConcurrentHashMap<>();
+
+    public SmtpTransportPool(JavaMailSender mailSender, MeterRegistry meterRegistry) {
+        this.mailSender = mailSender;
+        this.meterRegistry = meterRegistry;
+        this.hits = Counter.builder("email.smtp.pool.hits")
+                .description("Transports borrowed from the pool without a new handshake")
+                .register(meterRegistry);
+        this.misses = Counter.builder("email.smtp.pool.misses")
+                .description("Borrows that required opening a new transport")
+                .register(meterRegistry);
+        this.handshakes = Counter.builder("email.smtp.handshakes")
+                .description("SMTP connect/EHLO/AUTH handshakes performed")
+                .register(meterRegistry);
+        this.validationFailures = Counter.builder("email.smtp.pool.validation.failures")
+                .description("Idle transports discarded after a failed NOOP check")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Send a message through a pooled transport on the default relay
+     */
+    public void send(MimeMessage message) throws MessagingException {
+        send(getDefaultRelay(), message, null);
+    }
+
+    /**
+     * Send a message through a pooled transport on the given relay.
+     * When {@code recipients} is null the message's own recipients are used.
+     */
+    public void send(SmtpRelay relay, MimeMessage message, Address[] recipients) throws MessagingException {
+        prepareMessage(message);
+        Address[] envelope = recipients != null ? recipients : message.getAllRecipients();
+
+        PooledTransport pooled = borrow(relay);
+        try {
+            pooled.getTransport().sendMessage(message, envelope != null ? envelope : new Address[0]);
+            pooled.messagesSent++;
+            release(pooled);
+        } catch (MessagingException | RuntimeException e) {
+            invalidate(pooled);
+            throw e;
+        }
+    }
+
+    /**
+     * Borrow a live transport for the relay, opening a new one if no idle transport is usable.
+     * Callers must hand it back through {@link #release} or {@link #invalidate}.
+     */
+    public PooledTransport borrow(SmtpRelay relay) throws MessagingException {
+        RelayPool pool = poolFor(relay);
+        long deadline = System.currentTimeMillis() + borrowTimeoutMs;
+
+        try {
+            while (true) {
+                PooledTransport pooled = pool.idle.pollFirst();
+                if (pooled != null) {
+                    if (isReusable(pooled)) {
+                        hits.increment();
+                        return pooled;
+                    }
+                    invalidate(pooled);
+                    continue;
+                }
+
+                // Each permit represents one open transport, idle or borrowed
+                if (pool.permits.tryAcquire()) {
+                    misses.increment();
+                    try {
+                        return open(pool);
+                    } catch (MessagingException | RuntimeException e) {
+                        pool.permits.release();
+                        throw e;
+                    }
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new MessagingException("Timed out waiting for an SMTP transport on relay " + relay.getName());
+                }
+                // Wake up either when a transport is returned or periodically to retry for a freed permit
+                pooled = pool.idle.pollFirst(Math.min(remaining, 100), TimeUnit.MILLISECONDS);
+                if (pooled != null) {
+                    pool.idle.offerFirst(pooled);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted waiting for an SMTP transport on relay " + relay.getName(), e);
+        }
+    }
+
+    public void release(PooledTransport pooled) {
+        if (isExpired(pooled)) {
+            invalidate(pooled);
+            return;
+        }
+        pooled.pool.idle.offerFirst(pooled.touch());
+    }
+
+    public void invalidate(PooledTransport pooled) {
+        closeQuietly(pooled);
+        pooled.pool.open.decrementAndGet();
+        pooled.pool.permits.release();
+    }
+
+    /**
+     * The default relay under a lane's name, so the lane gets its own pool of connections to it
+     */
+    public SmtpRelay getLaneRelay(String lane) {
+        return getLaneRelay(lane, getDefaultRelay());
+    }
+
+    /**
+     * The given relay under a lane's name, so the lane gets its own pool of connections to it
+     */
+    public SmtpRelay getLaneRelay(String lane, SmtpRelay relay) {
+        return laneRelays.computeIfAbsent(lane + "|" + relay.getKey(), key -> SmtpRelay.builder()
+                .name(relay.getName() + "-" + lane)
+                .host(relay.getHost())
+                .port(relay.getPort())
+                .username(relay.getUsername())
+                .password(relay.getPassword())
+                .protocol(relay.getProtocol())
+                .session(relay.getSession())
+                .build());
+    }
+
+    /**
+     * Open transports until the relay has at least {@code idle} idle ones, within its connection limit
+     *
+     * @return the number of transports opened
+     */
+    public int prewarm(SmtpRelay relay, int idle) throws MessagingException {
+        RelayPool pool = poolFor(relay);
+        int opened = 0;
+        while (pool.idle.size() < idle && pool.permits.tryAcquire()) {
+            try {
+                pool.idle.offerLast(open(pool));
+                opened++;
+            } catch (MessagingException | RuntimeException e) {
+                pool.permits.release();
+                throw e;
+            }
+        }
+        return opened;
+    }
+
+    /**
+     * Relay built from the {@code spring.mail} configuration
+     */
+    public SmtpRelay getDefaultRelay() {
+        SmtpRelay relay = defaultRelay;
+        if (relay == null) {
+            if (!(mailSender instanceof JavaMailSenderImpl impl)) {
+                throw new IllegalStateException("SMTP transport pooling requires a JavaMailSenderImpl");
+            }
+            relay = SmtpRelay.builder()
+                    .name("default")
+                    .host(impl.getHost())
+                    .port(impl.getPort())
+                    .username(impl.getUsername())
+                    .password(impl.getPassword())
+                    .protocol(impl.getProtocol() != null ? impl.getProtocol() : "smtp")
+                    .session(impl.getSession())
+                    .build();
+            defaultRelay = relay;
+        }
+        return relay;
+    }
+
+    @Override
+    public void destroy() {
+        pools.values().forEach(pool -> {
+            PooledTransport pooled;
+            while ((pooled = pool.idle.pollFirst()) != null) {
+                invalidate(pooled);
+            }
+        });
+        pools.clear();
+    }
+
+    private RelayPool poolFor(SmtpRelay relay) {
+        return pools.computeIfAbsent(relay.getKey(), key -> {
+            RelayPool pool = new RelayPool(relay, maxConnectionsPerRelay);
+            Gauge.builder("email.smtp.pool.open", pool.open, AtomicInteger::get)
+                    .tag("relay", relay.getName())
+                    .description("Open SMTP transports per relay")
+                    .register(meterRegistry);
+            Gauge.builder("email.smtp.pool.idle", pool.idle, LinkedBlockingDeque::size)
+                    .tag("relay", relay.getName())
+                    .description("Idle SMTP transports per relay")
+                    .register(meterRegistry);
+            return pool;
+        });
+    }
+
+    private PooledTransport open(RelayPool pool) throws MessagingException {
+        SmtpRelay relay = pool.relay;
+        Transport transport = relay.getSession().getTransport(relay.getProtocol());
+        transport.connect(relay.getHost(), relay.getPort(), relay.getUsername(), relay.getPassword());
+        handshakes.increment();
+        pool.open.incrementAndGet();
+        log.debug("Opened SMTP transport to relay {} ({}:{})", relay.getName(), relay.getHost(), relay.getPort());
+        return new PooledTransport(pool, transport);
+    }
+
+    private boolean isReusable(PooledTransport pooled) {
+        if (isExpired(pooled)) {
+            return false;
+        }
+        if (System.currentTimeMillis() - pooled.lastUsedAt < validateAfterIdleMs) {
+            return true;
+        }
+        // isConnected() issues a NOOP on SMTP transports
+        if (pooled.getTransport().isConnected()) {
+            return true;
+        }
+        validationFailures.increment();
+        return false;
+    }
+
+    private boolean isExpired(PooledTransport pooled) {
+        return pooled.messagesSent >= maxMessagesPerConnection
+                || System.currentTimeMillis() - pooled.createdAt >= maxConnectionAgeMs;
+    }
+
+    private void closeQuietly(PooledTransport pooled) {
+        try {
+            pooled.getTransport().close();
+        } catch (Exception e) {
+            log.debug("Error closing SMTP transport for relay {}: {}", pooled.pool.relay.getName(), e.getMessage());
+        }
+    }
+
+    /**
+     * Mirrors the message preparation done by {@link JavaMailSenderImpl} before handing off to the transport
+     */
+    private void prepareMessage(MimeMessage message) throws MessagingException {
+        if (message.getSentDate() == null) {
+            message.setSentDate(new Date());
+        }
+        String messageId = message.getMessageID();
+        message.saveChanges();
+        if (messageId != null) {
+            message.setHeader("Message-ID", messageId);
+        }
+    }
+
+    private static final class RelayPool {
+        private final SmtpRelay relay;
+        private final Semaphore permits;
+        private final LinkedBlockingDeque<PooledTransport> idle = new LinkedBlockingDeque<>();
+        private final AtomicInteger open = new AtomicInteger();
+
+        private RelayPool(SmtpRelay relay, int maxConnections) {
+            this.relay = relay;
+            this.permits = new Semaphore(maxConnections, true);
+        }
+    }
+
+    public static final class PooledTransport {
+        private final RelayPool pool;
+        @Getter
+        private final Transport transport;
+        private final long createdAt = System.currentTimeMillis();
+        private volatile long lastUsedAt = createdAt;
+        private volatile int messagesSent;
+
+        private PooledTransport(RelayPool pool, Transport transport) {
+            this.pool = pool;
+            this.transport = transport;
+        }
+
+        public SmtpRelay getRelay() {
+            return pool.relay;
+        }
+
+        private PooledTransport touch() {
+            lastUsedAt = System.currentTimeMillis();
+            return this;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.octopus.email_service.mail;
+
+import org.thymeleaf.exceptions.TemplateProcessingException;
+
+/**
+ * A template render ran past its time, iteration or output budget. Rendering the same template
+ * with the same variables would fail again, so sends failing with it are not retried.
+ */
+public class TemplateBudgetExceededException extends TemplateProcessingException {
+
+    public TemplateBudgetExceededException(String message) {
+        super(message);
+    }
+
+    /**
+     * Whether {@code failure} or one of its causes is a render budget overrun
+     */
+    public static boolean isCause(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TemplateBudgetExceededException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,796 @@
+package com.octopus.email_service.mail;
+
+import org.attoparser.ParseException;
+import org.attoparser.config.ParseConfiguration;
+import org.attoparser.dom.Comment;
+import org.attoparser.dom.DOMMarkupParser;
+import org.attoparser.dom.DOMWriter;
+import org.attoparser.dom.Document;
+import org.attoparser.dom.Element;
+import org.attoparser.dom.INestableNode;
+import org.attoparser.dom.INode;
+import org.attoparser.dom.Text;
+import org.springframework.stereotype.Component;
+import org.unbescape.html.HtmlEscape;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles an HTML template body once, when the template is saved, into what is sent:
+ * <ul>
+ *   <li>rules of its {@code <style>} blocks inlined into {@code style} attributes, keeping only the
+ *   rules that cannot be inlined, such as media queries and pseudo-classes, and those that may match
+ *   an element whose classes or ID are set at render time ({@code th:class}, {@code th:classappend},
+ *   {@code th:attr}, ...) or markup inserted at render time ({@code th:insert}, {@code th:utext}, ...).
+ *   Such elements are left to the style sheet rather than inlined.</li>
+ *   <li>comments and insignificant whitespace removed</li>
+ *   <li>a {@code text/plain} alternative, written as a Thymeleaf TEXT template so it renders with the
+ *   same variables, loops and conditions as the HTML</li>
+ * </ul>
+ * Templates are parsed with attoparser, Thymeleaf's own markup parser, so {@code th:*} attributes
+ * and inlined expressions pass through unchanged.
+ */
+@Component
+public class TemplateCompiler {
+
+    public record Compiled(String html, String text) {
+    }
+
+    private static final Set<String> VOID_ELEMENTS = Set.of("area", "base", "br", "col", "embed", "hr", "img",
+            "input", "link", "meta", "param", "source", "track", "wbr");
+
+    // Elements around which whitespace does not render
+    private static final Set<String> BLOCK_ELEMENTS = Set.of("html", "head", "body", "title", "meta", "link",
+            "style", "script", "base", "div", "p", "table", "thead", "tbody", "tfoot", "tr", "td", "th", "caption",
+            "colgroup", "col", "ul", "ol", "li", "dl", "dt", "dd", "h1", "h2", "h3", "h4", "h5", "h6", "hr", "br",
+            "center", "section", "header", "footer", "article", "aside", "nav", "main", "blockquote", "pre",
+            "form", "figure", "address", "noscript");
+
+    private static final Set<String> PREFORMATTED_ELEMENTS = Set.of("pre", "textarea", "script", "style");
+
+    private static final Set<String> PARAGRAPH_ELEMENTS = Set.of("p", "h1", "h2", "h3", "h4", "h5", "h6",
+            "table", "ul", "ol", "blockquote");
+
+    // Thymeleaf attributes that may change an element's classes or ID, or its inline style
+    private static final Set<String> DYNAMIC_SELECTOR_ATTRIBUTES = Set.of("class", "classappend", "id", "attr",
+            "attrappend", "attrprepend");
+    private static final Set<String> DYNAMIC_STYLE_ATTRIBUTES = Set.of("style", "styleappend", "attr",
+            "attrappend", "attrprepend");
+
+    // Thymeleaf attributes that insert markup no rule can be matched against when compiling
+    private static final Set<String> INSERTING_ATTRIBUTES = Set.of("insert", "replace", "include", "utext");
+
+    private static final Set<String> NON_TEXT_ELEMENTS = Set.of("head", "title", "style", "script", "noscript");
+
+    // Thymeleaf attributes carried over to the text alternative, as they also work in TEXT mode
+    private static final List<String> TEXT_ATTRIBUTES = List.of("th:with", "th:object", "th:each", "th:if",
+            "th:unless", "th:switch", "th:case", "th:remove");
+
+    private static final Pattern CSS_COMMENT = Pattern.compile("/\\*.*?\\*/", Pattern.DOTALL);
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern CSS_PUNCTUATION_SPACE = Pattern.compile("\\s*([{};,])\\s*");
+    private static final Pattern INLINABLE_SELECTOR =
+            Pattern.compile("(?:[a-zA-Z][\\w-]*|\\*)?(?:[.#][\\w-]+)*(?:\\s+(?:[a-zA-Z][\\w-]*|\\*)?(?:[.#][\\w-]+)*)*");
+    private static final Pattern SIMPLE_SELECTOR_PART = Pattern.compile("([.#]?)([\\w-]+|\\*)");
+    private static final Pattern INLINED_EXPRESSION = Pattern.compile("\\[\\[.*?]]|\\[\\(.*?\\)]", Pattern.DOTALL);
+    private static final Pattern EXTRA_BLANK_LINES = Pattern.compile("\n{3,}");
+    private static final Pattern TRAILING_SPACES = Pattern.compile("[ \t]+\n");
+
+    private final DOMMarkupParser parser = new DOMMarkupParser(ParseConfiguration.htmlConfiguration());
+
+    /**
+     * Compile an HTML template body
+     *
+     * @throws IllegalArgumentException if the body is not parseable markup
+     */
+    public Compiled compile(String html) {
+        Document document;
+        try {
+            document = parser.parse(html);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Template body could not be parsed: " + e.getMessage(), e);
+        }
+
+        inlineStyles(document);
+        minify(document, false);
+
+        StringBuilder compiled = new StringBuilder(html.length());
+        for (INode node : document.getChildren()) {
+            write(node, compiled);
+        }
+
+        TextWriter text = new TextWriter();
+        for (INode node : document.getChildren()) {
+            appendText(node, text, false);
+        }
+        String alternative = text.toString();
+        return new Compiled(compiled.toString(), alternative.isEmpty() ? null : alternative);
+    }
+
+    // CSS inlining
+
+    private record Declaration(String property, String value, boolean important) {
+    }
+
+    /**
+     * Whether a selector matches an element; MAYBE when it depends on classes or an ID set at render time
+     */
+    private enum Match {
+        NO, MAYBE, YES
+    }
+
+    private record SimpleSelector(String tag, String id, List<String> classes) {
+
+        Match matches(Element element) {
+            if (tag != null && !tag.equalsIgnoreCase(element.getElementName())) {
+                return Match.NO;
+            }
+            if (id == null && classes.isEmpty()) {
+                return Match.YES;
+            }
+            if (hasAnyThymeleafAttribute(element, DYNAMIC_SELECTOR_ATTRIBUTES)) {
+                return Match.MAYBE;
+            }
+            if (id != null && !id.equals(element.getAttributeValue("id"))) {
+                return Match.NO;
+            }
+            if (!classes.isEmpty()) {
+                String classAttribute = element.getAttributeValue("class");
+                if (classAttribute == null) {
+                    return Match.NO;
+                }
+                List<String> elementClasses = List.of(WHITESPACE.split(classAttribute.trim()));
+                return elementClasses.containsAll(classes) ? Match.YES : Match.NO;
+            }
+            return Match.YES;
+        }
+    }
+
+    /**
+     * A rule with a selector made of simple selectors joined by descendant combinators, and its
+     * minified source for when it stays in the style sheet
+     */
+    private record Rule(List<SimpleSelector> selectors, int specificity, int order, List<Declaration> declarations,
+                        String css) {
+
+        Match matches(Element element) {
+            int last = selectors.size() - 1;
+            Match match = selectors.get(last).matches(element);
+            if (match == Match.NO) {
+                return Match.NO;
+            }
+            // Nearest matching ancestor first; a possible match counts as one, making the rule a possible match
+            INestableNode ancestor = element.getParent();
+            for (int i = last - 1; i >= 0; i--) {
+                Match ancestorMatch = Match.NO;
+                while (ancestor instanceof Element candidate
+                        && (ancestorMatch = selectors.get(i).matches(candidate)) == Match.NO) {
+                    ancestor = candidate.getParent();
+                }
+                if (!(ancestor instanceof Element)) {
+                    return Match.NO;
+                }
+                if (ancestorMatch == Match.MAYBE) {
+                    match = Match.MAYBE;
+                }
+                ancestor = ((Element) ancestor).getParent();
+            }
+            return match;
+        }
+    }
+
+    /**
+     * A style sheet statement: a rule that can be inlined, or CSS that is kept as it is
+     */
+    private record SheetEntry(Rule rule, String css) {
+    }
+
+    private record MatchedDeclaration(Declaration declaration, int specificity, int order) {
+    }
+
+    private void inlineStyles(Document document) {
+        List<Element> styleElements = new ArrayList<>();
+        collectStyleElements(document, styleElements);
+
+        List<Rule> rules = new ArrayList<>();
+        List<List<SheetEntry>> sheets = new ArrayList<>(styleElements.size());
+        for (Element style : styleElements) {
+            List<SheetEntry> entries = new ArrayList<>();
+            parseStyleSheet(textContent(style), rules, entries);
+            sheets.add(entries);
+        }
+
+        // Rules that may apply to markup only known at render time stay in the style sheet as well
+        Set<Rule> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (insertsMarkup(document)) {
+            kept.addAll(rules);
+        }
+        if (!rules.isEmpty()) {
+            applyRules(document, rules, kept);
+        }
+
+        for (int i = 0; i < styleElements.size(); i++) {
+            Element style = styleElements.get(i);
+            StringBuilder retained = new StringBuilder();
+            for (SheetEntry entry : sheets.get(i)) {
+                if (entry.rule() == null || kept.contains(entry.rule())) {
+                    retained.append(entry.css());
+                }
+            }
+            if (retained.isEmpty()) {
+                style.getParent().removeChild(style);
+            } else {
+                style.clearChildren();
+                style.addChild(new Text(retained.toString()));
+            }
+        }
+    }
+
+    private static boolean insertsMarkup(INestableNode parent) {
+        for (INode node : parent.getChildren()) {
+            if (node instanceof Element element
+                    && (hasAnyThymeleafAttribute(element, INSERTING_ATTRIBUTES) || insertsMarkup(element))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the element has {@code th:<name>} or {@code data-th-<name>} for one of {@code names}
+     */
+    private static boolean hasAnyThymeleafAttribute(Element element, Set<String> names) {
+        for (String attribute : element.getAttributeMap().keySet()) {
+            String lower = attribute.toLowerCase();
+            String name = lower.startsWith("th:") ? lower.substring(3)
+                    : lower.startsWith("data-th-") ? lower.substring(8) : null;
+            if (name != null && names.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void collectStyleElements(INestableNode parent, List<Element> styleElements) {
+        for (INode node : parent.getChildren()) {
+            if (node instanceof Element element) {
+                if (element.elementNameMatches("style") && isStaticStyleSheet(element)) {
+                    styleElements.add(element);
+                } else {
+                    collectStyleElements(element, styleElements);
+                }
+            }
+        }
+    }
+
+    /**
+     * Style sheets that are processed by Thymeleaf or only apply to some media are left as they are
+     */
+    private static boolean isStaticStyleSheet(Element style) {
+        for (String attribute : style.getAttributeMap().keySet()) {
+            if (isThymeleafAttribute(attribute)) {
+                return false;
+            }
+        }
+        String media = style.getAttributeValue("media");
+        if (media != null && !media.isBlank() && !media.trim().equalsIgnoreCase("all")
+                && !media.trim().equalsIgnoreCase("screen")) {
+            return false;
+        }
+        return !INLINED_EXPRESSION.matcher(textContent(style)).find();
+    }
+
+    private static void parseStyleSheet(String css, List<Rule> rules, List<SheetEntry> entries) {
+        css = CSS_COMMENT.matcher(css).replaceAll("");
+        int position = 0;
+        while (position < css.length()) {
+            int open = css.indexOf('{', position);
+            int semicolon = css.indexOf(';', position);
+            if (open < 0 || (semicolon >= 0 && semicolon < open && css.substring(position, semicolon).trim().startsWith("@"))) {
+                // Statement at-rule such as @import, or trailing text
+                int end = open < 0 ? css.length() : semicolon + 1;
+                String statement = css.substring(position, end).trim();
+                if (!statement.isEmpty()) {
+                    entries.add(new SheetEntry(null, minifyCss(statement)));
+                }
+                position = end;
+                continue;
+            }
+            int close = matchingBrace(css, open);
+            String prelude = css.substring(position, open).trim();
+            String block = css.substring(open + 1, close);
+            position = close + 1;
+
+            if (prelude.startsWith("@")) {
+                entries.add(new SheetEntry(null, minifyCss(prelude) + '{' + minifyCss(block) + '}'));
+                continue;
+            }
+            List<Declaration> declarations = parseDeclarations(block);
+            if (declarations.isEmpty()) {
+                continue;
+            }
+            String minifiedBlock = '{' + minifyCss(block) + '}';
+            List<String> notInlinable = new ArrayList<>();
+            for (String selector : prelude.split(",")) {
+                selector = selector.trim();
+                if (selector.isEmpty()) {
+                    continue;
+                }
+                if (INLINABLE_SELECTOR.matcher(selector).matches()) {
+                    Rule rule = parseRule(selector, rules.size(), declarations, minifyCss(selector) + minifiedBlock);
+                    rules.add(rule);
+                    entries.add(new SheetEntry(rule, rule.css()));
+                } else {
+                    notInlinable.add(selector);
+                }
+            }
+            if (!notInlinable.isEmpty()) {
+                entries.add(new SheetEntry(null, minifyCss(String.join(",", notInlinable)) + minifiedBlock));
+            }
+        }
+    }
+
+    private static int matchingBrace(String css, int open) {
+        int depth = 0;
+        for (int i = open; i < css.length(); i++) {
+            char c = css.charAt(i);
+            if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                return i;
+            }
+        }
+        return css.length() - 1;
+    }
+
+    private static Rule parseRule(String selector, int order, List<Declaration> declarations, String css) {
+        List<SimpleSelector> selectors = new ArrayList<>();
+        int ids = 0;
+        int classes = 0;
+        int tags = 0;
+        for (String part : WHITESPACE.split(selector)) {
+            String tag = null;
+            String id = null;
+            List<String> partClasses = new ArrayList<>();
+            Matcher matcher = SIMPLE_SELECTOR_PART.matcher(part);
+            while (matcher.find()) {
+                switch (matcher.group(1)) {
+                    case "#" -> {
+                        id = matcher.group(2);
+                        ids++;
+                    }
+                    case "." -> {
+                        partClasses.add(matcher.group(2));
+                        classes++;
+                    }
+                    default -> {
+                        if (!"*".equals(matcher.group(2))) {
+                            tag = matcher.group(2);
+                            tags++;
+                        }
+                    }
+                }
+            }
+            selectors.add(new SimpleSelector(tag, id, partClasses));
+        }
+        return new Rule(selectors, ids * 10000 + classes * 100 + tags, order, declarations, css);
+    }
+
+    private static List<Declaration> parseDeclarations(String block) {
+        List<Declaration> declarations = new ArrayList<>();
+        for (String declaration : splitDeclarations(block)) {
+            int colon = declaration.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String property = declaration.substring(0, colon).trim().toLowerCase();
+            String value = WHITESPACE.matcher(declaration.substring(colon + 1).trim()).replaceAll(" ");
+            if (property.isEmpty() || value.isEmpty()) {
+                continue;
+            }
+            boolean important = value.toLowerCase().endsWith("!important");
+            declarations.add(new Declaration(property, value, important));
+        }
+        return declarations;
+    }
+
+    /**
+     * Split declarations on semicolons outside quotes and parentheses, as in {@code url(data:...;base64,...)}
+     */
+    private static List<String> splitDeclarations(String block) {
+        List<String> declarations = new ArrayList<>();
+        int depth = 0;
+        char quote = 0;
+        int start = 0;
+        for (int i = 0; i < block.length(); i++) {
+            char c = block.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth = Math.max(0, depth - 1);
+            } else if (c == ';' && depth == 0) {
+                declarations.add(block.substring(start, i));
+                start = i + 1;
+            }
+        }
+        declarations.add(block.substring(start));
+        return declarations;
+    }
+
+    /**
+     * Inline the rules matching each element. An element that a rule only may match, or whose style is
+     * set at render time, is not inlined; the rules matching it are kept in the style sheet instead,
+     * so the browser cascades them as written.
+     */
+    private static void applyRules(INestableNode parent, List<Rule> rules, Set<Rule> kept) {
+        for (INode node : parent.getChildren()) {
+            if (!(node instanceof Element element)) {
+                continue;
+            }
+            String name = element.getElementName().toLowerCase();
+            if (NON_TEXT_ELEMENTS.contains(name)) {
+                continue;
+            }
+            List<Rule> matching = new ArrayList<>();
+            boolean inlinable = !hasAnyThymeleafAttribute(element, DYNAMIC_STYLE_ATTRIBUTES);
+            for (Rule rule : rules) {
+                Match match = rule.matches(element);
+                if (match != Match.NO) {
+                    matching.add(rule);
+                    inlinable &= match == Match.YES;
+                }
+            }
+            if (inlinable) {
+                inlineInto(element, matching);
+            } else {
+                kept.addAll(matching);
+            }
+            applyRules(element, rules, kept);
+        }
+    }
+
+    private static void inlineInto(Element element, List<Rule> rules) {
+        List<MatchedDeclaration> matched = new ArrayList<>();
+        for (Rule rule : rules) {
+            for (Declaration declaration : rule.declarations()) {
+                matched.add(new MatchedDeclaration(declaration, rule.specificity(), rule.order()));
+            }
+        }
+        if (matched.isEmpty()) {
+            return;
+        }
+        // Cascade order: later entries win
+        matched.sort(Comparator.comparing((MatchedDeclaration m) -> m.declaration().important())
+                .thenComparingInt(MatchedDeclaration::specificity)
+                .thenComparingInt(MatchedDeclaration::order));
+
+        Map<String, Declaration> style = new LinkedHashMap<>();
+        for (MatchedDeclaration m : matched) {
+            style.put(m.declaration().property(), m.declaration());
+        }
+        String existing = element.getAttributeValue("style");
+        if (existing != null) {
+            for (Declaration declaration : parseDeclarations(existing)) {
+                Declaration inherited = style.get(declaration.property());
+                if (inherited == null || !inherited.important() || declaration.important()) {
+                    style.put(declaration.property(), declaration);
+                }
+            }
+        }
+
+        StringBuilder inline = new StringBuilder();
+        for (Declaration declaration : style.values()) {
+            if (!inline.isEmpty()) {
+                inline.append(';');
+            }
+            inline.append(declaration.property()).append(':').append(declaration.value());
+        }
+        element.addAttribute("style", inline.toString());
+    }
+
+    private static String minifyCss(String css) {
+        String collapsed = WHITESPACE.matcher(css.trim()).replaceAll(" ");
+        return CSS_PUNCTUATION_SPACE.matcher(collapsed).replaceAll("$1");
+    }
+
+    // Minification
+
+    private static void minify(INestableNode parent, boolean preformatted) {
+        List<INode> children = new ArrayList<>(parent.getChildren());
+        for (int i = 0; i < children.size(); i++) {
+            INode node = children.get(i);
+            if (node instanceof Comment comment) {
+                if (!isKeptComment(comment)) {
+                    parent.removeChild(comment);
+                }
+            } else if (node instanceof Element element) {
+                String name = element.getElementName().toLowerCase();
+                minify(element, preformatted || PREFORMATTED_ELEMENTS.contains(name));
+            } else if (node instanceof Text text && !preformatted) {
+                boolean trimStart = isBlockBoundary(parent, children, i, -1);
+                boolean trimEnd = isBlockBoundary(parent, children, i, 1);
+                String content = collapseWhitespace(text.getContent());
+                if (trimStart) {
+                    content = content.stripLeading();
+                }
+                if (trimEnd) {
+                    content = content.stripTrailing();
+                }
+                if (content.isEmpty()) {
+                    parent.removeChild(text);
+                } else {
+                    text.setContent(content);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the nearest sibling in {@code direction} from {@code index}, other than comments and
+     * whitespace, is a block element or the edge of a block parent
+     */
+    private static boolean isBlockBoundary(INestableNode parent, List<INode> siblings, int index, int direction) {
+        int sibling = index + direction;
+        while (sibling >= 0 && sibling < siblings.size() && (siblings.get(sibling) instanceof Comment
+                || siblings.get(sibling) instanceof Text text && text.getContent().isBlank())) {
+            sibling += direction;
+        }
+        if (sibling < 0 || sibling >= siblings.size()) {
+            return !(parent instanceof Element element) || isBlock(element);
+        }
+        return siblings.get(sibling) instanceof Element element && isBlock(element);
+    }
+
+    private static boolean isBlock(Element element) {
+        return BLOCK_ELEMENTS.contains(element.getElementName().toLowerCase());
+    }
+
+    /**
+     * Conditional comments target Outlook and prototype-only comment blocks are processed by Thymeleaf
+     */
+    private static boolean isKeptComment(Comment comment) {
+        String content = comment.getContent();
+        return content.startsWith("[if") || content.startsWith("<![endif") || content.startsWith("/*/");
+    }
+
+    /**
+     * Collapse whitespace runs to a single space, leaving inlined expressions untouched
+     */
+    private static String collapseWhitespace(String text) {
+        StringBuilder collapsed = new StringBuilder(text.length());
+        Matcher expressions = INLINED_EXPRESSION.matcher(text);
+        int position = 0;
+        while (expressions.find()) {
+            collapsed.append(WHITESPACE.matcher(text.substring(position, expressions.start())).replaceAll(" "));
+            collapsed.append(expressions.group());
+            position = expressions.end();
+        }
+        collapsed.append(WHITESPACE.matcher(text.substring(position)).replaceAll(" "));
+        return collapsed.toString();
+    }
+
+    private static void write(INode node, StringBuilder out) {
+        if (node instanceof Element element) {
+            out.append('<').append(element.getElementName());
+            element.getAttributeMap().forEach((name, value) -> {
+                out.append(' ').append(name);
+                if (value != null) {
+                    out.append('=').append(quote(value, true));
+                }
+            });
+            out.append('>');
+            if (VOID_ELEMENTS.contains(element.getElementName().toLowerCase()) && !element.hasChildren()) {
+                return;
+            }
+            for (INode child : element.getChildren()) {
+                write(child, out);
+            }
+            out.append("</").append(element.getElementName()).append('>');
+        } else if (node instanceof Text text) {
+            out.append(text.getContent());
+        } else if (node instanceof Comment comment) {
+            out.append("<!--").append(comment.getContent()).append("-->");
+        } else {
+            // Doctype, CDATA sections and processing instructions are written as parsed
+            StringWriter writer = new StringWriter();
+            try {
+                DOMWriter.write(node, writer);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            out.append(writer);
+        }
+    }
+
+    private static String quote(String value, boolean markup) {
+        if (!value.contains("\"")) {
+            return "\"" + value + "\"";
+        }
+        if (!value.contains("'")) {
+            return "'" + value + "'";
+        }
+        return "\"" + (markup ? value.replace("\"", "&quot;") : value) + "\"";
+    }
+
+    private static String textContent(Element element) {
+        StringBuilder content = new StringBuilder();
+        for (INode child : element.getChildren()) {
+            if (child instanceof Text text) {
+                content.append(text.getContent());
+            }
+        }
+        return content.toString();
+    }
+
+    private static boolean isThymeleafAttribute(String name) {
+        String lower = name.toLowerCase();
+        return lower.startsWith("th:") || lower.startsWith("data-th-");
+    }
+
+    // Text alternative
+
+    private static void appendText(INode node, TextWriter out, boolean preformatted) {
+        if (node instanceof Text text) {
+            String content = HtmlEscape.unescapeHtml(text.getContent());
+            out.text(preformatted ? content : collapseWhitespace(content), preformatted);
+            return;
+        }
+        if (!(node instanceof Element element)) {
+            return;
+        }
+        String name = element.getElementName().toLowerCase();
+        if (NON_TEXT_ELEMENTS.contains(name)) {
+            return;
+        }
+
+        // Loops and conditions wrap the element's text, with its leading line break inside so it
+        // repeats per iteration and its trailing one outside
+        Map<String, String> attributes = thymeleafAttributes(element);
+        StringBuilder structure = new StringBuilder();
+        for (String attribute : TEXT_ATTRIBUTES) {
+            String value = attributes.get(attribute);
+            if (value != null) {
+                structure.append(' ').append(attribute).append('=').append(quote(value, false));
+            }
+        }
+        if (!structure.isEmpty()) {
+            out.raw("[#" + structure + "]");
+        }
+
+        if (PARAGRAPH_ELEMENTS.contains(name)) {
+            out.blankLine();
+        } else if (BLOCK_ELEMENTS.contains(name)) {
+            out.newLine();
+        }
+        if (name.equals("li")) {
+            out.text("- ", true);
+        }
+        String content = attributes.containsKey("th:utext") ? "th:utext" : attributes.containsKey("th:text") ? "th:text" : null;
+        if (content != null) {
+            out.raw("[# " + content + "=" + quote(attributes.get(content), false) + "/]");
+        }
+
+        if (name.equals("br")) {
+            out.newLine();
+        } else if (name.equals("hr")) {
+            out.text("----", true);
+            out.newLine();
+        } else if (name.equals("img")) {
+            if (attributes.containsKey("th:alt")) {
+                out.raw("[(" + attributes.get("th:alt") + ")]");
+            } else if (element.getAttributeValue("alt") != null) {
+                out.text(HtmlEscape.unescapeHtml(element.getAttributeValue("alt")), false);
+            }
+        } else if (content == null) {
+            boolean childPreformatted = preformatted || name.equals("pre") || name.equals("textarea");
+            for (INode child : element.getChildren()) {
+                appendText(child, out, childPreformatted);
+            }
+        }
+
+        if (name.equals("a")) {
+            String href = element.getAttributeValue("href");
+            if (attributes.containsKey("th:href")) {
+                out.raw(" ([(" + attributes.get("th:href") + ")])");
+            } else if (href != null && !href.isBlank() && !href.startsWith("#") && !href.startsWith("javascript:")) {
+                out.text(" (" + HtmlEscape.unescapeHtml(href.trim()) + ")", false);
+            }
+        }
+        if (!structure.isEmpty()) {
+            out.raw("[/]");
+        }
+
+        if (name.equals("td") || name.equals("th")) {
+            out.text(" ", false);
+        } else if (PARAGRAPH_ELEMENTS.contains(name)) {
+            out.blankLine();
+        } else if (BLOCK_ELEMENTS.contains(name)) {
+            out.newLine();
+        }
+    }
+
+    /**
+     * Thymeleaf attributes of an element under their {@code th:} names, values unescaped
+     */
+    private static Map<String, String> thymeleafAttributes(Element element) {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        element.getAttributeMap().forEach((name, value) -> {
+            String lower = name.toLowerCase();
+            if (value != null && isThymeleafAttribute(lower)) {
+                String key = lower.startsWith("data-th-") ? "th:" + lower.substring("data-th-".length()) : lower;
+                attributes.put(key, HtmlEscape.unescapeHtml(value));
+            }
+        });
+        return attributes;
+    }
+
+    /**
+     * Builds the text alternative, keeping at most one blank line between blocks
+     */
+    private static final class TextWriter {
+
+        private final StringBuilder out = new StringBuilder();
+
+        void text(String text, boolean preformatted) {
+            if (!preformatted && (atLineStart() || endsWith(' '))) {
+                text = text.stripLeading();
+            }
+            out.append(text);
+        }
+
+        void raw(String text) {
+            out.append(text);
+        }
+
+        void newLine() {
+            trimTrailingSpace();
+            if (!out.isEmpty() && !endsWith('\n')) {
+                out.append('\n');
+            }
+        }
+
+        void blankLine() {
+            newLine();
+            if (!out.isEmpty() && !out.toString().endsWith("\n\n")) {
+                out.append('\n');
+            }
+        }
+
+        private boolean atLineStart() {
+            return out.isEmpty() || endsWith('\n');
+        }
+
+        private boolean endsWith(char c) {
+            return !out.isEmpty() && out.charAt(out.length() - 1) == c;
+        }
+
+        private void trimTrailingSpace() {
+            while (endsWith(' ')) {
+                out.setLength(out.length() - 1);
+            }
+        }
+
+        @Override
+        public String toString() {
+            String text = TRAILING_SPACES.matcher(out).replaceAll("\n");
+            return EXTRA_BLANK_LINES.matcher(text).replaceAll("\n\n").strip();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.octopus.email_service.repository;
+
+import com.octopus.email_service.enums.EmailStatus;
+import com.octopus.email_service.enums.EventType;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JDBC batch writes for email status transitions and their events,
+ * used by the batch consumer to avoid a round trip per email.
+ */
+@Repository
+@RequiredArgsConstructor
+public class EmailBatchRepository {
+
+    private static final String UPDATE_STATUS_SQL =
+            "UPDATE emails SET status = ?, attempts = attempts + ?, last_error = ?, " +
+            "lease_owner = NULL, lease_expires_at = NULL WHERE id = ?";
+
+    private static final String MARK_SENT_SQL =
+            "UPDATE emails SET status = ?, sent_at = ?, lease_owner = NULL, lease_expires_at = NULL WHERE id = ?";
+
+    // Same conditions as EmailRepository#claimForSending
+    private static final String CLAIM_SQL =
+            "UPDATE emails SET status = 'SENDING', attempts = attempts + 1, last_error = NULL, " +
+            "lease_owner = ?, lease_expires_at = now() + (? * interval '1 millisecond') " +
+            "WHERE id = ? AND attempts < max_attempts " +
+            "AND (status IN ('ENQUEUED', 'FAILED') OR (status = 'SENDING' AND lease_expires_at < now()))";
+
+    // Hands back a claim taken by this node for a send that never started
+    private static final String RELEASE_CLAIM_SQL =
+            "UPDATE emails SET status = 'ENQUEUED', attempts = attempts - 1, " +
+            "lease_owner = NULL, lease_expires_at = NULL " +
+            "WHERE id = ? AND status = 'SENDING' AND lease_owner = ? AND attempts > 0";
+
+    private static final String INSERT_EVENT_SQL =
+            "INSERT INTO email_events (email_id, event_type, detail, created_at) VALUES (?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public record StatusChange(Long emailId, EmailStatus status, String error) {
+    }
+
+    public record EventRow(Long emailId, EventType eventType, String detail) {
+    }
+
+    /**
+     * Apply status changes and record one event per change in a single transaction.
+     * SENT transitions stamp {@code sent_at}; all others store the error, and SENDING also counts
+     * an attempt, matching {@code EmailService.updateEmailStatus} and {@link EmailRepository#markAsSent}.
+     */
+    @Transactional
+    public void applyStatusChanges(List<StatusChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        Timestamp timestamp = Timestamp.valueOf(now);
+
+        List<Object[]> sent = new ArrayList<>();
+        List<Object[]> others = new ArrayList<>();
+        List<EventRow> events = new ArrayList<>(changes.size());
+
+        for (StatusChange change : changes) {
+            if (change.status() == EmailStatus.SENT) {
+                sent.add(new Object[]{change.status().name(), timestamp, change.emailId()});
+            } else {
+                int attempt = change.status() == EmailStatus.SENDING ? 1 : 0;
+                others.add(new Object[]{change.status().name(), attempt, change.error(), change.emailId()});
+            }
+            events.add(new EventRow(change.emailId(), EventType.valueOf(change.status().name()), change.error()));
+        }
+
+        if (!sent.isEmpty()) {
+            jdbcTemplate.batchUpdate(MARK_SENT_SQL, sent);
+        }
+        if (!others.isEmpty()) {
+            jdbcTemplate.batchUpdate(UPDATE_STATUS_SQL, others);
+        }
+        insertEvents(events, timestamp);
+    }
+
+    /**
+     * Claim send leases for a batch of emails and record a SENDING event for each one claimed.
+     * Returns the claimed IDs; the rest are already sent or leased by another worker. Commits on its
+     * own, so the leases are visible to heartbeats and other workers before the relay is contacted.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public List<Long> claimForSending(List<Long> emailIds, String owner, long leaseMillis) {
+        if (emailIds.isEmpty()) {
+            return List.of();
+        }
+        List<Object[]> rows = new ArrayList<>(emailIds.size());
+        for (Long emailId : emailIds) {
+            rows.add(new Object[]{owner, leaseMillis, emailId});
+        }
+        int[] counts = jdbcTemplate.batchUpdate(CLAIM_SQL, rows);
+
+        List<Long> claimed = new ArrayList<>(emailIds.size());
+        List<EventRow> events = new ArrayList<>(emailIds.size());
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                claimed.add(emailIds.get(i));
+                events.add(new EventRow(emailIds.get(i), EventType.SENDING, null));
+            }
+        }
+        insertEvents(events, Timestamp.valueOf(LocalDateTime.now()));
+        return claimed;
+    }
+
+    /**
+     * Put emails claimed by {@code owner} but never sent back in ENQUEUED, refunding the attempt the
+     * claim counted and dropping the lease, so their requeued deliveries can claim them again at once
+     */
+    @Transactional
+    public void releaseClaims(List<Long> emailIds, String owner) {
+        if (emailIds.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(RELEASE_CLAIM_SQL, emailIds.stream()
+                .map(emailId -> new Object[]{emailId, owner})
+                .toList());
+    }
+
+    @Transactional
+    public void insertEvents(List<EventRow> events) {
+        insertEvents(events, Timestamp.valueOf(LocalDateTime.now()));
+    }
+
+    private void insertEvents(List<EventRow> events, Timestamp timestamp) {
+        if (events.isEmpty()) {
+            return;
+        }
+        List<Object[]> rows = new ArrayList<>(events.size());
+        for (EventRow event : events) {
+            rows.add(new Object[]{event.emailId(), event.eventType().name(), event.detail(), timestamp});
+        }
+        jdbcTemplate.batchUpdate(INSERT_EVENT_SQL, rows);
+    }
+}
@@ -0,0 +1,223 @@
+package com.octopus.email_service.repository;
+
+import com.octopus.email_service.entity.Email;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * JDBC access to {@code email_campaigns} and the campaign's email rows. Recipient emails are written
+ * with batched inserts, their IDs taken from the emails sequence up front so the rows can be queued
+ * without reading them back.
+ */
+@Repository
+@RequiredArgsConstructor
+public class EmailCampaignRepository {
+
+    private static final String INSERT_CAMPAIGN_SQL =
+            "INSERT INTO email_campaigns (tenant_id, name, from_address, reply_to_address, subject, template_name, " +
+            "template_vars, attachments, priority, scheduled_at, drip_per_hour, status, recipients_expected, " +
+            "ingest_lease_expires_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, " +
+            "CASE WHEN ? = 'INGESTING' THEN now() + (? * interval '1 millisecond') END) RETURNING id";
+
+    private static final String SELECT_CAMPAIGN_SQL =
+            "SELECT id, uuid, tenant_id, name, from_address, reply_to_address, subject, template_name, template_vars, " +
+            "attachments, priority, scheduled_at, drip_per_hour, status, recipients_received, recipients_queued, " +
+            "recipients_rejected, recipients_expected, last_error, created_at, updated_at FROM email_campaigns ";
+
+    private static final String ALLOCATE_IDS_SQL = "SELECT nextval('emails_id_seq') FROM generate_series(1, ?)";
+
+    private static final String INSERT_EMAIL_SQL =
+            "INSERT INTO emails (id, uuid, tenant_id, campaign_id, from_address, reply_to_address, to_addresses, " +
+            "subject, template_name, template_vars, attachments, is_html_body, needs_fallback_template, status, " +
+            "priority, scheduled_at, drip_group, drip_per_hour, created_at, updated_at) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, FALSE, FALSE, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String ADD_PROGRESS_SQL =
+            "UPDATE email_campaigns SET recipients_received = recipients_received + ?, " +
+            "recipients_queued = recipients_queued + ?, recipients_rejected = recipients_rejected + ?, " +
+            "updated_at = now() WHERE id = ?";
+
+    private static final String UPDATE_STATUS_SQL =
+            "UPDATE email_campaigns SET status = ?, ingest_lease_expires_at = NULL, updated_at = now() " +
+            "WHERE id = ? AND status = ?";
+
+    private static final String EXTEND_INGEST_LEASE_SQL =
+            "UPDATE email_campaigns SET ingest_lease_expires_at = now() + (? * interval '1 millisecond') " +
+            "WHERE id = ? AND status = 'INGESTING'";
+
+    private static final String FAIL_STALE_SQL =
+            "UPDATE email_campaigns SET status = 'FAILED', ingest_lease_expires_at = NULL, updated_at = now(), " +
+            "last_error = CASE WHEN status = 'INGESTING' " +
+            "THEN 'Ingest interrupted after ' || recipients_received || ' of ' || recipients_expected || ' recipients' " +
+            "ELSE 'Left open with no recipients streamed for ' || ? || ' ms' END " +
+            "WHERE (status = 'INGESTING' AND ingest_lease_expires_at < now()) " +
+            "OR (status = 'ACCEPTING' AND updated_at < now() - (? * interval '1 millisecond')) " +
+            "RETURNING uuid, last_error";
+
+    private static final String COUNT_BY_STATUS_SQL =
+            "SELECT status, count(*) AS emails FROM emails WHERE campaign_id = ? GROUP BY status";
+
+    private static final RowMapper<CampaignRow> ROW_MAPPER = (rs, rowNum) -> new CampaignRow(
+            rs.getLong("id"),
+            rs.getObject("uuid", UUID.class),
+            rs.getObject("tenant_id", Long.class),
+            rs.getString("name"),
+            rs.getString("from_address"),
+            rs.getString("reply_to_address"),
+            rs.getString("subject"),
+            rs.getString("template_name"),
+            rs.getString("template_vars"),
+            rs.getString("attachments"),
+            rs.getString("priority"),
+            rs.getTimestamp("scheduled_at") != null ? rs.getTimestamp("scheduled_at").toLocalDateTime() : null,
+            rs.getObject("drip_per_hour", Integer.class),
+            rs.getString("status"),
+            rs.getLong("recipients_received"),
+            rs.getLong("recipients_queued"),
+            rs.getLong("recipients_rejected"),
+            rs.getObject("recipients_expected", Integer.class),
+            rs.getString("last_error"),
+            rs.getTimestamp("created_at").toLocalDateTime(),
+            rs.getTimestamp("updated_at").toLocalDateTime());
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public record CampaignRow(long id, UUID uuid, Long tenantId, String name, String fromAddress,
+                              String replyToAddress, String subject, String templateName, String templateVars,
+                              String attachments, String priority, LocalDateTime scheduledAt, Integer dripPerHour,
+                              String status, long recipientsReceived, long recipientsQueued,
+                              long recipientsRejected, Integer recipientsExpected, String lastError,
+                              LocalDateTime createdAt, LocalDateTime updatedAt) {
+    }
+
+    /**
+     * Content shared by every recipient of a campaign
+     */
+    public record NewCampaign(Long tenantId, String name, String fromAddress, String replyToAddress, String subject,
+                              String templateName, String templateVars, String attachments, String priority,
+                              LocalDateTime scheduledAt, Integer dripPerHour) {
+    }
+
+    /**
+     * A campaign stopped by {@link #failStale}
+     */
+    public record FailedCampaign(UUID uuid, String error) {
+    }
+
+    /**
+     * Insert a campaign in {@code status}; an INGESTING campaign starts under an ingest lease of
+     * {@code leaseMillis} for its {@code recipientsExpected} recipients
+     */
+    public long insert(NewCampaign campaign, String status, Integer recipientsExpected, long leaseMillis) {
+        return jdbcTemplate.queryForObject(INSERT_CAMPAIGN_SQL, Long.class,
+                campaign.tenantId(), campaign.name(), campaign.fromAddress(), campaign.replyToAddress(),
+                campaign.subject(), campaign.templateName(), campaign.templateVars(), campaign.attachments(),
+                campaign.priority(),
+                campaign.scheduledAt() != null ? Timestamp.valueOf(campaign.scheduledAt()) : null,
+                campaign.dripPerHour(), status, recipientsExpected, status, leaseMillis);
+    }
+
+    public Optional<CampaignRow> findById(long id) {
+        return jdbcTemplate.query(SELECT_CAMPAIGN_SQL + "WHERE id = ?", ROW_MAPPER, id).stream().findFirst();
+    }
+
+    public Optional<CampaignRow> findByUuid(UUID uuid) {
+        return jdbcTemplate.query(SELECT_CAMPAIGN_SQL + "WHERE uuid = ?", ROW_MAPPER, uuid).stream().findFirst();
+    }
+
+    /**
+     * Reserve {@code count} email IDs in one round trip
+     */
+    public List<Long> allocateEmailIds(int count) {
+        if (count == 0) {
+            return List.of();
+        }
+        return jdbcTemplate.queryForList(ALLOCATE_IDS_SQL, Long.class, count);
+    }
+
+    /**
+     * Insert campaign emails carrying IDs from {@link #allocateEmailIds}; joins the caller's transaction
+     */
+    public void insertEmails(long campaignId, List<Email> emails) {
+        if (emails.isEmpty()) {
+            return;
+        }
+        List<Object[]> rows = new ArrayList<>(emails.size());
+        for (Email email : emails) {
+            Timestamp createdAt = Timestamp.valueOf(email.getCreatedAt());
+            rows.add(new Object[]{
+                    email.getId(),
+                    email.getUuid(),
+                    email.getTenant() != null ? email.getTenant().getId() : null,
+                    campaignId,
+                    email.getFromAddress(),
+                    email.getReplyToAddress(),
+                    String.join(",", email.getToAddresses()),
+                    email.getSubject(),
+                    email.getTemplate().getName(),
+                    email.getTemplateVars(),
+                    email.getAttachments(),
+                    email.getStatus().name(),
+                    email.getPriority().name(),
+                    email.getScheduledAt() != null ? Timestamp.valueOf(email.getScheduledAt()) : null,
+                    email.getDripGroup(),
+                    email.getDripPerHour(),
+                    createdAt,
+                    createdAt});
+        }
+        jdbcTemplate.batchUpdate(INSERT_EMAIL_SQL, rows);
+    }
+
+    public void addProgress(long campaignId, int received, int queued, int rejected) {
+        jdbcTemplate.update(ADD_PROGRESS_SQL, received, queued, rejected, campaignId);
+    }
+
+    /**
+     * Move a campaign from {@code from} to {@code to}; false if it was no longer in {@code from}
+     */
+    public boolean updateStatus(long campaignId, String from, String to) {
+        return jdbcTemplate.update(UPDATE_STATUS_SQL, to, campaignId, from) > 0;
+    }
+
+    /**
+     * Extend the ingest leases of campaigns still being ingested
+     */
+    public void extendIngestLeases(Collection<Long> campaignIds, long leaseMillis) {
+        jdbcTemplate.batchUpdate(EXTEND_INGEST_LEASE_SQL, campaignIds.stream()
+                .map(id -> new Object[]{leaseMillis, id})
+                .toList());
+    }
+
+    /**
+     * Fail INGESTING campaigns whose ingest lease lapsed and ACCEPTING campaigns left idle for
+     * {@code acceptingTimeoutMillis}; conditional, so with several nodes each campaign fails once
+     */
+    public List<FailedCampaign> failStale(long acceptingTimeoutMillis) {
+        return jdbcTemplate.query(FAIL_STALE_SQL, (rs, rowNum) ->
+                        new FailedCampaign(rs.getObject("uuid", UUID.class), rs.getString("last_error")),
+                acceptingTimeoutMillis, acceptingTimeoutMillis);
+    }
+
+    /**
+     * Number of the campaign's emails in each status
+     */
+    public Map<String, Long> countByStatus(long campaignId) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        jdbcTemplate.query(COUNT_BY_STATUS_SQL, (RowCallbackHandler) rs ->
+                counts.put(rs.getString("status"), rs.getLong("emails")), campaignId);
+        return counts;
+    }
+}
@@ -21,6 +21,10 @@ public interface EmailEventRepository extends JpaRepository<EmailEvent, Long> {
     List<EmailEvent> findByEmailIdAndEventType(@Param("emailId") Long emailId, 
                                               @Param("eventType") EventType eventType);
     
+    @Query("SELECT COUNT(ee) FROM EmailEvent ee WHERE ee.email.id = :emailId AND ee.eventType = :eventType")
+    long countByEmailIdAndEventType(@Param("emailId") Long emailId,
+                                    @Param("eventType") EventType eventType);
+    
     @Query("SELECT ee FROM EmailEvent ee WHERE ee.eventType = :eventType AND ee.createdAt >= :since")
     Page<EmailEvent> findByEventTypeAndCreatedAtAfter(@Param("eventType") EventType eventType,
                                                      @Param("since") LocalDateTime since,
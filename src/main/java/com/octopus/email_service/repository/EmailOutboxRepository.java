@@ -0,0 +1,99 @@
+package com.octopus.email_service.repository;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JDBC access to the {@code email_outbox} table. Rows are inserted in the transaction that creates
+ * the email and claimed by the outbox relay with {@code FOR UPDATE SKIP LOCKED}, so several nodes
+ * can drain the outbox without publishing a row twice.
+ */
+@Repository
+@RequiredArgsConstructor
+public class EmailOutboxRepository {
+
+    private static final String INSERT_SQL =
+            "INSERT INTO email_outbox (email_id, tenant_id, routing_key, content_type, headers, payload) " +
+            "VALUES (?, ?, ?, ?, ?, ?)";
+
+    private static final String CLAIM_SQL =
+            "SELECT id, email_id, tenant_id, routing_key, content_type, headers, payload, attempts " +
+            "FROM email_outbox WHERE available_at <= now() ORDER BY id LIMIT ? FOR UPDATE SKIP LOCKED";
+
+    private static final String DELETE_SQL = "DELETE FROM email_outbox WHERE id = ?";
+
+    // Exponential backoff from 1s, capped, so a broker outage does not turn into a hot loop
+    private static final String RESCHEDULE_SQL =
+            "UPDATE email_outbox SET attempts = attempts + 1, last_error = ?, " +
+            "available_at = now() + LEAST(?, 1000 * power(2, LEAST(attempts, 20))) * interval '1 millisecond' " +
+            "WHERE id = ?";
+
+    private static final RowMapper<OutboxRow> ROW_MAPPER = (rs, rowNum) -> new OutboxRow(
+            rs.getLong("id"),
+            rs.getLong("email_id"),
+            rs.getObject("tenant_id", Long.class),
+            rs.getString("routing_key"),
+            rs.getString("content_type"),
+            rs.getString("headers"),
+            rs.getBytes("payload"),
+            rs.getInt("attempts"));
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public record OutboxMessage(Long emailId, Long tenantId, String routingKey, String contentType,
+                                String headers, byte[] payload) {
+    }
+
+    public record OutboxRow(long id, long emailId, Long tenantId, String routingKey, String contentType,
+                            String headers, byte[] payload, int attempts) {
+    }
+
+    /**
+     * Add a message to the outbox; joins the caller's transaction
+     */
+    public void insert(Long emailId, Long tenantId, String routingKey, String contentType, String headers, byte[] payload) {
+        jdbcTemplate.update(INSERT_SQL, emailId, tenantId, routingKey, contentType, headers, payload);
+    }
+
+    /**
+     * Add several messages to the outbox in one batch; joins the caller's transaction
+     */
+    public void insertAll(List<OutboxMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        List<Object[]> rows = new ArrayList<>(messages.size());
+        for (OutboxMessage message : messages) {
+            rows.add(new Object[]{message.emailId(), message.tenantId(), message.routingKey(),
+                    message.contentType(), message.headers(), message.payload()});
+        }
+        jdbcTemplate.batchUpdate(INSERT_SQL, rows);
+    }
+
+    /**
+     * Lock up to {@code limit} due rows, skipping those another relay holds; must run in a transaction
+     */
+    public List<OutboxRow> claim(int limit) {
+        return jdbcTemplate.query(CLAIM_SQL, ROW_MAPPER, limit);
+    }
+
+    public void delete(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        List<Object[]> rows = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            rows.add(new Object[]{id});
+        }
+        jdbcTemplate.batchUpdate(DELETE_SQL, rows);
+    }
+
+    public void reschedule(long id, String error, long maxBackoffMillis) {
+        jdbcTemplate.update(RESCHEDULE_SQL, error, maxBackoffMillis, id);
+    }
+}
@@ -0,0 +1,143 @@
+package com.octopus.email_service.repository;
+
+import com.octopus.email_service.dto.ReplayRequest;
+import com.octopus.email_service.enums.EventType;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+
+/**
+ * Set-based selection and reset of emails for an admin replay.
+ */
+@Repository
+@RequiredArgsConstructor
+public class EmailReplayRepository {
+
+    // Statuses an email can be replayed from; ENQUEUED emails may still have a live queue message
+    private static final List<String> REPLAYABLE = List.of("FAILED");
+
+    // Statuses of emails still waiting to be sent, whose dead letters must not be dropped
+    private static final List<String> PENDING = List.of("FAILED", "ENQUEUED");
+
+    private static final String RESET_SQL =
+            "UPDATE emails SET status = 'ENQUEUED', attempts = 0, last_error = NULL, " +
+            "lease_owner = NULL, lease_expires_at = NULL " +
+            "WHERE id IN (:ids) AND status IN (:statuses) RETURNING id";
+
+    private static final String INSERT_EVENTS_SQL =
+            "INSERT INTO email_events (email_id, event_type, detail, created_at) " +
+            "SELECT id, :eventType, :detail, now() FROM emails WHERE id IN (:ids)";
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    /**
+     * Next page of FAILED emails matching the filter, by ID after {@code afterId}
+     */
+    public List<Long> findFailed(ReplayRequest filter, long afterId, int limit) {
+        MapSqlParameterSource params = filterParams(filter)
+                .addValue("afterId", afterId)
+                .addValue("limit", limit);
+        String sql = "SELECT id FROM emails WHERE status = 'FAILED' AND id > :afterId" + filterSql(filter) +
+                     " ORDER BY id LIMIT :limit";
+        return jdbcTemplate.queryForList(sql, params, Long.class);
+    }
+
+    /**
+     * Whether each of the given emails matches the filter; emails that no longer exist are left out
+     */
+    public Map<Long, Boolean> matchFilter(ReplayRequest filter, Collection<Long> ids) {
+        Map<Long, Boolean> matches = new HashMap<>();
+        if (ids.isEmpty()) {
+            return matches;
+        }
+        String sql = "SELECT id, COALESCE((TRUE" + filterSql(filter) + "), FALSE) AS matches FROM emails WHERE id IN (:ids)";
+        jdbcTemplate.query(sql, filterParams(filter).addValue("ids", ids),
+                rs -> {
+                    matches.put(rs.getLong("id"), rs.getBoolean("matches"));
+                });
+        return matches;
+    }
+
+    /**
+     * Those of the given emails that are still waiting to be sent or replayed
+     */
+    public List<Long> findPending(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+        return jdbcTemplate.queryForList("SELECT id FROM emails WHERE id IN (:ids) AND status IN (:statuses)",
+                new MapSqlParameterSource("ids", ids).addValue("statuses", PENDING), Long.class);
+    }
+
+    /**
+     * Give the emails a fresh set of attempts in one statement and record an event for each;
+     * returns those reset, skipping any that left a replayable status meanwhile
+     */
+    @Transactional
+    public List<Long> resetForReplay(Collection<Long> ids, String detail) {
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+        List<Long> reset = jdbcTemplate.queryForList(RESET_SQL,
+                new MapSqlParameterSource("ids", ids).addValue("statuses", REPLAYABLE), Long.class);
+        if (!reset.isEmpty()) {
+            jdbcTemplate.update(INSERT_EVENTS_SQL, new MapSqlParameterSource("ids", reset)
+                    .addValue("eventType", EventType.RETRY_SCHEDULED.name())
+                    .addValue("detail", detail));
+        }
+        return reset;
+    }
+
+    private static String filterSql(ReplayRequest filter) {
+        StringBuilder sql = new StringBuilder();
+        if (filter.getTenantId() != null) {
+            sql.append(" AND tenant_id = :tenantId");
+        }
+        if (filter.getCreatedFrom() != null) {
+            sql.append(" AND created_at >= :createdFrom");
+        }
+        if (filter.getCreatedTo() != null) {
+            sql.append(" AND created_at < :createdTo");
+        }
+        if (filter.getErrorPattern() != null) {
+            sql.append(" AND last_error ILIKE :errorPattern");
+        }
+        if (filter.getDomain() != null) {
+            // to_addresses is comma-separated; match the domain of any one address exactly
+            sql.append(" AND (',' || lower(replace(to_addresses, ' ', '')) || ',') LIKE :domainPattern");
+        }
+        return sql.toString();
+    }
+
+    private static MapSqlParameterSource filterParams(ReplayRequest filter) {
+        MapSqlParameterSource params = new MapSqlParameterSource();
+        params.addValue("tenantId", filter.getTenantId());
+        params.addValue("createdFrom", timestamp(filter.getCreatedFrom()));
+        params.addValue("createdTo", timestamp(filter.getCreatedTo()));
+        if (filter.getErrorPattern() != null) {
+            params.addValue("errorPattern", "%" + escapeLike(filter.getErrorPattern()) + "%");
+        }
+        if (filter.getDomain() != null) {
+            params.addValue("domainPattern", "%@" + escapeLike(filter.getDomain().trim().toLowerCase(Locale.ROOT)) + ",%");
+        }
+        return params;
+    }
+
+    private static Timestamp timestamp(LocalDateTime value) {
+        return value != null ? Timestamp.valueOf(value) : null;
+    }
+
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+}
@@ -9,8 +9,10 @@ import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -20,6 +22,9 @@ public interface EmailRepository extends JpaRepository<Email, Long> {
     
     Optional<Email> findByUuid(UUID uuid);
     
+    @Query("SELECT DISTINCT e FROM Email e LEFT JOIN FETCH e.template WHERE e.id IN :ids")
+    List<Email> findAllWithTemplateByIdIn(@Param("ids") Collection<Long> ids);
+    
     @Query("SELECT e FROM Email e WHERE e.status = :status AND e.attempts < e.maxAttempts AND (e.scheduledAt IS NULL OR e.scheduledAt <= :now)")
     List<Email> findEmailsForProcessing(@Param("status") EmailStatus status, @Param("now") LocalDateTime now);
     
@@ -41,7 +46,32 @@ public interface EmailRepository extends JpaRepository<Email, Long> {
                                      @Param("error") String error);
     
     @Modifying
-    @Query("UPDATE Email e SET e.status = :status, e.sentAt = :sentAt WHERE e.id = :id")
+    @Query("UPDATE Email e SET e.status = :status, e.lastError = :error, e.leaseOwner = null, e.leaseExpiresAt = null WHERE e.id = :id")
+    void updateEmailStatus(@Param("id") Long id, 
+                          @Param("status") EmailStatus status, 
+                          @Param("error") String error);
+    
+    @Modifying
+    @Query("UPDATE Email e SET e.status = :status, e.attempts = e.attempts - 1, e.lastError = :error, " +
+           "e.leaseOwner = null, e.leaseExpiresAt = null WHERE e.id = :id AND e.attempts > 0")
+    void updateEmailStatusAndRefundAttempt(@Param("id") Long id,
+                                           @Param("status") EmailStatus status,
+                                           @Param("error") String error);
+    
+    @Modifying
+    @Query("UPDATE Email e SET e.status = :status, e.attempts = 0, e.lastError = null, e.leaseOwner = null, e.leaseExpiresAt = null WHERE e.id = :id")
+    void resetForRetry(@Param("id") Long id, @Param("status") EmailStatus status);
+    
+    @Modifying
+    @Query("UPDATE Email e SET e.mimeObjectKey = :key WHERE e.id = :id")
+    void updateMimeObjectKey(@Param("id") Long id, @Param("key") String key);
+    
+    @Modifying
+    @Query("UPDATE Email e SET e.status = :status, e.leaseOwner = null, e.leaseExpiresAt = null WHERE e.id = :id")
+    void updateStatus(@Param("id") Long id, @Param("status") EmailStatus status);
+    
+    @Modifying
+    @Query("UPDATE Email e SET e.status = :status, e.sentAt = :sentAt, e.leaseOwner = null, e.leaseExpiresAt = null WHERE e.id = :id")
     void markAsSent(@Param("id") Long id, 
                    @Param("status") EmailStatus status, 
                    @Param("sentAt") LocalDateTime sentAt);
@@ -52,6 +82,45 @@ public interface EmailRepository extends JpaRepository<Email, Long> {
                         @Param("status") EmailStatus status, 
                         @Param("deliveredAt") LocalDateTime deliveredAt);
     
+    /**
+     * Move an email to SENDING under a lease held by {@code owner}, counting the attempt. Fails, returning 0,
+     * if the email is already sent or another worker holds an unexpired lease on it.
+     */
+    @Modifying
+    @Query(value = "UPDATE emails SET status = 'SENDING', attempts = attempts + 1, last_error = NULL, " +
+                   "lease_owner = :owner, lease_expires_at = now() + (:leaseMillis * interval '1 millisecond') " +
+                   "WHERE id = :id AND attempts < max_attempts " +
+                   "AND (status IN ('ENQUEUED', 'FAILED') OR (status = 'SENDING' AND lease_expires_at < now()))",
+           nativeQuery = true)
+    int claimForSending(@Param("id") Long id, @Param("owner") String owner, @Param("leaseMillis") long leaseMillis);
+    
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE emails SET lease_expires_at = now() + (:leaseMillis * interval '1 millisecond') " +
+                   "WHERE id IN (:ids) AND status = 'SENDING' AND lease_owner = :owner", nativeQuery = true)
+    int extendLeases(@Param("ids") Collection<Long> ids, @Param("owner") String owner, @Param("leaseMillis") long leaseMillis);
+    
+    @Query(value = "SELECT id FROM emails WHERE status = 'SENDING' AND lease_expires_at < now() " +
+                   "ORDER BY lease_expires_at LIMIT :limit", nativeQuery = true)
+    List<Long> findExpiredLeases(@Param("limit") int limit);
+    
+    /**
+     * Put an email whose lease expired back in ENQUEUED; returns 0 if it was finished or reclaimed meanwhile
+     */
+    @Modifying
+    @Query(value = "UPDATE emails SET status = 'ENQUEUED', last_error = :error, lease_owner = NULL, lease_expires_at = NULL " +
+                   "WHERE id = :id AND status = 'SENDING' AND lease_expires_at < now()", nativeQuery = true)
+    int releaseExpiredLease(@Param("id") Long id, @Param("error") String error);
+    
+    /**
+     * Move a scheduled email to ENQUEUED and record its release time; returns 0 if another node released it
+     * first or it was cancelled
+     */
+    @Modifying
+    @Query(value = "UPDATE emails SET status = 'ENQUEUED', released_at = now() WHERE id = :id AND status = 'SCHEDULED'",
+           nativeQuery = true)
+    int releaseScheduled(@Param("id") Long id);
+    
     @Query("SELECT COUNT(e) FROM Email e WHERE e.status = :status")
     long countByStatus(@Param("status") EmailStatus status);
     
@@ -0,0 +1,100 @@
+package com.octopus.email_service.repository;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JDBC reads of emails waiting in SCHEDULED, served by the {@code (status, scheduled_at)} index.
+ */
+@Repository
+@RequiredArgsConstructor
+public class ScheduledSendRepository {
+
+    // Unpaced emails are read in time order; each drip group, found by skipping through the group index,
+    // reads at most twice the rows it can release in one window in its own LATERAL subquery, so a large
+    // paced campaign is never scanned past its cap nor crowds everything else out of the batch
+    private static final String FIND_DUE_SQL =
+            "WITH RECURSIVE drip_groups AS (" +
+            "  (SELECT drip_group FROM emails " +
+            "   WHERE status = 'SCHEDULED' AND drip_group IS NOT NULL AND drip_per_hour IS NOT NULL " +
+            "   ORDER BY drip_group LIMIT 1)" +
+            "  UNION ALL " +
+            "  SELECT (SELECT e.drip_group FROM emails e " +
+            "          WHERE e.status = 'SCHEDULED' AND e.drip_group IS NOT NULL AND e.drip_per_hour IS NOT NULL " +
+            "            AND e.drip_group > g.drip_group " +
+            "          ORDER BY e.drip_group LIMIT 1) " +
+            "  FROM drip_groups g WHERE g.drip_group IS NOT NULL" +
+            ") " +
+            "SELECT id, scheduled_at, drip_group, drip_per_hour FROM (" +
+            "  (SELECT id, scheduled_at, drip_group, drip_per_hour FROM emails " +
+            "   WHERE status = 'SCHEDULED' AND (drip_group IS NULL OR drip_per_hour IS NULL) AND scheduled_at <= ? " +
+            "   ORDER BY scheduled_at, id LIMIT ?)" +
+            "  UNION ALL " +
+            "  SELECT paced.id, paced.scheduled_at, paced.drip_group, paced.drip_per_hour " +
+            "  FROM drip_groups g " +
+            "  CROSS JOIN LATERAL (" +
+            "    SELECT e.drip_per_hour AS per_hour FROM emails e " +
+            "    WHERE e.status = 'SCHEDULED' AND e.drip_group = g.drip_group AND e.drip_per_hour IS NOT NULL " +
+            "    ORDER BY e.scheduled_at, e.id LIMIT 1" +
+            "  ) rate " +
+            "  CROSS JOIN LATERAL (" +
+            "    SELECT e.id, e.scheduled_at, e.drip_group, e.drip_per_hour FROM emails e " +
+            "    WHERE e.status = 'SCHEDULED' AND e.drip_group = g.drip_group AND e.drip_per_hour IS NOT NULL " +
+            "      AND e.scheduled_at <= ? " +
+            "    ORDER BY e.scheduled_at, e.id " +
+            "    LIMIT CAST(2 * CEIL(rate.per_hour * ? / 3600000.0) + 1 AS BIGINT)" +
+            "  ) paced " +
+            "  WHERE g.drip_group IS NOT NULL" +
+            ") due " +
+            "ORDER BY scheduled_at, id LIMIT ?";
+
+    private static final String LAST_RELEASES_SQL =
+            "SELECT drip_group, CAST(EXTRACT(EPOCH FROM now() - max(released_at)) * 1000 AS BIGINT) AS age_ms " +
+            "FROM emails WHERE drip_group IN (%s) AND released_at > now() - interval '1 hour' " +
+            "GROUP BY drip_group";
+
+    private static final RowMapper<ScheduledSend> ROW_MAPPER = (rs, rowNum) -> new ScheduledSend(
+            rs.getLong("id"),
+            rs.getTimestamp("scheduled_at").toLocalDateTime(),
+            rs.getString("drip_group"),
+            rs.getObject("drip_per_hour", Integer.class));
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public record ScheduledSend(long emailId, LocalDateTime scheduledAt, String dripGroup, Integer dripPerHour) {
+    }
+
+    /**
+     * Scheduled emails due by {@code horizon}, earliest first
+     */
+    public List<ScheduledSend> findDue(LocalDateTime horizon, long windowMillis, int limit) {
+        Timestamp due = Timestamp.valueOf(horizon);
+        return jdbcTemplate.query(FIND_DUE_SQL, ROW_MAPPER, due, limit, due, windowMillis, limit);
+    }
+
+    /**
+     * How long ago, in milliseconds of database time, each of the drip groups last released an email,
+     * for groups that released one in the last hour
+     */
+    public Map<String, Long> findLastReleases(Collection<String> dripGroups) {
+        Map<String, Long> ages = new HashMap<>();
+        if (dripGroups.isEmpty()) {
+            return ages;
+        }
+        String sql = LAST_RELEASES_SQL.formatted(String.join(", ", Collections.nCopies(dripGroups.size(), "?")));
+        jdbcTemplate.query(sql, rs -> {
+            ages.put(rs.getString("drip_group"), rs.getLong("age_ms"));
+        }, dripGroups.toArray());
+        return ages;
+    }
+}
@@ -17,6 +17,9 @@ public interface TemplateRepository extends JpaRepository<Template, Long> {
     @Query("SELECT t FROM Template t WHERE t.name = :name AND t.isActive = true")
     Optional<Template> findActiveByName(@Param("name") String name);
     
+    @Query("SELECT t FROM Template t WHERE t.id = :id AND t.isActive = true")
+    Optional<Template> findActiveById(@Param("id") Long id);
+    
     @Query("SELECT t FROM Template t WHERE t.isActive = true")
     List<Template> findAllActive();
     
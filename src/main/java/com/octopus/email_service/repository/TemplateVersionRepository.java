@@ -0,0 +1,31 @@
+package com.octopus.email_service.repository;
+
+import com.octopus.email_service.entity.Template;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+/**
+ * JDBC writes to the append-only {@code template_versions} table. A snapshot is added for every
+ * version a template reaches and never changed afterwards.
+ */
+@Repository
+@RequiredArgsConstructor
+public class TemplateVersionRepository {
+
+    private static final String INSERT_SQL =
+            "INSERT INTO template_versions (template_id, version, name, subject_template, body_template, body_type, " +
+            "compiled_body, text_body, created_by) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Snapshot the template's current content under its current version; joins the caller's transaction
+     */
+    public void insert(Template template, Long createdBy) {
+        jdbcTemplate.update(INSERT_SQL, template.getId(), template.getVersion(), template.getName(),
+                template.getSubjectTemplate(), template.getBodyTemplate(),
+                template.getBodyType() != null ? template.getBodyType().name() : null,
+                template.getCompiledBody(), template.getTextBody(), createdBy);
+    }
+}
@@ -0,0 +1,31 @@
+package com.octopus.email_service.repository;
+
+import com.octopus.email_service.entity.WorkerNode;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+@Repository
+public interface WorkerNodeRepository extends JpaRepository<WorkerNode, String> {
+    
+    @Modifying
+    @Transactional
+    @Query(value = "INSERT INTO email_worker_nodes (node_id, started_at, heartbeat_at) VALUES (:nodeId, now(), now()) " +
+                   "ON CONFLICT (node_id) DO UPDATE SET heartbeat_at = now()", nativeQuery = true)
+    void heartbeat(@Param("nodeId") String nodeId);
+    
+    @Query(value = "SELECT node_id FROM email_worker_nodes " +
+                   "WHERE heartbeat_at > now() - (:ttlMillis * interval '1 millisecond')", nativeQuery = true)
+    List<String> findLiveNodeIds(@Param("ttlMillis") long ttlMillis);
+    
+    @Modifying
+    @Transactional
+    @Query(value = "DELETE FROM email_worker_nodes " +
+                   "WHERE heartbeat_at < now() - (:ttlMillis * interval '1 millisecond')", nativeQuery = true)
+    int deleteStale(@Param("ttlMillis") long ttlMillis);
+}
@@ -0,0 +1,375 @@
+package com.octopus.email_service.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Bounded on-disk LRU cache of attachment content, keyed by the SHA-256 checksum recorded at upload,
+ * so an attachment sent with many emails is fetched from MinIO or Cloudinary once per node.
+ * Hits are served from a memory-mapped file. Downloaded content is only cached when it matches the
+ * checksum, which keeps transformed Cloudinary deliveries out of the cache.
+ * Enabled with {@code app.attachment.cache.enabled=true}.
+ */
+@Component
+@Slf4j
+public class AttachmentContentCache implements InitializingBean {
+
+    private static final String SUFFIX = ".bin";
+
+    @FunctionalInterface
+    public interface ContentLoader {
+        InputStream open() throws IOException;
+    }
+
+    @Getter
+    @Value("${app.attachment.cache.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.attachment.cache.directory:${java.io.tmpdir}/email-attachment-cache}")
+    private Path directory;
+
+    @Value("${app.attachment.cache.max-bytes:1073741824}")
+    private long maxBytes;
+
+    @Value("${app.attachment.cache.max-entry-bytes:104857600}")
+    private long maxEntryBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<String, CompletableFuture<Path>> loading = new ConcurrentHashMap<>();
+    private long totalBytes;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter bytesSaved;
+    private final Counter evictions;
+
+    public AttachmentContentCache(MeterRegistry meterRegistry) {
+        this.hits = requestCounter(meterRegistry, "hit");
+        this.misses = requestCounter(meterRegistry, "miss");
+        this.bytesSaved = Counter.builder("email.attachment.cache.bytes.saved")
+                .description("Attachment bytes served from the local cache instead of remote storage")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.evictions = Counter.builder("email.attachment.cache.evictions")
+                .description("Attachment cache entries evicted to stay within the size limit")
+                .register(meterRegistry);
+        Gauge.builder("email.attachment.cache.hit.ratio", this, AttachmentContentCache::hitRatio)
+                .description("Share of attachment reads served from the local cache")
+                .register(meterRegistry);
+        Gauge.builder("email.attachment.cache.size", this, AttachmentContentCache::size)
+                .description("Bytes held in the local attachment cache")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(directory);
+        restoreIndex();
+        log.info("Attachment cache enabled at {}: {} entries, {} of {} bytes used",
+                 directory, entries.size(), totalBytes, maxBytes);
+    }
+
+    /**
+     * Open the content for a checksum, loading it through {@code loader} and caching it on a miss.
+     * Content without a usable checksum, or larger than an entry may be, bypasses the cache.
+     */
+    public InputStream open(String checksum, Long size, ContentLoader loader) throws IOException {
+        String key = enabled ? cacheKey(checksum) : null;
+        if (key == null || (size != null && size > maxEntryBytes)) {
+            return loader.open();
+        }
+
+        Path cached = lookup(key);
+        if (cached != null) {
+            try {
+                InputStream in = mapped(cached);
+                hits.increment();
+                bytesSaved.increment(Files.size(cached));
+                return in;
+            } catch (IOException e) {
+                // Evicted between lookup and open
+                forget(key);
+            }
+        }
+
+        misses.increment();
+        CompletableFuture<Path> load = new CompletableFuture<>();
+        CompletableFuture<Path> inFlight = loading.putIfAbsent(key, load);
+        if (inFlight != null) {
+            // Another thread is already fetching this content, wait for its copy
+            Path loaded = await(inFlight);
+            if (loaded != null && Files.exists(loaded)) {
+                return mapped(loaded);
+            }
+            return loader.open();
+        }
+
+        try {
+            return fetch(key, checksum, loader, load);
+        } catch (IOException | RuntimeException e) {
+            load.complete(null);
+            throw e;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+
+    public long size() {
+        lock.lock();
+        try {
+            return totalBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private InputStream fetch(String key, String checksum, ContentLoader loader,
+                              CompletableFuture<Path> load) throws IOException {
+        Path temp = Files.createTempFile(directory, key, ".tmp");
+        try {
+            MessageDigest digest = sha256();
+            try (InputStream in = loader.open();
+                 OutputStream out = new DigestOutputStream(Files.newOutputStream(temp), digest)) {
+                in.transferTo(out);
+            }
+            long length = Files.size(temp);
+            if (!Base64.getEncoder().encodeToString(digest.digest()).equals(checksum) || length > maxEntryBytes) {
+                log.debug("Downloaded content for checksum {} is not cacheable, serving it once", checksum);
+                load.complete(null);
+                // The temporary copy is removed when the caller closes the stream
+                return Files.newInputStream(temp, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            Path target = directory.resolve(key + SUFFIX);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            admit(key, length);
+            load.complete(target);
+            return mapped(target);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    private Path lookup(String key) {
+        lock.lock();
+        try {
+            return entries.get(key) != null ? directory.resolve(key + SUFFIX) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void admit(String key, long length) {
+        List<String> evicted = new ArrayList<>();
+        lock.lock();
+        try {
+            Long previous = entries.put(key, length);
+            totalBytes += length - (previous != null ? previous : 0L);
+            Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                if (entry.getKey().equals(key)) {
+                    continue;
+                }
+                totalBytes -= entry.getValue();
+                evicted.add(entry.getKey());
+                eldest.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Open mappings of an evicted file stay readable until they are released
+        for (String victim : evicted) {
+            evictions.increment();
+            deleteQuietly(directory.resolve(victim + SUFFIX));
+        }
+    }
+
+    private void forget(String key) {
+        lock.lock();
+        try {
+            Long length = entries.remove(key);
+            if (length != null) {
+                totalBytes -= length;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rebuild the index from files left by a previous run, oldest first, then trim to the limit
+     */
+    private void restoreIndex() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> cached = files.filter(Files::isRegularFile).toList();
+            for (Path file : cached) {
+                if (!file.getFileName().toString().endsWith(SUFFIX)) {
+                    deleteQuietly(file);
+                }
+            }
+            cached.stream()
+                  .filter(file -> file.getFileName().toString().endsWith(SUFFIX))
+                  .sorted(Comparator.comparing(AttachmentContentCache::lastModified))
+                  .forEach(file -> {
+                      String name = file.getFileName().toString();
+                      try {
+                          admit(name.substring(0, name.length() - SUFFIX.length()), Files.size(file));
+                      } catch (IOException e) {
+                          deleteQuietly(file);
+                      }
+                  });
+        }
+    }
+
+    private double hitRatio() {
+        double total = hits.count() + misses.count();
+        return total == 0 ? 0.0 : hits.count() / total;
+    }
+
+    private static Counter requestCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("email.attachment.cache.requests")
+                .description("Attachment cache lookups")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    /**
+     * File name for a checksum: the Base64 SHA-256 as hex, or null if it is not a SHA-256
+     */
+    static String cacheKey(String checksum) {
+        if (checksum == null) {
+            return null;
+        }
+        try {
+            byte[] hash = Base64.getDecoder().decode(checksum);
+            return hash.length == 32 ? HexFormat.of().formatHex(hash) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static InputStream mapped(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                return Files.newInputStream(file);
+            }
+            // The mapping outlives the channel and is released when the buffer is collected
+            return new MappedInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 algorithm not available", e);
+        }
+    }
+
+    private static Path await(CompletableFuture<Path> inFlight) throws IOException {
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for attachment download", e);
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Failed to delete cached attachment {}", file, e);
+        }
+    }
+
+    private static final class MappedInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private MappedInputStream(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+    }
+}
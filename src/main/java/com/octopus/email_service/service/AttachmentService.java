@@ -42,6 +42,7 @@ public class AttachmentService {
     private final Cloudinary cloudinary;
     private final Tika tika;
     private final AttachmentRepository attachmentRepository;
+    private final AttachmentContentCache contentCache;
 
     @Value("${minio.bucket-name}")
     private String bucketName;
@@ -159,6 +160,16 @@ public class AttachmentService {
         Attachment attachment = attachmentRepository.findById(attachmentId)
                 .orElseThrow(() -> new IllegalArgumentException("Attachment not found: " + attachmentId));
 
+        try {
+            // Served from the local cache when this node has fetched the same content before
+            return contentCache.open(attachment.getChecksum(), attachment.getFileSize(), () -> openFromStorage(attachment));
+        } catch (Exception e) {
+            log.error("Failed to download attachment: {}", attachmentId, e);
+            throw new RuntimeException("Failed to download attachment", e);
+        }
+    }
+
+    private InputStream openFromStorage(Attachment attachment) throws IOException {
         try {
             return switch (attachment.getStorageType()) {
                 case MINIO -> minioClient.getObject(
@@ -173,9 +184,10 @@ public class AttachmentService {
                 default ->
                         throw new IllegalArgumentException("Unsupported storage type: " + attachment.getStorageType());
             };
+        } catch (IOException | RuntimeException e) {
+            throw e;
         } catch (Exception e) {
-            log.error("Failed to download attachment: {}", attachmentId, e);
-            throw new RuntimeException("Failed to download attachment", e);
+            throw new IOException("Failed to read attachment " + attachment.getId() + " from storage", e);
         }
     }
 
@@ -0,0 +1,495 @@
+package com.octopus.email_service.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.octopus.email_service.dto.CampaignRecipient;
+import com.octopus.email_service.dto.CampaignRequest;
+import com.octopus.email_service.dto.CampaignResponse;
+import com.octopus.email_service.entity.Attachment;
+import com.octopus.email_service.entity.Email;
+import com.octopus.email_service.entity.EmailTenant;
+import com.octopus.email_service.entity.Template;
+import com.octopus.email_service.enums.EmailPriority;
+import com.octopus.email_service.enums.EmailStatus;
+import com.octopus.email_service.enums.EventType;
+import com.octopus.email_service.repository.EmailBatchRepository;
+import com.octopus.email_service.repository.EmailBatchRepository.EventRow;
+import com.octopus.email_service.repository.EmailCampaignRepository;
+import com.octopus.email_service.repository.EmailCampaignRepository.CampaignRow;
+import com.octopus.email_service.repository.EmailCampaignRepository.FailedCampaign;
+import com.octopus.email_service.repository.EmailCampaignRepository.NewCampaign;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mail-merge campaigns: one template, shared variables and attachments, and many recipients. The
+ * template is resolved, the sender chosen and the attachments uploaded once per campaign; recipients
+ * are then ingested in chunks of {@code app.email.campaigns.chunk-size} on a small thread pool, each
+ * chunk written with JDBC batches in its own transaction and queued when it commits. Every recipient
+ * becomes an email row holding the template and its merged variables, rendered by the send pipeline.
+ * <p>
+ * A campaign created with recipients is ingested in the background and returned straight away;
+ * one created without them accepts recipients streamed as NDJSON until it is closed.
+ * <p>
+ * Progress is committed with each chunk, but the recipients of a background ingest are only held in
+ * memory. The campaign is INGESTING under a lease this node extends until the ingest ends; if the
+ * node dies the lease lapses and any node marks the campaign FAILED, its committed chunks still
+ * sending. Streamed campaigns left ACCEPTING for {@code app.email.campaigns.accepting-timeout} fail too.
+ */
+@Service
+@Slf4j
+public class CampaignService implements InitializingBean, DisposableBean {
+
+    public static final String ACCEPTING = "ACCEPTING";
+    public static final String INGESTING = "INGESTING";
+    public static final String QUEUED = "QUEUED";
+
+    private static final String DRIP_GROUP_PREFIX = "campaign:";
+
+    private static final TypeReference<Map<String, Object>> VARS_TYPE = new TypeReference<>() {
+    };
+
+    private final EmailCampaignRepository campaignRepository;
+    private final EmailBatchRepository emailBatchRepository;
+    private final EmailService emailService;
+    private final TemplateService templateService;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate transactionTemplate;
+    private final Counter queuedCounter;
+    private final Counter rejectedCounter;
+    private final ExecutorService coordinator = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "email-campaign");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Background ingests queued or running on this node, whose leases the heartbeat extends
+    private final Set<Long> ingesting = ConcurrentHashMap.newKeySet();
+    private ExecutorService ingestExecutor;
+    private Semaphore ingestSlots;
+
+    @Value("${app.email.campaigns.chunk-size:1000}")
+    private int chunkSize;
+
+    @Value("${app.email.campaigns.ingest-threads:4}")
+    private int ingestThreads;
+
+    @Value("${app.email.campaigns.ingest-lease.duration:120000}")
+    private long ingestLeaseMs;
+
+    @Value("${app.email.campaigns.accepting-timeout:86400000}")
+    private long acceptingTimeoutMs;
+
+    @Value("${app.email.scheduling.enabled:false}")
+    private boolean schedulingEnabled;
+
+    public CampaignService(EmailCampaignRepository campaignRepository, EmailBatchRepository emailBatchRepository,
+                           EmailService emailService, TemplateService templateService, ObjectMapper objectMapper,
+                           PlatformTransactionManager transactionManager, MeterRegistry meterRegistry) {
+        this.campaignRepository = campaignRepository;
+        this.emailBatchRepository = emailBatchRepository;
+        this.emailService = emailService;
+        this.templateService = templateService;
+        this.objectMapper = objectMapper;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.queuedCounter = Counter.builder("email.campaign.recipients")
+                .tag("outcome", "queued")
+                .description("Campaign recipients written as emails")
+                .register(meterRegistry);
+        this.rejectedCounter = Counter.builder("email.campaign.recipients")
+                .tag("outcome", "rejected")
+                .description("Campaign recipients rejected for an invalid address or entry")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        AtomicInteger threads = new AtomicInteger();
+        ingestExecutor = Executors.newFixedThreadPool(Math.max(1, ingestThreads), runnable -> {
+            Thread thread = new Thread(runnable, "email-campaign-ingest-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Bounds the chunks held in memory while a stream is read faster than it is written
+        ingestSlots = new Semaphore(Math.max(1, ingestThreads) * 2);
+    }
+
+    @Override
+    public void destroy() {
+        coordinator.shutdownNow();
+        ingestExecutor.shutdownNow();
+    }
+
+    /**
+     * Store the campaign's shared content and start ingesting its recipients in the background
+     */
+    public CampaignResponse createCampaign(CampaignRequest request, EmailTenant tenant) {
+        Template template = templateService.getTemplateEntityByName(request.getTemplateName())
+                .orElseThrow(() -> new IllegalArgumentException("Template not found: " + request.getTemplateName()));
+
+        // Scheduled or paced campaigns are held in SCHEDULED and released by the scheduled-send engine
+        LocalDateTime now = LocalDateTime.now();
+        boolean later = request.getScheduledAt() != null && request.getScheduledAt().isAfter(now);
+        boolean scheduled = later || request.getDripPerHour() != null;
+        if (scheduled && !schedulingEnabled) {
+            throw new IllegalArgumentException("Scheduled sending is not enabled");
+        }
+
+        String sender = emailService.determineSenderAddress(request.getFrom(), tenant);
+        String replyTo = emailService.determineReplyToAddress(request.getFrom(), tenant);
+
+        // Uploaded once; every recipient's email references the same stored attachments
+        String attachmentsJson = null;
+        if (request.getAttachments() != null && !request.getAttachments().isEmpty()) {
+            List<Attachment> attachments = emailService.processEmailAttachments(request.getAttachments(), sender);
+            attachmentsJson = emailService.serializeProcessedAttachments(attachments);
+        }
+
+        // Stored on each email for listings; the template's own subject is what gets sent
+        String subject = request.getSubject() != null ? request.getSubject() : template.getSubjectTemplate();
+        List<CampaignRecipient> recipients = request.getRecipients();
+        boolean background = recipients != null && !recipients.isEmpty();
+        long campaignId = campaignRepository.insert(new NewCampaign(
+                tenant != null ? tenant.getId() : null,
+                request.getName(),
+                sender,
+                replyTo,
+                subject.length() > 500 ? subject.substring(0, 500) : subject,
+                template.getName(),
+                emailService.serializeTemplateVars(request.getTemplateVars()),
+                attachmentsJson,
+                (request.getPriority() != null ? request.getPriority() : EmailPriority.LOW).name(),
+                scheduled ? (later ? request.getScheduledAt() : now) : null,
+                request.getDripPerHour()),
+                background ? INGESTING : ACCEPTING, background ? recipients.size() : null, ingestLeaseMs);
+        CampaignRow row = campaignRepository.findById(campaignId)
+                .orElseThrow(() -> new IllegalStateException("Campaign not found after insert: " + campaignId));
+
+        if (background) {
+            Campaign campaign = campaignOf(row, tenant, template);
+            ingesting.add(campaign.id());
+            coordinator.execute(() -> {
+                try {
+                    ingest(campaign, recipients);
+                } finally {
+                    ingesting.remove(campaign.id());
+                }
+                if (campaignRepository.updateStatus(campaign.id(), INGESTING, QUEUED)) {
+                    log.info("Campaign {} queued", campaign.uuid());
+                } else {
+                    log.warn("Campaign {} was failed while ingesting; its ingest lease lapsed", campaign.uuid());
+                }
+            });
+        }
+        log.info("Created campaign {} from template {} with {} recipients", row.uuid(), template.getName(),
+                recipients != null ? recipients.size() : 0);
+        return toResponse(row, Map.of());
+    }
+
+    /**
+     * Ingest recipients streamed as NDJSON, one {@link CampaignRecipient} per line, into a campaign
+     * created without recipients. Lines that cannot be parsed count as rejected recipients.
+     */
+    public CampaignResponse addRecipients(UUID campaignUuid, EmailTenant tenant, InputStream ndjson) throws IOException {
+        Campaign campaign = acceptingCampaign(campaignUuid, tenant);
+        List<CompletableFuture<Void>> chunks = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(ndjson, StandardCharsets.UTF_8))) {
+            List<CampaignRecipient> chunk = new ArrayList<>(chunkSize);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                chunk.add(parseRecipient(line));
+                if (chunk.size() >= chunkSize) {
+                    chunks.add(submit(campaign, chunk));
+                    chunk = new ArrayList<>(chunkSize);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                chunks.add(submit(campaign, chunk));
+            }
+        } finally {
+            CompletableFuture.allOf(chunks.toArray(CompletableFuture[]::new)).join();
+        }
+        return getCampaign(campaignUuid, tenant).orElseThrow();
+    }
+
+    /**
+     * Stop accepting streamed recipients
+     */
+    public CampaignResponse closeCampaign(UUID campaignUuid, EmailTenant tenant) {
+        Campaign campaign = acceptingCampaign(campaignUuid, tenant);
+        if (!campaignRepository.updateStatus(campaign.id(), ACCEPTING, QUEUED)) {
+            throw new IllegalStateException("Campaign is not accepting recipients: " + campaignUuid);
+        }
+        log.info("Campaign {} queued", campaignUuid);
+        return getCampaign(campaignUuid, tenant).orElseThrow();
+    }
+
+    /**
+     * The campaign's ingest counters and the delivery status of its emails
+     */
+    public Optional<CampaignResponse> getCampaign(UUID campaignUuid, EmailTenant tenant) {
+        return campaignRepository.findByUuid(campaignUuid)
+                .filter(row -> ownedBy(row, tenant))
+                .map(row -> toResponse(row, campaignRepository.countByStatus(row.id())));
+    }
+
+    /**
+     * Extend the ingest leases of this node's background ingests, a third of the lease duration apart by default
+     */
+    @Scheduled(fixedDelayString = "${app.email.campaigns.ingest-lease.heartbeat-interval:40000}")
+    public void heartbeat() {
+        if (ingesting.isEmpty()) {
+            return;
+        }
+        List<Long> ids = new ArrayList<>(ingesting);
+        try {
+            campaignRepository.extendIngestLeases(ids, ingestLeaseMs);
+        } catch (RuntimeException e) {
+            log.warn("Failed to extend {} campaign ingest leases: {}", ids.size(), e.getMessage());
+        }
+    }
+
+    /**
+     * Fail campaigns whose ingest died with its node or whose stream was abandoned; the first run at
+     * startup picks up those left behind by a crash once their lease has lapsed
+     */
+    @Scheduled(fixedDelayString = "${app.email.campaigns.recovery-interval:60000}")
+    public void failStaleCampaigns() {
+        try {
+            for (FailedCampaign failed : campaignRepository.failStale(acceptingTimeoutMs)) {
+                log.warn("Campaign {} failed: {}", failed.uuid(), failed.error());
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to look up stale campaigns: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Shared variables overlaid with the recipient's own
+     */
+    static Map<String, Object> mergeTemplateVars(Map<String, Object> shared, Map<String, Object> own) {
+        if (own == null || own.isEmpty()) {
+            return shared;
+        }
+        Map<String, Object> merged = new HashMap<>(shared);
+        merged.putAll(own);
+        return merged;
+    }
+
+    /**
+     * The recipient's address, or null if it is missing or not a valid address
+     */
+    static String validAddress(CampaignRecipient recipient) {
+        if (recipient == null || recipient.getTo() == null || recipient.getTo().isBlank()) {
+            return null;
+        }
+        try {
+            InternetAddress address = new InternetAddress(recipient.getTo().trim(), true);
+            address.validate();
+            return address.getAddress();
+        } catch (AddressException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Shared content of a campaign still taking streamed recipients, read back from its row so any
+     * node can take the stream
+     */
+    private Campaign acceptingCampaign(UUID campaignUuid, EmailTenant tenant) {
+        CampaignRow row = campaignRepository.findByUuid(campaignUuid)
+                .filter(found -> ownedBy(found, tenant))
+                .orElseThrow(() -> new IllegalArgumentException("Campaign not found: " + campaignUuid));
+        if (!ACCEPTING.equals(row.status())) {
+            throw new IllegalStateException("Campaign is not accepting recipients: " + campaignUuid);
+        }
+        Template template = templateService.getTemplateEntityByName(row.templateName())
+                .orElseThrow(() -> new IllegalArgumentException("Template not found: " + row.templateName()));
+        return campaignOf(row, tenant, template);
+    }
+
+    private Campaign campaignOf(CampaignRow row, EmailTenant tenant, Template template) {
+        return new Campaign(row.id(), row.uuid(), tenant, template, row.fromAddress(), row.replyToAddress(),
+                row.subject(), parseVars(row.templateVars()), row.attachments(), EmailPriority.valueOf(row.priority()),
+                row.scheduledAt(), row.dripPerHour() != null ? DRIP_GROUP_PREFIX + row.uuid() : null,
+                row.dripPerHour());
+    }
+
+    private void ingest(Campaign campaign, List<CampaignRecipient> recipients) {
+        List<CompletableFuture<Void>> chunks = new ArrayList<>();
+        for (int from = 0; from < recipients.size(); from += chunkSize) {
+            chunks.add(submit(campaign, recipients.subList(from, Math.min(recipients.size(), from + chunkSize))));
+        }
+        CompletableFuture.allOf(chunks.toArray(CompletableFuture[]::new)).join();
+    }
+
+    private CompletableFuture<Void> submit(Campaign campaign, List<CampaignRecipient> chunk) {
+        ingestSlots.acquireUninterruptibly();
+        return CompletableFuture.runAsync(() -> {
+            try {
+                ingestChunk(campaign, chunk);
+            } catch (RuntimeException e) {
+                log.error("Failed to ingest {} recipients of campaign {}", chunk.size(), campaign.uuid(), e);
+                campaignRepository.addProgress(campaign.id(), chunk.size(), 0, chunk.size());
+                rejectedCounter.increment(chunk.size());
+            } finally {
+                ingestSlots.release();
+            }
+        }, ingestExecutor);
+    }
+
+    /**
+     * Write one chunk of recipients, their ENQUEUED events and queue messages in a single transaction
+     */
+    private void ingestChunk(Campaign campaign, List<CampaignRecipient> chunk) {
+        LocalDateTime now = LocalDateTime.now();
+        List<Email> emails = new ArrayList<>(chunk.size());
+        for (CampaignRecipient recipient : chunk) {
+            String to = validAddress(recipient);
+            if (to == null) {
+                continue;
+            }
+            String templateVars = serializeVars(mergeTemplateVars(campaign.templateVars(), recipient.getTemplateVars()));
+            if (emailService.exceedsTemplateVarsLimit(templateVars)) {
+                log.warn("Rejected recipient {} of campaign {}: template variables over the limit", to, campaign.uuid());
+                continue;
+            }
+            emails.add(campaign.emailFor(to, templateVars, now));
+        }
+        int rejected = chunk.size() - emails.size();
+
+        transactionTemplate.executeWithoutResult(status -> {
+            List<Long> ids = campaignRepository.allocateEmailIds(emails.size());
+            for (int i = 0; i < emails.size(); i++) {
+                emails.get(i).setId(ids.get(i));
+            }
+            campaignRepository.insertEmails(campaign.id(), emails);
+            String detail = campaign.scheduledAt() != null
+                    ? "Scheduled for " + campaign.scheduledAt() + " in campaign " + campaign.uuid()
+                    : "Campaign " + campaign.uuid();
+            emailBatchRepository.insertEvents(emails.stream()
+                    .map(email -> new EventRow(email.getId(), EventType.ENQUEUED, detail))
+                    .toList());
+            if (campaign.scheduledAt() == null) {
+                emailService.enqueueAllOnCommit(emails);
+            }
+            campaignRepository.addProgress(campaign.id(), chunk.size(), emails.size(), rejected);
+        });
+        queuedCounter.increment(emails.size());
+        rejectedCounter.increment(rejected);
+    }
+
+    private String serializeVars(Map<String, Object> templateVars) {
+        try {
+            return objectMapper.writeValueAsString(templateVars);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Failed to serialize template variables", e);
+        }
+    }
+
+    private Map<String, Object> parseVars(String templateVars) {
+        if (templateVars == null) {
+            return Map.of();
+        }
+        try {
+            return objectMapper.readValue(templateVars, VARS_TYPE);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Unreadable campaign template variables", e);
+        }
+    }
+
+    private CampaignRecipient parseRecipient(String line) {
+        try {
+            return objectMapper.readValue(line, CampaignRecipient.class);
+        } catch (JsonProcessingException e) {
+            log.debug("Unreadable campaign recipient line: {}", e.getOriginalMessage());
+            return null;
+        }
+    }
+
+    private static boolean ownedBy(CampaignRow row, EmailTenant tenant) {
+        return Objects.equals(row.tenantId(), tenant != null ? tenant.getId() : null);
+    }
+
+    private static CampaignResponse toResponse(CampaignRow row, Map<String, Long> emailsByStatus) {
+        return CampaignResponse.builder()
+                .id(row.uuid())
+                .name(row.name())
+                .status(row.status())
+                .templateName(row.templateName())
+                .priority(row.priority())
+                .recipientsReceived(row.recipientsReceived())
+                .recipientsQueued(row.recipientsQueued())
+                .recipientsRejected(row.recipientsRejected())
+                .recipientsExpected(row.recipientsExpected())
+                .error(row.lastError())
+                .emailsByStatus(emailsByStatus)
+                .createdAt(row.createdAt())
+                .updatedAt(row.updatedAt())
+                .build();
+    }
+
+    /**
+     * Content resolved once per campaign and copied onto each recipient's email
+     */
+    private record Campaign(long id, UUID uuid, EmailTenant tenant, Template template, String fromAddress,
+                            String replyToAddress, String subject, Map<String, Object> templateVars,
+                            String attachments, EmailPriority priority, LocalDateTime scheduledAt,
+                            String dripGroup, Integer dripPerHour) {
+
+        private Email emailFor(String to, String mergedVars, LocalDateTime now) {
+            return Email.builder()
+                    .uuid(UUID.randomUUID())
+                    .tenant(tenant)
+                    .campaignId(id)
+                    .fromAddress(fromAddress)
+                    .replyToAddress(replyToAddress)
+                    .toAddresses(List.of(to))
+                    .subject(subject)
+                    .template(template)
+                    .templateVars(mergedVars)
+                    .attachments(attachments)
+                    .status(scheduledAt != null ? EmailStatus.SCHEDULED : EmailStatus.ENQUEUED)
+                    .priority(priority)
+                    .scheduledAt(scheduledAt)
+                    .dripGroup(dripGroup)
+                    .dripPerHour(dripPerHour)
+                    .createdAt(now)
+                    .build();
+        }
+    }
+}
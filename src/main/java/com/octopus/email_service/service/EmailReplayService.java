@@ -0,0 +1,380 @@
+package com.octopus.email_service.service;
+
+import com.octopus.email_service.dto.ReplayJobResponse;
+import com.octopus.email_service.dto.ReplayRequest;
+import com.octopus.email_service.entity.Email;
+import com.octopus.email_service.mail.SendEnvelope;
+import com.octopus.email_service.repository.EmailReplayRepository;
+import com.rabbitmq.client.GetResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Admin replay of failed and dead-lettered emails. A job pages through matching FAILED emails and
+ * drains {@code email.dlq}, then resets and re-enqueues them at a fixed rate, a small chunk per
+ * transaction, so recovering from a relay outage does not need hand-written SQL or flood the relay.
+ * Each chunk is reset and queued in the same transaction, through the outbox when it is enabled, so a
+ * crash never leaves emails reset without a queue message. One job runs at a time; progress is kept
+ * in memory on the node that runs it.
+ */
+@Service
+@Slf4j
+public class EmailReplayService implements DisposableBean {
+
+    private static final String DETAIL = "Replayed by admin";
+
+    // Chunks reset per second at the job's rate, so each transaction covers about 100 ms of sends
+    private static final int CHUNKS_PER_SECOND = 10;
+
+    private final EmailReplayRepository replayRepository;
+    private final EmailService emailService;
+    private final RabbitTemplate rabbitTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final Counter replayedCounter;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "email-replay");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, ReplayJob> jobs = new ConcurrentHashMap<>();
+
+    @Value("${app.email.dlq.name:email.dlq}")
+    private String dlqName;
+
+    @Value("${app.email.replay.rate-per-second:50}")
+    private int defaultRatePerSecond;
+
+    @Value("${app.email.replay.batch-size:200}")
+    private int batchSize;
+
+    @Value("${app.email.replay.history:20}")
+    private int history;
+
+    @Value("${app.email.replay.max-held-dead-letters:1000}")
+    private int maxHeldDeadLetters;
+
+    @Value("${app.email.replay.max-hold-time:600000}")
+    private long maxHoldTimeMs;
+
+    public EmailReplayService(EmailReplayRepository replayRepository, EmailService emailService,
+                              RabbitTemplate rabbitTemplate, PlatformTransactionManager transactionManager,
+                              MeterRegistry meterRegistry) {
+        this.replayRepository = replayRepository;
+        this.emailService = emailService;
+        this.rabbitTemplate = rabbitTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.replayedCounter = Counter.builder("email.replay.enqueued")
+                .description("Emails re-enqueued by admin replay jobs")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Start a replay job; fails if one is already running
+     */
+    public synchronized ReplayJobResponse start(ReplayRequest request) {
+        if (jobs.values().stream().anyMatch(job -> job.status == Status.RUNNING)) {
+            throw new IllegalStateException("A replay job is already running");
+        }
+        int rate = request.getRatePerSecond() != null ? request.getRatePerSecond() : defaultRatePerSecond;
+        ReplayJob job = new ReplayJob(UUID.randomUUID().toString(), request, rate);
+        jobs.put(job.id, job);
+        pruneHistory();
+        executor.execute(() -> run(job));
+        log.info("Started replay job {} at {}/s: {}", job.id, rate, request);
+        return job.toResponse();
+    }
+
+    public Optional<ReplayJobResponse> getJob(String jobId) {
+        return Optional.ofNullable(jobs.get(jobId)).map(ReplayJob::toResponse);
+    }
+
+    public List<ReplayJobResponse> getJobs() {
+        return jobs.values().stream()
+                .sorted(Comparator.comparing((ReplayJob job) -> job.startedAt).reversed())
+                .map(ReplayJob::toResponse)
+                .toList();
+    }
+
+    /**
+     * Ask a running job to stop after its current batch
+     */
+    public boolean cancel(String jobId) {
+        ReplayJob job = jobs.get(jobId);
+        if (job == null || job.status != Status.RUNNING) {
+            return false;
+        }
+        job.cancelled.set(true);
+        return true;
+    }
+
+    @Override
+    public void destroy() {
+        jobs.values().forEach(job -> job.cancelled.set(true));
+        executor.shutdownNow();
+    }
+
+    private void run(ReplayJob job) {
+        try {
+            if (job.request.isIncludeDeadLettered()) {
+                drainDeadLetters(job);
+            }
+            if (job.request.isIncludeFailed()) {
+                replayFailed(job);
+            }
+            job.finish(job.cancelled.get() ? Status.CANCELLED : Status.COMPLETED, null);
+        } catch (RuntimeException e) {
+            log.error("Replay job {} failed", job.id, e);
+            job.finish(Status.FAILED, e.getMessage());
+        }
+        log.info("Replay job {} {}: {} reset, {} enqueued, {} dead letters drained",
+                job.id, job.status, job.reset.get(), job.enqueued.get(), job.deadLettersDrained.get());
+    }
+
+    private void replayFailed(ReplayJob job) {
+        long afterId = 0;
+        while (!job.done()) {
+            List<Long> ids = replayRepository.findFailed(job.request, afterId, job.nextBatchSize(batchSize));
+            if (ids.isEmpty()) {
+                return;
+            }
+            afterId = ids.get(ids.size() - 1);
+            job.matched.addAndGet(ids.size());
+            replay(job, ids);
+        }
+    }
+
+    /**
+     * Take messages off the dead-letter queue a batch at a time on one channel. Those whose email matches
+     * the filter are replayed and acked; the rest stay unacked until the drain ends, so they are not
+     * fetched again, and then go back to the queue. The drain ends early once {@code max-held-dead-letters}
+     * are held or the first was held for {@code max-hold-time}, well within the broker's consumer timeout;
+     * what is left is picked up by a later job.
+     */
+    private void drainDeadLetters(ReplayJob job) {
+        rabbitTemplate.execute(channel -> {
+            DefaultMessagePropertiesConverter propertiesConverter = new DefaultMessagePropertiesConverter();
+            List<Long> keptTags = new ArrayList<>();
+            long holdingSince = 0;
+            try {
+                while (!job.done()) {
+                    if (!keptTags.isEmpty() && (keptTags.size() >= maxHeldDeadLetters
+                            || System.nanoTime() - holdingSince > TimeUnit.MILLISECONDS.toNanos(maxHoldTimeMs))) {
+                        log.info("Replay job {} stops draining {} with {} dead letters held back",
+                                job.id, dlqName, keptTags.size());
+                        break;
+                    }
+                    Map<Long, Long> tagsByEmail = new HashMap<>();
+                    List<Long> unreadable = new ArrayList<>();
+                    List<Long> duplicates = new ArrayList<>();
+                    int wanted = job.nextBatchSize(batchSize);
+                    GetResponse response;
+                    while (tagsByEmail.size() + unreadable.size() + duplicates.size() < wanted
+                           && (response = channel.basicGet(dlqName, false)) != null) {
+                        long tag = response.getEnvelope().getDeliveryTag();
+                        Long emailId = emailIdOf(response, propertiesConverter);
+                        if (emailId == null) {
+                            unreadable.add(tag);
+                        } else if (tagsByEmail.putIfAbsent(emailId, tag) != null) {
+                            duplicates.add(tag);
+                        }
+                    }
+                    if (tagsByEmail.isEmpty() && unreadable.isEmpty() && duplicates.isEmpty()) {
+                        break;
+                    }
+
+                    Map<Long, Boolean> matches = replayRepository.matchFilter(job.request, tagsByEmail.keySet());
+                    List<Long> matching = matches.entrySet().stream()
+                            .filter(Map.Entry::getValue)
+                            .map(Map.Entry::getKey)
+                            .toList();
+                    job.matched.addAndGet(matching.size());
+                    // Only FAILED emails are reset. Matching ones already sent or in flight are dropped;
+                    // those still queued, or left unreset by a cancel, keep their dead letter
+                    Set<Long> replayed = new HashSet<>(replay(job, matching));
+                    Set<Long> pending = new HashSet<>(replayRepository.findPending(
+                            matching.stream().filter(id -> !replayed.contains(id)).toList()));
+                    int keptBefore = keptTags.size();
+                    for (Map.Entry<Long, Long> entry : tagsByEmail.entrySet()) {
+                        Long emailId = entry.getKey();
+                        if (!matches.getOrDefault(emailId, true) || pending.contains(emailId)) {
+                            keptTags.add(entry.getValue());
+                        } else {
+                            // Replayed, already sent, or the email no longer exists
+                            channel.basicAck(entry.getValue(), false);
+                            job.deadLettersDrained.incrementAndGet();
+                        }
+                    }
+                    for (Long tag : duplicates) {
+                        channel.basicAck(tag, false);
+                        job.deadLettersDrained.incrementAndGet();
+                    }
+                    keptTags.addAll(unreadable);
+                    if (keptBefore == 0 && !keptTags.isEmpty()) {
+                        holdingSince = System.nanoTime();
+                    }
+                }
+            } finally {
+                for (Long tag : keptTags) {
+                    channel.basicNack(tag, false, true);
+                }
+                job.deadLettersSkipped.addAndGet(keptTags.size());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Reset and queue the emails at the job's rate, a chunk per transaction; returns the IDs replayed.
+     * Stops between chunks when the job is cancelled.
+     */
+    private List<Long> replay(ReplayJob job, List<Long> ids) {
+        int chunkSize = Math.max(1, job.ratePerSecond / CHUNKS_PER_SECOND);
+        List<Long> replayed = new ArrayList<>(ids.size());
+        for (int from = 0; from < ids.size() && !job.cancelled.get(); from += chunkSize) {
+            List<Long> chunk = ids.subList(from, Math.min(ids.size(), from + chunkSize));
+            job.pace(chunk.size());
+            List<Long> reset = transactionTemplate.execute(status -> {
+                List<Long> resetIds = replayRepository.resetForReplay(chunk, DETAIL);
+                List<Email> emails = emailService.getEmailsForSending(resetIds);
+                emailService.enqueueAllOnCommit(emails);
+                return resetIds;
+            });
+            job.reset.addAndGet(reset.size());
+            job.enqueued.addAndGet(reset.size());
+            replayedCounter.increment(reset.size());
+            replayed.addAll(reset);
+        }
+        return replayed;
+    }
+
+    private Long emailIdOf(GetResponse response, DefaultMessagePropertiesConverter propertiesConverter) {
+        try {
+            MessageProperties properties = propertiesConverter.toMessageProperties(
+                    response.getProps(), response.getEnvelope(), "UTF-8");
+            Object payload = rabbitTemplate.getMessageConverter().fromMessage(new Message(response.getBody(), properties));
+            if (payload instanceof SendEnvelope envelope) {
+                return envelope.emailId();
+            }
+            return payload instanceof Number number ? number.longValue() : null;
+        } catch (RuntimeException e) {
+            log.warn("Unreadable message on {}: {}", dlqName, e.getMessage());
+            return null;
+        }
+    }
+
+    private void pruneHistory() {
+        List<ReplayJob> finished = jobs.values().stream()
+                .filter(job -> job.status != Status.RUNNING)
+                .sorted(Comparator.comparing((ReplayJob job) -> job.startedAt))
+                .toList();
+        for (int i = 0; i < finished.size() - history; i++) {
+            jobs.remove(finished.get(i).id);
+        }
+    }
+
+    private enum Status {
+        RUNNING, COMPLETED, CANCELLED, FAILED
+    }
+
+    private static final class ReplayJob {
+
+        private final String id;
+        private final ReplayRequest request;
+        private final int ratePerSecond;
+        private final long intervalNanos;
+        private final LocalDateTime startedAt = LocalDateTime.now();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final AtomicLong matched = new AtomicLong();
+        private final AtomicLong reset = new AtomicLong();
+        private final AtomicLong enqueued = new AtomicLong();
+        private final AtomicLong deadLettersDrained = new AtomicLong();
+        private final AtomicLong deadLettersSkipped = new AtomicLong();
+        private volatile Status status = Status.RUNNING;
+        private volatile LocalDateTime finishedAt;
+        private volatile String error;
+        private long nextSendNanos = System.nanoTime();
+
+        private ReplayJob(String id, ReplayRequest request, int ratePerSecond) {
+            this.id = id;
+            this.request = request;
+            this.ratePerSecond = ratePerSecond;
+            this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, ratePerSecond);
+        }
+
+        private boolean done() {
+            return cancelled.get() || (request.getLimit() != null && matched.get() >= request.getLimit());
+        }
+
+        private int nextBatchSize(int batchSize) {
+            return request.getLimit() == null ? batchSize
+                    : (int) Math.max(0, Math.min(batchSize, request.getLimit() - matched.get()));
+        }
+
+        /**
+         * Wait for the next free slot and take {@code sends} slots from it; slots missed while the job
+         * was busy are not made up in a burst
+         */
+        private void pace(int sends) {
+            long now = System.nanoTime();
+            if (nextSendNanos < now) {
+                nextSendNanos = now;
+            }
+            long remaining;
+            while ((remaining = nextSendNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+            nextSendNanos += intervalNanos * sends;
+        }
+
+        private void finish(Status status, String error) {
+            this.error = error;
+            this.finishedAt = LocalDateTime.now();
+            this.status = status;
+        }
+
+        private ReplayJobResponse toResponse() {
+            return ReplayJobResponse.builder()
+                    .id(id)
+                    .status(status.name())
+                    .request(request)
+                    .matched(matched.get())
+                    .reset(reset.get())
+                    .enqueued(enqueued.get())
+                    .deadLettersDrained(deadLettersDrained.get())
+                    .deadLettersSkipped(deadLettersSkipped.get())
+                    .ratePerSecond(ratePerSecond)
+                    .startedAt(startedAt)
+                    .finishedAt(finishedAt)
+                    .error(error)
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.octopus.email_service.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.octopus.email_service.config.RabbitMQConfig;
+import com.octopus.email_service.entity.Email;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Schedules failed emails for another attempt through tiered TTL retry queues.
+ * The tier is chosen from the number of attempts already made and the delay is jittered
+ * so that emails failing together during a relay outage do not all come back at once.
+ * Also parks rate-limited emails until their reserved send slot, without counting an attempt.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class EmailRetryService {
+
+    public static final String NOT_BEFORE_HEADER = "x-not-before";
+
+    private final RabbitTemplate rabbitTemplate;
+    private final EmailService emailService;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${app.email.retry.exchange:email.exchange.retry}")
+    private String retryExchangeName;
+
+    @Value("${app.email.retry.queue-prefix:email.retry}")
+    private String retryQueuePrefix;
+
+    @Value("${app.email.retry.tiers:30000,120000,600000,3600000}")
+    private List<Long> retryTiers;
+
+    @Value("${app.email.retry.jitter:0.2}")
+    private double jitter;
+
+    @Value("${app.email.rate-limit.park-queue-prefix:email.parked}")
+    private String parkQueuePrefix;
+
+    @Value("${app.email.rate-limit.park-tiers:1000,5000,30000,300000,3600000}")
+    private List<Long> parkTiers;
+
+    /**
+     * Publish the email to the retry tier for its attempt count and record the schedule as an event
+     *
+     * @param email        the email to retry
+     * @param attemptsMade attempts made so far, including the one that just failed
+     * @param error        the error from the failed attempt
+     */
+    public void scheduleRetry(Email email, int attemptsMade, String error) {
+        Long emailId = email.getId();
+        Long tenantId = email.getTenant() != null ? email.getTenant().getId() : null;
+        int tier = tierFor(attemptsMade);
+        long baseDelay = retryTiers.get(tier);
+        long delay = jitteredDelay(baseDelay);
+        String queueName = RabbitMQConfig.retryQueueName(lanePrefix(email, retryQueuePrefix), baseDelay);
+
+        try {
+            rabbitTemplate.convertAndSend(retryExchangeName, queueName, emailService.queuePayload(email, attemptsMade), message -> {
+                message.getMessageProperties().setExpiration(String.valueOf(delay));
+                if (tenantId != null) {
+                    // Dead-lettering keeps headers, so the retry lands back in the tenant's lane
+                    message.getMessageProperties().setHeader(EmailService.TENANT_HEADER, tenantId);
+                }
+                return message;
+            });
+        } catch (Exception e) {
+            log.error("Failed to schedule retry for email ID: {}", emailId, e);
+            return;
+        }
+
+        emailService.markRetryScheduled(emailId, describe(attemptsMade, queueName, delay, error));
+        meterRegistry.counter("email.retry.scheduled", "tier", queueName).increment();
+        log.info("Scheduled retry {} for email ID: {} via {} in {} ms", attemptsMade + 1, emailId, queueName, delay);
+    }
+
+    /**
+     * Hold a rate-limited email in a parking queue until about {@code notBefore}. The reservation
+     * travels with the message, so the email is not charged for another slot when it comes back.
+     */
+    public void park(Email email, long notBefore) {
+        long delay = parkDelay(notBefore - System.currentTimeMillis());
+        String queueName = RabbitMQConfig.retryQueueName(lanePrefix(email, parkQueuePrefix), delay);
+        Long tenantId = email.getTenant() != null ? email.getTenant().getId() : null;
+
+        rabbitTemplate.convertAndSend(retryExchangeName, queueName, emailService.queuePayload(email), message -> {
+            message.getMessageProperties().setHeader(NOT_BEFORE_HEADER, notBefore);
+            if (tenantId != null) {
+                message.getMessageProperties().setHeader(EmailService.TENANT_HEADER, tenantId);
+            }
+            return message;
+        });
+        log.debug("Parked email ID: {} in {} until {}", email.getId(), queueName, notBefore);
+    }
+
+    /**
+     * Park an email the receiving side throttled mid-send, refunding the attempt it was charged
+     */
+    public void defer(Email email, long notBefore, String error) {
+        Map<String, Object> detail = new LinkedHashMap<>();
+        detail.put("not_before", notBefore);
+        detail.put("error", error);
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(detail);
+        } catch (JsonProcessingException e) {
+            log.error("Failed to serialize deferral detail", e);
+            json = null;
+        }
+
+        park(email, notBefore);
+        emailService.markDeferred(email.getId(), error, json);
+        meterRegistry.counter("email.ratelimit.deferred").increment();
+    }
+
+    /**
+     * Largest parking tier that does not overshoot the wait, so parked emails come back slightly
+     * early and park again for the remainder; waits shorter than the smallest tier take that tier
+     */
+    long parkDelay(long wait) {
+        long chosen = Collections.min(parkTiers);
+        for (Long tier : parkTiers) {
+            if (tier <= wait && tier > chosen) {
+                chosen = tier;
+            }
+        }
+        return chosen;
+    }
+
+    int tierFor(int attemptsMade) {
+        return Math.max(0, Math.min(attemptsMade - 1, retryTiers.size() - 1));
+    }
+
+    long jitteredDelay(long baseDelay) {
+        double factor = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(1, Math.round(baseDelay * factor));
+    }
+
+    /**
+     * Express emails wait in their own delay queues, which dead-letter back into the express lane
+     */
+    private String lanePrefix(Email email, String prefix) {
+        return emailService.isExpress(email) ? RabbitMQConfig.expressPrefix(prefix) : prefix;
+    }
+
+    private String describe(int attemptsMade, String queueName, long delay, String error) {
+        Map<String, Object> detail = new LinkedHashMap<>();
+        detail.put("attempt", attemptsMade);
+        detail.put("next_attempt", attemptsMade + 1);
+        detail.put("tier", queueName);
+        detail.put("delay_ms", delay);
+        detail.put("retry_at", LocalDateTime.now().plusNanos(delay * 1_000_000).toString());
+        detail.put("error", error);
+        try {
+            return objectMapper.writeValueAsString(detail);
+        } catch (JsonProcessingException e) {
+            log.error("Failed to serialize retry detail", e);
+            return null;
+        }
+    }
+}
@@ -12,25 +12,37 @@ import com.octopus.email_service.entity.Email;
 import com.octopus.email_service.entity.EmailEvent;
 import com.octopus.email_service.entity.EmailTenant;
 import com.octopus.email_service.entity.Template;
+import com.octopus.email_service.enums.EmailPriority;
 import com.octopus.email_service.enums.EmailStatus;
 import com.octopus.email_service.enums.EventType;
+import com.octopus.email_service.mail.SendEnvelope;
 import com.octopus.email_service.repository.AttachmentRepository;
 import com.octopus.email_service.repository.EmailEventRepository;
+import com.octopus.email_service.repository.EmailOutboxRepository;
+import com.octopus.email_service.repository.EmailOutboxRepository.OutboxMessage;
 import com.octopus.email_service.repository.EmailRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Hibernate;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -39,6 +51,8 @@ import java.util.UUID;
 @Slf4j
 public class EmailService {
     
+    public static final String TENANT_HEADER = "x-tenant-id";
+    
     private final EmailRepository emailRepository;
     private final EmailEventRepository emailEventRepository;
     private final AttachmentRepository attachmentRepository;
@@ -47,6 +61,8 @@ public class EmailService {
     private final EmailTenantService emailTenantService;
     private final RabbitTemplate rabbitTemplate;
     private final ObjectMapper objectMapper;
+    private final QueueShardRouter queueShardRouter;
+    private final EmailOutboxRepository emailOutboxRepository;
     
     @Value("${app.email.queue.name:email.queue}")
     private String emailQueueName;
@@ -57,6 +73,24 @@ public class EmailService {
     @Value("${app.email.routing.key:email.send}")
     private String emailRoutingKey;
     
+    @Value("${app.email.envelope.enabled:false}")
+    private boolean envelopeEnabled;
+    
+    @Value("${app.email.templates.render.max-variables-chars:262144}")
+    private int maxTemplateVarsChars;
+    
+    @Value("${app.email.express.enabled:false}")
+    private boolean expressEnabled;
+    
+    @Value("${app.email.outbox.enabled:false}")
+    private boolean outboxEnabled;
+    
+    @Value("${app.email.scheduling.enabled:false}")
+    private boolean schedulingEnabled;
+    
+    @Value("${app.email.express.routing-key:email.send.express}")
+    private String expressRoutingKey;
+    
     @Transactional
     public EmailResponse sendEmail(EmailRequest request) {
         // Validate template if provided
@@ -92,25 +126,21 @@ public class EmailService {
                 .status(EmailStatus.ENQUEUED)
                 .isHtmlBody(isHtmlBody)
                 .needsFallbackTemplate(needsFallbackTemplate)
+                .priority(request.getPriority() != null ? request.getPriority() : EmailPriority.NORMAL)
                 .build();
+        applySchedule(email, request);
         
         Email savedEmail = emailRepository.save(email);
         
         // Create initial event
-        createEmailEvent(savedEmail, EventType.ENQUEUED, null);
-        
-        // Send to queue after transaction commits to avoid race condition
-        // We'll use the email ID that's already been saved
-        final Long emailIdToQueue = savedEmail.getId();
-        
-        // Use TransactionSynchronization to send to queue after commit
-        org.springframework.transaction.support.TransactionSynchronizationManager
-            .registerSynchronization(new org.springframework.transaction.support.TransactionSynchronization() {
-                @Override
-                public void afterCommit() {
-                    sendToQueue(emailIdToQueue);
-                }
-            });
+        createEmailEvent(savedEmail, EventType.ENQUEUED, scheduleDetail(savedEmail));
+        if (savedEmail.getStatus() == EmailStatus.SCHEDULED) {
+            // Released to the queue by the scheduled-send engine when due
+            return EmailResponse.fromEntity(savedEmail);
+        }
+        
+        // Publish once the transaction commits, so the worker never sees an uncommitted email
+        enqueueOnCommit(savedEmail.getId(), queuePayload(savedEmail), routingKeyFor(savedEmail), null);
         
         log.info("Email enqueued with ID: {} for recipients: {} with {} attachments", 
                 savedEmail.getId(), String.join(", ", request.getTo()), 
@@ -151,6 +181,7 @@ public class EmailService {
         
         // Create email entity
         Email email = Email.builder()
+                .tenant(tenant)
                 .fromAddress(effectiveSenderAddress)
                 .replyToAddress(effectiveReplyToAddress)
                 .toAddresses(request.getTo())
@@ -164,24 +195,22 @@ public class EmailService {
                 .status(EmailStatus.ENQUEUED)
                 .isHtmlBody(isHtmlBody)
                 .needsFallbackTemplate(needsFallbackTemplate)
+                .priority(request.getPriority() != null ? request.getPriority() : EmailPriority.NORMAL)
                 .build();
+        applySchedule(email, request);
         
         Email savedEmail = emailRepository.save(email);
         
         // Create initial event
-        createEmailEvent(savedEmail, EventType.ENQUEUED, null);
-        
-        // Send to queue after transaction commits to avoid race condition
-        final Long emailIdToQueue = savedEmail.getId();
+        createEmailEvent(savedEmail, EventType.ENQUEUED, scheduleDetail(savedEmail));
+        if (savedEmail.getStatus() == EmailStatus.SCHEDULED) {
+            // Released to the queue by the scheduled-send engine when due
+            return EmailResponse.fromEntity(savedEmail);
+        }
         
-        // Use TransactionSynchronization to send to queue after commit
-        org.springframework.transaction.support.TransactionSynchronizationManager
-            .registerSynchronization(new org.springframework.transaction.support.TransactionSynchronization() {
-                @Override
-                public void afterCommit() {
-                    sendToQueue(emailIdToQueue);
-                }
-            });
+        // Publish once the transaction commits, so the worker never sees an uncommitted email
+        enqueueOnCommit(savedEmail.getId(), queuePayload(savedEmail), routingKeyFor(savedEmail),
+                tenant != null ? tenant.getId() : null);
         
         log.info("Email enqueued with ID: {} for recipients: {} from tenant: {} with {} attachments", 
                 savedEmail.getId(), String.join(", ", request.getTo()), 
@@ -216,13 +245,32 @@ public class EmailService {
                 .map(EmailResponse::fromEntity);
     }
     
+    /**
+     * Load a batch of emails for sending with their template and recipient collections initialized,
+     * so they can be used outside the persistence context
+     */
+    @Transactional(readOnly = true)
+    public List<Email> getEmailsForSending(Collection<Long> emailIds) {
+        List<Email> emails = emailRepository.findAllWithTemplateByIdIn(emailIds);
+        emails.forEach(email -> {
+            Hibernate.initialize(email.getCcAddresses());
+            Hibernate.initialize(email.getBccAddresses());
+        });
+        return emails;
+    }
+    
     public List<Email> getEmailsForProcessing() {
         return emailRepository.findEmailsForProcessing(EmailStatus.ENQUEUED, LocalDateTime.now());
     }
     
     @Transactional
     public void updateEmailStatus(Long emailId, EmailStatus status, String error) {
-        emailRepository.updateEmailStatusAndAttempts(emailId, status, error);
+        // Only a transition to SENDING counts as a delivery attempt
+        if (status == EmailStatus.SENDING) {
+            emailRepository.updateEmailStatusAndAttempts(emailId, status, error);
+        } else {
+            emailRepository.updateEmailStatus(emailId, status, error);
+        }
         
         Email email = emailRepository.findById(emailId).orElse(null);
         if (email != null) {
@@ -240,6 +288,141 @@ public class EmailService {
         }
     }
     
+    /**
+     * Hold the email in SCHEDULED when it asks to be sent later or paced in a drip group
+     */
+    private void applySchedule(Email email, EmailRequest request) {
+        LocalDateTime now = LocalDateTime.now();
+        boolean later = request.getScheduledAt() != null && request.getScheduledAt().isAfter(now);
+        if (!later && request.getDripGroup() == null) {
+            return;
+        }
+        if (!schedulingEnabled) {
+            throw new IllegalArgumentException("Scheduled sending is not enabled");
+        }
+        email.setStatus(EmailStatus.SCHEDULED);
+        email.setScheduledAt(later ? request.getScheduledAt() : now);
+        email.setDripGroup(request.getDripGroup());
+        email.setDripPerHour(request.getDripPerHour());
+    }
+    
+    private static String scheduleDetail(Email email) {
+        if (email.getStatus() != EmailStatus.SCHEDULED) {
+            return null;
+        }
+        return email.getDripGroup() != null
+                ? "Scheduled for " + email.getScheduledAt() + " in drip group " + email.getDripGroup()
+                : "Scheduled for " + email.getScheduledAt();
+    }
+    
+    /**
+     * Release due scheduled emails to the queue. Each is moved out of SCHEDULED conditionally, so when
+     * several nodes hold the same schedule only one of them queues it.
+     *
+     * @return the number released by this call
+     */
+    @Transactional
+    public int releaseScheduled(Collection<Long> emailIds) {
+        List<Long> released = emailIds.stream()
+                .filter(id -> emailRepository.releaseScheduled(id) > 0)
+                .toList();
+        if (released.isEmpty()) {
+            return 0;
+        }
+        for (Email email : emailRepository.findAllWithTemplateByIdIn(released)) {
+            createEmailEvent(email, EventType.ENQUEUED, "Released from schedule");
+            enqueueOnCommit(email.getId(), queuePayload(email), routingKeyFor(email),
+                    email.getTenant() != null ? email.getTenant().getId() : null);
+        }
+        return released.size();
+    }
+    
+    /**
+     * Move an email to SENDING under a send lease, or return false if it is already sent or leased
+     * by another worker and this delivery is a duplicate. Commits on its own, so the lease is visible
+     * to heartbeats and other workers before the relay is contacted.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public boolean claimForSending(Long emailId, String owner, long leaseMillis) {
+        if (emailRepository.claimForSending(emailId, owner, leaseMillis) == 0) {
+            return false;
+        }
+        createEmailEvent(emailRepository.getReferenceById(emailId), EventType.SENDING, null);
+        return true;
+    }
+    
+    /**
+     * Requeue an email whose send lease expired because its worker died mid-send. The lost attempt
+     * stays counted, so an email that keeps killing workers eventually fails.
+     */
+    @Transactional
+    public boolean recoverExpiredLease(Long emailId) {
+        if (emailRepository.releaseExpiredLease(emailId, "Send lease expired") == 0) {
+            return false;
+        }
+        Email email = emailRepository.findById(emailId).orElse(null);
+        if (email == null) {
+            return false;
+        }
+        if (email.getAttempts() >= email.getMaxAttempts()) {
+            updateEmailStatus(emailId, EmailStatus.FAILED, "Send lease expired after " + email.getAttempts() + " attempts");
+            return true;
+        }
+        createEmailEvent(email, EventType.RETRY_SCHEDULED, "Send lease expired, requeued");
+        enqueueOnCommit(emailId, queuePayload(email), routingKeyFor(email),
+                email.getTenant() != null ? email.getTenant().getId() : null);
+        return true;
+    }
+    
+    /**
+     * Put a failed email back in ENQUEUED while it waits in a retry queue, keeping its last error
+     */
+    @Transactional
+    public void markRetryScheduled(Long emailId, String detail) {
+        emailRepository.updateStatus(emailId, EmailStatus.ENQUEUED);
+        createEmailEvent(emailRepository.getReferenceById(emailId), EventType.RETRY_SCHEDULED, detail);
+    }
+    
+    /**
+     * Put an email back in ENQUEUED after the receiver asked us to slow down, without counting the attempt
+     */
+    @Transactional
+    public void markDeferred(Long emailId, String error, String detail) {
+        emailRepository.updateEmailStatusAndRefundAttempt(emailId, EmailStatus.ENQUEUED, error);
+        createEmailEvent(emailRepository.getReferenceById(emailId), EventType.DEFERRED, detail);
+    }
+    
+    /**
+     * Give an email a fresh set of attempts and queue it again; a stored message is reused as-is
+     */
+    @Transactional
+    public void requeueEmail(Long emailId) {
+        Email email = emailRepository.findById(emailId)
+                .orElseThrow(() -> new IllegalArgumentException("Email not found: " + emailId));
+        if (email.getStatus() == EmailStatus.SENDING) {
+            throw new IllegalStateException("Email is currently being sent: " + emailId);
+        }
+        
+        emailRepository.resetForRetry(emailId, EmailStatus.ENQUEUED);
+        createEmailEvent(email, EventType.ENQUEUED, "Requeued by admin");
+        
+        enqueueOnCommit(emailId, queuePayload(email, 0), routingKeyFor(email),
+                email.getTenant() != null ? email.getTenant().getId() : null);
+    }
+    
+    /**
+     * Point the email at its stored, fully assembled message so later attempts skip rendering, or
+     * clear it with {@code null} once the stored message has been deleted
+     */
+    @Transactional
+    public void attachStoredMessage(Long emailId, String mimeObjectKey) {
+        emailRepository.updateMimeObjectKey(emailId, mimeObjectKey);
+    }
+    
+    public long getDeferralCount(Long emailId) {
+        return emailEventRepository.countByEmailIdAndEventType(emailId, EventType.DEFERRED);
+    }
+    
     @Transactional
     public void markAsDelivered(Long emailId) {
         emailRepository.markAsDelivered(emailId, EmailStatus.DELIVERED, LocalDateTime.now());
@@ -258,9 +441,111 @@ public class EmailService {
         return emailRepository.countCreatedSince(since);
     }
     
-    private void sendToQueue(Long emailId) {
+    /**
+     * Queue message body for an email: its ID, or with {@code app.email.envelope.enabled=true} a
+     * {@link SendEnvelope} carrying everything the worker needs to send it without reading the row
+     */
+    public Object queuePayload(Email email) {
+        return envelopeEnabled ? SendEnvelope.of(email) : email.getId();
+    }
+    
+    public Object queuePayload(Email email, int attempts) {
+        return envelopeEnabled ? SendEnvelope.of(email, attempts) : email.getId();
+    }
+    
+    /**
+     * Publish a committed email to its queue straight away, outside any transaction
+     */
+    public void enqueueNow(Email email) {
+        sendToQueue(email.getId(), queuePayload(email), routingKeyFor(email),
+                email.getTenant() != null ? email.getTenant().getId() : null);
+    }
+    
+    /**
+     * Whether the email travels in the express lane, which has its own queue, consumers and SMTP connections
+     */
+    public boolean isExpress(Email email) {
+        return expressEnabled && email.getPriority() == EmailPriority.HIGH;
+    }
+    
+    private String routingKeyFor(Email email) {
+        if (isExpress(email)) {
+            return expressRoutingKey;
+        }
+        return queueShardRouter.isEnabled() ? queueShardRouter.routingKey(queueShardRouter.shardFor(email)) : emailRoutingKey;
+    }
+    
+    /**
+     * Queue the email when the current transaction commits. With {@code app.email.outbox.enabled=true}
+     * the message is written to the outbox in this transaction and published by the outbox relay;
+     * otherwise it is published directly after commit and a failed publish fails the email.
+     */
+    private void enqueueOnCommit(Long emailId, Object payload, String routingKey, Long tenantId) {
+        if (outboxEnabled) {
+            Message message = rabbitTemplate.getMessageConverter().toMessage(payload, new MessageProperties());
+            emailOutboxRepository.insert(emailId, tenantId, routingKey,
+                    message.getMessageProperties().getContentType(),
+                    serializeHeaders(message.getMessageProperties().getHeaders()),
+                    message.getBody());
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                sendToQueue(emailId, payload, routingKey, tenantId);
+            }
+        });
+    }
+    
+    /**
+     * Queue a batch of emails written in the current transaction when it commits, the way
+     * {@link #enqueueOnCommit} does for one: as one batch of outbox rows, or published after commit
+     */
+    void enqueueAllOnCommit(List<Email> emails) {
+        if (emails.isEmpty()) {
+            return;
+        }
+        if (outboxEnabled) {
+            List<OutboxMessage> messages = new ArrayList<>(emails.size());
+            for (Email email : emails) {
+                Message message = rabbitTemplate.getMessageConverter().toMessage(queuePayload(email), new MessageProperties());
+                messages.add(new OutboxMessage(email.getId(),
+                        email.getTenant() != null ? email.getTenant().getId() : null,
+                        routingKeyFor(email),
+                        message.getMessageProperties().getContentType(),
+                        serializeHeaders(message.getMessageProperties().getHeaders()),
+                        message.getBody()));
+            }
+            emailOutboxRepository.insertAll(messages);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                emails.forEach(EmailService.this::enqueueNow);
+            }
+        });
+    }
+    
+    private String serializeHeaders(Map<String, Object> headers) {
+        if (headers.isEmpty()) {
+            return null;
+        }
+        try {
+            return objectMapper.writeValueAsString(headers);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to serialize message headers", e);
+        }
+    }
+    
+    private void sendToQueue(Long emailId, Object payload, String routingKey, Long tenantId) {
         try {
-            rabbitTemplate.convertAndSend(emailExchangeName, emailRoutingKey, emailId);
+            rabbitTemplate.convertAndSend(emailExchangeName, routingKey, payload, message -> {
+                if (tenantId != null) {
+                    message.getMessageProperties().setHeader(TENANT_HEADER, tenantId);
+                }
+                return message;
+            });
             log.debug("Email ID {} sent to queue", emailId);
         } catch (Exception e) {
             log.error("Failed to send email ID {} to queue", emailId, e);
@@ -282,20 +567,33 @@ public class EmailService {
         }
     }
     
-    private String serializeTemplateVars(Object templateVars) {
+    String serializeTemplateVars(Object templateVars) {
         if (templateVars == null) {
             return null;
         }
+        String json;
         try {
-            return objectMapper.writeValueAsString(templateVars);
+            json = objectMapper.writeValueAsString(templateVars);
         } catch (JsonProcessingException e) {
             log.error("Failed to serialize template variables", e);
             return null;
         }
+        if (exceedsTemplateVarsLimit(json)) {
+            throw new IllegalArgumentException("Template variables exceed the limit of " + maxTemplateVarsChars + " characters");
+        }
+        return json;
+    }
+    
+    /**
+     * Whether serialized template variables are longer than {@code max-variables-chars}, which bounds
+     * what a single render is handed
+     */
+    boolean exceedsTemplateVarsLimit(String templateVarsJson) {
+        return maxTemplateVarsChars > 0 && templateVarsJson != null && templateVarsJson.length() > maxTemplateVarsChars;
     }
     
     
-    private List<Attachment> processEmailAttachments(List<EmailAttachmentDto> emailAttachments, String createdBy) {
+    List<Attachment> processEmailAttachments(List<EmailAttachmentDto> emailAttachments, String createdBy) {
         List<Attachment> processedAttachments = new ArrayList<>();
         
         for (EmailAttachmentDto emailAttachment : emailAttachments) {
@@ -349,7 +647,7 @@ public class EmailService {
         return processedAttachments;
     }
     
-    private String serializeProcessedAttachments(List<Attachment> attachments) {
+    String serializeProcessedAttachments(List<Attachment> attachments) {
         if (attachments == null || attachments.isEmpty()) {
             return null;
         }
@@ -412,6 +710,7 @@ public class EmailService {
             case DELIVERED -> EventType.DELIVERED;
             case FAILED -> EventType.FAILED;
             case BOUNCED -> EventType.BOUNCED;
+            case SCHEDULED -> EventType.ENQUEUED;
         };
     }
     
@@ -462,7 +761,7 @@ public class EmailService {
     /**
      * Determine the effective sender address based on tenant configuration
      */
-    private String determineSenderAddress(String requestedFrom, EmailTenant tenant) {
+    String determineSenderAddress(String requestedFrom, EmailTenant tenant) {
         if (tenant == null) {
             // No tenant - use provided from address (for individual users)
             return requestedFrom;
@@ -497,7 +796,7 @@ public class EmailService {
     /**
      * Determine the effective reply-to address based on tenant configuration
      */
-    private String determineReplyToAddress(String requestedFrom, EmailTenant tenant) {
+    String determineReplyToAddress(String requestedFrom, EmailTenant tenant) {
         if (tenant == null) {
             // No tenant - no specific reply-to address
             return null;
@@ -191,4 +191,19 @@ public class EmailTenantService {
         log.info("Updated tenant: {}", updatedTenant.getTenantCode());
         return updatedTenant;
     }
+    
+    /**
+     * Update the tenant's share of worker capacity used by fair scheduling
+     */
+    @Transactional
+    public EmailTenant updateSchedulingWeight(Long tenantId, Integer schedulingWeight) {
+        EmailTenant tenant = tenantRepository.findById(tenantId)
+                .orElseThrow(() -> new IllegalArgumentException("Tenant not found: " + tenantId));
+        
+        tenant.setSchedulingWeight(schedulingWeight);
+        
+        EmailTenant updatedTenant = tenantRepository.save(tenant);
+        log.info("Updated scheduling weight for tenant {} to {}", updatedTenant.getTenantCode(), schedulingWeight);
+        return updatedTenant;
+    }
 }
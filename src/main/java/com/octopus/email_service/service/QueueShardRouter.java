@@ -0,0 +1,87 @@
+package com.octopus.email_service.service;
+
+import com.octopus.email_service.config.RabbitMQConfig;
+import com.octopus.email_service.entity.Email;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Maps emails onto a fixed number of sharded queues by a hash of the recipient domain or tenant,
+ * so all mail for one destination lands on the same shard and so on the node that owns it.
+ * Enabled with {@code app.email.sharding.enabled=true}.
+ */
+@Component
+public class QueueShardRouter {
+
+    @Getter
+    @Value("${app.email.sharding.enabled:false}")
+    private boolean enabled;
+
+    @Getter
+    @Value("${app.email.sharding.shards:8}")
+    private int shards;
+
+    @Value("${app.email.sharding.key:domain}")
+    private String key;
+
+    @Value("${app.email.sharding.queue-prefix:email.queue.shard}")
+    private String queuePrefix;
+
+    @Value("${app.email.sharding.routing-key-prefix:email.send.shard}")
+    private String routingKeyPrefix;
+
+    public int shardFor(Email email) {
+        return shardOf(shardKey(email), shards);
+    }
+
+    public String routingKey(int shard) {
+        return RabbitMQConfig.shardName(routingKeyPrefix, shard);
+    }
+
+    public String queueName(int shard) {
+        return RabbitMQConfig.shardName(queuePrefix, shard);
+    }
+
+    /**
+     * Recipient domain of the first To address, or the tenant with {@code key=tenant}
+     */
+    String shardKey(Email email) {
+        if ("tenant".equalsIgnoreCase(key)) {
+            return email.getTenant() != null ? "tenant:" + email.getTenant().getId() : "tenant:none";
+        }
+        List<String> to = email.getToAddresses();
+        if (to == null || to.isEmpty()) {
+            return "";
+        }
+        String address = to.get(0);
+        int at = address.lastIndexOf('@');
+        return (at >= 0 ? address.substring(at + 1) : address).trim().toLowerCase(Locale.ROOT);
+    }
+
+    public static int shardOf(String key, int shards) {
+        return (int) Math.floorMod(hash(key), (long) shards);
+    }
+
+    /**
+     * 64-bit FNV-1a with a final avalanche step, so similar domains still spread evenly across shards
+     */
+    public static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    public static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
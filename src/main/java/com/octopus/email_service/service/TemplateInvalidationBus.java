@@ -0,0 +1,106 @@
+package com.octopus.email_service.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Tells the other nodes that a template changed, over a Redis pub/sub channel, so they drop their
+ * cached copies too. Messages are fire-and-forget: a node that misses one serves the old version
+ * until its cache entry expires after {@code app.email.templates.cache-ttl}.
+ */
+@Component
+@Slf4j
+public class TemplateInvalidationBus implements InitializingBean, DisposableBean {
+
+    /**
+     * A template that changed; {@code version} is the version that is no longer current
+     */
+    public record Invalidation(long templateId, String name, long version) {
+    }
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisConnectionFactory connectionFactory;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final List<Consumer<Invalidation>> listeners = new CopyOnWriteArrayList<>();
+    private RedisMessageListenerContainer container;
+
+    @Value("${app.email.templates.invalidation.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.email.templates.invalidation.channel:email.templates.invalidate}")
+    private String channel;
+
+    public TemplateInvalidationBus(StringRedisTemplate redisTemplate, RedisConnectionFactory connectionFactory) {
+        this.redisTemplate = redisTemplate;
+        this.connectionFactory = connectionFactory;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled) {
+            return;
+        }
+        container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.addMessageListener(this::onMessage, new ChannelTopic(channel));
+        container.afterPropertiesSet();
+        try {
+            container.start();
+        } catch (RuntimeException e) {
+            log.warn("Could not subscribe to template invalidations on {}, relying on cache expiry: {}", channel, e.getMessage());
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (container != null) {
+            container.destroy();
+        }
+    }
+
+    /**
+     * Called for invalidations published by other nodes
+     */
+    public void subscribe(Consumer<Invalidation> listener) {
+        listeners.add(listener);
+    }
+
+    public void publish(Invalidation invalidation) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            redisTemplate.convertAndSend(channel, String.join("|", nodeId,
+                    Long.toString(invalidation.templateId()), Long.toString(invalidation.version()), invalidation.name()));
+        } catch (RuntimeException e) {
+            log.warn("Failed to publish invalidation of template {}: {}", invalidation.name(), e.getMessage());
+        }
+    }
+
+    private void onMessage(Message message, byte[] pattern) {
+        String[] fields = new String(message.getBody(), StandardCharsets.UTF_8).split("\\|", 4);
+        if (fields.length < 4 || nodeId.equals(fields[0])) {
+            return;
+        }
+        try {
+            Invalidation invalidation = new Invalidation(Long.parseLong(fields[1]), fields[3], Long.parseLong(fields[2]));
+            listeners.forEach(listener -> listener.accept(invalidation));
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring malformed template invalidation on {}", channel);
+        }
+    }
+}
@@ -4,22 +4,60 @@ import com.octopus.email_service.dto.TemplateRequest;
 import com.octopus.email_service.dto.TemplateResponse;
 import com.octopus.email_service.entity.Template;
 import com.octopus.email_service.entity.User;
+import com.octopus.email_service.enums.BodyType;
+import com.octopus.email_service.mail.CompiledTemplateCache;
+import com.octopus.email_service.mail.TemplateCompiler;
 import com.octopus.email_service.repository.TemplateRepository;
+import com.octopus.email_service.repository.TemplateVersionRepository;
+import com.octopus.email_service.service.TemplateInvalidationBus.Invalidation;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
-public class TemplateService {
+public class TemplateService implements InitializingBean {
     
     private final TemplateRepository templateRepository;
+    private final TemplateVersionRepository templateVersionRepository;
+    private final CompiledTemplateCache compiledTemplateCache;
+    private final TemplateCompiler templateCompiler;
+    private final TemplateInvalidationBus templateInvalidationBus;
+    
+    // Active templates by name, least recently used first; entries expire so a missed
+    // invalidation from another node is not served for ever
+    private final LinkedHashMap<String, CachedTemplate> templatesByName = new LinkedHashMap<>(64, 0.75f, true);
+    
+    // Active templates resolved for queued send envelopes, by ID, bounded and expiring the same way
+    private final LinkedHashMap<Long, CachedTemplate> sendingTemplates = new LinkedHashMap<>(64, 0.75f, true);
+    
+    @Value("${app.email.templates.cache-size:500}")
+    private int cacheSize;
+    
+    @Value("${app.email.templates.cache-ttl:300000}")
+    private long cacheTtlMs;
+    
+    private record CachedTemplate(Template template, long loadedAt) {
+    }
+    
+    @Override
+    public void afterPropertiesSet() {
+        templateInvalidationBus.subscribe(invalidation ->
+                evictTemplate(invalidation.templateId(), invalidation.name(), invalidation.version()));
+    }
     
     @Transactional
     public TemplateResponse createTemplate(User user, TemplateRequest request) {
@@ -35,8 +73,10 @@ public class TemplateService {
                 .createdBy(user)
                 .isActive(request.getIsActive() != null ? request.getIsActive() : true)
                 .build();
+        compile(template);
         
         Template savedTemplate = templateRepository.save(template);
+        templateVersionRepository.insert(savedTemplate, user.getId());
         log.info("Created template: {} by user: {}", savedTemplate.getName(), user.getUsername());
         
         return TemplateResponse.fromEntity(savedTemplate);
@@ -59,8 +99,71 @@ public class TemplateService {
                 .map(TemplateResponse::fromEntity);
     }
     
+    /**
+     * Active template by name, served from memory while cached so enqueueing does not read it per email
+     */
     public Optional<Template> getTemplateEntityByName(String name) {
-        return templateRepository.findActiveByName(name);
+        long now = System.currentTimeMillis();
+        Template cached = cachedTemplate(templatesByName, name, now);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        Optional<Template> loaded = templateRepository.findActiveByName(name);
+        loaded.ifPresent(template -> cacheTemplate(templatesByName, name, template, now));
+        return loaded;
+    }
+    
+    /**
+     * Active template for a queued send envelope, reusing the copy loaded for earlier envelopes
+     * unless it has expired or this envelope was written against a newer version
+     */
+    public Optional<Template> getTemplateForSending(Long id, long version) {
+        long now = System.currentTimeMillis();
+        Template cached = cachedTemplate(sendingTemplates, id, now);
+        if (cached != null && versionOf(cached) >= version) {
+            return Optional.of(cached);
+        }
+        Optional<Template> loaded = templateRepository.findActiveById(id);
+        loaded.ifPresent(template -> cacheTemplate(sendingTemplates, id, template, now));
+        return loaded;
+    }
+    
+    private <K> Template cachedTemplate(LinkedHashMap<K, CachedTemplate> cache, K key, long now) {
+        synchronized (cache) {
+            CachedTemplate cached = cache.get(key);
+            return cached != null && now - cached.loadedAt() < cacheTtlMs ? cached.template() : null;
+        }
+    }
+    
+    private <K> void cacheTemplate(LinkedHashMap<K, CachedTemplate> cache, K key, Template template, long now) {
+        synchronized (cache) {
+            cache.put(key, new CachedTemplate(template, now));
+            Iterator<K> eldest = cache.keySet().iterator();
+            while (cache.size() > Math.max(1, cacheSize) && eldest.hasNext()) {
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+    
+    /**
+     * Version of a template's content; a version's content never changes
+     */
+    public static long versionOf(Template template) {
+        return template.getVersion() != null ? template.getVersion() : 0L;
+    }
+    
+    /**
+     * Drop every cached copy of a template on this node; {@code staleVersion} is the version replaced
+     */
+    public void evictTemplate(Long templateId, String name, long staleVersion) {
+        synchronized (templatesByName) {
+            templatesByName.remove(name);
+        }
+        synchronized (sendingTemplates) {
+            sendingTemplates.remove(templateId);
+        }
+        compiledTemplateCache.evict(templateId, staleVersion);
     }
     
     @Transactional
@@ -79,6 +182,13 @@ public class TemplateService {
             throw new IllegalArgumentException("Template name already exists: " + request.getName());
         }
         
+        // Content changes make a new version instead of changing the current one
+        boolean contentChanged = !template.getName().equals(request.getName())
+                || !Objects.equals(template.getSubjectTemplate(), request.getSubjectTemplate())
+                || !Objects.equals(template.getBodyTemplate(), request.getBodyTemplate())
+                || template.getBodyType() != request.getBodyType();
+        long staleVersion = versionOf(template);
+        
         template.setName(request.getName());
         template.setSubjectTemplate(request.getSubjectTemplate());
         template.setBodyTemplate(request.getBodyTemplate());
@@ -86,9 +196,18 @@ public class TemplateService {
         if (request.getIsActive() != null) {
             template.setIsActive(request.getIsActive());
         }
+        if (contentChanged) {
+            template.setVersion(template.getVersion() + 1);
+            compile(template);
+        }
         
         Template savedTemplate = templateRepository.save(template);
-        log.info("Updated template: {} by user: {}", savedTemplate.getName(), user.getUsername());
+        if (contentChanged) {
+            templateVersionRepository.insert(savedTemplate, user.getId());
+        }
+        invalidateOnCommit(new Invalidation(savedTemplate.getId(), name, staleVersion));
+        log.info("Updated template: {} to version {} by user: {}", savedTemplate.getName(),
+                savedTemplate.getVersion(), user.getUsername());
         
         return TemplateResponse.fromEntity(savedTemplate);
     }
@@ -105,6 +224,36 @@ public class TemplateService {
         
         template.setIsActive(false);
         templateRepository.save(template);
+        invalidateOnCommit(new Invalidation(template.getId(), template.getName(), versionOf(template)));
         log.info("Deactivated template: {} by user: {}", template.getName(), user.getUsername());
     }
+    
+    /**
+     * Precompute what is sent for the template's content, so sends only evaluate expressions
+     */
+    private void compile(Template template) {
+        if (template.getBodyType() != BodyType.HTML || template.getBodyTemplate() == null) {
+            template.setCompiledBody(null);
+            template.setTextBody(null);
+            return;
+        }
+        TemplateCompiler.Compiled compiled = templateCompiler.compile(template.getBodyTemplate());
+        template.setCompiledBody(compiled.html());
+        template.setTextBody(compiled.text());
+        log.debug("Compiled template {}: body {} -> {} chars", template.getName(),
+                template.getBodyTemplate().length(), compiled.html().length());
+    }
+    
+    /**
+     * Evict the template here and on the other nodes once the change is committed
+     */
+    private void invalidateOnCommit(Invalidation invalidation) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                evictTemplate(invalidation.templateId(), invalidation.name(), invalidation.version());
+                templateInvalidationBus.publish(invalidation);
+            }
+        });
+    }
 }
@@ -0,0 +1,129 @@
+package com.octopus.email_service.worker;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * Weighted deficit round robin over per-key FIFO lanes. Each time a lane reaches the head of the
+ * round it is credited {@code quantum * weight} items, so a lane with weight 3 is served three times
+ * as often as a lane with weight 1 while both are busy, and an idle lane gives its share away.
+ */
+public class DeficitRoundRobin<K, T> {
+
+    private final int quantum;
+    private final ToIntFunction<K> weights;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Map<K, Lane<T>> lanes = new HashMap<>();
+    private final ArrayDeque<K> round = new ArrayDeque<>();
+    private int size;
+
+    public DeficitRoundRobin(int quantum, ToIntFunction<K> weights) {
+        if (quantum < 1) {
+            throw new IllegalArgumentException("Quantum must be at least 1");
+        }
+        this.quantum = quantum;
+        this.weights = weights;
+    }
+
+    private static final class Lane<T> {
+        private final ArrayDeque<T> items = new ArrayDeque<>();
+        private long deficit;
+    }
+
+    public void offer(K key, T item) {
+        lock.lock();
+        try {
+            Lane<T> lane = lanes.computeIfAbsent(key, k -> new Lane<>());
+            if (lane.items.isEmpty()) {
+                lane.deficit = 0;
+                round.addLast(key);
+            }
+            lane.items.addLast(item);
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Next item in weighted round robin order, or {@code null} if every lane is empty
+     */
+    public T poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Next item in weighted round robin order, waiting up to the timeout for one to arrive
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size(K key) {
+        lock.lock();
+        try {
+            Lane<T> lane = lanes.get(key);
+            return lane == null ? 0 : lane.items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private T next() {
+        K key = round.peekFirst();
+        if (key == null) {
+            return null;
+        }
+        Lane<T> lane = lanes.get(key);
+        if (lane.deficit <= 0) {
+            lane.deficit += (long) quantum * Math.max(1, weights.applyAsInt(key));
+        }
+
+        T item = lane.items.pollFirst();
+        lane.deficit--;
+        size--;
+
+        if (lane.items.isEmpty()) {
+            // An emptied lane forfeits unused credit so it cannot burst when it becomes busy again
+            round.pollFirst();
+            lane.deficit = 0;
+        } else if (lane.deficit <= 0) {
+            round.addLast(round.pollFirst());
+        }
+        return item;
+    }
+}
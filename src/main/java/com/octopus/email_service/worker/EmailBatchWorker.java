@@ -0,0 +1,253 @@
+package com.octopus.email_service.worker;
+
+import com.octopus.email_service.entity.Email;
+import com.octopus.email_service.enums.EmailStatus;
+import com.octopus.email_service.mail.DeliveryRateLimiter;
+import com.octopus.email_service.mail.RecipientPlanner;
+import com.octopus.email_service.mail.SendEnvelope;
+import com.octopus.email_service.mail.TemplateBudgetExceededException;
+import com.octopus.email_service.repository.EmailBatchRepository;
+import com.octopus.email_service.repository.EmailBatchRepository.StatusChange;
+import com.octopus.email_service.service.EmailRetryService;
+import com.octopus.email_service.service.EmailService;
+import com.rabbitmq.client.Channel;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Batch-mode consumer for the email queue, enabled with {@code app.email.batch.enabled=true}.
+ * Loads a whole batch of emails in one query, writes status transitions and events as JDBC
+ * batches and acknowledges all deliveries with a single multiple-ack. If the batch fails partway,
+ * deliveries of emails already handled are acked and only the rest are requeued, after the emails
+ * claimed but not yet sent are handed back to ENQUEUED with their attempt refunded. Same-content emails to one
+ * domain are sent together when recipient batching is enabled, see {@link RecipientPlanner}.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class EmailBatchWorker {
+    
+    public static final String LISTENER_ID = "emailBatchListener";
+
+    private final EmailService emailService;
+    private final EmailBatchRepository emailBatchRepository;
+    private final EmailWorker emailWorker;
+    private final EmailRetryService emailRetryService;
+    private final DeliveryRateLimiter rateLimiter;
+    private final MessageConverter jsonMessageConverter;
+    private final LaneLatencyMetrics laneLatencyMetrics;
+    private final SendLeaseManager sendLeaseManager;
+    private final RecipientPlanner recipientPlanner;
+
+    @RabbitListener(id = LISTENER_ID,
+                    queues = "${app.email.queue.name:email.queue}",
+                    containerFactory = "batchRabbitListenerContainerFactory",
+                    autoStartup = "${app.email.batch.enabled:false}")
+    public void processBatch(List<Message> messages, Channel channel) throws IOException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        long lastDeliveryTag = messages.get(messages.size() - 1).getMessageProperties().getDeliveryTag();
+        // Email ID of each message, null for discarded messages
+        List<Long> messageEmailIds = new ArrayList<>(messages.size());
+        // Emails whose outcome is recorded, so their deliveries must not be requeued
+        Set<Long> handled = new HashSet<>();
+
+        try {
+            // Email ID to the send slot it reserved before being parked, if any
+            Map<Long, Long> emailIds = new LinkedHashMap<>();
+            // Emails that arrived as self-contained envelopes and need no database read
+            Map<Long, Email> carried = new HashMap<>();
+            for (Message message : messages) {
+                Object payload = jsonMessageConverter.fromMessage(message);
+                Object notBefore = message.getMessageProperties().getHeader(EmailRetryService.NOT_BEFORE_HEADER);
+                long slot = notBefore instanceof Number number ? number.longValue() : 0L;
+                if (payload instanceof SendEnvelope envelope) {
+                    messageEmailIds.add(envelope.emailId());
+                    emailIds.put(envelope.emailId(), slot);
+                    Email email = emailWorker.fromEnvelope(envelope);
+                    if (email != null) {
+                        carried.put(envelope.emailId(), email);
+                    }
+                } else if (payload instanceof Number number) {
+                    messageEmailIds.add(number.longValue());
+                    emailIds.put(number.longValue(), slot);
+                } else {
+                    messageEmailIds.add(null);
+                    log.error("Discarding message with unexpected payload type: {}", payload);
+                }
+            }
+
+            processEmails(emailIds, carried, handled);
+            channel.basicAck(lastDeliveryTag, true);
+        } catch (Exception e) {
+            int requeued = 0;
+            for (int i = 0; i < messages.size(); i++) {
+                long deliveryTag = messages.get(i).getMessageProperties().getDeliveryTag();
+                boolean settled = i < messageEmailIds.size()
+                        && (messageEmailIds.get(i) == null || handled.contains(messageEmailIds.get(i)));
+                if (settled) {
+                    channel.basicAck(deliveryTag, false);
+                } else {
+                    channel.basicNack(deliveryTag, false, true);
+                    requeued++;
+                }
+            }
+            log.error("Failed to process batch of {} messages, requeued the {} not yet handled",
+                      messages.size(), requeued, e);
+        }
+    }
+
+    /**
+     * Adds each email to {@code handled} once its outcome is recorded
+     */
+    private void processEmails(Map<Long, Long> emailIds, Map<Long, Email> carried, Set<Long> handled)
+            throws InterruptedException {
+        log.info("Processing batch of {} emails", emailIds.size());
+
+        Map<Long, Email> emails = new HashMap<>(carried);
+        Set<Long> toLoad = new HashSet<>(emailIds.keySet());
+        toLoad.removeAll(carried.keySet());
+        if (!toLoad.isEmpty()) {
+            emails.putAll(emailService.getEmailsForSending(toLoad).stream()
+                    .collect(Collectors.toMap(Email::getId, Function.identity())));
+        }
+
+        List<Email> sendable = new ArrayList<>(emails.size());
+        List<StatusChange> exhausted = new ArrayList<>();
+        for (Long emailId : emailIds.keySet()) {
+            Email email = emails.get(emailId);
+            if (email == null) {
+                log.error("Email not found with ID: {} - skipping", emailId);
+                handled.add(emailId);
+            } else if (EmailWorker.isSettled(email) || EmailWorker.isBeingSent(email)) {
+                log.info("Skipping duplicate delivery of email ID: {} in status {}", emailId, email.getStatus());
+                handled.add(emailId);
+            } else if (email.getAttempts() >= email.getMaxAttempts()) {
+                log.error("Email ID {} has exceeded max attempts ({}), moving to DLQ",
+                         emailId, email.getMaxAttempts());
+                exhausted.add(new StatusChange(emailId, EmailStatus.FAILED,
+                                               "Exceeded max attempts: " + email.getMaxAttempts()));
+            } else {
+                DeliveryRateLimiter.Reservation reservation =
+                        rateLimiter.reserve(DeliveryRateLimiter.recipientDomains(email), emailIds.get(emailId));
+                if (reservation.ready()) {
+                    sendable.add(email);
+                } else {
+                    emailRetryService.park(email, reservation.notBefore());
+                    handled.add(emailId);
+                }
+            }
+        }
+
+        emailBatchRepository.applyStatusChanges(exhausted);
+        exhausted.forEach(change -> handled.add(change.emailId()));
+        // Claim send leases; emails already sent or being sent by another delivery drop out here
+        Set<Long> claimed = new HashSet<>(sendLeaseManager.acquireAll(
+                sendable.stream().map(Email::getId).toList()));
+        sendable.stream().map(Email::getId).filter(id -> !claimed.contains(id)).forEach(handled::add);
+        sendable.removeIf(email -> !claimed.contains(email.getId()));
+
+        List<StatusChange> outcomes = new ArrayList<>(sendable.size());
+        List<StatusChange> retries = new ArrayList<>();
+        try {
+            for (RecipientPlanner.Delivery delivery : recipientPlanner.plan(sendable)) {
+                if (delivery.isShared() && sendShared(delivery.emails(), outcomes)) {
+                    continue;
+                }
+                for (Email email : delivery.emails()) {
+                    send(email, outcomes, retries, handled);
+                }
+            }
+        } finally {
+            // Record what was sent even if the batch fails partway, so those deliveries are acked
+            emailBatchRepository.applyStatusChanges(outcomes);
+            outcomes.forEach(change -> handled.add(change.emailId()));
+            try {
+                // Claimed but never sent: hand the claims back so the requeued deliveries can send them
+                emailBatchRepository.releaseClaims(claimed.stream().filter(id -> !handled.contains(id)).toList(),
+                        sendLeaseManager.getOwner());
+            } finally {
+                sendLeaseManager.releaseAll(claimed);
+            }
+        }
+
+        retries.forEach(failure -> {
+            Email email = emails.get(failure.emailId());
+            emailRetryService.scheduleRetry(email, email.getAttempts() + 1, failure.error());
+        });
+    }
+
+    private void send(Email email, List<StatusChange> outcomes, List<StatusChange> retries, Set<Long> handled)
+            throws InterruptedException {
+        Set<String> domains = DeliveryRateLimiter.recipientDomains(email);
+        DeliveryRateLimiter.Lease lease = rateLimiter.lease(domains);
+        if (lease == null) {
+            // Already charged with SENDING in this batch, so hand the attempt back while parking
+            emailRetryService.defer(email, System.currentTimeMillis(), "Recipient domain at its concurrency limit");
+            handled.add(email.getId());
+            return;
+        }
+        try (lease) {
+            emailWorker.sendEmail(email);
+            outcomes.add(new StatusChange(email.getId(), EmailStatus.SENT, null));
+            rateLimiter.onSuccess(domains);
+            laneLatencyMetrics.recordSent(email);
+            log.info("Successfully sent email ID: {} to {}", email.getId(), String.join(", ", email.getToAddresses()));
+        } catch (Exception e) {
+            log.error("Failed to send email ID: {}", email.getId(), e);
+            if (emailWorker.deferIfRelaysUnavailable(email, e) || emailWorker.deferIfThrottled(email, domains, e)) {
+                handled.add(email.getId());
+                return;
+            }
+            StatusChange failure = new StatusChange(email.getId(), EmailStatus.FAILED, e.getMessage());
+            outcomes.add(failure);
+            if (email.getAttempts() + 1 < email.getMaxAttempts() && !TemplateBudgetExceededException.isCause(e)) {
+                retries.add(failure);
+            }
+        }
+    }
+
+    /**
+     * Send same-content emails to one domain in a single SMTP transaction. Returns false if the
+     * transaction failed; the emails are then sent one by one, so each gets its own outcome, retry
+     * and throttling handling. Like any retry, this can duplicate a message the relay had accepted.
+     */
+    private boolean sendShared(List<Email> group, List<StatusChange> outcomes) throws InterruptedException {
+        Set<String> domains = DeliveryRateLimiter.recipientDomains(group.get(0));
+        DeliveryRateLimiter.Lease lease = rateLimiter.lease(domains);
+        if (lease == null) {
+            return false;
+        }
+        try (lease) {
+            emailWorker.sendShared(group);
+        } catch (Exception e) {
+            log.warn("Shared send of {} emails to {} failed, sending them one by one: {}",
+                     group.size(), domains, e.getMessage());
+            return false;
+        }
+        rateLimiter.onSuccess(domains);
+        for (Email email : group) {
+            outcomes.add(new StatusChange(email.getId(), EmailStatus.SENT, null));
+            laneLatencyMetrics.recordSent(email);
+        }
+        log.info("Successfully sent {} emails to {} in one SMTP transaction: IDs {}",
+                 group.size(), domains, group.stream().map(Email::getId).toList());
+        return true;
+    }
+}
@@ -1,72 +1,206 @@
 package com.octopus.email_service.worker;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.octopus.email_service.entity.Attachment;
 import com.octopus.email_service.entity.Email;
 import com.octopus.email_service.entity.Template;
-import com.octopus.email_service.enums.BodyType;
 import com.octopus.email_service.enums.EmailStatus;
-import com.octopus.email_service.repository.EmailRepository;
-import com.octopus.email_service.service.AttachmentService;
+import com.octopus.email_service.mail.DeliveryRateLimiter;
+import com.octopus.email_service.mail.RelaysUnavailableException;
+import com.octopus.email_service.mail.SendEnvelope;
+import com.octopus.email_service.mail.SendPipeline;
+import com.octopus.email_service.mail.TemplateBudgetExceededException;
+import com.octopus.email_service.service.EmailRetryService;
 import com.octopus.email_service.service.EmailService;
+import com.octopus.email_service.service.TemplateService;
+import com.rabbitmq.client.Channel;
 import jakarta.mail.MessagingException;
-import jakarta.mail.internet.MimeMessage;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.ByteArrayResource;
-import org.springframework.mail.javamail.JavaMailSender;
-import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
-import org.thymeleaf.TemplateEngine;
-import org.thymeleaf.context.Context;
 
-import java.io.InputStream;
+import java.io.IOException;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Component
 @RequiredArgsConstructor
 @Slf4j
 public class EmailWorker {
     
-    private final EmailRepository emailRepository;
+    public static final String LISTENER_ID = "emailListener";
+    
     private final EmailService emailService;
-    private final AttachmentService attachmentService;
-    private final JavaMailSender mailSender;
-    private final TemplateEngine templateEngine;
-    private final ObjectMapper objectMapper;
+    private final EmailRetryService emailRetryService;
+    private final SendPipeline sendPipeline;
+    private final DeliveryRateLimiter rateLimiter;
+    private final TemplateService templateService;
+    private final LaneLatencyMetrics laneLatencyMetrics;
+    private final SendLeaseManager sendLeaseManager;
     
     @Value("${app.email.max-attempts:5}")
     private int maxAttempts;
     
-    @Value("${app.email.retry-delay:60000}")
-    private long retryDelay;
+    @Value("${app.email.rate-limit.max-deferrals:10}")
+    private int maxDeferrals;
     
-    @RabbitListener(queues = "${app.email.queue.name:email.queue}")
-    @Transactional
-    public void processEmail(Long emailId) {
+    @RabbitListener(id = LISTENER_ID,
+                    queues = "${app.email.queue.name:email.queue}",
+                    containerFactory = "#{${app.email.pipeline.enabled:false} ? 'pipelineRabbitListenerContainerFactory' : 'rabbitListenerContainerFactory'}",
+                    autoStartup = "#{!${app.email.batch.enabled:false} && !${app.email.virtual-threads.enabled:false} && !${app.email.fair-scheduling.enabled:false}}")
+    public void processEmail(Object payload, Channel channel,
+                             @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+                             @Header(name = EmailRetryService.NOT_BEFORE_HEADER, required = false) Long notBefore) {
+        // Not transactional: the send lease is committed before the relay is contacted, and no
+        // database connection is held during the SMTP conversation
+        if (!sendPipeline.isEnabled()) {
+            await(process(payload, notBefore));
+            return;
+        }
+        
+        // Acknowledged once the send completes, so this thread takes the next delivery meanwhile;
+        // the container's prefetch bounds how many deliveries each consumer has in the pipeline
+        CompletableFuture<Void> delivery;
+        try {
+            delivery = process(payload, notBefore);
+        } catch (RuntimeException e) {
+            delivery = CompletableFuture.failedFuture(e);
+        }
+        delivery.whenComplete((ignored, failure) -> {
+            try {
+                if (failure == null) {
+                    channel.basicAck(deliveryTag, false);
+                } else {
+                    log.error("Failed to process email ID: {}, requeueing", emailIdOf(payload), unwrap(failure));
+                    channel.basicNack(deliveryTag, false, true);
+                }
+            } catch (IOException e) {
+                log.error("Failed to acknowledge delivery {}", deliveryTag, e);
+            }
+        });
+    }
+    
+    private CompletableFuture<Void> process(Object payload, Long notBefore) {
+        if (payload instanceof SendEnvelope envelope) {
+            return processEnvelope(envelope, notBefore);
+        }
+        Long emailId = emailIdOf(payload);
         log.info("Processing email ID: {}", emailId);
         
-        Email email = emailRepository.findById(emailId).orElse(null);
+        Email email = loadForSending(emailId);
         if (email == null) {
             log.error("Email not found with ID: {} - possible race condition, will retry", emailId);
             // Sleep briefly and retry once in case of race condition
             try {
                 Thread.sleep(100);
-                email = emailRepository.findById(emailId).orElse(null);
+                email = loadForSending(emailId);
             } catch (InterruptedException ie) {
                 Thread.currentThread().interrupt();
             }
             
             if (email == null) {
                 log.error("Email still not found with ID: {} after retry - skipping", emailId);
-                return;
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+        
+        return deliver(email, notBefore);
+    }
+    
+    /**
+     * Process an email without a surrounding transaction, so no database connection is held
+     * for the duration of the SMTP conversation. Used by the virtual-thread dispatcher.
+     */
+    public void processEmailDetached(Long emailId) {
+        processEmailDetached(emailId, null);
+    }
+    
+    /**
+     * Process a queued payload, either an email ID or a {@link SendEnvelope}, without a surrounding transaction
+     */
+    public void processDetached(Object payload, Long notBefore) {
+        if (payload instanceof SendEnvelope envelope) {
+            await(processEnvelope(envelope, notBefore));
+        } else {
+            processEmailDetached(emailIdOf(payload), notBefore);
+        }
+    }
+    
+    public void processEmailDetached(Long emailId, Long notBefore) {
+        await(deliverDetached(emailId, notBefore));
+    }
+    
+    private CompletableFuture<Void> deliverDetached(Long emailId, Long notBefore) {
+        log.info("Processing email ID: {}", emailId);
+        
+        Email email = loadForSending(emailId);
+        if (email == null) {
+            log.error("Email not found with ID: {} - skipping", emailId);
+            return CompletableFuture.completedFuture(null);
+        }
+        
+        return deliver(email, notBefore);
+    }
+    
+    private Email loadForSending(Long emailId) {
+        return emailService.getEmailsForSending(List.of(emailId)).stream().findFirst().orElse(null);
+    }
+    
+    private CompletableFuture<Void> processEnvelope(SendEnvelope envelope, Long notBefore) {
+        Email email = fromEnvelope(envelope);
+        if (email == null) {
+            return deliverDetached(envelope.emailId(), notBefore);
+        }
+        log.info("Processing email ID: {} from queued envelope", email.getId());
+        return deliver(email, notBefore);
+    }
+    
+    /**
+     * Rebuild the email from its envelope, or null if its template can no longer be resolved and the
+     * email has to be loaded from the database instead
+     */
+    Email fromEnvelope(SendEnvelope envelope) {
+        Template template = null;
+        if (envelope.templateId() != null) {
+            template = templateService.getTemplateForSending(envelope.templateId(), envelope.templateVersion()).orElse(null);
+            if (template == null) {
+                log.warn("Template {} for queued email ID: {} not found or inactive, loading the email instead",
+                         envelope.templateId(), envelope.emailId());
+                return null;
             }
         }
+        return envelope.toEmail(template);
+    }
+    
+    /**
+     * Email ID of a queued payload, for logging and for payloads that carry only the ID
+     */
+    public static Long emailIdOf(Object payload) {
+        if (payload instanceof SendEnvelope envelope) {
+            return envelope.emailId();
+        }
+        if (payload instanceof Number number) {
+            return number.longValue();
+        }
+        throw new IllegalArgumentException("Unexpected email queue payload: " + payload);
+    }
+    
+    /**
+     * Send the email, returning a future that completes once its outcome is recorded. With the send
+     * pipeline enabled that happens on the pipeline's thread after this returns.
+     */
+    private CompletableFuture<Void> deliver(Email email, Long notBefore) {
+        Long emailId = email.getId();
+        
+        // Redelivery of an email already finished or being sent elsewhere; envelopes are caught by the lease claim
+        if (isSettled(email) || isBeingSent(email)) {
+            log.info("Skipping duplicate delivery of email ID: {} in status {}", emailId, email.getStatus());
+            return CompletableFuture.completedFuture(null);
+        }
         
         // Check if email has exceeded max attempts
         if (email.getAttempts() >= email.getMaxAttempts()) {
@@ -74,186 +208,166 @@ public class EmailWorker {
                      emailId, email.getMaxAttempts());
             emailService.updateEmailStatus(emailId, EmailStatus.FAILED, 
                                          "Exceeded max attempts: " + email.getMaxAttempts());
-            return;
+            return CompletableFuture.completedFuture(null);
         }
         
+        // Pace by recipient domain before counting an attempt; emails over the rate are parked, not failed
+        Set<String> domains = DeliveryRateLimiter.recipientDomains(email);
+        DeliveryRateLimiter.Lease lease;
         try {
-            // Update status to SENDING
-            emailService.updateEmailStatus(emailId, EmailStatus.SENDING, null);
-            
-            // Process the email
-            sendEmail(email);
-            
-            // Mark as sent
-            emailService.markAsSent(emailId);
-            log.info("Successfully sent email ID: {} to {}", emailId, String.join(", ", email.getToAddresses()));
-            
-        } catch (Exception e) {
-            log.error("Failed to send email ID: {}", emailId, e);
-            
-            // Update status with error
-            emailService.updateEmailStatus(emailId, EmailStatus.FAILED, e.getMessage());
-            
-            // If not at max attempts, schedule retry
-            if (email.getAttempts() + 1 < email.getMaxAttempts()) {
-                scheduleRetry(emailId);
+            DeliveryRateLimiter.Reservation reservation = rateLimiter.reserve(domains, notBefore != null ? notBefore : 0);
+            if (!reservation.ready()) {
+                emailRetryService.park(email, reservation.notBefore());
+                return CompletableFuture.completedFuture(null);
             }
+            lease = rateLimiter.lease(domains);
+            if (lease == null) {
+                emailRetryService.park(email, reservation.notBefore());
+                return CompletableFuture.completedFuture(null);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while pacing email ID: " + emailId, ie);
         }
-    }
-    
-    private void sendEmail(Email email) throws MessagingException {
-        MimeMessage mimeMessage = mailSender.createMimeMessage();
-        MimeMessageHelper helper = new MimeMessageHelper(mimeMessage, true, "UTF-8");
-        
-        // Set basic email properties
-        helper.setFrom(email.getFromAddress());
-        helper.setTo(email.getToAddresses().toArray(new String[0]));
         
-        // Set reply-to address if provided
-        if (email.getReplyToAddress() != null && !email.getReplyToAddress().trim().isEmpty()) {
-            helper.setReplyTo(email.getReplyToAddress());
-            log.debug("Set reply-to address: {}", email.getReplyToAddress());
+        // Move to SENDING under a send lease; fails if another delivery of this email got there first
+        boolean leased;
+        try {
+            leased = sendLeaseManager.acquire(emailId);
+        } catch (RuntimeException e) {
+            lease.close();
+            throw e;
         }
-        
-        if (email.getCcAddresses() != null && !email.getCcAddresses().isEmpty()) {
-            helper.setCc(email.getCcAddresses().toArray(new String[0]));
+        if (!leased) {
+            lease.close();
+            log.info("Skipping duplicate delivery of email ID: {}, already sent or being sent", emailId);
+            return CompletableFuture.completedFuture(null);
         }
         
-        if (email.getBccAddresses() != null && !email.getBccAddresses().isEmpty()) {
-            helper.setBcc(email.getBccAddresses().toArray(new String[0]));
+        CompletableFuture<Void> sent;
+        try {
+            sent = submit(email);
+        } catch (RuntimeException e) {
+            sent = CompletableFuture.failedFuture(e);
         }
-        
-        // Process subject and body
-        String subject = email.getSubject();
-        String body = email.getBody();
-        boolean isHtml = false;
-        
-        // If template is used, render it
-        if (email.getTemplate() != null) {
-            Template template = email.getTemplate();
-            Map<String, Object> templateVars = parseTemplateVars(email.getTemplateVars());
-            
-            // Render subject
-            if (template.getSubjectTemplate() != null) {
-                Context context = new Context();
-                context.setVariables(templateVars);
-                subject = templateEngine.process(template.getSubjectTemplate(), context);
+        // Both leases are held until the outcome is recorded
+        return sent.handle((ignored, failure) -> {
+            try {
+                recordOutcome(email, domains, failure);
+            } finally {
+                lease.close();
+                sendLeaseManager.release(emailId);
             }
-            
-            // Render body
-            if (template.getBodyTemplate() != null) {
-                Context context = new Context();
-                context.setVariables(templateVars);
-                body = templateEngine.process(template.getBodyTemplate(), context);
+            return null;
+        });
+    }
+    
+    private void recordOutcome(Email email, Set<String> domains, Throwable failure) {
+        Long emailId = email.getId();
+        if (failure == null) {
+            try {
+                emailService.markAsSent(emailId);
+                rateLimiter.onSuccess(domains);
+                laneLatencyMetrics.recordSent(email);
+                log.info("Successfully sent email ID: {} to {}", emailId, String.join(", ", email.getToAddresses()));
+                return;
+            } catch (RuntimeException e) {
+                failure = e;
             }
-            
-            // Set HTML flag based on template body type
-            isHtml = template.getBodyType() == BodyType.HTML;
         }
-        // Check if we need to use fallback template for plain text body
-        else if (email.getNeedsFallbackTemplate() != null && email.getNeedsFallbackTemplate()) {
-            // Use classic template as fallback for plain text content
-            Context context = new Context();
-            context.setVariable("subject", subject);
-            context.setVariable("body", body);
-            
-            // Add any additional template variables if provided
-            Map<String, Object> templateVars = parseTemplateVars(email.getTemplateVars());
-            context.setVariables(templateVars);
-            
-            // Render using the classic email template
-            body = templateEngine.process("email/classic-email", context);
-            isHtml = true; // Classic template produces HTML
-            
-            log.debug("Applied classic fallback template for email ID: {}", email.getId());
+        Throwable cause = unwrap(failure);
+        if (cause instanceof Error error) {
+            throw error;
         }
-        // For HTML body content without template
-        else if (email.getIsHtmlBody() != null && email.getIsHtmlBody()) {
-            isHtml = true;
-        }
-        
-        helper.setSubject(subject);
-        helper.setText(body, isHtml);
+        Exception e = cause instanceof Exception exception ? exception : new IllegalStateException(cause);
+        log.error("Failed to send email ID: {}", emailId, e);
         
-        // Add tracking headers
-        helper.getMimeMessage().setHeader("X-Email-ID", email.getUuid().toString());
-        helper.getMimeMessage().setHeader("List-Unsubscribe", "<mailto:unsubscribe@example.com>");
+        if (deferIfRelaysUnavailable(email, e) || deferIfThrottled(email, domains, e)) {
+            return;
+        }
         
-        // Process attachments
-        processAttachments(helper, email.getAttachments());
+        // Update status with error
+        emailService.updateEmailStatus(emailId, EmailStatus.FAILED, e.getMessage());
         
-        // Send the email
-        mailSender.send(mimeMessage);
+        // If not at max attempts, schedule retry; templates over their render budget would fail again
+        if (email.getAttempts() + 1 < email.getMaxAttempts() && !TemplateBudgetExceededException.isCause(e)) {
+            emailRetryService.scheduleRetry(email, email.getAttempts() + 1, e.getMessage());
+        }
+    }
+    
+    static boolean isSettled(Email email) {
+        EmailStatus status = email.getStatus();
+        return status == EmailStatus.SENT || status == EmailStatus.DELIVERED || status == EmailStatus.BOUNCED;
     }
     
-    private Map<String, Object> parseTemplateVars(String templateVarsJson) {
-        if (templateVarsJson == null || templateVarsJson.trim().isEmpty()) {
-            return Map.of();
+    /**
+     * Whether the email is in SENDING under a send lease. The lease is not compared with this node's
+     * clock, which may disagree with the database's: a worker that gives the email up puts it back in
+     * ENQUEUED, and if its lease lapses instead the reaper requeues it.
+     */
+    static boolean isBeingSent(Email email) {
+        return email.getStatus() == EmailStatus.SENDING && email.getLeaseOwner() != null;
+    }
+    
+    /**
+     * On a 4xx throttling reply, slow the domain down and park the email without charging the attempt.
+     * Emails deferred {@code max-deferrals} times fall through to the normal retry path.
+     */
+    boolean deferIfThrottled(Email email, Set<String> domains, Exception failure) {
+        if (!rateLimiter.isEnabled() || !DeliveryRateLimiter.isThrottlingResponse(failure)) {
+            return false;
         }
-        
-        try {
-            @SuppressWarnings("unchecked")
-            Map<String, Object> result = objectMapper.readValue(templateVarsJson, Map.class);
-            return result;
-        } catch (Exception e) {
-            log.error("Failed to parse template variables", e);
-            return Map.of();
+        rateLimiter.onThrottled(domains);
+        if (emailService.getDeferralCount(email.getId()) >= maxDeferrals) {
+            return false;
         }
+        emailRetryService.defer(email, rateLimiter.nextSlot(domains), failure.getMessage());
+        return true;
     }
     
-    private void scheduleRetry(Long emailId) {
-        // For now, we'll just log the retry. In a production system, you might want to
-        // use a delayed queue or scheduler to retry after a delay
-        log.info("Scheduling retry for email ID: {} after {} ms", emailId, retryDelay);
-        
-        // TODO: Implement proper retry mechanism with exponential backoff
-        // This could involve:
-        // 1. Using RabbitMQ delayed message plugin
-        // 2. Using a separate retry queue with TTL
-        // 3. Using Spring's @Scheduled annotation with a retry table
+    /**
+     * When every relay's circuit breaker is open nothing was sent, so park the email until the first
+     * breaker lets sends through again without charging the attempt
+     */
+    boolean deferIfRelaysUnavailable(Email email, Exception failure) {
+        RelaysUnavailableException unavailable = RelaysUnavailableException.find(failure);
+        if (unavailable == null || emailService.getDeferralCount(email.getId()) >= maxDeferrals) {
+            return false;
+        }
+        emailRetryService.defer(email, unavailable.getRetryAt(), failure.getMessage());
+        return true;
     }
     
-    private void processAttachments(MimeMessageHelper helper, String attachmentsJson) {
-        if (attachmentsJson == null || attachmentsJson.trim().isEmpty()) {
-            return;
-        }
-        
+    void sendEmail(Email email) throws MessagingException {
+        sendPipeline.send(email);
+    }
+    
+    CompletableFuture<Void> submit(Email email) {
+        return sendPipeline.submit(email);
+    }
+    
+    void sendShared(List<Email> emails) throws MessagingException {
+        sendPipeline.sendShared(emails);
+    }
+    
+    /**
+     * Wait for a delivery on the calling thread, rethrowing what went wrong outside the send itself
+     */
+    private static void await(CompletableFuture<Void> delivery) {
         try {
-            List<Attachment> attachments = objectMapper.readValue(
-                    attachmentsJson, 
-                    new TypeReference<List<Attachment>>() {}
-            );
-            
-            for (Attachment attachment : attachments) {
-                try {
-                    // Download attachment content
-                    InputStream attachmentStream = attachmentService.downloadAttachment(attachment.getId());
-                    byte[] attachmentBytes = attachmentStream.readAllBytes();
-                    attachmentStream.close();
-                    
-                    // Determine display name
-                    String displayName = attachment.getOriginalFilename();
-                    
-                    // Add attachment to email (inline or regular)
-                    if (attachment.getIsInline() != null && attachment.getIsInline() && attachment.getContentId() != null) {
-                        // Add as inline attachment with content ID
-                        helper.addInline(attachment.getContentId(), new ByteArrayResource(attachmentBytes), attachment.getContentType());
-                        log.debug("Added inline attachment {} with CID {} to email", displayName, attachment.getContentId());
-                    } else {
-                        // Add as regular attachment
-                        helper.addAttachment(displayName, new ByteArrayResource(attachmentBytes), attachment.getContentType());
-                        log.debug("Added attachment {} to email", displayName);
-                    }
-                    
-                } catch (Exception e) {
-                    log.error("Failed to process attachment {}: {}", attachment.getId(), e.getMessage(), e);
-                    // Continue processing other attachments even if one fails
-                }
+            delivery.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
             }
-            
-        } catch (Exception e) {
-            log.error("Failed to parse attachments: {}", e.getMessage(), e);
-            throw new RuntimeException("Failed to process attachments", e);
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw e;
         }
     }
+    
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
 }
@@ -0,0 +1,102 @@
+package com.octopus.email_service.worker;
+
+import com.octopus.email_service.mail.MessageTransmitter;
+import com.octopus.email_service.mail.SmtpRelay;
+import com.octopus.email_service.mail.SmtpRelayRouter;
+import com.octopus.email_service.mail.SmtpTransportPool;
+import com.octopus.email_service.service.EmailRetryService;
+import jakarta.mail.MessagingException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.handler.annotation.Header;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consumer for the express lane, enabled with {@code app.email.express.enabled=true}. High-priority
+ * emails such as OTPs and password resets get their own queue, dedicated consumers and a pool of
+ * SMTP connections kept open ahead of need, so they never queue behind bulk sends. Connections
+ * are opened on a thread of the lane's own, so slow handshakes do not hold up scheduled tasks.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ExpressEmailWorker implements InitializingBean, DisposableBean {
+
+    public static final String LISTENER_ID = "emailExpressListener";
+
+    private final EmailWorker emailWorker;
+    private final SmtpTransportPool smtpTransportPool;
+    private final SmtpRelayRouter smtpRelayRouter;
+
+    @Value("${app.email.express.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.email.express.warm-connections:2}")
+    private int warmConnections;
+
+    @Value("${app.email.express.warm-interval:30000}")
+    private long warmIntervalMs;
+
+    private ScheduledExecutorService warmer;
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled || warmConnections <= 0) {
+            return;
+        }
+        warmer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "email-express-warm");
+            thread.setDaemon(true);
+            return thread;
+        });
+        warmer.scheduleWithFixedDelay(this::keepConnectionsWarm, 0, warmIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (warmer != null) {
+            warmer.shutdownNow();
+        }
+    }
+
+    @RabbitListener(id = LISTENER_ID,
+                    queues = "${app.email.express.queue:email.queue.express}",
+                    containerFactory = "expressRabbitListenerContainerFactory",
+                    autoStartup = "${app.email.express.enabled:false}")
+    public void processEmail(Object payload,
+                             @Header(name = EmailRetryService.NOT_BEFORE_HEADER, required = false) Long notBefore) {
+        // Detached, so no database connection is held while talking to the relay
+        emailWorker.processDetached(payload, notBefore);
+    }
+
+    /**
+     * Top up the express lane's idle SMTP connections to each healthy relay so a send does not pay
+     * for the handshake
+     */
+    private void keepConnectionsWarm() {
+        if (!smtpTransportPool.isEnabled()) {
+            return;
+        }
+        for (SmtpRelay relay : smtpRelayRouter.getHealthyRelays()) {
+            try {
+                int opened = smtpTransportPool.prewarm(
+                        smtpTransportPool.getLaneRelay(MessageTransmitter.EXPRESS_LANE, relay), warmConnections);
+                if (opened > 0) {
+                    log.debug("Opened {} SMTP connections to {} for the express lane", opened, relay.getName());
+                }
+            } catch (MessagingException | RuntimeException e) {
+                // A task that throws is not rescheduled, so every failure is logged and the loop goes on
+                log.warn("Failed to pre-open SMTP connections to {} for the express lane: {}",
+                        relay.getName(), e.getMessage());
+            }
+        }
+    }
+}
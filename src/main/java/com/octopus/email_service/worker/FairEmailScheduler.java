@@ -0,0 +1,204 @@
+package com.octopus.email_service.worker;
+
+import com.octopus.email_service.entity.EmailTenant;
+import com.octopus.email_service.repository.EmailTenantRepository;
+import com.octopus.email_service.service.EmailRetryService;
+import com.octopus.email_service.service.EmailService;
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.handler.annotation.Header;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fair-scheduling mode, enabled with {@code app.email.fair-scheduling.enabled=true}.
+ * Deliveries from the shared email queue are buffered unacknowledged in one virtual queue per tenant
+ * and drained by worker threads with weighted deficit round robin, so a tenant sending a large
+ * campaign only gets its weighted share while other tenants have mail waiting.
+ * Tenant weights come from {@link EmailTenant#getSchedulingWeight()}.
+ */
+@Component
+@Slf4j
+public class FairEmailScheduler implements InitializingBean, DisposableBean {
+
+    public static final String LISTENER_ID = "emailFairListener";
+
+    /** Lane for emails published without a tenant, e.g. by API keys not bound to one */
+    static final long NO_TENANT = 0L;
+
+    private final EmailWorker emailWorker;
+    private final EmailTenantRepository tenantRepository;
+    private final MeterRegistry meterRegistry;
+
+    private final Map<Long, Integer> weights = new ConcurrentHashMap<>();
+    private final Map<Long, String> tenantCodes = new ConcurrentHashMap<>();
+    private final Map<Long, Timer> waitTimers = new ConcurrentHashMap<>();
+
+    @Value("${app.email.fair-scheduling.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.email.fair-scheduling.workers:10}")
+    private int workerCount;
+
+    @Value("${app.email.fair-scheduling.quantum:1}")
+    private int quantum;
+
+    private DeficitRoundRobin<Long, Delivery> lanes;
+    private List<Thread> workers = List.of();
+    private volatile boolean running;
+
+    public FairEmailScheduler(EmailWorker emailWorker, EmailTenantRepository tenantRepository,
+                              MeterRegistry meterRegistry) {
+        this.emailWorker = emailWorker;
+        this.tenantRepository = tenantRepository;
+        this.meterRegistry = meterRegistry;
+    }
+
+    record Delivery(Long tenantId, Object payload, Long notBefore, Channel channel, long deliveryTag, long enqueuedAt) {
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled) {
+            return;
+        }
+
+        lanes = new DeficitRoundRobin<>(quantum, tenantId -> weights.getOrDefault(tenantId, 1));
+        refreshWeights();
+
+        running = true;
+        List<Thread> started = new ArrayList<>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            started.add(Thread.ofPlatform().name("email-fair-" + i).daemon(true).start(this::drain));
+        }
+        workers = started;
+        log.info("Fair email scheduling enabled with {} workers", workerCount);
+    }
+
+    @RabbitListener(id = LISTENER_ID,
+                    queues = "${app.email.queue.name:email.queue}",
+                    containerFactory = "fairRabbitListenerContainerFactory",
+                    autoStartup = "${app.email.fair-scheduling.enabled:false}")
+    public void enqueue(Object payload, Channel channel,
+                        @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+                        @Header(name = EmailService.TENANT_HEADER, required = false) Object tenantHeader,
+                        @Header(name = EmailRetryService.NOT_BEFORE_HEADER, required = false) Long notBefore) {
+        // The delivery stays unacked until sent; the container's prefetch bounds how many are buffered
+        Long tenantId = tenantOf(tenantHeader);
+        instrument(tenantId);
+        lanes.offer(tenantId, new Delivery(tenantId, payload, notBefore, channel, deliveryTag, System.nanoTime()));
+    }
+
+    /**
+     * Reload tenant weights so changes made through the tenant API apply without a restart
+     */
+    @Scheduled(fixedDelayString = "${app.email.fair-scheduling.weight-refresh:30000}")
+    public void refreshWeights() {
+        if (!enabled) {
+            return;
+        }
+        Map<Long, Integer> latest = new HashMap<>();
+        for (EmailTenant tenant : tenantRepository.findAll()) {
+            latest.put(tenant.getId(), tenant.getSchedulingWeight() != null ? tenant.getSchedulingWeight() : 1);
+            tenantCodes.put(tenant.getId(), tenant.getTenantCode());
+        }
+        weights.putAll(latest);
+        weights.keySet().retainAll(latest.keySet());
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        for (Thread worker : workers) {
+            worker.join(TimeUnit.SECONDS.toMillis(30));
+        }
+        // Anything still buffered is unacked and will be redelivered once the channel closes
+    }
+
+    private void drain() {
+        while (running) {
+            Delivery delivery;
+            try {
+                delivery = lanes.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (delivery != null) {
+                process(delivery);
+            }
+        }
+    }
+
+    private void process(Delivery delivery) {
+        waitTimers.get(delivery.tenantId())
+                .record(System.nanoTime() - delivery.enqueuedAt(), TimeUnit.NANOSECONDS);
+        try {
+            emailWorker.processDetached(delivery.payload(), delivery.notBefore());
+            delivery.channel().basicAck(delivery.deliveryTag(), false);
+        } catch (Exception e) {
+            log.error("Failed to process email ID: {} from fair scheduler, requeueing",
+                      EmailWorker.emailIdOf(delivery.payload()), e);
+            nackQuietly(delivery);
+        }
+    }
+
+    private void instrument(Long tenantId) {
+        waitTimers.computeIfAbsent(tenantId, id -> {
+            Gauge.builder("email.tenant.queue.depth", () -> lanes.size(id))
+                    .description("Emails buffered in the tenant's scheduling lane")
+                    .tag("tenant", tenantTag(id))
+                    .register(meterRegistry);
+            return Timer.builder("email.tenant.queue.wait")
+                    .description("Time emails wait in the tenant's scheduling lane before processing")
+                    .tag("tenant", tenantTag(id))
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .register(meterRegistry);
+        });
+    }
+
+    private String tenantTag(Long tenantId) {
+        if (tenantId == NO_TENANT) {
+            return "none";
+        }
+        return tenantCodes.getOrDefault(tenantId, String.valueOf(tenantId));
+    }
+
+    static Long tenantOf(Object tenantHeader) {
+        if (tenantHeader instanceof Number number) {
+            return number.longValue();
+        }
+        if (tenantHeader != null) {
+            try {
+                return Long.parseLong(tenantHeader.toString());
+            } catch (NumberFormatException ignored) {
+                // fall through to the shared lane
+            }
+        }
+        return NO_TENANT;
+    }
+
+    private void nackQuietly(Delivery delivery) {
+        try {
+            delivery.channel().basicNack(delivery.deliveryTag(), false, true);
+        } catch (IOException e) {
+            log.error("Failed to nack delivery {}", delivery.deliveryTag(), e);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.octopus.email_service.worker;
+
+import com.octopus.email_service.entity.Email;
+import com.octopus.email_service.mail.MessageTransmitter;
+import com.octopus.email_service.service.EmailService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+/**
+ * Time from acceptance to hand-off to the relay, per lane, measured against each lane's latency SLO.
+ * Only first attempts are recorded, so retry back-off does not hide how the lanes themselves perform.
+ */
+@Component
+@RequiredArgsConstructor
+public class LaneLatencyMetrics implements InitializingBean {
+
+    static final String STANDARD_LANE = "standard";
+
+    private final EmailService emailService;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${app.email.lane-slo.express:5000}")
+    private long expressSloMs;
+
+    @Value("${app.email.lane-slo.standard:300000}")
+    private long standardSloMs;
+
+    private Lane express;
+    private Lane standard;
+
+    private record Lane(Timer latency, Counter missed, long sloMs) {
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        express = lane(MessageTransmitter.EXPRESS_LANE, expressSloMs);
+        standard = lane(STANDARD_LANE, standardSloMs);
+    }
+
+    public void recordSent(Email email) {
+        if (email.getCreatedAt() == null || (email.getAttempts() != null && email.getAttempts() > 0)) {
+            return;
+        }
+        // Scheduled emails are only due from their scheduled time
+        LocalDateTime due = email.getScheduledAt() != null && email.getScheduledAt().isAfter(email.getCreatedAt())
+                ? email.getScheduledAt() : email.getCreatedAt();
+        Duration latency = Duration.between(due, LocalDateTime.now());
+        if (latency.isNegative()) {
+            return;
+        }
+        Lane lane = emailService.isExpress(email) ? express : standard;
+        lane.latency().record(latency);
+        if (latency.toMillis() > lane.sloMs()) {
+            lane.missed().increment();
+        }
+    }
+
+    private Lane lane(String name, long sloMs) {
+        Timer latency = Timer.builder("email.lane.latency")
+                .description("Time from acceptance to hand-off to the relay, first attempts only")
+                .tag("lane", name)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .serviceLevelObjectives(Duration.ofMillis(sloMs))
+                .register(meterRegistry);
+        Counter missed = Counter.builder("email.lane.slo.missed")
+                .description("First attempts sent later than the lane's latency SLO")
+                .tag("lane", name)
+                .register(meterRegistry);
+        return new Lane(latency, missed, sloMs);
+    }
+}
@@ -0,0 +1,194 @@
+package com.octopus.email_service.worker;
+
+import com.octopus.email_service.mail.MessageTransmitter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resizes the email queue listener at runtime using AIMD: consumers are added one step at a time
+ * while a backlog builds up, and cut multiplicatively when p95 SMTP latency shows the relay is struggling.
+ * Enabled with {@code app.email.concurrency.adaptive.enabled=true}.
+ * <p>
+ * The p95 comes from the send timer's percentile window, which takes about two minutes to forget
+ * old samples. After a latency cut the controller therefore holds off for
+ * {@code latency-hold-off} ms, so the next cut is judged on sends made at the new concurrency.
+ * <p>
+ * Only the main queue's listener is resized, in its default or batch mode, and only the main
+ * queue's depth is read. The express lane, queue shards, fair scheduling and the virtual-thread
+ * dispatcher keep their configured concurrency.
+ */
+@Component
+@Slf4j
+public class ListenerConcurrencyController {
+
+    private final RabbitListenerEndpointRegistry listenerRegistry;
+    private final AmqpAdmin amqpAdmin;
+    private final MeterRegistry meterRegistry;
+
+    private final AtomicInteger targetConcurrency = new AtomicInteger();
+    private final AtomicLong observedQueueDepth = new AtomicLong();
+    private final AtomicLong observedP95Millis = new AtomicLong();
+    private volatile long lastLatencyDecreaseAt;
+    private boolean warnedNoContainer;
+
+    @Value("${app.email.queue.name:email.queue}")
+    private String emailQueueName;
+
+    @Value("${app.email.concurrency.adaptive.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.email.concurrency.adaptive.min-consumers:3}")
+    private int minConsumers;
+
+    @Value("${app.email.concurrency.adaptive.max-consumers:10}")
+    private int maxConsumers;
+
+    @Value("${app.email.concurrency.adaptive.increase-step:1}")
+    private int increaseStep;
+
+    @Value("${app.email.concurrency.adaptive.decrease-factor:0.5}")
+    private double decreaseFactor;
+
+    @Value("${app.email.concurrency.adaptive.backlog-per-consumer:20}")
+    private long backlogPerConsumer;
+
+    @Value("${app.email.concurrency.adaptive.latency-threshold:2000}")
+    private long latencyThresholdMs;
+
+    @Value("${app.email.concurrency.adaptive.latency-hold-off:120000}")
+    private long latencyHoldOffMs;
+
+    public ListenerConcurrencyController(RabbitListenerEndpointRegistry listenerRegistry,
+                                         AmqpAdmin amqpAdmin,
+                                         MeterRegistry meterRegistry) {
+        this.listenerRegistry = listenerRegistry;
+        this.amqpAdmin = amqpAdmin;
+        this.meterRegistry = meterRegistry;
+        meterRegistry.gauge("email.listener.concurrency.target", targetConcurrency);
+        meterRegistry.gauge("email.listener.queue.depth", observedQueueDepth);
+        meterRegistry.gauge("email.listener.send.p95.ms", observedP95Millis);
+    }
+
+    public enum Action {
+        INCREASE, DECREASE, HOLD
+    }
+
+    public record Decision(Action action, String reason, int target) {
+    }
+
+    @Scheduled(fixedDelayString = "${app.email.concurrency.adaptive.interval:5000}")
+    public void adjust() {
+        if (!enabled) {
+            return;
+        }
+
+        SimpleMessageListenerContainer container = activeContainer();
+        if (container == null) {
+            if (!warnedNoContainer) {
+                warnedNoContainer = true;
+                log.warn("Adaptive concurrency only resizes the main queue listener, which is not running in this mode");
+            }
+            return;
+        }
+
+        QueueInformation queueInfo = amqpAdmin.getQueueInfo(emailQueueName);
+        if (queueInfo == null) {
+            log.warn("Queue {} not found, skipping concurrency adjustment", emailQueueName);
+            return;
+        }
+
+        int current = targetConcurrency.get() > 0
+                ? targetConcurrency.get()
+                : Math.max(minConsumers, Math.min(maxConsumers, container.getActiveConsumerCount()));
+        long depth = queueInfo.getMessageCount();
+        double p95Millis = sendLatencyP95Millis();
+        observedQueueDepth.set(depth);
+        observedP95Millis.set(Math.round(p95Millis));
+
+        Decision decision = decide(current, depth, p95Millis);
+        meterRegistry.counter("email.listener.concurrency.decisions",
+                        "action", decision.action().name().toLowerCase(),
+                        "reason", decision.reason())
+                .increment();
+
+        if (decision.target() != current || targetConcurrency.get() == 0) {
+            resize(container, current, decision.target());
+            log.info("Listener concurrency {} -> {} ({}: depth={}, p95={}ms)",
+                     current, decision.target(), decision.reason(), depth, Math.round(p95Millis));
+        }
+        targetConcurrency.set(decision.target());
+    }
+
+    /**
+     * AIMD step: multiplicative decrease on high latency, additive increase on backlog,
+     * additive decrease back towards the floor when the queue is empty. A latency decrease starts
+     * the hold-off, during which high latency holds concurrency rather than cutting it again.
+     */
+    Decision decide(int current, long queueDepth, double p95Millis) {
+        if (p95Millis > latencyThresholdMs && current > minConsumers) {
+            long now = System.currentTimeMillis();
+            if (now - lastLatencyDecreaseAt < latencyHoldOffMs) {
+                return new Decision(Action.HOLD, "latency-hold-off", current);
+            }
+            lastLatencyDecreaseAt = now;
+            int target = Math.max(minConsumers, (int) Math.floor(current * decreaseFactor));
+            return new Decision(Action.DECREASE, "latency", target);
+        }
+        if (p95Millis <= latencyThresholdMs && queueDepth > (long) current * backlogPerConsumer
+                && current < maxConsumers) {
+            return new Decision(Action.INCREASE, "backlog", Math.min(maxConsumers, current + increaseStep));
+        }
+        if (queueDepth == 0 && current > minConsumers) {
+            return new Decision(Action.DECREASE, "idle", Math.max(minConsumers, current - increaseStep));
+        }
+        return new Decision(Action.HOLD, "steady", Math.max(minConsumers, Math.min(maxConsumers, current)));
+    }
+
+    private SimpleMessageListenerContainer activeContainer() {
+        for (String id : new String[]{EmailWorker.LISTENER_ID, EmailBatchWorker.LISTENER_ID}) {
+            MessageListenerContainer container = listenerRegistry.getListenerContainer(id);
+            if (container instanceof SimpleMessageListenerContainer simple && container.isRunning()) {
+                return simple;
+            }
+        }
+        return null;
+    }
+
+    private void resize(SimpleMessageListenerContainer container, int current, int target) {
+        // Pin min and max together so the container does not scale on its own; max must stay >= concurrent
+        if (target >= current) {
+            container.setMaxConcurrentConsumers(target);
+            container.setConcurrentConsumers(target);
+        } else {
+            container.setConcurrentConsumers(target);
+            container.setMaxConcurrentConsumers(target);
+        }
+    }
+
+    private double sendLatencyP95Millis() {
+        Timer timer = meterRegistry.find(MessageTransmitter.SEND_TIMER).timer();
+        if (timer == null) {
+            return 0;
+        }
+        for (ValueAtPercentile percentile : timer.takeSnapshot().percentileValues()) {
+            if (percentile.percentile() == 0.95) {
+                return percentile.value(TimeUnit.MILLISECONDS);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,217 @@
+package com.octopus.email_service.worker;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.octopus.email_service.repository.EmailOutboxRepository;
+import com.octopus.email_service.repository.EmailOutboxRepository.OutboxRow;
+import com.octopus.email_service.service.EmailService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageDeliveryMode;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Publishes the transactional outbox to RabbitMQ. Each pass claims a batch of due rows with
+ * {@code FOR UPDATE SKIP LOCKED}, publishes them all, then waits once for their publisher confirms
+ * and deletes the acknowledged rows in the same transaction. Nacked, returned or unconfirmed rows
+ * are retried with backoff, so a message is published at least once and never dropped.
+ * The relay polls on a thread of its own, so waiting for confirms never holds up scheduled tasks.
+ */
+@Component
+@Slf4j
+public class OutboxRelay implements InitializingBean, DisposableBean {
+
+    private static final TypeReference<Map<String, Object>> HEADERS_TYPE = new TypeReference<>() {
+    };
+
+    private final EmailOutboxRepository outboxRepository;
+    private final RabbitTemplate rabbitTemplate;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate transactionTemplate;
+    private final Counter publishedCounter;
+    private final Counter failedCounter;
+    private final Timer batchTimer;
+
+    @Value("${app.email.outbox.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.email.exchange.name:email.exchange}")
+    private String emailExchangeName;
+
+    @Value("${app.email.outbox.poll-interval:200}")
+    private long pollIntervalMs;
+
+    @Value("${app.email.outbox.batch-size:200}")
+    private int batchSize;
+
+    @Value("${app.email.outbox.max-batches-per-poll:50}")
+    private int maxBatchesPerPoll;
+
+    @Value("${app.email.outbox.confirm-timeout:5000}")
+    private long confirmTimeoutMs;
+
+    @Value("${app.email.outbox.max-backoff:60000}")
+    private long maxBackoffMs;
+
+    private ScheduledExecutorService poller;
+
+    public OutboxRelay(EmailOutboxRepository outboxRepository, RabbitTemplate rabbitTemplate,
+                       ObjectMapper objectMapper, PlatformTransactionManager transactionManager,
+                       MeterRegistry meterRegistry) {
+        this.outboxRepository = outboxRepository;
+        this.rabbitTemplate = rabbitTemplate;
+        this.objectMapper = objectMapper;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.publishedCounter = Counter.builder("email.outbox.published")
+                .description("Outbox messages confirmed by the broker")
+                .register(meterRegistry);
+        this.failedCounter = Counter.builder("email.outbox.publish.failed")
+                .description("Outbox messages nacked, returned or unconfirmed and rescheduled")
+                .register(meterRegistry);
+        this.batchTimer = Timer.builder("email.outbox.batch.duration")
+                .description("Time to publish and confirm one outbox batch")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled) {
+            return;
+        }
+        poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "email-outbox-relay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::drain, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (poller != null) {
+            // Let an in-flight batch finish waiting for its confirms rather than rescheduling it
+            poller.shutdown();
+            if (!poller.awaitTermination(confirmTimeoutMs + 1000, TimeUnit.MILLISECONDS)) {
+                poller.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Drain due rows; full batches are followed immediately by the next one
+     */
+    private void drain() {
+        for (int i = 0; i < maxBatchesPerPoll; i++) {
+            Integer relayed;
+            try {
+                relayed = transactionTemplate.execute(status -> batchTimer.record(this::relayBatch));
+            } catch (RuntimeException e) {
+                log.warn("Outbox relay pass failed: {}", e.getMessage());
+                return;
+            }
+            if (relayed == null || relayed < batchSize) {
+                return;
+            }
+        }
+    }
+
+    private int relayBatch() {
+        List<OutboxRow> rows = outboxRepository.claim(batchSize);
+        if (rows.isEmpty()) {
+            return 0;
+        }
+
+        // Publish the whole batch before waiting, so confirms come back in one round trip
+        List<CorrelationData> confirms = new ArrayList<>(rows.size());
+        for (OutboxRow row : rows) {
+            CorrelationData correlation = new CorrelationData(String.valueOf(row.id()));
+            try {
+                rabbitTemplate.send(emailExchangeName, row.routingKey(), toMessage(row), correlation);
+            } catch (RuntimeException e) {
+                correlation.getFuture().completeExceptionally(e);
+            }
+            confirms.add(correlation);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(confirmTimeoutMs);
+        List<Long> acked = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            OutboxRow row = rows.get(i);
+            String failure = awaitConfirm(confirms.get(i), deadline);
+            if (failure == null) {
+                acked.add(row.id());
+            } else {
+                log.warn("Outbox message {} for email ID {} not confirmed (attempt {}): {}",
+                        row.id(), row.emailId(), row.attempts() + 1, failure);
+                outboxRepository.reschedule(row.id(), failure, maxBackoffMs);
+                failedCounter.increment();
+            }
+        }
+        outboxRepository.delete(acked);
+        publishedCounter.increment(acked.size());
+        return rows.size();
+    }
+
+    /**
+     * Wait for a publisher confirm until the shared deadline; returns null when acked, else the reason
+     */
+    private String awaitConfirm(CorrelationData correlation, long deadline) {
+        try {
+            long remaining = Math.max(0, deadline - System.nanoTime());
+            CorrelationData.Confirm confirm = correlation.getFuture().get(remaining, TimeUnit.NANOSECONDS);
+            if (!confirm.isAck()) {
+                return "Nacked: " + confirm.getReason();
+            }
+            if (correlation.getReturned() != null) {
+                return "Returned: " + correlation.getReturned().getReplyText();
+            }
+            return null;
+        } catch (TimeoutException e) {
+            return "Confirm timed out";
+        } catch (ExecutionException e) {
+            return "Publish failed: " + e.getCause().getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Interrupted";
+        }
+    }
+
+    private Message toMessage(OutboxRow row) {
+        MessageProperties properties = new MessageProperties();
+        properties.setContentType(row.contentType());
+        properties.setContentLength(row.payload().length);
+        properties.setDeliveryMode(MessageDeliveryMode.PERSISTENT);
+        if (row.headers() != null) {
+            try {
+                objectMapper.readValue(row.headers(), HEADERS_TYPE).forEach(properties::setHeader);
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException("Corrupt headers on outbox message " + row.id(), e);
+            }
+        }
+        if (row.tenantId() != null) {
+            properties.setHeader(EmailService.TENANT_HEADER, row.tenantId());
+        }
+        return new Message(row.payload(), properties);
+    }
+}
@@ -0,0 +1,249 @@
+package com.octopus.email_service.worker;
+
+import com.octopus.email_service.repository.ScheduledSendRepository;
+import com.octopus.email_service.repository.ScheduledSendRepository.ScheduledSend;
+import com.octopus.email_service.service.EmailService;
+import com.octopus.email_service.service.QueueShardRouter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Releases SCHEDULED emails to the queue when they fall due. Emails due within the next window are
+ * loaded from Postgres into a {@link TimingWheel} and released from it on a short tick, so the
+ * database is polled once per window rather than once per tick. Each email's release is spread by
+ * a jitter derived from its ID, so a campaign scheduled for the top of the hour trickles out over
+ * the jitter window instead of landing on the relay at once. Emails in a drip group are spaced
+ * {@code 1h / dripPerHour} apart.
+ * <p>
+ * All state lives in the emails table; after a restart the next load rebuilds the wheel, and emails
+ * that fell due meanwhile are released straight away. A drip group this node has not paced yet
+ * resumes from its last release recorded in {@code released_at}, so restarts and other nodes
+ * keep to its rate.
+ */
+@Component
+@Slf4j
+public class ScheduledSendEngine implements InitializingBean, DisposableBean {
+
+    private final ScheduledSendRepository scheduledSendRepository;
+    private final EmailService emailService;
+    private final Counter releasedCounter;
+
+    @Value("${app.email.scheduling.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.email.scheduling.tick:100}")
+    private long tickMs;
+
+    @Value("${app.email.scheduling.wheel-size:1024}")
+    private int wheelSize;
+
+    @Value("${app.email.scheduling.window:120000}")
+    private long windowMs;
+
+    @Value("${app.email.scheduling.batch-size:5000}")
+    private int batchSize;
+
+    @Value("${app.email.scheduling.max-pending:100000}")
+    private int maxPending;
+
+    @Value("${app.email.scheduling.jitter:30000}")
+    private long jitterMs;
+
+    @Value("${app.email.scheduling.release-batch-size:200}")
+    private int releaseBatchSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Set<Long> pending = new HashSet<>();
+    private final Map<String, Long> nextDripSlot = new HashMap<>();
+    private TimingWheel<Long> wheel;
+    private ScheduledExecutorService ticker;
+
+    public ScheduledSendEngine(ScheduledSendRepository scheduledSendRepository, EmailService emailService,
+                               MeterRegistry meterRegistry) {
+        this.scheduledSendRepository = scheduledSendRepository;
+        this.emailService = emailService;
+        this.releasedCounter = Counter.builder("email.schedule.released")
+                .description("Scheduled emails released to the queue")
+                .register(meterRegistry);
+        Gauge.builder("email.schedule.pending", this, ScheduledSendEngine::pendingCount)
+                .description("Scheduled emails loaded and waiting for their release time")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled) {
+            return;
+        }
+        wheel = new TimingWheel<>(tickMs, wheelSize, System.currentTimeMillis());
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "email-schedule-tick");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleWithFixedDelay(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+        log.info("Scheduled-send engine started: {}ms window, {}ms jitter", windowMs, jitterMs);
+    }
+
+    /**
+     * Load emails due within the next window; twice per window so nothing is loaded late
+     */
+    @Scheduled(fixedDelayString = "${app.email.scheduling.load-interval:60000}")
+    public void load() {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<ScheduledSend> due;
+        try {
+            due = scheduledSendRepository.findDue(LocalDateTime.now().plus(windowMs, ChronoUnit.MILLIS), windowMs, batchSize);
+        } catch (RuntimeException e) {
+            log.warn("Failed to load scheduled emails: {}", e.getMessage());
+            return;
+        }
+
+        Map<String, Long> lastReleases = findLastReleases(due);
+
+        int loaded = 0;
+        lock.lock();
+        try {
+            lastReleases.forEach(nextDripSlot::putIfAbsent);
+            for (ScheduledSend send : due) {
+                if (pending.size() >= maxPending) {
+                    break;
+                }
+                if (pending.contains(send.emailId())) {
+                    continue;
+                }
+                long releaseAt = releaseTime(send, now);
+                if (releaseAt > now + windowMs) {
+                    // A drip group paced past this window; its remaining emails are picked up by a later load
+                    continue;
+                }
+                if (send.dripGroup() != null && send.dripPerHour() != null) {
+                    nextDripSlot.put(send.dripGroup(), releaseAt + dripInterval(send.dripPerHour()));
+                }
+                wheel.add(send.emailId(), releaseAt);
+                pending.add(send.emailId());
+                loaded++;
+            }
+            // Groups with nothing left waiting start afresh from their next scheduled email
+            nextDripSlot.values().removeIf(slot -> slot < now);
+        } finally {
+            lock.unlock();
+        }
+        if (loaded > 0) {
+            log.debug("Loaded {} scheduled emails, {} pending", loaded, pendingCount());
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+        }
+    }
+
+    private void tick() {
+        List<Long> due = new ArrayList<>();
+        lock.lock();
+        try {
+            wheel.advance(System.currentTimeMillis(), due::add);
+        } finally {
+            lock.unlock();
+        }
+        for (int from = 0; from < due.size(); from += releaseBatchSize) {
+            List<Long> batch = due.subList(from, Math.min(due.size(), from + releaseBatchSize));
+            try {
+                releasedCounter.increment(emailService.releaseScheduled(batch));
+            } catch (RuntimeException e) {
+                // Still SCHEDULED in the database, so the next load picks them up again
+                log.error("Failed to release {} scheduled emails", batch.size(), e);
+            }
+            lock.lock();
+            try {
+                batch.forEach(pending::remove);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Next drip slot of the loaded groups this node is not pacing, from the last release of each
+     */
+    private Map<String, Long> findLastReleases(List<ScheduledSend> due) {
+        Map<String, Integer> perHour = new HashMap<>();
+        for (ScheduledSend send : due) {
+            if (send.dripGroup() != null && send.dripPerHour() != null) {
+                perHour.putIfAbsent(send.dripGroup(), send.dripPerHour());
+            }
+        }
+        lock.lock();
+        try {
+            perHour.keySet().removeAll(nextDripSlot.keySet());
+        } finally {
+            lock.unlock();
+        }
+
+        Map<String, Long> slots = new HashMap<>();
+        try {
+            long now = System.currentTimeMillis();
+            scheduledSendRepository.findLastReleases(perHour.keySet()).forEach((group, ageMs) ->
+                    slots.put(group, now - ageMs + dripInterval(perHour.get(group))));
+        } catch (RuntimeException e) {
+            log.warn("Failed to load last drip releases: {}", e.getMessage());
+        }
+        return slots;
+    }
+
+    /**
+     * Due time plus a per-email jitter, pushed back to the group's next drip slot when paced
+     */
+    private long releaseTime(ScheduledSend send, long now) {
+        long scheduledAt = send.scheduledAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long releaseAt = Math.max(scheduledAt, now) + jitter(send.emailId());
+        if (send.dripGroup() != null && send.dripPerHour() != null) {
+            releaseAt = Math.max(releaseAt, nextDripSlot.getOrDefault(send.dripGroup(), 0L));
+        }
+        return releaseAt;
+    }
+
+    private long jitter(long emailId) {
+        return jitterMs > 0 ? Math.floorMod(QueueShardRouter.mix(emailId), jitterMs) : 0;
+    }
+
+    private static long dripInterval(int perHour) {
+        return TimeUnit.HOURS.toMillis(1) / Math.max(1, perHour);
+    }
+
+    private int pendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
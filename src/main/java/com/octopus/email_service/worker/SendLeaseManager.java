@@ -0,0 +1,145 @@
+package com.octopus.email_service.worker;
+
+import com.octopus.email_service.repository.EmailBatchRepository;
+import com.octopus.email_service.repository.EmailRepository;
+import com.octopus.email_service.service.EmailService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Send leases on emails in SENDING. A worker claims the lease with a conditional update before
+ * talking to the relay, so a redelivered message for an email that is already sent or being sent
+ * elsewhere is dropped after one statement. Leases held by this node are extended while the send is
+ * in progress; a lease that lapses means its worker died, and the reaper puts the email back in the queue.
+ */
+@Component
+@Slf4j
+public class SendLeaseManager {
+
+    private static final int HEARTBEAT_CHUNK = 500;
+
+    private final EmailService emailService;
+    private final EmailRepository emailRepository;
+    private final EmailBatchRepository emailBatchRepository;
+    private final Counter duplicateCounter;
+    private final Counter reapedCounter;
+
+    // Same node ID as queue sharding, so leases and shard ownership name a node the same way
+    @Getter
+    private final String owner;
+    private final Set<Long> held = ConcurrentHashMap.newKeySet();
+
+    @Value("${app.email.lease.duration:120000}")
+    private long leaseMs;
+
+    @Value("${app.email.lease.reaper.enabled:true}")
+    private boolean reaperEnabled;
+
+    @Value("${app.email.lease.reaper.batch-size:100}")
+    private int reaperBatchSize;
+
+    public SendLeaseManager(EmailService emailService, EmailRepository emailRepository,
+                            EmailBatchRepository emailBatchRepository, MeterRegistry meterRegistry,
+                            @Value("${app.email.sharding.node-id:}") String configuredNodeId) {
+        this.owner = ShardCoordinator.nodeId(configuredNodeId);
+        this.emailService = emailService;
+        this.emailRepository = emailRepository;
+        this.emailBatchRepository = emailBatchRepository;
+        this.duplicateCounter = Counter.builder("email.lease.duplicates")
+                .description("Deliveries skipped because the email was already sent or leased elsewhere")
+                .register(meterRegistry);
+        this.reapedCounter = Counter.builder("email.lease.reaped")
+                .description("Emails recovered from SENDING after their send lease expired")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Claim the send lease on an email, counting the attempt; false if this delivery is a duplicate
+     */
+    public boolean acquire(Long emailId) {
+        if (!emailService.claimForSending(emailId, owner, leaseMs)) {
+            duplicateCounter.increment();
+            return false;
+        }
+        held.add(emailId);
+        return true;
+    }
+
+    /**
+     * Claim send leases for a batch; returns the IDs claimed
+     */
+    public List<Long> acquireAll(List<Long> emailIds) {
+        List<Long> claimed = emailBatchRepository.claimForSending(emailIds, owner, leaseMs);
+        duplicateCounter.increment(emailIds.size() - claimed.size());
+        held.addAll(claimed);
+        return claimed;
+    }
+
+    /**
+     * Stop extending the lease; the status update that ends the send clears it in the database
+     */
+    public void release(Long emailId) {
+        held.remove(emailId);
+    }
+
+    public void releaseAll(Collection<Long> emailIds) {
+        held.removeAll(emailIds);
+    }
+
+    /**
+     * Extend the leases of sends still in progress, a third of the lease duration apart by default
+     */
+    @Scheduled(fixedDelayString = "${app.email.lease.heartbeat-interval:40000}")
+    public void heartbeat() {
+        if (held.isEmpty()) {
+            return;
+        }
+        List<Long> ids = new ArrayList<>(held);
+        try {
+            for (int from = 0; from < ids.size(); from += HEARTBEAT_CHUNK) {
+                emailRepository.extendLeases(ids.subList(from, Math.min(ids.size(), from + HEARTBEAT_CHUNK)), owner, leaseMs);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to extend {} send leases: {}", ids.size(), e.getMessage());
+        }
+    }
+
+    /**
+     * Requeue emails left in SENDING by a worker that stopped renewing its lease
+     */
+    @Scheduled(fixedDelayString = "${app.email.lease.reaper.interval:60000}")
+    public void reapExpired() {
+        if (!reaperEnabled) {
+            return;
+        }
+        List<Long> expired;
+        try {
+            expired = emailRepository.findExpiredLeases(reaperBatchSize);
+        } catch (RuntimeException e) {
+            log.warn("Failed to look up expired send leases: {}", e.getMessage());
+            return;
+        }
+        for (Long emailId : expired) {
+            try {
+                // Conditional, so with several nodes reaping only one recovers each email
+                if (emailService.recoverExpiredLease(emailId)) {
+                    reapedCounter.increment();
+                    log.warn("Send lease on email ID {} expired, recovered from SENDING", emailId);
+                }
+            } catch (RuntimeException e) {
+                log.error("Failed to recover email ID {} from an expired send lease", emailId, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.octopus.email_service.worker;
+
+import com.octopus.email_service.repository.WorkerNodeRepository;
+import com.octopus.email_service.service.EmailRetryService;
+import com.octopus.email_service.service.QueueShardRouter;
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareMessageListener;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which sharded queues this node consumes. Nodes heartbeat into {@code email_worker_nodes}
+ * and each shard is owned by the live node with the highest rendezvous hash for it, so when a node
+ * joins or leaves only the shards it gains or loses move. Shard consumers are exclusive, so a shard
+ * handed over is only picked up once its previous owner has let go.
+ * <p>
+ * The one consumer of an owned shard only dispatches: up to {@code concurrency} of its emails are
+ * processed at a time on virtual threads and acknowledged when done. Deliveries that fail are
+ * dead-lettered rather than requeued. Heartbeats run on a thread of their own, so a busy scheduler
+ * never lets this node's membership lapse.
+ */
+@Component
+@Slf4j
+public class ShardCoordinator implements InitializingBean, DisposableBean {
+
+    private final QueueShardRouter shardRouter;
+    private final WorkerNodeRepository workerNodeRepository;
+    private final ConnectionFactory connectionFactory;
+    private final MessageConverter jsonMessageConverter;
+    private final EmailWorker emailWorker;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${app.email.sharding.node-id:}")
+    private String configuredNodeId;
+
+    @Value("${app.email.sharding.node-ttl:15000}")
+    private long nodeTtlMs;
+
+    @Value("${app.email.sharding.heartbeat-interval:5000}")
+    private long heartbeatIntervalMs;
+
+    @Value("${app.email.sharding.concurrency:8}")
+    private int concurrency;
+
+    private String nodeId;
+    private final Map<Integer, SimpleMessageListenerContainer> containers = new ConcurrentHashMap<>();
+    private ScheduledExecutorService heartbeat;
+    private ExecutorService workers;
+
+    public ShardCoordinator(QueueShardRouter shardRouter, WorkerNodeRepository workerNodeRepository,
+                            ConnectionFactory connectionFactory, MessageConverter jsonMessageConverter,
+                            EmailWorker emailWorker, MeterRegistry meterRegistry) {
+        this.shardRouter = shardRouter;
+        this.workerNodeRepository = workerNodeRepository;
+        this.connectionFactory = connectionFactory;
+        this.jsonMessageConverter = jsonMessageConverter;
+        this.emailWorker = emailWorker;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!shardRouter.isEnabled()) {
+            return;
+        }
+        nodeId = nodeId(configuredNodeId);
+        Gauge.builder("email.shard.owned", containers, Map::size)
+                .description("Sharded email queues consumed by this node")
+                .register(meterRegistry);
+        workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("email-shard-", 0).factory());
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "email-shard-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(this::rebalance, 0, heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+        log.info("Queue sharding enabled as node {} over {} shards, {} concurrent sends per shard",
+                 nodeId, shardRouter.getShards(), concurrency);
+    }
+
+    /**
+     * Heartbeat, then start consumers for newly owned shards and stop those for shards now owned elsewhere
+     */
+    void rebalance() {
+        Set<Integer> owned;
+        try {
+            workerNodeRepository.heartbeat(nodeId);
+            workerNodeRepository.deleteStale(nodeTtlMs * 4);
+            owned = ownedShards(nodeId, workerNodeRepository.findLiveNodeIds(nodeTtlMs), shardRouter.getShards());
+        } catch (RuntimeException e) {
+            // Keep consuming what we have; peers will take our shards over if our heartbeat lapses
+            log.warn("Failed to refresh shard membership: {}", e.getMessage());
+            return;
+        }
+
+        try {
+            containers.keySet().stream()
+                    .filter(shard -> !owned.contains(shard))
+                    .toList()
+                    .forEach(this::release);
+            owned.stream()
+                    .filter(shard -> !containers.containsKey(shard))
+                    .forEach(this::claim);
+        } catch (RuntimeException e) {
+            // A task that throws is not rescheduled; the next heartbeat retries what is left
+            log.warn("Failed to rebalance shards: {}", e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+            heartbeat.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        containers.keySet().stream().toList().forEach(this::release);
+        if (workers != null) {
+            workers.shutdown();
+            if (!workers.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("Shard workers did not drain within 30s; unacked deliveries will be redelivered");
+                workers.shutdownNow();
+            }
+        }
+        if (nodeId != null) {
+            try {
+                workerNodeRepository.deleteById(nodeId);
+            } catch (RuntimeException e) {
+                log.debug("Failed to deregister node {}: {}", nodeId, e.getMessage());
+            }
+        }
+    }
+
+    private void claim(int shard) {
+        SimpleMessageListenerContainer container = new SimpleMessageListenerContainer(connectionFactory);
+        container.setQueueNames(shardRouter.queueName(shard));
+        // Exclusive, so a shard never has two owners even while membership views disagree
+        container.setExclusive(true);
+        container.setConcurrentConsumers(1);
+        container.setPrefetchCount(Math.max(1, concurrency));
+        container.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        // Dead-letter what the listener rejects instead of redelivering it for ever
+        container.setDefaultRequeueRejected(false);
+        Semaphore inFlight = new Semaphore(Math.max(1, concurrency));
+        container.setMessageListener((ChannelAwareMessageListener) (message, channel) -> dispatch(message, channel, inFlight));
+        container.afterPropertiesSet();
+        container.start();
+        containers.put(shard, container);
+        log.info("Node {} now consumes shard {}", nodeId, shard);
+    }
+
+    /**
+     * Process a delivery on a worker thread, blocking the shard's consumer while all its slots are busy
+     */
+    private void dispatch(Message message, Channel channel, Semaphore inFlight) throws InterruptedException {
+        long deliveryTag = message.getMessageProperties().getDeliveryTag();
+        inFlight.acquire();
+        try {
+            workers.execute(() -> {
+                try {
+                    Object payload = jsonMessageConverter.fromMessage(message);
+                    Object notBefore = message.getMessageProperties().getHeader(EmailRetryService.NOT_BEFORE_HEADER);
+                    emailWorker.processDetached(payload, notBefore instanceof Number number ? number.longValue() : null);
+                } catch (Exception e) {
+                    log.error("Failed to process delivery {} from a sharded queue, dead-lettering", deliveryTag, e);
+                    settle(channel, deliveryTag, false);
+                    return;
+                } finally {
+                    inFlight.release();
+                }
+                settle(channel, deliveryTag, true);
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private void settle(Channel channel, long deliveryTag, boolean processed) {
+        try {
+            if (processed) {
+                channel.basicAck(deliveryTag, false);
+            } else {
+                channel.basicNack(deliveryTag, false, false);
+            }
+        } catch (IOException | RuntimeException e) {
+            // The shard was released and its channel closed; the broker redelivers to the next owner
+            log.warn("Failed to settle delivery {} from a sharded queue: {}", deliveryTag, e.getMessage());
+        }
+    }
+
+    private void release(int shard) {
+        SimpleMessageListenerContainer container = containers.remove(shard);
+        if (container != null) {
+            // Unacked deliveries return to the queue for the shard's new owner
+            container.stop();
+            container.destroy();
+            log.info("Node {} released shard {}", nodeId, shard);
+        }
+    }
+
+    /**
+     * Shards owned by {@code node}: those for which it has the highest rendezvous hash among the live nodes
+     */
+    static Set<Integer> ownedShards(String node, Collection<String> liveNodes, int shards) {
+        Set<String> nodes = new TreeSet<>(liveNodes);
+        nodes.add(node);
+        Set<Integer> owned = new TreeSet<>();
+        for (int shard = 0; shard < shards; shard++) {
+            if (node.equals(ownerOf(shard, nodes))) {
+                owned.add(shard);
+            }
+        }
+        return owned;
+    }
+
+    static String ownerOf(int shard, Collection<String> nodes) {
+        String owner = null;
+        long best = Long.MIN_VALUE;
+        for (String node : nodes) {
+            long weight = QueueShardRouter.mix(QueueShardRouter.hash(node) ^ QueueShardRouter.mix(shard + 1L));
+            if (owner == null || weight > best || (weight == best && node.compareTo(owner) < 0)) {
+                owner = node;
+                best = weight;
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * This node's ID: {@code app.email.sharding.node-id} when set, else the hostname and pid
+     */
+    static String nodeId(String configuredNodeId) {
+        return StringUtils.hasText(configuredNodeId) ? configuredNodeId : defaultNodeId();
+    }
+
+    /**
+     * Identifies this process among worker nodes: hostname and pid
+     */
+    static String defaultNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "unknown";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+}
@@ -0,0 +1,93 @@
+package com.octopus.email_service.worker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel: a ring of buckets, one per tick, each holding the items due in any tick
+ * that hashes to it. Adding an item and expiring a tick are both O(1) in the number of items
+ * pending, so the wheel can hold a large scheduled backlog without a priority queue's log factor.
+ * Items further out than one rotation wait in their bucket until their tick comes round.
+ * <p>
+ * Not thread-safe; callers synchronize.
+ */
+public class TimingWheel<T> {
+
+    private final long tickMillis;
+    private final List<List<Entry<T>>> buckets;
+    private long currentTick;
+    private int size;
+
+    private record Entry<T>(T item, long tick) {
+    }
+
+    public TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        if (tickMillis < 1 || wheelSize < 1) {
+            throw new IllegalArgumentException("Tick and wheel size must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.buckets = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        this.currentTick = startMillis / tickMillis;
+    }
+
+    /**
+     * Schedule an item; one already due expires on the next {@link #advance}
+     */
+    public void add(T item, long deadlineMillis) {
+        long tick = Math.max(deadlineMillis / tickMillis, currentTick);
+        buckets.get(bucketOf(tick)).add(new Entry<>(item, tick));
+        size++;
+    }
+
+    /**
+     * Expire every item due at or before {@code nowMillis}, in tick order
+     *
+     * @return the number of items expired
+     */
+    public int advance(long nowMillis, Consumer<T> expired) {
+        long target = nowMillis / tickMillis;
+        int count = 0;
+        if (target - currentTick >= buckets.size()) {
+            // Fell more than a rotation behind; one sweep of every bucket catches up
+            for (List<Entry<T>> bucket : buckets) {
+                count += expire(bucket, target, expired);
+            }
+            currentTick = target + 1;
+            return count;
+        }
+        while (currentTick <= target) {
+            count += expire(buckets.get(bucketOf(currentTick)), currentTick, expired);
+            currentTick++;
+        }
+        return count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int expire(List<Entry<T>> bucket, long upToTick, Consumer<T> expired) {
+        if (bucket.isEmpty()) {
+            return 0;
+        }
+        List<T> due = new ArrayList<>();
+        bucket.removeIf(entry -> {
+            if (entry.tick() <= upToTick) {
+                due.add(entry.item());
+                return true;
+            }
+            return false;
+        });
+        size -= due.size();
+        due.forEach(expired);
+        return due.size();
+    }
+
+    private int bucketOf(long tick) {
+        return (int) Math.floorMod(tick, (long) buckets.size());
+    }
+}
@@ -0,0 +1,168 @@
+package com.octopus.email_service.worker;
+
+import com.octopus.email_service.service.EmailRetryService;
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.handler.annotation.Header;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Virtual-thread execution mode, enabled with {@code app.email.virtual-threads.enabled=true}.
+ * Listener threads only dispatch: each email is processed on its own virtual thread, with a
+ * semaphore capping in-flight sends. Deliveries are acknowledged once processing finishes.
+ * Optionally streams JFR {@code jdk.VirtualThreadPinned} events to report carrier-thread pinning.
+ */
+@Component
+@Slf4j
+public class VirtualThreadEmailDispatcher implements InitializingBean, DisposableBean {
+
+    public static final String LISTENER_ID = "emailVirtualThreadListener";
+
+    private final EmailWorker emailWorker;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${app.email.virtual-threads.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.email.virtual-threads.max-in-flight:200}")
+    private int maxInFlight;
+
+    @Value("${app.email.virtual-threads.pinning-diagnostics:false}")
+    private boolean pinningDiagnostics;
+
+    @Value("${app.email.virtual-threads.pinning-threshold:20}")
+    private long pinningThresholdMs;
+
+    private Semaphore inFlight;
+    private ExecutorService executor;
+    private RecordingStream pinningStream;
+    private Counter pinnedEvents;
+
+    public VirtualThreadEmailDispatcher(EmailWorker emailWorker, MeterRegistry meterRegistry) {
+        this.emailWorker = emailWorker;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled) {
+            return;
+        }
+
+        inFlight = new Semaphore(maxInFlight);
+        executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("email-vt-", 0).factory());
+        Gauge.builder("email.virtual.inflight", inFlight, semaphore -> maxInFlight - semaphore.availablePermits())
+                .description("Emails currently being processed on virtual threads")
+                .register(meterRegistry);
+
+        if (pinningDiagnostics) {
+            startPinningDiagnostics();
+        }
+        log.info("Virtual-thread email dispatch enabled with up to {} in-flight sends", maxInFlight);
+    }
+
+    @RabbitListener(id = LISTENER_ID,
+                    queues = "${app.email.queue.name:email.queue}",
+                    containerFactory = "virtualThreadRabbitListenerContainerFactory",
+                    autoStartup = "${app.email.virtual-threads.enabled:false}")
+    public void dispatch(Object payload, Channel channel,
+                         @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+                         @Header(name = EmailRetryService.NOT_BEFORE_HEADER, required = false) Long notBefore)
+            throws InterruptedException {
+        // Blocking here stops this consumer from taking more deliveries until a send slot frees up
+        inFlight.acquire();
+        try {
+            executor.execute(() -> {
+                try {
+                    emailWorker.processDetached(payload, notBefore);
+                    channel.basicAck(deliveryTag, false);
+                } catch (Exception e) {
+                    log.error("Failed to process email ID: {} on virtual thread, requeueing",
+                              EmailWorker.emailIdOf(payload), e);
+                    nackQuietly(channel, deliveryTag);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("Virtual-thread executor did not drain within 30s; unacked deliveries will be redelivered");
+                executor.shutdownNow();
+            }
+        }
+        if (pinningStream != null) {
+            pinningStream.close();
+        }
+    }
+
+    private void startPinningDiagnostics() {
+        pinnedEvents = Counter.builder("email.virtual.pinned")
+                .description("Virtual threads pinned to their carrier longer than the threshold")
+                .register(meterRegistry);
+
+        pinningStream = new RecordingStream();
+        pinningStream.enable("jdk.VirtualThreadPinned")
+                .withThreshold(Duration.ofMillis(pinningThresholdMs))
+                .withStackTrace();
+        pinningStream.onEvent("jdk.VirtualThreadPinned", event -> {
+            pinnedEvents.increment();
+            if (log.isDebugEnabled()) {
+                log.debug("Virtual thread pinned for {} ms at {}",
+                          event.getDuration().toMillis(), topFrames(event.getStackTrace()));
+            }
+        });
+        pinningStream.startAsync();
+        log.info("Virtual-thread pinning diagnostics enabled (threshold {} ms)", pinningThresholdMs);
+    }
+
+    private String topFrames(RecordedStackTrace stackTrace) {
+        if (stackTrace == null) {
+            return "<no stack trace>";
+        }
+        StringBuilder frames = new StringBuilder();
+        for (RecordedFrame frame : stackTrace.getFrames().subList(0, Math.min(5, stackTrace.getFrames().size()))) {
+            frames.append("\n\tat ")
+                  .append(frame.getMethod().getType().getName())
+                  .append('.')
+                  .append(frame.getMethod().getName())
+                  .append(':')
+                  .append(frame.getLineNumber());
+        }
+        return frames.toString();
+    }
+
+    private void nackQuietly(Channel channel, long deliveryTag) {
+        try {
+            channel.basicNack(deliveryTag, false, true);
+        } catch (IOException e) {
+            log.error("Failed to nack delivery {}", deliveryTag, e);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+-- Transactional outbox: queue messages written with the email and published by the outbox relay
+CREATE TABLE email_outbox (
+    id BIGSERIAL PRIMARY KEY,
+    email_id BIGINT NOT NULL,
+    tenant_id BIGINT,
+    routing_key VARCHAR(255) NOT NULL,
+    content_type VARCHAR(100),
+    headers TEXT,
+    payload BYTEA NOT NULL,
+    attempts INTEGER NOT NULL DEFAULT 0,
+    last_error TEXT,
+    available_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE INDEX idx_email_outbox_available_at ON email_outbox(available_at, id);
+
+COMMENT ON TABLE email_outbox IS 'Queue messages pending publication; a row is deleted once the broker confirms it';
@@ -0,0 +1,11 @@
+-- Send lease: the worker holding an email in SENDING and until when; expired leases are requeued
+ALTER TABLE emails ADD COLUMN lease_owner VARCHAR(255);
+ALTER TABLE emails ADD COLUMN lease_expires_at TIMESTAMP;
+
+-- Emails already stuck in SENDING become reapable a while after their last update
+UPDATE emails SET lease_expires_at = updated_at + INTERVAL '15 minutes' WHERE status = 'SENDING';
+
+CREATE INDEX idx_emails_lease_expires_at ON emails(lease_expires_at) WHERE status = 'SENDING';
+
+COMMENT ON COLUMN emails.lease_owner IS 'Worker node sending the email while status is SENDING';
+COMMENT ON COLUMN emails.lease_expires_at IS 'When the send lease lapses unless the owner extends it';
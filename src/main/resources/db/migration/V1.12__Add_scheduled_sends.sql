@@ -0,0 +1,15 @@
+-- Scheduled sends: SCHEDULED emails wait for scheduled_at and are released to the queue by the
+-- scheduled-send engine; emails sharing a drip group are released at most drip_per_hour an hour
+ALTER TABLE emails DROP CONSTRAINT IF EXISTS emails_status_check;
+ALTER TABLE emails ADD CONSTRAINT emails_status_check
+    CHECK (status IN ('ENQUEUED', 'SENDING', 'SENT', 'FAILED', 'BOUNCED', 'DELIVERED', 'SCHEDULED'));
+
+ALTER TABLE emails ADD COLUMN drip_group VARCHAR(255);
+ALTER TABLE emails ADD COLUMN drip_per_hour INTEGER;
+ALTER TABLE emails ADD CONSTRAINT chk_emails_drip_per_hour CHECK (drip_per_hour IS NULL OR drip_per_hour > 0);
+
+-- Covers the engine's window query, so loading due emails never touches the heap
+CREATE INDEX idx_emails_status_scheduled_at ON emails(status, scheduled_at) INCLUDE (id, drip_group, drip_per_hour);
+
+COMMENT ON COLUMN emails.drip_group IS 'Scheduled emails paced together, e.g. one campaign';
+COMMENT ON COLUMN emails.drip_per_hour IS 'Release rate of the drip group in emails per hour';
@@ -0,0 +1,34 @@
+-- Mail-merge campaigns: content shared by every recipient is stored once on the campaign, and each
+-- recipient becomes an email row pointing back to it
+CREATE TABLE email_campaigns (
+    id BIGSERIAL PRIMARY KEY,
+    uuid UUID UNIQUE NOT NULL DEFAULT gen_random_uuid(),
+    tenant_id BIGINT REFERENCES email_tenants(id) ON DELETE SET NULL,
+    name VARCHAR(255),
+    from_address VARCHAR(255) NOT NULL,
+    reply_to_address VARCHAR(255),
+    subject VARCHAR(500) NOT NULL,
+    template_name VARCHAR(100) NOT NULL REFERENCES templates(name),
+    template_vars TEXT,
+    attachments VARCHAR(50000),
+    priority VARCHAR(20) NOT NULL DEFAULT 'LOW' CHECK (priority IN ('HIGH', 'NORMAL', 'LOW')),
+    scheduled_at TIMESTAMP,
+    drip_per_hour INTEGER CHECK (drip_per_hour IS NULL OR drip_per_hour > 0),
+    status VARCHAR(20) NOT NULL DEFAULT 'ACCEPTING' CHECK (status IN ('ACCEPTING', 'QUEUED')),
+    recipients_received INTEGER NOT NULL DEFAULT 0,
+    recipients_queued INTEGER NOT NULL DEFAULT 0,
+    recipients_rejected INTEGER NOT NULL DEFAULT 0,
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE INDEX idx_email_campaigns_tenant_id ON email_campaigns(tenant_id);
+
+ALTER TABLE emails ADD COLUMN campaign_id BIGINT REFERENCES email_campaigns(id) ON DELETE SET NULL;
+
+-- Covers the per-status progress count of a campaign
+CREATE INDEX idx_emails_campaign_id_status ON emails(campaign_id, status) WHERE campaign_id IS NOT NULL;
+
+COMMENT ON TABLE email_campaigns IS 'Bulk sends of one template to many recipients; progress counters are updated per ingested chunk';
+COMMENT ON COLUMN email_campaigns.template_vars IS 'Variables shared by all recipients; per-recipient variables override them';
+COMMENT ON COLUMN emails.campaign_id IS 'Campaign the email was created for, if any';
@@ -0,0 +1,22 @@
+-- Immutable template versions: every content change bumps templates.version and appends a snapshot,
+-- so a (template, version) pair always names the same content and can be cached without expiry
+ALTER TABLE templates ADD COLUMN version INTEGER NOT NULL DEFAULT 1;
+
+CREATE TABLE template_versions (
+    template_id BIGINT NOT NULL REFERENCES templates(id) ON DELETE CASCADE,
+    version INTEGER NOT NULL,
+    name VARCHAR(100) NOT NULL,
+    subject_template TEXT NOT NULL,
+    body_template TEXT NOT NULL,
+    body_type VARCHAR(20),
+    created_by BIGINT REFERENCES users(id),
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (template_id, version)
+);
+
+INSERT INTO template_versions (template_id, version, name, subject_template, body_template, body_type, created_by, created_at)
+SELECT id, 1, name, subject_template, body_template, body_type, created_by, COALESCE(updated_at, CURRENT_TIMESTAMP)
+FROM templates;
+
+COMMENT ON COLUMN templates.version IS 'Current content version; bumped by every content change';
+COMMENT ON TABLE template_versions IS 'Append-only snapshots of template content, one per version';
@@ -0,0 +1,11 @@
+-- Compiled template artifacts, produced once when a template version is saved: the HTML body with
+-- its CSS inlined and whitespace minified, and a text/plain alternative. Existing templates keep
+-- NULLs and are sent from body_template until their next content change.
+ALTER TABLE templates ADD COLUMN compiled_body TEXT;
+ALTER TABLE templates ADD COLUMN text_body TEXT;
+
+ALTER TABLE template_versions ADD COLUMN compiled_body TEXT;
+ALTER TABLE template_versions ADD COLUMN text_body TEXT;
+
+COMMENT ON COLUMN templates.compiled_body IS 'HTML body with CSS inlined and whitespace minified; NULL sends body_template';
+COMMENT ON COLUMN templates.text_body IS 'text/plain alternative of an HTML body, as a Thymeleaf TEXT template';
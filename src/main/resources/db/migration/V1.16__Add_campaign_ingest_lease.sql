@@ -0,0 +1,16 @@
+-- Campaign ingest lease: a campaign ingested in the background is INGESTING under a lease its node
+-- extends while the ingest runs. A lapsed lease means the node died with the rest of the recipients
+-- in memory, so the campaign is FAILED; the chunks already committed stay queued.
+ALTER TABLE email_campaigns DROP CONSTRAINT email_campaigns_status_check;
+ALTER TABLE email_campaigns ADD CONSTRAINT email_campaigns_status_check
+    CHECK (status IN ('ACCEPTING', 'INGESTING', 'QUEUED', 'FAILED'));
+
+ALTER TABLE email_campaigns ADD COLUMN recipients_expected INTEGER;
+ALTER TABLE email_campaigns ADD COLUMN ingest_lease_expires_at TIMESTAMP;
+ALTER TABLE email_campaigns ADD COLUMN last_error VARCHAR(500);
+
+CREATE INDEX idx_email_campaigns_open ON email_campaigns(status, updated_at) WHERE status IN ('ACCEPTING', 'INGESTING');
+
+COMMENT ON COLUMN email_campaigns.recipients_expected IS 'Recipients submitted with the campaign; NULL for streamed campaigns';
+COMMENT ON COLUMN email_campaigns.ingest_lease_expires_at IS 'When the ingest lease lapses unless the ingesting node extends it';
+COMMENT ON COLUMN email_campaigns.last_error IS 'Why the campaign stopped taking recipients before all were ingested';
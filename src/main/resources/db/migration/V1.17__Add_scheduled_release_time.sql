@@ -0,0 +1,14 @@
+-- Drip pacing state: released_at records when the scheduled-send engine released an email, so the
+-- next slot of a drip group is derived from its last release after a restart or on another node
+ALTER TABLE emails ADD COLUMN released_at TIMESTAMP;
+
+-- Per-group reads of the engine's window query: due paced emails by group, and everything else by time
+CREATE INDEX idx_emails_scheduled_drip ON emails(drip_group, scheduled_at, id)
+    WHERE status = 'SCHEDULED' AND drip_group IS NOT NULL AND drip_per_hour IS NOT NULL;
+CREATE INDEX idx_emails_scheduled_unpaced ON emails(scheduled_at, id)
+    WHERE status = 'SCHEDULED' AND (drip_group IS NULL OR drip_per_hour IS NULL);
+
+-- Last release of each drip group
+CREATE INDEX idx_emails_drip_released_at ON emails(drip_group, released_at) WHERE released_at IS NOT NULL;
+
+COMMENT ON COLUMN emails.released_at IS 'When the scheduled-send engine released the email to the queue';
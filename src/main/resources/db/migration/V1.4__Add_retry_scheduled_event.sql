@@ -0,0 +1,10 @@
+-- Allow RETRY_SCHEDULED events recorded by the tiered retry queues
+ALTER TABLE email_events DROP CONSTRAINT IF EXISTS email_events_event_type_check;
+ALTER TABLE email_events ADD CONSTRAINT email_events_event_type_check
+    CHECK (event_type IN ('ENQUEUED', 'SENDING', 'SENT', 'DELIVERED', 'BOUNCED', 'OPEN', 'CLICK',
+                          'SOFT_BOUNCE', 'HARD_BOUNCE', 'FAILED', 'RETRY_SCHEDULED'));
+
+-- Event details include plain-text errors as well as JSON, matching the TEXT mapping on EmailEvent
+ALTER TABLE email_events ALTER COLUMN detail TYPE TEXT USING detail::TEXT;
+
+COMMENT ON COLUMN email_events.detail IS 'Event detail; RETRY_SCHEDULED events hold the attempt, tier, delay and retry time as JSON';
@@ -0,0 +1,9 @@
+-- Record the sending tenant on each email so the worker can schedule tenants fairly
+ALTER TABLE emails ADD COLUMN tenant_id BIGINT REFERENCES email_tenants(id) ON DELETE SET NULL;
+CREATE INDEX idx_emails_tenant_id ON emails(tenant_id);
+
+-- Relative share of worker capacity when several tenants have mail waiting
+ALTER TABLE email_tenants ADD COLUMN scheduling_weight INTEGER NOT NULL DEFAULT 1;
+ALTER TABLE email_tenants ADD CONSTRAINT email_tenants_scheduling_weight_check CHECK (scheduling_weight >= 1);
+
+COMMENT ON COLUMN email_tenants.scheduling_weight IS 'Weight used by the fair scheduler; a tenant with weight 3 gets three sends for every one of a weight-1 tenant';
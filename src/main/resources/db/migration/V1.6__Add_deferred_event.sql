@@ -0,0 +1,5 @@
+-- Allow DEFERRED events recorded when a receiving domain throttles us
+ALTER TABLE email_events DROP CONSTRAINT IF EXISTS email_events_event_type_check;
+ALTER TABLE email_events ADD CONSTRAINT email_events_event_type_check
+    CHECK (event_type IN ('ENQUEUED', 'SENDING', 'SENT', 'DELIVERED', 'BOUNCED', 'OPEN', 'CLICK',
+                          'SOFT_BOUNCE', 'HARD_BOUNCE', 'FAILED', 'RETRY_SCHEDULED', 'DEFERRED'));
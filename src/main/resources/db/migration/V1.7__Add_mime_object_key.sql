@@ -0,0 +1,4 @@
+-- Location of the fully assembled, gzip-compressed MIME message kept for retries and resends
+ALTER TABLE emails ADD COLUMN mime_object_key VARCHAR(512);
+
+COMMENT ON COLUMN emails.mime_object_key IS 'MinIO object key or spool path of the assembled message; NULL until first assembly';
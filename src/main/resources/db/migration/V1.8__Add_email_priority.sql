@@ -0,0 +1,6 @@
+-- Delivery priority; HIGH emails are routed to the express lane when it is enabled
+ALTER TABLE emails ADD COLUMN priority VARCHAR(20) NOT NULL DEFAULT 'NORMAL';
+
+ALTER TABLE emails ADD CONSTRAINT chk_emails_priority CHECK (priority IN ('HIGH', 'NORMAL', 'LOW'));
+
+COMMENT ON COLUMN emails.priority IS 'HIGH (transactional: OTP, password reset), NORMAL or LOW (bulk)';
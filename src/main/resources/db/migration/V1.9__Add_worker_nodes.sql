@@ -0,0 +1,10 @@
+-- Worker nodes currently consuming sharded email queues; shard ownership is derived from the live set
+CREATE TABLE email_worker_nodes (
+    node_id VARCHAR(255) PRIMARY KEY,
+    started_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    heartbeat_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE INDEX idx_email_worker_nodes_heartbeat_at ON email_worker_nodes(heartbeat_at);
+
+COMMENT ON TABLE email_worker_nodes IS 'Heartbeats of worker nodes; a node is live while its heartbeat is within the node TTL';
@@ -0,0 +1,136 @@
+package com.octopus.email_service.mail;
+
+import com.octopus.email_service.entity.Template;
+import com.octopus.email_service.enums.BodyType;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the compiled template cache keyed by template ID and version, and its render budget.
+ */
+public class CompiledTemplateCacheTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private CompiledTemplateCache cache;
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        cache = new CompiledTemplateCache(meterRegistry);
+        ReflectionTestUtils.setField(cache, "cacheSize", 10);
+        cache.afterPropertiesSet();
+    }
+
+    @Test
+    public void testRendersSubjectAsTextAndBodyAsHtml() {
+        Template template = template(1, "Hello [[${name}]]", "<p th:text=\"${name}\">x</p>");
+
+        assertEquals("Hello Ada", cache.render(template, CompiledTemplateCache.Part.SUBJECT, Map.of("name", "Ada")));
+        assertEquals("<p>Ada</p>", cache.render(template, CompiledTemplateCache.Part.BODY, Map.of("name", "Ada")));
+        assertEquals(2.0, meterRegistry.get("email.template.cache.size").gauge().value());
+    }
+
+    @Test
+    public void testVersionIsParsedOnceAndNewVersionsAreParsedAfresh() {
+        cache.render(template(1, "Hi [[${name}]]", "v1"), CompiledTemplateCache.Part.SUBJECT, Map.of("name", "Ada"));
+
+        // Same version with other content: the parsed version is served
+        assertEquals("Hi Bob", cache.render(template(1, "Changed [[${name}]]", "v1"),
+                CompiledTemplateCache.Part.SUBJECT, Map.of("name", "Bob")));
+        assertEquals("Bye Bob", cache.render(template(2, "Bye [[${name}]]", "v2"),
+                CompiledTemplateCache.Part.SUBJECT, Map.of("name", "Bob")));
+    }
+
+    @Test
+    public void testEvictDropsTheReplacedVersion() {
+        cache.render(template(1, "Hi", "<b>v1</b>"), CompiledTemplateCache.Part.BODY, Map.of());
+        cache.render(template(1, "Hi", "<b>v1</b>"), CompiledTemplateCache.Part.SUBJECT, Map.of());
+
+        cache.evict(7L, 1);
+
+        assertEquals(0.0, meterRegistry.get("email.template.cache.size").gauge().value());
+        assertEquals("<b>v1 again</b>", cache.render(template(1, "Hi", "<b>v1 again</b>"),
+                CompiledTemplateCache.Part.BODY, Map.of()));
+    }
+
+    @Test
+    public void testLoopsPastTheIterationLimitFailFast() {
+        ReflectionTestUtils.setField(cache, "maxIterations", 100L);
+        Template template = template(1, "Hi", "<p th:each=\"i : ${items}\" th:text=\"${i}\">x</p>");
+
+        assertEquals("<p>1</p><p>2</p>", cache.render(template, CompiledTemplateCache.Part.BODY, Map.of("items", List.of(1, 2))));
+        TemplateBudgetExceededException e = assertThrows(TemplateBudgetExceededException.class, () ->
+                cache.render(template, CompiledTemplateCache.Part.BODY, Map.of("items", Collections.nCopies(101, 1))));
+        assertTrue(e.getMessage().contains("100 loop iterations"));
+        assertEquals(1, meterRegistry.get("email.template.render")
+                .tags("template", "welcome", "outcome", "budget_exceeded").timer().count());
+    }
+
+    @Test
+    public void testOutputPastTheLimitFailsFast() {
+        ReflectionTestUtils.setField(cache, "maxOutputChars", 1000L);
+        Template template = template(1, "Hi", "<p th:text=\"${text}\">x</p>");
+
+        assertThrows(TemplateBudgetExceededException.class, () ->
+                cache.render(template, CompiledTemplateCache.Part.BODY, Map.of("text", "x".repeat(2000))));
+        assertEquals("<p>ok</p>", cache.render(template, CompiledTemplateCache.Part.BODY, Map.of("text", "ok")));
+        assertEquals(1, meterRegistry.get("email.template.render")
+                .tags("template", "welcome", "part", "body", "outcome", "success").timer().count());
+    }
+
+    @Test
+    public void testRenderTimesAreAlsoRecordedAcrossTemplates() {
+        cache.render(template(1, "Hi", "<b>v1</b>"), CompiledTemplateCache.Part.BODY, Map.of());
+
+        assertEquals(1, meterRegistry.get("email.template.render").tags("template", "welcome").timer().count());
+        Timer latency = meterRegistry.get("email.template.render.latency").tags("part", "body", "outcome", "success").timer();
+        assertEquals(1, latency.count());
+        assertNull(latency.getId().getTag("template"));
+    }
+
+    @Test
+    public void testRenderIsAbandonedAfterTheWallClockTimeout() {
+        ReflectionTestUtils.setField(cache, "timeBudgetMs", 0L);
+        ReflectionTestUtils.setField(cache, "timeoutMs", 100L);
+        Template template = template(1, "Hi", "<p th:text=\"${slow}\">x</p>");
+        // Evaluating the variable never writes or loops, so only the timeout catches it
+        Object slow = new Object() {
+            @Override
+            public String toString() {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "late";
+            }
+        };
+
+        long start = System.nanoTime();
+        TemplateBudgetExceededException e = assertThrows(TemplateBudgetExceededException.class, () ->
+                cache.render(template, CompiledTemplateCache.Part.BODY, Map.of("slow", slow)));
+
+        assertTrue(e.getMessage().contains("render timeout of 100 ms"));
+        assertTrue(System.nanoTime() - start < 1_000_000_000L);
+    }
+
+    private static Template template(int version, String subject, String body) {
+        return Template.builder()
+                .id(7L)
+                .name("welcome")
+                .subjectTemplate(subject)
+                .bodyTemplate(body)
+                .bodyType(BodyType.HTML)
+                .version(version)
+                .build();
+    }
+}
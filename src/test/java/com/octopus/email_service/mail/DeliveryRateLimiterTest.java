@@ -0,0 +1,138 @@
+package com.octopus.email_service.mail;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.InternetAddress;
+import org.eclipse.angus.mail.smtp.SMTPAddressFailedException;
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mail.MailSendException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for per-domain pacing, concurrency leases and throttling detection.
+ */
+public class DeliveryRateLimiterTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private DeliveryRateLimiter limiter;
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        limiter = new DeliveryRateLimiter(meterRegistry);
+        ReflectionTestUtils.setField(limiter, "enabled", true);
+        ReflectionTestUtils.setField(limiter, "initialRate", 10.0);
+        ReflectionTestUtils.setField(limiter, "minRate", 0.1);
+        ReflectionTestUtils.setField(limiter, "maxRate", 50.0);
+        ReflectionTestUtils.setField(limiter, "burst", 10);
+        ReflectionTestUtils.setField(limiter, "increaseStep", 1.0);
+        ReflectionTestUtils.setField(limiter, "decreaseFactor", 0.5);
+        ReflectionTestUtils.setField(limiter, "maxConcurrencyPerDomain", 1);
+        ReflectionTestUtils.setField(limiter, "maxWaitMs", 0L);
+        ReflectionTestUtils.setField(limiter, "idleExpiryMs", 0L);
+        limiter.afterPropertiesSet();
+    }
+
+    @Test
+    public void testReserveLetsTheBurstThroughThenSpacesSlots() {
+        DeliveryRateLimiter.RateBucket bucket = new DeliveryRateLimiter.RateBucket(10, 2);
+
+        assertEquals(1000, bucket.reserve(1000));
+        assertEquals(1000, bucket.reserve(1000));
+        assertEquals(1100, bucket.reserve(1000));
+        assertEquals(1200, bucket.reserve(1000));
+    }
+
+    @Test
+    public void testIncreaseGrowsSlowDomainsByAtMostOneStepUpToTheCeiling() {
+        DeliveryRateLimiter.RateBucket bucket = new DeliveryRateLimiter.RateBucket(1, 1);
+
+        bucket.increase(1, 1.5);
+
+        // 1.5 a second: slots 667ms apart
+        assertEquals(0, bucket.reserve(0));
+        assertEquals(667, bucket.reserve(0));
+    }
+
+    @Test
+    public void testDecreaseLowersTheRateToTheFloorAndHoldsOff() {
+        DeliveryRateLimiter.RateBucket bucket = new DeliveryRateLimiter.RateBucket(10, 1);
+
+        assertEquals(5.0, bucket.decrease(0.5, 1, 0));
+        assertEquals(200, bucket.reserve(0));
+        assertEquals(1.0, bucket.decrease(0.1, 1, 0));
+    }
+
+    @Test
+    public void testLeaseIsRefusedAtTheConcurrencyCap() throws Exception {
+        DeliveryRateLimiter.Lease held = limiter.lease(List.of("a.example"));
+        assertNotNull(held);
+
+        // Refused whole, without keeping the slot it did get for the other domain
+        assertNull(limiter.lease(List.of("a.example", "b.example")));
+        assertEquals(1, meterRegistry.counter("email.ratelimit.parked", "reason", "concurrency").count());
+        DeliveryRateLimiter.Lease other = limiter.lease(List.of("b.example"));
+        assertNotNull(other);
+        other.close();
+
+        held.close();
+        held.close();
+        DeliveryRateLimiter.Lease again = limiter.lease(List.of("a.example"));
+        assertNotNull(again);
+        assertNull(limiter.lease(List.of("a.example")));
+        again.close();
+    }
+
+    @Test
+    public void testReplyCodeWalksNestedFailures() throws Exception {
+        SMTPAddressFailedException greylisted = new SMTPAddressFailedException(
+                new InternetAddress("user@b.example"), "RCPT TO:<user@b.example>", 450, "450 Greylisted");
+        MessagingException wrapped = new MessagingException("Send failed");
+        wrapped.setNextException(greylisted);
+        MailSendException failure = new MailSendException(Map.of("message", wrapped));
+
+        assertEquals(450, DeliveryRateLimiter.replyCode(failure));
+        assertEquals(0, DeliveryRateLimiter.sessionReplyCode(failure));
+        assertEquals(0, DeliveryRateLimiter.replyCode(new IllegalStateException("No reply")));
+    }
+
+    @Test
+    public void testOnlySessionLevelTemporaryRepliesAreThrottling() throws Exception {
+        Address[] none = new Address[0];
+        SMTPSendFailedException tooFast = new SMTPSendFailedException("DATA", 421, "421 Too many messages",
+                null, none, none, none);
+        SMTPSendFailedException rejected = new SMTPSendFailedException("DATA", 554, "554 Rejected",
+                null, none, none, none);
+        SMTPAddressFailedException mailboxFull = new SMTPAddressFailedException(
+                new InternetAddress("user@b.example"), "RCPT TO:<user@b.example>", 452, "452 Mailbox full");
+        SMTPSendFailedException recipientsRefused = new SMTPSendFailedException("RCPT", 452, "452 Mailbox full",
+                mailboxFull, none, none, none);
+
+        assertTrue(DeliveryRateLimiter.isThrottlingResponse(new IllegalStateException("Send failed", tooFast)));
+        assertFalse(DeliveryRateLimiter.isThrottlingResponse(rejected));
+        assertFalse(DeliveryRateLimiter.isThrottlingResponse(recipientsRefused));
+    }
+
+    @Test
+    public void testEvictsOnlyIdleDomainsAtTheirInitialRate() throws Exception {
+        limiter.lease(List.of("idle.example")).close();
+        DeliveryRateLimiter.Lease busy = limiter.lease(List.of("busy.example"));
+        limiter.lease(List.of("slow.example")).close();
+        limiter.onThrottled(List.of("slow.example"));
+        Thread.sleep(5);
+
+        limiter.evictIdleDomains();
+
+        assertEquals(2, meterRegistry.get("email.ratelimit.domains").gauge().value());
+        assertNull(limiter.lease(List.of("busy.example")));
+        busy.close();
+    }
+}
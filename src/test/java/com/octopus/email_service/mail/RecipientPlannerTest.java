@@ -0,0 +1,85 @@
+package com.octopus.email_service.mail;
+
+import com.octopus.email_service.entity.Email;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for grouping same-content emails into shared SMTP transactions.
+ */
+public class RecipientPlannerTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private SmtpTransportPool pool;
+    private RecipientPlanner planner;
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        pool = new SmtpTransportPool(new JavaMailSenderImpl(), meterRegistry);
+        ReflectionTestUtils.setField(pool, "enabled", true);
+        planner = new RecipientPlanner(pool, meterRegistry);
+        ReflectionTestUtils.setField(planner, "enabled", true);
+        ReflectionTestUtils.setField(planner, "maxRecipients", 2);
+    }
+
+    @Test
+    public void testGroupsSameContentByDomainUpToLimit() {
+        List<Email> emails = List.of(
+                email(1, "a@example.com", "Newsletter"),
+                email(2, "b@other.org", "Newsletter"),
+                email(3, "c@example.com", "Newsletter"),
+                email(4, "d@Example.com", "Newsletter"),
+                email(5, "e@other.org", "Newsletter"));
+
+        List<List<Long>> deliveries = ids(planner.plan(emails));
+
+        assertEquals(List.of(List.of(1L, 3L), List.of(4L), List.of(2L, 5L)), deliveries);
+        assertEquals(3, meterRegistry.summary("email.smtp.transaction.recipients").count());
+    }
+
+    @Test
+    public void testKeepsDifferentContentAndMultiRecipientEmailsApart() {
+        Email withCc = email(3, "c@example.com", "Newsletter");
+        withCc.setCcAddresses(new ArrayList<>(List.of("cc@example.com")));
+        List<Email> emails = List.of(
+                email(1, "a@example.com", "Newsletter"),
+                email(2, "b@example.com", "Receipt"),
+                withCc);
+
+        assertEquals(List.of(List.of(3L), List.of(1L), List.of(2L)), ids(planner.plan(emails)));
+    }
+
+    @Test
+    public void testSendsIndividuallyWithoutPooledTransports() {
+        ReflectionTestUtils.setField(pool, "enabled", false);
+        List<Email> emails = List.of(email(1, "a@example.com", "Newsletter"), email(2, "b@example.com", "Newsletter"));
+
+        assertFalse(planner.isEnabled());
+        assertEquals(List.of(List.of(1L), List.of(2L)), ids(planner.plan(emails)));
+    }
+
+    private static List<List<Long>> ids(List<RecipientPlanner.Delivery> deliveries) {
+        return deliveries.stream().map(delivery -> delivery.emails().stream().map(Email::getId).toList()).toList();
+    }
+
+    private static Email email(long id, String to, String subject) {
+        return Email.builder()
+                .id(id)
+                .fromAddress("news@sender.com")
+                .toAddresses(new ArrayList<>(List.of(to)))
+                .ccAddresses(new ArrayList<>())
+                .bccAddresses(new ArrayList<>())
+                .subject(subject)
+                .body("Hello")
+                .build();
+    }
+}
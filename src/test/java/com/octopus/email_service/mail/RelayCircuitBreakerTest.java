@@ -0,0 +1,81 @@
+package com.octopus.email_service.mail;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the per-relay circuit breaker.
+ */
+public class RelayCircuitBreakerTest {
+
+    @Test
+    public void testOpensOnFailureRate() {
+        RelayCircuitBreaker breaker = new RelayCircuitBreaker(10, 4, 0.5, 1000, 0.8, 5000, 2);
+        breaker.onSuccess(10, 0);
+        breaker.onFailure(0);
+        breaker.onSuccess(10, 0);
+        assertEquals(RelayCircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.onFailure(100);
+        assertEquals(RelayCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire(5099));
+    }
+
+    @Test
+    public void testOpensOnSlowCalls() {
+        RelayCircuitBreaker breaker = new RelayCircuitBreaker(4, 4, 0.5, 1000, 0.75, 5000, 2);
+        breaker.onSuccess(1500, 0);
+        breaker.onSuccess(10, 0);
+        breaker.onSuccess(2000, 0);
+        breaker.onSuccess(3000, 0);
+        assertEquals(RelayCircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testOldOutcomesLeaveTheWindow() {
+        RelayCircuitBreaker breaker = new RelayCircuitBreaker(4, 4, 0.5, 1000, 0.8, 5000, 2);
+        breaker.onFailure(0);
+        for (int i = 0; i < 10; i++) {
+            breaker.onSuccess(10, 0);
+        }
+        breaker.onFailure(0);
+        assertEquals(RelayCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenProbesCloseTheBreaker() {
+        RelayCircuitBreaker breaker = tripped();
+
+        assertTrue(breaker.tryAcquire(5000));
+        assertEquals(RelayCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquire(5000));
+        assertFalse(breaker.tryAcquire(5000));
+
+        breaker.onSuccess(10, 5010);
+        assertEquals(RelayCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onSuccess(10, 5020);
+        assertEquals(RelayCircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire(5030));
+    }
+
+    @Test
+    public void testFailedProbeReopensTheBreaker() {
+        RelayCircuitBreaker breaker = tripped();
+
+        assertTrue(breaker.tryAcquire(5000));
+        breaker.onFailure(5010);
+
+        assertEquals(RelayCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.isCallPermitted(10009));
+        assertTrue(breaker.isCallPermitted(10010));
+    }
+
+    private RelayCircuitBreaker tripped() {
+        RelayCircuitBreaker breaker = new RelayCircuitBreaker(4, 2, 0.5, 1000, 0.8, 5000, 2);
+        breaker.onFailure(0);
+        breaker.onFailure(0);
+        assertEquals(RelayCircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+}
@@ -0,0 +1,78 @@
+package com.octopus.email_service.mail;
+
+import com.octopus.email_service.enums.EmailPriority;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the binary send envelope codec.
+ */
+public class SendEnvelopeCodecTest {
+
+    @Test
+    public void testRoundTripPreservesAllFields() {
+        SendEnvelope envelope = new SendEnvelope(42L, UUID.randomUUID(), 7L,
+                "noreply@bank.example", null,
+                List.of("ada@example.com", "émile@example.fr"), List.of(), List.of("audit@bank.example"),
+                "Your statement", "<p>Hello</p>", true, false,
+                3L, 1_700_000_000_000L, "{\"name\":\"Ada\"}", null, "mime/2026-10-16/x.eml.gz", 2, 5,
+                EmailPriority.HIGH, 1_760_000_000_000L);
+
+        assertEquals(envelope, SendEnvelopeCodec.decode(SendEnvelopeCodec.encode(envelope)));
+    }
+
+    @Test
+    public void testNullableFieldsRoundTripAsNull() {
+        SendEnvelope envelope = new SendEnvelope(1L, UUID.randomUUID(), null,
+                "noreply@bank.example", null, List.of("ada@example.com"), List.of(), List.of(),
+                "Subject", null, false, true, null, 0L, null, null, null, 0, 5, EmailPriority.LOW, null);
+
+        SendEnvelope decoded = SendEnvelopeCodec.decode(SendEnvelopeCodec.encode(envelope));
+
+        assertNull(decoded.tenantId());
+        assertNull(decoded.templateId());
+        assertNull(decoded.body());
+        assertTrue(decoded.needsFallbackTemplate());
+    }
+
+    @Test
+    public void testTrailingFieldsFromNewerWritersAreIgnored() {
+        SendEnvelope envelope = new SendEnvelope(9L, UUID.randomUUID(), null,
+                "a@b.example", null, List.of("c@d.example"), List.of(), List.of(),
+                "Subject", "Body", false, false, null, 0L, null, null, null, 1, 5, EmailPriority.NORMAL, null);
+        byte[] encoded = SendEnvelopeCodec.encode(envelope);
+        byte[] extended = Arrays.copyOf(encoded, encoded.length + 3);
+
+        assertEquals(envelope, SendEnvelopeCodec.decode(extended));
+    }
+
+    @Test
+    public void testEnvelopeFromOlderWriterGetsDefaults() {
+        SendEnvelope envelope = new SendEnvelope(9L, UUID.randomUUID(), null,
+                "a@b.example", null, List.of("c@d.example"), List.of(), List.of(),
+                "Subject", "Body", false, false, null, 0L, null, null, null, 1, 5, EmailPriority.NORMAL, null);
+        byte[] encoded = SendEnvelopeCodec.encode(envelope);
+        // Drop the appended priority and created-at fields
+        byte[] older = Arrays.copyOf(encoded, encoded.length - 2);
+
+        assertEquals(envelope, SendEnvelopeCodec.decode(older));
+    }
+
+    @Test
+    public void testUnknownVersionIsRejected() {
+        SendEnvelope envelope = new SendEnvelope(9L, UUID.randomUUID(), null,
+                "a@b.example", null, List.of("c@d.example"), List.of(), List.of(),
+                "Subject", "Body", false, false, null, 0L, null, null, null, 1, 5, EmailPriority.NORMAL, null);
+        byte[] encoded = SendEnvelopeCodec.encode(envelope);
+        encoded[1] = (byte) (SendEnvelopeCodec.VERSION + 1);
+
+        assertThrows(IllegalArgumentException.class, () -> SendEnvelopeCodec.decode(encoded));
+        assertThrows(IllegalArgumentException.class,
+                     () -> SendEnvelopeCodec.decode(Arrays.copyOf(encoded, encoded.length / 2)));
+    }
+}
@@ -0,0 +1,125 @@
+package com.octopus.email_service.mail;
+
+import com.octopus.email_service.entity.Email;
+import com.octopus.email_service.service.EmailService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the staged send pipeline's backpressure and stage failure handling.
+ */
+public class SendPipelineTest {
+
+    private MessageRenderer renderer;
+    private MessageAssembler assembler;
+    private MessageTransmitter transmitter;
+    private SendPipeline pipeline;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        renderer = mock(MessageRenderer.class);
+        assembler = mock(MessageAssembler.class);
+        transmitter = mock(MessageTransmitter.class);
+        pipeline = new SendPipeline(renderer, assembler, transmitter, mock(MimeSpool.class), mock(EmailService.class),
+                new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(pipeline, "enabled", true);
+        ReflectionTestUtils.setField(pipeline, "renderThreads", 1);
+        ReflectionTestUtils.setField(pipeline, "assembleThreads", 1);
+        ReflectionTestUtils.setField(pipeline, "transmitThreads", 1);
+        ReflectionTestUtils.setField(pipeline, "expressThreads", 1);
+        ReflectionTestUtils.setField(pipeline, "queueCapacity", 1);
+        pipeline.afterPropertiesSet();
+
+        when(renderer.render(any())).thenReturn(new MessageRenderer.Rendered("Hello", "<p>Hi</p>", true, "Hi"));
+        when(assembler.assemble(any(), any())).thenAnswer(invocation ->
+                new MessageAssembler.Assembled(new MimeMessage(Session.getInstance(new Properties())), List.of()));
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        pipeline.destroy();
+    }
+
+    @Test
+    public void testBlocksSubmitterOnceEveryStageIsFull() throws Exception {
+        CountDownLatch relay = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            relay.await();
+            return null;
+        }).when(transmitter).transmit(any(MimeMessage.class), anyBoolean());
+
+        List<CompletableFuture<Void>> sends = new CopyOnWriteArrayList<>();
+        Thread submitter = new Thread(() -> {
+            for (int i = 1; i <= 20; i++) {
+                sends.add(pipeline.submit(email(i)));
+            }
+        });
+        submitter.start();
+
+        // One running and one queued per stage, then the submitter waits for room in the render queue
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!(sends.size() == 6 && submitter.getState() == Thread.State.WAITING)
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertEquals(6, sends.size());
+        assertEquals(Thread.State.WAITING, submitter.getState());
+
+        relay.countDown();
+        submitter.join(5000);
+        assertEquals(20, sends.size());
+        CompletableFuture.allOf(sends.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+        verify(transmitter, times(20)).transmit(any(MimeMessage.class), anyBoolean());
+    }
+
+    @Test
+    public void testFailedStageFailsTheSendAndSkipsLaterStages() throws Exception {
+        when(renderer.render(any())).thenThrow(new IllegalStateException("Template broken"));
+
+        CompletableFuture<Void> sent = pipeline.submit(email(1));
+
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> sent.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, failure.getCause());
+        assertEquals("Template broken", failure.getCause().getMessage());
+        verify(assembler, never()).assemble(any(), any());
+        verify(transmitter, never()).transmit(any(MimeMessage.class), anyBoolean());
+    }
+
+    @Test
+    public void testTransmitFailureSurfacesTheRelayException() throws Exception {
+        doThrow(new MessagingException("550 Mailbox unavailable"))
+                .when(transmitter).transmit(any(MimeMessage.class), anyBoolean());
+
+        MessagingException failure = assertThrows(MessagingException.class, () -> pipeline.send(email(1)));
+
+        assertEquals("550 Mailbox unavailable", failure.getMessage());
+    }
+
+    private static Email email(long id) {
+        return Email.builder()
+                .id(id)
+                .fromAddress("sender@example.com")
+                .toAddresses(List.of("user" + id + "@example.com"))
+                .subject("Hello")
+                .build();
+    }
+}
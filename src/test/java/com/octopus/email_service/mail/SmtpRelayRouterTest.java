@@ -0,0 +1,158 @@
+package com.octopus.email_service.mail;
+
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import org.eclipse.angus.mail.smtp.SMTPAddressFailedException;
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.ServerSocket;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for weighted SMTP relay routing and failover against an in-process GreenMail server.
+ */
+public class SmtpRelayRouterTest {
+
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP);
+
+    private SimpleMeterRegistry meterRegistry;
+    private JavaMailSenderImpl mailSender;
+    private SmtpRelayRouter router;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        meterRegistry = new SimpleMeterRegistry();
+        mailSender = new JavaMailSenderImpl();
+        mailSender.setHost("localhost");
+        mailSender.setPort(ServerSetupTest.SMTP.getPort());
+
+        SmtpTransportPool pool = new SmtpTransportPool(mailSender, meterRegistry);
+        ReflectionTestUtils.setField(pool, "enabled", true);
+        ReflectionTestUtils.setField(pool, "maxConnectionsPerRelay", 2);
+        ReflectionTestUtils.setField(pool, "maxMessagesPerConnection", 100);
+        ReflectionTestUtils.setField(pool, "maxConnectionAgeMs", 60000L);
+        ReflectionTestUtils.setField(pool, "validateAfterIdleMs", 60000L);
+        ReflectionTestUtils.setField(pool, "borrowTimeoutMs", 1000L);
+
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("app.email.relays.servers.up.host", "localhost")
+                .withProperty("app.email.relays.servers.up.port", String.valueOf(ServerSetupTest.SMTP.getPort()))
+                .withProperty("app.email.relays.servers.down.host", "localhost")
+                .withProperty("app.email.relays.servers.down.port", String.valueOf(closedPort));
+
+        router = new SmtpRelayRouter(pool, mailSender, environment, meterRegistry);
+        ReflectionTestUtils.setField(router, "enabled", true);
+        ReflectionTestUtils.setField(router, "names", List.of("down", "up"));
+        ReflectionTestUtils.setField(router, "maxFailover", 1);
+        ReflectionTestUtils.setField(router, "windowSize", 10);
+        ReflectionTestUtils.setField(router, "minimumCalls", 2);
+        ReflectionTestUtils.setField(router, "failureRateThreshold", 0.5);
+        ReflectionTestUtils.setField(router, "slowCallMillis", 10000L);
+        ReflectionTestUtils.setField(router, "slowCallRateThreshold", 0.8);
+        ReflectionTestUtils.setField(router, "openMillis", 60000L);
+        ReflectionTestUtils.setField(router, "halfOpenProbes", 1);
+        router.afterPropertiesSet();
+    }
+
+    @Test
+    public void testFailsOverAndOpensBreakerOfDeadRelay() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            router.send(message("user" + i + "@example.com"), null);
+        }
+
+        assertEquals(6, greenMail.getReceivedMessages().length);
+        assertEquals(2.0, meterRegistry.counter("email.smtp.relay.errors", "relay", "down").count());
+        assertEquals(2.0, meterRegistry.counter("email.smtp.relay.failovers").count());
+        assertEquals(6, meterRegistry.timer("email.smtp.relay.send", "relay", "up").count());
+        assertEquals(2.0, meterRegistry.get("email.smtp.relay.breaker.state").tag("relay", "down").gauge().value());
+        assertEquals(List.of("up"), router.getHealthyRelays().stream().map(SmtpRelay::getName).toList());
+    }
+
+    @Test
+    public void testSendsOnExpressLaneConnections() throws Exception {
+        router.send(message("one@example.com"), MessageTransmitter.EXPRESS_LANE);
+        router.send(message("two@example.com"), MessageTransmitter.EXPRESS_LANE);
+
+        assertEquals(2, greenMail.getReceivedMessages().length);
+        assertNotNull(meterRegistry.find("email.smtp.pool.open").tag("relay", "up-express").gauge());
+    }
+
+    @Test
+    public void testFailsWhenEveryBreakerIsOpen() throws Exception {
+        greenMail.stop();
+        for (int i = 0; i < 2; i++) {
+            assertThrows(MessagingException.class, () -> router.send(message("user@example.com"), null));
+        }
+
+        long before = System.currentTimeMillis();
+        RelaysUnavailableException failure = assertThrows(RelaysUnavailableException.class,
+                () -> router.send(message("user@example.com"), null));
+        assertTrue(failure.getMessage().contains("No SMTP relay available"));
+        assertTrue(failure.getRetryAt() >= before + 59000, "deferred until the first breaker half-opens");
+        assertEquals(1.0, meterRegistry.counter("email.smtp.relay.unavailable").count());
+    }
+
+    @Test
+    public void testRecipientRejectionIsNotARelayFailure() throws Exception {
+        SendFailedException rejected = new SendFailedException("Invalid Addresses", null,
+                new InternetAddress[0], new InternetAddress[0], new InternetAddress[]{new InternetAddress("x@example.com")});
+
+        assertFalse(SmtpRelayRouter.isRelayFailure(rejected));
+        assertTrue(SmtpRelayRouter.isRelayFailure(new MessagingException("Connection refused")));
+    }
+
+    @Test
+    public void testClassifiesSmtpRepliesByReturnCode() {
+        SMTPSendFailedException busy = new SMTPSendFailedException("DATA", 421, "421 Service not available",
+                null, null, null, null);
+        SMTPSendFailedException rejected = new SMTPSendFailedException("DATA", 554, "554 Message rejected as spam",
+                null, null, null, null);
+
+        assertTrue(SmtpRelayRouter.isRelayFailure(busy));
+        assertFalse(SmtpRelayRouter.isRelayFailure(rejected));
+        assertFalse(SmtpRelayRouter.isRelayFailure(new MessagingException("Send failed", rejected)));
+    }
+
+    @Test
+    public void testTemporaryRecipientRepliesAreNotRelayFailures() throws Exception {
+        InternetAddress recipient = new InternetAddress("x@example.com");
+        SMTPAddressFailedException greylisted = new SMTPAddressFailedException(recipient, "RCPT TO", 450,
+                "450 4.7.1 Greylisted, try again later");
+        SendFailedException rcptFailed = new SendFailedException("Invalid Addresses", greylisted,
+                new InternetAddress[0], new InternetAddress[0], new InternetAddress[]{recipient});
+        SMTPAddressFailedException closing = new SMTPAddressFailedException(recipient, "RCPT TO", 421,
+                "421 4.3.2 Service shutting down");
+
+        assertFalse(SmtpRelayRouter.isRelayFailure(rcptFailed));
+        assertFalse(SmtpRelayRouter.isRelayFailure(new MessagingException("Send failed", greylisted)));
+        assertTrue(SmtpRelayRouter.isRelayFailure(new SendFailedException("Invalid Addresses", closing,
+                new InternetAddress[0], new InternetAddress[0], new InternetAddress[]{recipient})));
+    }
+
+    private MimeMessage message(String to) throws Exception {
+        MimeMessage message = mailSender.createMimeMessage();
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.setRecipient(MimeMessage.RecipientType.TO, new InternetAddress(to));
+        message.setSubject("Relay test");
+        message.setText("Hello");
+        return message;
+    }
+}
@@ -0,0 +1,89 @@
+package com.octopus.email_service.mail;
+
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for SMTP transport pooling against an in-process GreenMail server.
+ */
+public class SmtpTransportPoolTest {
+
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP);
+
+    private SimpleMeterRegistry meterRegistry;
+    private JavaMailSenderImpl mailSender;
+    private SmtpTransportPool pool;
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        mailSender = new JavaMailSenderImpl();
+        mailSender.setHost("localhost");
+        mailSender.setPort(ServerSetupTest.SMTP.getPort());
+
+        pool = new SmtpTransportPool(mailSender, meterRegistry);
+        ReflectionTestUtils.setField(pool, "enabled", true);
+        ReflectionTestUtils.setField(pool, "maxConnectionsPerRelay", 2);
+        ReflectionTestUtils.setField(pool, "maxMessagesPerConnection", 3);
+        ReflectionTestUtils.setField(pool, "maxConnectionAgeMs", 60000L);
+        ReflectionTestUtils.setField(pool, "validateAfterIdleMs", 60000L);
+        ReflectionTestUtils.setField(pool, "borrowTimeoutMs", 1000L);
+    }
+
+    @Test
+    public void testReusesTransportAcrossMessages() throws Exception {
+        pool.send(message("one@example.com"));
+        pool.send(message("two@example.com"));
+        pool.send(message("three@example.com"));
+
+        assertEquals(3, greenMail.getReceivedMessages().length);
+        assertEquals(1.0, meterRegistry.counter("email.smtp.handshakes").count());
+        assertEquals(1.0, meterRegistry.counter("email.smtp.pool.misses").count());
+        assertEquals(2.0, meterRegistry.counter("email.smtp.pool.hits").count());
+    }
+
+    @Test
+    public void testRecyclesTransportAfterMaxMessages() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            pool.send(message("user" + i + "@example.com"));
+        }
+
+        assertEquals(4, greenMail.getReceivedMessages().length);
+        assertEquals(2.0, meterRegistry.counter("email.smtp.handshakes").count());
+    }
+
+    @Test
+    public void testBorrowTimesOutWhenPoolExhausted() throws Exception {
+        SmtpRelay relay = pool.getDefaultRelay();
+        SmtpTransportPool.PooledTransport first = pool.borrow(relay);
+        SmtpTransportPool.PooledTransport second = pool.borrow(relay);
+
+        assertThrows(jakarta.mail.MessagingException.class, () -> pool.borrow(relay));
+
+        pool.release(first);
+        assertSame(first, pool.borrow(relay));
+
+        pool.invalidate(first);
+        pool.invalidate(second);
+    }
+
+    private MimeMessage message(String to) throws Exception {
+        MimeMessage message = mailSender.createMimeMessage();
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.setRecipient(MimeMessage.RecipientType.TO, new InternetAddress(to));
+        message.setSubject("Pool test");
+        message.setText("Hello");
+        return message;
+    }
+}
@@ -0,0 +1,105 @@
+package com.octopus.email_service.mail;
+
+import com.octopus.email_service.entity.Template;
+import com.octopus.email_service.enums.BodyType;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for compiling HTML template bodies when they are saved.
+ */
+public class TemplateCompilerTest {
+
+    private final TemplateCompiler compiler = new TemplateCompiler();
+
+    @Test
+    public void testInlinesStyleRulesAndKeepsTheRest() {
+        TemplateCompiler.Compiled compiled = compiler.compile("""
+                <html><head><style>
+                  p { color: #333; margin: 0 }
+                  .note { color: red }
+                  div p.note { font-weight: bold }
+                  a:hover { color: blue }
+                  @media (max-width: 600px) { p { margin: 4px } }
+                </style></head>
+                <body><div><p class="note" style="margin: 2px">Hi</p><p>Bye</p></div></body></html>
+                """);
+
+        assertEquals("<html><head><style>a:hover{color: blue}@media (max-width: 600px){p{margin: 4px}}</style></head>"
+                + "<body><div><p class=\"note\" style=\"color:red;margin:2px;font-weight:bold\">Hi</p>"
+                + "<p style=\"color:#333;margin:0\">Bye</p></div></body></html>", compiled.html());
+    }
+
+    @Test
+    public void testKeepsRulesForElementsWithClassesSetAtRenderTime() {
+        TemplateCompiler.Compiled compiled = compiler.compile("""
+                <html><head><style>
+                  p { margin: 0 }
+                  .alert { color: red }
+                  .footer { color: gray }
+                </style></head>
+                <body><p th:classappend="${urgent} ? 'alert'">Hi</p><p class="footer">Bye</p></body></html>
+                """);
+
+        assertEquals("<html><head><style>p{margin: 0}.alert{color: red}.footer{color: gray}</style></head>"
+                + "<body><p th:classappend=\"${urgent} ? 'alert'\">Hi</p>"
+                + "<p class=\"footer\" style=\"margin:0;color:gray\">Bye</p></body></html>", compiled.html());
+    }
+
+    @Test
+    public void testMinifiesWhitespaceAndCommentsButNotThymeleafMarkup() {
+        TemplateCompiler.Compiled compiled = compiler.compile("""
+                <div>
+                    <!-- layout -->
+                    <!--[if mso]><table><tr><td><![endif]-->
+                    <p th:text="${greeting}">Hello   there</p>
+                    <span>Dear</span>   <b>[[${name}]]</b>
+                    <pre>  kept
+                  as is</pre>
+                </div>
+                """);
+
+        assertEquals("<div><!--[if mso]><table><tr><td><![endif]--><p th:text=\"${greeting}\">Hello there</p>"
+                + "<span>Dear</span> <b>[[${name}]]</b><pre>  kept\n  as is</pre></div>", compiled.html());
+    }
+
+    @Test
+    public void testTextAlternativeRendersWithTheSameVariables() {
+        TemplateCompiler.Compiled compiled = compiler.compile("""
+                <html><head><title>Order</title></head><body>
+                <h1>Hello [[${name}]]</h1>
+                <ul><li th:each="item : ${items}" th:text="${item}">Sample</li></ul>
+                <p th:if="${vip}">Thanks for being a VIP &amp; friend</p>
+                <p>Track it <a th:href="${url}">here</a> or visit <a href="https://example.com">our site</a>.</p>
+                </body></html>
+                """);
+
+        CompiledTemplateCache cache = new CompiledTemplateCache(new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(cache, "cacheSize", 10);
+        cache.afterPropertiesSet();
+        Template template = Template.builder()
+                .id(1L)
+                .version(1)
+                .name("order")
+                .subjectTemplate("Order")
+                .bodyTemplate("unused")
+                .compiledBody(compiled.html())
+                .textBody(compiled.text())
+                .bodyType(BodyType.HTML)
+                .build();
+        Map<String, Object> variables = Map.of("name", "Ada", "items", List.of("Tea", "Cake"), "vip", false,
+                "url", "https://example.com/track/1");
+
+        assertEquals("Hello Ada\n\n- Tea\n- Cake\n\nTrack it here (https://example.com/track/1) or visit our site "
+                + "(https://example.com).", cache.render(template, CompiledTemplateCache.Part.TEXT, variables)
+                .replaceAll("\n{3,}", "\n\n").strip());
+        assertTrue(cache.render(template, CompiledTemplateCache.Part.BODY, variables)
+                .contains("<a href=\"https://example.com/track/1\">here</a>"));
+    }
+}
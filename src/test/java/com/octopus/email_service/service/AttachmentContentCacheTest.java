@@ -0,0 +1,99 @@
+package com.octopus.email_service.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the checksum-keyed attachment content cache.
+ */
+public class AttachmentContentCacheTest {
+
+    @TempDir
+    Path directory;
+
+    private SimpleMeterRegistry meterRegistry;
+    private AttachmentContentCache cache;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        meterRegistry = new SimpleMeterRegistry();
+        cache = new AttachmentContentCache(meterRegistry);
+        ReflectionTestUtils.setField(cache, "enabled", true);
+        ReflectionTestUtils.setField(cache, "directory", directory);
+        ReflectionTestUtils.setField(cache, "maxBytes", 10L);
+        ReflectionTestUtils.setField(cache, "maxEntryBytes", 10L);
+        cache.afterPropertiesSet();
+    }
+
+    @Test
+    public void testRepeatedReadIsServedFromCache() throws Exception {
+        AtomicInteger downloads = new AtomicInteger();
+        byte[] content = "brochure".getBytes(StandardCharsets.UTF_8);
+
+        assertArrayEquals(content, read(checksum(content), content, downloads));
+        assertArrayEquals(content, read(checksum(content), content, downloads));
+
+        assertEquals(1, downloads.get());
+        assertEquals(0.5, meterRegistry.get("email.attachment.cache.hit.ratio").gauge().value());
+        assertEquals(content.length, meterRegistry.get("email.attachment.cache.bytes.saved").counter().count());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+        AtomicInteger downloads = new AtomicInteger();
+        byte[] first = "aaaa".getBytes(StandardCharsets.UTF_8);
+        byte[] second = "bbbb".getBytes(StandardCharsets.UTF_8);
+        byte[] third = "cccc".getBytes(StandardCharsets.UTF_8);
+
+        read(checksum(first), first, downloads);
+        read(checksum(second), second, downloads);
+        read(checksum(first), first, downloads);
+        read(checksum(third), third, downloads);
+
+        assertEquals(8, cache.size());
+        read(checksum(first), first, downloads);
+        assertEquals(3, downloads.get());
+        read(checksum(second), second, downloads);
+        assertEquals(4, downloads.get());
+    }
+
+    @Test
+    public void testMismatchedContentIsNotCached() throws Exception {
+        AtomicInteger downloads = new AtomicInteger();
+        byte[] content = "resized".getBytes(StandardCharsets.UTF_8);
+        String otherChecksum = checksum("original".getBytes(StandardCharsets.UTF_8));
+
+        assertArrayEquals(content, read(otherChecksum, content, downloads));
+        assertArrayEquals(content, read(otherChecksum, content, downloads));
+
+        assertEquals(2, downloads.get());
+        assertEquals(0, cache.size());
+    }
+
+    private byte[] read(String checksum, byte[] content, AtomicInteger downloads) throws IOException {
+        try (InputStream in = cache.open(checksum, (long) content.length, () -> {
+            downloads.incrementAndGet();
+            return new ByteArrayInputStream(content);
+        })) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static String checksum(byte[] content) throws Exception {
+        return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(content));
+    }
+}
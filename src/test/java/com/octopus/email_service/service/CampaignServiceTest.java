@@ -0,0 +1,39 @@
+package com.octopus.email_service.service;
+
+import com.octopus.email_service.dto.CampaignRecipient;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for campaign recipient validation and template variable merging.
+ */
+public class CampaignServiceTest {
+
+    @Test
+    public void testRecipientVarsOverrideSharedVars() {
+        Map<String, Object> shared = Map.of("greeting", "Hello", "name", "there");
+
+        Map<String, Object> merged = CampaignService.mergeTemplateVars(shared, Map.of("name", "Ada"));
+
+        assertEquals("Hello", merged.get("greeting"));
+        assertEquals("Ada", merged.get("name"));
+        assertEquals("there", shared.get("name"));
+        assertSame(shared, CampaignService.mergeTemplateVars(shared, null));
+    }
+
+    @Test
+    public void testInvalidRecipientsAreRejected() {
+        assertEquals("ada@example.com", CampaignService.validAddress(recipient(" ada@example.com ")));
+        assertNull(CampaignService.validAddress(recipient("not an address")));
+        assertNull(CampaignService.validAddress(recipient("ada@")));
+        assertNull(CampaignService.validAddress(recipient("")));
+        assertNull(CampaignService.validAddress(null));
+    }
+
+    private static CampaignRecipient recipient(String to) {
+        return CampaignRecipient.builder().to(to).build();
+    }
+}
@@ -0,0 +1,58 @@
+package com.octopus.email_service.worker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for weighted deficit round robin ordering.
+ */
+public class DeficitRoundRobinTest {
+
+    @Test
+    public void testSmallLaneIsNotStarvedByBacklog() {
+        DeficitRoundRobin<String, String> drr = new DeficitRoundRobin<>(1, key -> 1);
+        for (int i = 0; i < 1000; i++) {
+            drr.offer("bulk", "bulk-" + i);
+        }
+        drr.offer("otp", "otp-0");
+
+        assertEquals("bulk-0", drr.poll());
+        assertEquals("otp-0", drr.poll());
+        assertEquals("bulk-1", drr.poll());
+        assertEquals(998, drr.size("bulk"));
+        assertEquals(0, drr.size("otp"));
+    }
+
+    @Test
+    public void testWeightsSetShareOfService() {
+        Map<String, Integer> weights = Map.of("a", 3, "b", 1);
+        DeficitRoundRobin<String, String> drr = new DeficitRoundRobin<>(1, weights::get);
+        for (int i = 0; i < 8; i++) {
+            drr.offer("a", "a");
+            drr.offer("b", "b");
+        }
+
+        List<String> order = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            order.add(drr.poll());
+        }
+        assertEquals(List.of("a", "a", "a", "b", "a", "a", "a", "b"), order);
+    }
+
+    @Test
+    public void testIdleLaneGivesUpItsShare() {
+        DeficitRoundRobin<String, Integer> drr = new DeficitRoundRobin<>(1, key -> key.equals("big") ? 1 : 10);
+        drr.offer("big", 1);
+        drr.offer("big", 2);
+
+        assertEquals(1, drr.poll());
+        assertEquals(2, drr.poll());
+        assertNull(drr.poll());
+        assertEquals(0, drr.size());
+    }
+}
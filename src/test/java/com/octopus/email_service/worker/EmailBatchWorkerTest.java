@@ -0,0 +1,144 @@
+package com.octopus.email_service.worker;
+
+import com.octopus.email_service.entity.Email;
+import com.octopus.email_service.enums.EmailStatus;
+import com.octopus.email_service.mail.DeliveryRateLimiter;
+import com.octopus.email_service.mail.RecipientPlanner;
+import com.octopus.email_service.mail.SmtpTransportPool;
+import com.octopus.email_service.repository.EmailBatchRepository;
+import com.octopus.email_service.repository.EmailBatchRepository.StatusChange;
+import com.octopus.email_service.service.EmailRetryService;
+import com.octopus.email_service.service.EmailService;
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.mail.MessagingException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the batch consumer's acking, lease claims and partial failure handling.
+ */
+public class EmailBatchWorkerTest {
+
+    private static final String NODE = "node-1";
+
+    private EmailService emailService;
+    private EmailBatchRepository emailBatchRepository;
+    private EmailWorker emailWorker;
+    private SendLeaseManager sendLeaseManager;
+    private MessageConverter converter;
+    private Channel channel;
+    private EmailBatchWorker worker;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        emailService = mock(EmailService.class);
+        emailBatchRepository = mock(EmailBatchRepository.class);
+        emailWorker = mock(EmailWorker.class);
+        sendLeaseManager = mock(SendLeaseManager.class);
+        converter = mock(MessageConverter.class);
+        channel = mock(Channel.class);
+        when(sendLeaseManager.getOwner()).thenReturn(NODE);
+        when(sendLeaseManager.acquireAll(anyList())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        worker = new EmailBatchWorker(emailService, emailBatchRepository, emailWorker, mock(EmailRetryService.class),
+                new DeliveryRateLimiter(meterRegistry), converter, mock(LaneLatencyMetrics.class), sendLeaseManager,
+                new RecipientPlanner(new SmtpTransportPool(new JavaMailSenderImpl(), meterRegistry), meterRegistry));
+    }
+
+    @Test
+    public void testAcksWholeBatchOnceAllAreSent() throws Exception {
+        List<Message> messages = queued(emails(email(1), email(2), email(3)));
+
+        worker.processBatch(messages, channel);
+
+        verify(channel).basicAck(3L, true);
+        verify(channel, never()).basicNack(anyLong(), anyBoolean(), anyBoolean());
+        verify(emailBatchRepository).applyStatusChanges(List.of(
+                new StatusChange(1L, EmailStatus.SENT, null),
+                new StatusChange(2L, EmailStatus.SENT, null),
+                new StatusChange(3L, EmailStatus.SENT, null)));
+        verify(emailBatchRepository).releaseClaims(List.of(), NODE);
+        verify(sendLeaseManager).releaseAll(argThat(ids -> ids.size() == 3));
+    }
+
+    @Test
+    public void testHandsBackClaimsOfUnsentEmailsBeforeRequeueing() throws Exception {
+        Email first = email(1);
+        Email second = email(2);
+        List<Message> messages = queued(emails(first, second, email(3)));
+        doThrow(new MessagingException("Relay down")).when(emailWorker).sendEmail(second);
+        when(emailWorker.deferIfRelaysUnavailable(eq(second), any()))
+                .thenThrow(new IllegalStateException("Broker unavailable"));
+
+        worker.processBatch(messages, channel);
+
+        // The sent email is recorded and acked; the other two get their claims back and are requeued
+        verify(emailBatchRepository).applyStatusChanges(List.of(new StatusChange(1L, EmailStatus.SENT, null)));
+        verify(emailBatchRepository).releaseClaims(argThat(ids -> ids.size() == 2 && ids.containsAll(List.of(2L, 3L))),
+                eq(NODE));
+        verify(channel).basicAck(1L, false);
+        verify(channel).basicNack(2L, false, true);
+        verify(channel).basicNack(3L, false, true);
+        verify(sendLeaseManager).releaseAll(argThat(ids -> ids.size() == 3));
+    }
+
+    @Test
+    public void testSkipsEmailsAlreadySentOrBeingSent() throws Exception {
+        Email sent = email(1);
+        sent.setStatus(EmailStatus.SENT);
+        Email sending = email(2);
+        sending.setStatus(EmailStatus.SENDING);
+        sending.setLeaseOwner("node-2");
+        List<Message> messages = queued(emails(sent, sending, email(3)));
+
+        worker.processBatch(messages, channel);
+
+        verify(sendLeaseManager).acquireAll(List.of(3L));
+        verify(emailWorker).sendEmail(argThat(email -> email.getId() == 3L));
+        verify(emailWorker, times(1)).sendEmail(any());
+        verify(channel).basicAck(3L, true);
+    }
+
+    private List<Email> emails(Email... emails) {
+        List<Email> list = List.of(emails);
+        when(emailService.getEmailsForSending(anyCollection())).thenAnswer(invocation -> {
+            Collection<Long> ids = invocation.getArgument(0);
+            return list.stream().filter(email -> ids.contains(email.getId())).toList();
+        });
+        return list;
+    }
+
+    private List<Message> queued(List<Email> emails) throws Exception {
+        List<Message> messages = new ArrayList<>();
+        for (Email email : emails) {
+            MessageProperties properties = new MessageProperties();
+            properties.setDeliveryTag(email.getId());
+            Message message = new Message(new byte[0], properties);
+            when(converter.fromMessage(message)).thenReturn(email.getId());
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static Email email(long id) {
+        return Email.builder()
+                .id(id)
+                .fromAddress("sender@example.com")
+                .toAddresses(List.of("user" + id + "@example.com"))
+                .subject("Hello")
+                .build();
+    }
+}
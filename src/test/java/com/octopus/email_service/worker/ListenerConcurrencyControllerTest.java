@@ -0,0 +1,69 @@
+package com.octopus.email_service.worker;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the AIMD concurrency decisions, without a broker.
+ */
+public class ListenerConcurrencyControllerTest {
+
+    private ListenerConcurrencyController controller;
+
+    @BeforeEach
+    public void setUp() {
+        controller = new ListenerConcurrencyController(null, null, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(controller, "minConsumers", 2);
+        ReflectionTestUtils.setField(controller, "maxConsumers", 16);
+        ReflectionTestUtils.setField(controller, "increaseStep", 1);
+        ReflectionTestUtils.setField(controller, "decreaseFactor", 0.5);
+        ReflectionTestUtils.setField(controller, "backlogPerConsumer", 10L);
+        ReflectionTestUtils.setField(controller, "latencyThresholdMs", 1000L);
+        ReflectionTestUtils.setField(controller, "latencyHoldOffMs", 60000L);
+    }
+
+    @Test
+    public void testAdditiveIncreaseOnBacklog() {
+        ListenerConcurrencyController.Decision decision = controller.decide(4, 500, 200);
+        assertEquals(ListenerConcurrencyController.Action.INCREASE, decision.action());
+        assertEquals(5, decision.target());
+
+        assertEquals(16, controller.decide(16, 5000, 200).target());
+    }
+
+    @Test
+    public void testMultiplicativeDecreaseOnLatency() {
+        ListenerConcurrencyController.Decision decision = controller.decide(12, 5000, 2500);
+        assertEquals(ListenerConcurrencyController.Action.DECREASE, decision.action());
+        assertEquals("latency", decision.reason());
+        assertEquals(6, decision.target());
+
+        ReflectionTestUtils.setField(controller, "lastLatencyDecreaseAt", 0L);
+        assertEquals(2, controller.decide(3, 5000, 2500).target());
+    }
+
+    @Test
+    public void testHoldsOffAfterLatencyDecrease() {
+        assertEquals(8, controller.decide(16, 5000, 2500).target());
+
+        // The percentile window still holds samples from before the cut
+        ListenerConcurrencyController.Decision decision = controller.decide(8, 5000, 2500);
+        assertEquals(ListenerConcurrencyController.Action.HOLD, decision.action());
+        assertEquals("latency-hold-off", decision.reason());
+        assertEquals(8, decision.target());
+
+        ReflectionTestUtils.setField(controller, "lastLatencyDecreaseAt", System.currentTimeMillis() - 60000);
+        assertEquals(4, controller.decide(8, 5000, 2500).target());
+    }
+
+    @Test
+    public void testDrainsTowardsFloorWhenIdle() {
+        assertEquals(5, controller.decide(6, 0, 100).target());
+        assertEquals(ListenerConcurrencyController.Action.HOLD, controller.decide(2, 0, 100).action());
+        assertEquals(ListenerConcurrencyController.Action.HOLD, controller.decide(6, 30, 100).action());
+    }
+}
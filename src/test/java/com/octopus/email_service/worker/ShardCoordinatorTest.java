@@ -0,0 +1,54 @@
+package com.octopus.email_service.worker;
+
+import com.octopus.email_service.service.QueueShardRouter;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for rendezvous shard ownership.
+ */
+public class ShardCoordinatorTest {
+
+    @Test
+    public void testEveryShardHasExactlyOneOwner() {
+        List<String> nodes = List.of("node-a", "node-b", "node-c");
+        Set<Integer> seen = new HashSet<>();
+        for (String node : nodes) {
+            for (Integer shard : ShardCoordinator.ownedShards(node, nodes, 64)) {
+                assertTrue(seen.add(shard), "shard " + shard + " owned twice");
+            }
+        }
+        assertEquals(64, seen.size());
+    }
+
+    @Test
+    public void testAddingNodeOnlyMovesShardsToIt() {
+        List<String> before = List.of("node-a", "node-b", "node-c");
+        List<String> after = List.of("node-a", "node-b", "node-c", "node-d");
+        int moved = 0;
+        for (int shard = 0; shard < 256; shard++) {
+            String oldOwner = ShardCoordinator.ownerOf(shard, before);
+            String newOwner = ShardCoordinator.ownerOf(shard, after);
+            if (!oldOwner.equals(newOwner)) {
+                assertEquals("node-d", newOwner);
+                moved++;
+            }
+        }
+        assertTrue(moved > 0 && moved < 128, "moved " + moved);
+    }
+
+    @Test
+    public void testShardOfIsStableAndInRange() {
+        int shard = QueueShardRouter.shardOf("example.com", 8);
+        assertEquals(shard, QueueShardRouter.shardOf("example.com", 8));
+        for (int i = 0; i < 100; i++) {
+            int s = QueueShardRouter.shardOf("domain" + i + ".com", 8);
+            assertTrue(s >= 0 && s < 8);
+        }
+    }
+}
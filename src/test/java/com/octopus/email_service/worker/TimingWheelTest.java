@@ -0,0 +1,65 @@
+package com.octopus.email_service.worker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the hashed timing wheel.
+ */
+public class TimingWheelTest {
+
+    @Test
+    public void testItemsExpireInDeadlineOrder() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 8, 0);
+        wheel.add("c", 55);
+        wheel.add("a", 12);
+        wheel.add("b", 31);
+
+        List<String> expired = new ArrayList<>();
+        assertEquals(0, wheel.advance(9, expired::add));
+        assertEquals(2, wheel.advance(40, expired::add));
+        assertEquals(List.of("a", "b"), expired);
+        assertEquals(1, wheel.size());
+        wheel.advance(59, expired::add);
+        assertEquals(List.of("a", "b", "c"), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testLaterRotationsWaitForTheirTick() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 4, 0);
+        // Same bucket as tick 1, three rotations later
+        wheel.add("far", 130);
+        wheel.add("near", 10);
+
+        List<String> expired = new ArrayList<>();
+        wheel.advance(50, expired::add);
+        assertEquals(List.of("near"), expired);
+        wheel.advance(129, expired::add);
+        assertEquals(List.of("near"), expired);
+        wheel.advance(130, expired::add);
+        assertEquals(List.of("near", "far"), expired);
+    }
+
+    @Test
+    public void testCatchesUpAfterFallingBehind() {
+        TimingWheel<Integer> wheel = new TimingWheel<>(10, 4, 0);
+        for (int i = 0; i < 20; i++) {
+            wheel.add(i, i * 10L);
+        }
+        wheel.add(99, 10_000);
+
+        List<Integer> expired = new ArrayList<>();
+        assertEquals(20, wheel.advance(1_000, expired::add));
+        assertEquals(1, wheel.size());
+
+        // Overdue items are due immediately
+        wheel.add(100, 0);
+        assertEquals(1, wheel.advance(1_010, expired::add));
+        assertTrue(expired.contains(100));
+    }
+}